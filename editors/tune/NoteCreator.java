@@ -93,7 +93,10 @@ public class NoteCreator
 
 	public void setTied(boolean isTied) {
 		if(isTied && this.lastNote != null) {
-			this.lastNote.startsTie(this.lastNoteTied);
+			// Notes are shared, so put in a tied copy of the last one
+			this.lastNote = this.lastNote.withTie(this.lastNoteTied);
+			out.removeLastNote();
+			out.add(this.lastNote);
 		}
 		this.lastNoteTied = isTied;
 	}
@@ -169,7 +172,7 @@ public class NoteCreator
 			if(! valid) throw new IncompleteInformationException();
 
 			try {
-				return new Note(this.pitch, this.duration, this.dotted,
+				return Note.valueOf(this.pitch, this.duration, this.dotted,
 					this.startsTie, this.slurStatus, this.rest);
 			}
 			catch(io.BadInputException e) {
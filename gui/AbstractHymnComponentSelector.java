@@ -20,16 +20,19 @@ import java.util.Set;
 import java.util.SortedSet;
 import java.util.TreeSet;
 
+import javax.swing.SwingUtilities;
+
 import model.Hymn;
 import model.HymnComponent;
 import io.Database;
+import io.DatabaseListener;
 
 /**
  * Serves as the model for the tune and text selectors. Stores data and provides logic.
  *
  * @author Tim Macdonald
  */
-public abstract class AbstractHymnComponentSelector implements HymnChangeListener
+public abstract class AbstractHymnComponentSelector implements HymnChangeListener, DatabaseListener
 {
 	/** Holds all the hymn components read from the database. */
 	private Set<HymnComponent> allHymnComponents = new HashSet<HymnComponent>();
@@ -47,6 +50,10 @@ public abstract class AbstractHymnComponentSelector implements HymnChangeListene
 		this.populateSet();
 		this.current = null;
 		this.sortAll();
+		Database db = Database.getInstance();
+		if(db != null) {
+			db.addListener(this);
+		}
 	}
 
 	protected Dropdown getDropdown() {
@@ -127,6 +134,38 @@ public abstract class AbstractHymnComponentSelector implements HymnChangeListene
 	 */
 	public void hymnChanged(Hymn h) { }
 
+	/**
+	 * Called by the database, from the thread that reloaded it, when its
+	 * tunes/texts change. The dropdown is rebuilt later on the event
+	 * dispatch thread, so the reload never waits on the UI.
+	 */
+	public void databaseChanged(Database db) {
+		SwingUtilities.invokeLater(new Runnable() {
+			public void run() {
+				refresh();
+			}
+		});
+	}
+
+	/**
+	 * Rebuilds the dropdown from the database, keeping the selected item
+	 * selected, or the one that replaced it if it was edited.
+	 */
+	public void refresh() {
+		HymnComponent selected = this.dropdown.getSelectedItem();
+		this.populateSet();
+		this.sortAll();
+		if(selected != null) {
+			for(HymnComponent hc : this.allHymnComponents) {
+				if(hc.getClass() == selected.getClass() && hc.getName().equals(selected.getName())) {
+					this.dropdown.setSelectedItem(hc);
+					break;
+				}
+			}
+		}
+		this.dropdown.repaint();
+	}
+
 	/**
 	 * Useful for debugging.
 	 */
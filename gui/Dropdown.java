@@ -61,6 +61,11 @@ public abstract class Dropdown
 	 */
 	public abstract void setSelectedItem(HymnComponent h);
 
+	/**
+	 * Get the currently-selected item, or null if it is not a hymn component.
+	 */
+	public abstract HymnComponent getSelectedItem();
+
 	/**
 	 * Cause the given hymn to be rendered and displayed.
 	 */
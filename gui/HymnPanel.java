@@ -15,11 +15,11 @@
 package gui;
 
 import java.awt.Cursor;
-import java.awt.Graphics;
-import java.awt.image.BufferedImage;
 
 import java.io.File;
-import java.io.IOException;
+import java.util.ArrayList;
+import java.util.concurrent.CompletableFuture;
+import java.util.function.BiConsumer;
 
 import javax.swing.ImageIcon;
 import javax.swing.JComponent;
@@ -39,6 +39,8 @@ public class HymnPanel extends JPanel implements AbstractHymnPanel
 {
 	private Hymn hymn;
 	private JComponent displayed;
+	/** The render of the hymn about to be displayed, null if there is none */
+	private CompletableFuture<ArrayList<byte[]>> pending;
 
 	public HymnPanel() {
 		super();
@@ -76,79 +78,61 @@ public class HymnPanel extends JPanel implements AbstractHymnPanel
 	}
 
 	/**
-	 * Displays the current hymn as an image in the panel. {@see model.Hymn#render}
+	 * Displays the current hymn as an image in the panel. The hymn is
+	 * rendered in the background; a render still running for a hymn this
+	 * panel was previously asked to show is cancelled. {@see model.Hymn#renderAsync}
 	 */
 	public void render() {
-		new Thread(new Runnable() {
-			public void run() {
-				try {
-					setCursor(Cursor.getPredefinedCursor(Cursor.WAIT_CURSOR));
-					File[] imageFiles = null;
-					try {
-						imageFiles = (getHymn().render().toArray(new File[] {}));
-					}
-					catch(IOException e) {
-						System.err.println("Problem rendering hymn: " + getHymn());
-					}
-					final File[] finalImageFiles = imageFiles;
-					JComponent old = getDisplayed();
-					remove(getDisplayed());
-					setDisplayed(null);
-					try {
-						SwingUtilities.invokeLater(new Thread(
-						  new Runnable() {
-							public void run() {
-								setDisplayed(new JLabel(mergeImages(mapImage(finalImageFiles))));
-								HymnPanel.this.add(getDisplayed());
-								getDisplayed().setVisible(true);
-								HymnPanel.this.revalidate();
-							}
-						}));
-					}
-					catch(Exception e) {
-						System.err.println("Error displaying rendered hymn.");
-						System.err.println(e.getMessage());
-					}
-				}
-				finally {
-					setCursor(Cursor.getDefaultCursor());
-				}
-			}
-		}).start();
-	}
+		final Hymn h = getHymn();
+		if(h == null) return;
 
-	/**
-	 * Returns an array of <code>ImageIcon</code>s, where the <em>i</em>th
-	 * element of the returned array is equal to the <code>ImageIcon</code>
-	 * constructed from the <em>i</em>th element of the given array.
-	 */
-	private static ImageIcon[] mapImage(File[] files) {
-		ImageIcon[] images = new ImageIcon[files.length];
-		for(int i = 0; i < files.length; ++i) {
-			images[i] = new ImageIcon(files[i].getAbsolutePath());
+		final CompletableFuture<ArrayList<byte[]>> render;
+		synchronized(this) {
+			if(this.pending != null) {
+				this.pending.cancel(true);
+			}
+			render = h.renderAsync();
+			this.pending = render;
 		}
-		return images;
+		setCursor(Cursor.getPredefinedCursor(Cursor.WAIT_CURSOR));
+
+		render.whenComplete(new BiConsumer<ArrayList<byte[]>, Throwable>() {
+			public void accept(final ArrayList<byte[]> images, final Throwable error) {
+				SwingUtilities.invokeLater(new Runnable() {
+					public void run() {
+						if(!finishPending(render)) return; // Superseded by a later render
+						setCursor(Cursor.getDefaultCursor());
+						if(error != null) {
+							System.err.println("Problem rendering hymn: " + h);
+							System.err.println(error.getMessage());
+							return;
+						}
+						try {
+							remove(getDisplayed());
+							setDisplayed(new PageViewer(images));
+							HymnPanel.this.add(getDisplayed());
+							getDisplayed().setVisible(true);
+							HymnPanel.this.revalidate();
+						}
+						catch(Exception e) {
+							System.err.println("Error displaying rendered hymn.");
+							System.err.println(e.getMessage());
+						}
+					}
+				});
+			}
+		});
 	}
 
 	/**
-	 * Returns an <code>ImageIcon</code> created by concatenating the given
-	 * images together.
+	 * Clears the pending render if it is the given one. Returns false if a
+	 * later render has replaced it, in which case its result should be
+	 * thrown away.
 	 */
-	private static ImageIcon mergeImages(ImageIcon[] images) {
-		int currentHeight = 0;
-		int totalHeight = 0;
-		for(ImageIcon i : images) {
-			totalHeight += i.getIconHeight();
-		}
-		int width = images[0].getIconWidth();
-		BufferedImage merged = new BufferedImage(width, totalHeight,
-		                                         BufferedImage.TYPE_INT_ARGB);
-		Graphics g = merged.getGraphics();
-		for(ImageIcon i : images) {
-			g.drawImage(i.getImage(), 0, currentHeight, null);
-			currentHeight += i.getIconHeight();
-		}
-		return new ImageIcon(merged);
+	private synchronized boolean finishPending(CompletableFuture<ArrayList<byte[]>> render) {
+		if(this.pending != render) return false;
+		this.pending = null;
+		return true;
 	}
 
 	/**
@@ -17,6 +17,8 @@ package gui;
 import javax.swing.SwingUtilities;
 import javax.swing.UIManager;
 
+import io.Database;
+
 /**
  * Driver class that instantiates and displays the main frame.
  *
@@ -25,7 +27,9 @@ import javax.swing.UIManager;
 public class MainGUI
 {
 	/**
-	 * Instantiates and displays a {@link SplitLeafHymnal} on the EDT.
+	 * Instantiates and displays a {@link SplitLeafHymnal} on the EDT,
+	 * then starts loading the files of the {@link Database} again when
+	 * they are edited while the hymnal is open.
 	 */
 	public static void main(String[] args) {
 		SwingUtilities.invokeLater(new Thread(new Runnable() {
@@ -39,6 +43,10 @@ public class MainGUI
 					e.printStackTrace();
 				}
 				new SplitLeafHymnal();
+				Database db = Database.getInstance();
+				if(db != null) {
+					db.watch();
+				}
 			}
 		}));
 	}
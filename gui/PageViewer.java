@@ -0,0 +1,264 @@
+// Copyright 2012 Jason Petersen and Timothy Macdonald
+// 
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+// 
+//     http://www.apache.org/licenses/LICENSE-2.0
+// 
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package gui;
+
+import java.awt.Dimension;
+import java.awt.Graphics;
+import java.awt.Rectangle;
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.lang.ref.SoftReference;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.ThreadFactory;
+
+import javax.imageio.ImageIO;
+import javax.imageio.ImageReader;
+import javax.imageio.stream.ImageInputStream;
+import javax.swing.JComponent;
+
+import io.RenderMetrics;
+
+/**
+ * Displays the pages of a rendered hymn one under another. Only the pages
+ * in view are decoded, when they are painted, and only the part of them in
+ * view is drawn. The last few decoded pages are kept through soft
+ * references, so scrolling back is quick but the garbage collector can
+ * still take them, and a long hymn never has all its pages decoded at once.
+ * The pages just above and below those in view are decoded ahead on a
+ * background thread, so scrolling onto them does not wait for them.
+ */
+public class PageViewer extends JComponent
+{
+	private static final long serialVersionUID = 1L;
+
+	/** The fewest decoded pages to keep */
+	private static final int CACHED_PAGES = 4;
+
+	/** Decodes the pages next to those in view, one at a time */
+	private static final ExecutorService DECODER = Executors.newSingleThreadExecutor(new ThreadFactory() {
+		@Override
+		public Thread newThread(Runnable r) {
+			Thread thread = new Thread(r, "PageViewer");
+			thread.setDaemon(true);
+			thread.setPriority(Thread.MIN_PRIORITY);
+			return thread;
+		}
+	});
+
+	/** The encoded pages, e.g. PNGs */
+	private final ArrayList<byte[]> pages;
+	/** The top of each page, followed by the bottom of the last one */
+	private final int[] tops;
+	/** The number of pages last painted */
+	private volatile int inView = 1;
+	/** The recently decoded pages, by page number, least recently used first */
+	private final Map<Integer, SoftReference<BufferedImage>> decoded =
+		new LinkedHashMap<Integer, SoftReference<BufferedImage>>(16, 0.75f, true) {
+			private static final long serialVersionUID = 1L;
+
+			@Override
+			protected boolean removeEldestEntry(Map.Entry<Integer, SoftReference<BufferedImage>> eldest) {
+				return size() > Math.max(CACHED_PAGES, inView + 2);
+			}
+		};
+	/** The pages being decoded ahead, by page number. Guarded by decoded. */
+	private final Map<Integer, FutureTask<BufferedImage>> decoding = new HashMap<Integer, FutureTask<BufferedImage>>();
+
+	/**
+	 * Lays out the given pages. Only the size of each page is read here;
+	 * none of them are decoded until they are painted.
+	 */
+	public PageViewer(ArrayList<byte[]> pages) throws IOException {
+		super();
+		this.pages = pages;
+		this.tops = new int[pages.size() + 1];
+		int width = 0;
+		for(int i = 0; i < pages.size(); ++i) {
+			Dimension size = pageSize(pages.get(i));
+			width = Math.max(width, size.width);
+			this.tops[i + 1] = this.tops[i] + size.height;
+		}
+		setPreferredSize(new Dimension(width, this.tops[pages.size()]));
+		setOpaque(false);
+	}
+
+	/**
+	 * Returns the number of pages.
+	 */
+	public int getPageCount() {
+		return this.pages.size();
+	}
+
+	/**
+	 * Draws the pages which overlap the area being painted, then starts
+	 * decoding the pages just above and below them.
+	 */
+	@Override
+	protected void paintComponent(Graphics g) {
+		Rectangle clip = g.getClipBounds();
+		if(clip == null) {
+			clip = new Rectangle(0, 0, getWidth(), getHeight());
+		}
+		int first = pageAt(clip.y);
+		int i = first;
+		for(; i < this.pages.size() && this.tops[i] < clip.y + clip.height; ++i) {
+			BufferedImage page = getPage(i);
+			if(page != null) {
+				g.drawImage(page, 0, this.tops[i], null);
+			}
+		}
+		this.inView = Math.max(i - first, 1);
+		decodeAhead(i);
+		decodeAhead(first - 1);
+	}
+
+	/**
+	 * Returns the page which covers the given height, or the number of
+	 * pages if it is below the last one.
+	 */
+	private int pageAt(int y) {
+		int i = Arrays.binarySearch(this.tops, Math.max(y, 0));
+		return (i >= 0) ? i : -i - 2;
+	}
+
+	/**
+	 * Returns the given page decoded, decoding it again if it is not in the
+	 * cache. A page being decoded ahead is waited for, or decoded here if
+	 * the background thread has not got to it yet. Returns null if the
+	 * page cannot be decoded.
+	 */
+	private BufferedImage getPage(int i) {
+		FutureTask<BufferedImage> ahead;
+		synchronized(this.decoded) {
+			BufferedImage page = cached(i);
+			if(page != null) {
+				return page;
+			}
+			ahead = this.decoding.get(i);
+		}
+		if(ahead != null) {
+			ahead.run(); // Does nothing if it has already started
+			try {
+				return ahead.get();
+			}
+			catch(InterruptedException e) {
+				Thread.currentThread().interrupt();
+			}
+			catch(ExecutionException e) {
+				System.err.println("Problem decoding page " + (i + 1));
+				System.err.println(e.getCause());
+			}
+		}
+		return decode(i);
+	}
+
+	/**
+	 * Starts decoding the given page in the background, unless it is
+	 * already decoded or being decoded, or there is no such page.
+	 */
+	private void decodeAhead(final int i) {
+		if(i < 0 || i >= this.pages.size()) {
+			return;
+		}
+		FutureTask<BufferedImage> task;
+		synchronized(this.decoded) {
+			if(cached(i) != null || this.decoding.containsKey(i)) {
+				return;
+			}
+			task = new FutureTask<BufferedImage>(new Callable<BufferedImage>() {
+				@Override
+				public BufferedImage call() {
+					try {
+						return decode(i);
+					}
+					finally {
+						synchronized(decoded) {
+							decoding.remove(i);
+						}
+					}
+				}
+			});
+			this.decoding.put(i, task);
+		}
+		DECODER.execute(task);
+	}
+
+	/**
+	 * Returns the given page if it is in the cache, otherwise null.
+	 * The caller must hold the lock on decoded.
+	 */
+	private BufferedImage cached(int i) {
+		SoftReference<BufferedImage> ref = this.decoded.get(i);
+		return (ref != null) ? ref.get() : null;
+	}
+
+	/**
+	 * Decodes the given page and puts it in the cache. Returns null if the
+	 * page cannot be decoded.
+	 */
+	private BufferedImage decode(int i) {
+		BufferedImage page = null;
+		try {
+			long start = System.nanoTime();
+			page = ImageIO.read(new ByteArrayInputStream(this.pages.get(i)));
+			RenderMetrics.getInstance().time(RenderMetrics.Phase.DECODE, start);
+		}
+		catch(IOException e) {
+			System.err.println("Problem decoding page " + (i + 1));
+			System.err.println(e.getMessage());
+		}
+		if(page != null) {
+			synchronized(this.decoded) {
+				this.decoded.put(i, new SoftReference<BufferedImage>(page));
+			}
+		}
+		return page;
+	}
+
+	/**
+	 * Returns the size of an encoded page, reading only its header.
+	 */
+	private static Dimension pageSize(byte[] page) throws IOException {
+		ImageInputStream in = ImageIO.createImageInputStream(new ByteArrayInputStream(page));
+		try {
+			Iterator<ImageReader> readers = ImageIO.getImageReaders(in);
+			if(!readers.hasNext()) {
+				throw new IOException("Unknown image format");
+			}
+			ImageReader reader = readers.next();
+			try {
+				reader.setInput(in);
+				return new Dimension(reader.getWidth(0), reader.getHeight(0));
+			}
+			finally {
+				reader.dispose();
+			}
+		}
+		finally {
+			in.close();
+		}
+	}
+}
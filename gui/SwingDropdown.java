@@ -135,6 +135,15 @@ public class SwingDropdown extends Dropdown
 		this.comboBox.repaint();
 	}
 
+	/**
+	 * Gets the selected item in the JComboBox, unless it is a separator.
+	 */
+	@Override
+	public HymnComponent getSelectedItem() {
+		Object selected = this.comboBox.getSelectedItem();
+		return (selected instanceof HymnComponent) ? (HymnComponent)selected : null;
+	}
+
 	@Override
 	public void repaint() {
 		this.comboBox.repaint();
@@ -15,6 +15,7 @@
 package gui;
 
 import io.Database;
+import io.RenderEngine;
 
 import model.InvalidHymnException;
 import model.Hymn;
@@ -46,11 +47,12 @@ public class TextSelector extends AbstractHymnComponentSelector
 	}
 
 	/**
-	 * Called when the selected tune is changed. Updates the current tune and
-	 * rearranges the dropdown.
+	 * Called when the selected tune is changed. Updates the current tune,
+	 * rearranges the dropdown and prefetches the hymns the tune could make.
 	 */
 	public void tuneChanged(Tune tune) { 
 		this.changeCurrent(tune);
+		RenderEngine.prefetch(tune);
 		if(Hymn.canCombine(this.getCurrent(), this.lastText)) {
 			try {
 				Hymn h = new Hymn(this.lastText, (Tune)(this.getCurrent()));
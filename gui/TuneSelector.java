@@ -16,6 +16,7 @@
 package gui;
 
 import io.Database;
+import io.RenderEngine;
 
 import model.InvalidHymnException;
 import model.Hymn;
@@ -59,11 +60,12 @@ public class TuneSelector extends AbstractHymnComponentSelector
 
 
 	/**
-	 * Called when the selected text is changed. Updates the current tune and
-	 * rearranges the dropdown.
+	 * Called when the selected text is changed. Updates the current tune,
+	 * rearranges the dropdown and prefetches the hymns the text could make.
 	 */
 	public void textChanged(Text text) {
 		this.changeCurrent(text);
+		RenderEngine.prefetch(text);
 		if(Hymn.canCombine(this.getCurrent(), this.lastTune)) {
 			try {
 				Hymn h = new Hymn((Text)(this.getCurrent()), this.lastTune);
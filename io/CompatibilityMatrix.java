@@ -0,0 +1,320 @@
+// Copyright 2012 Jason Petersen and Timothy Macdonald
+// 
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+// 
+//     http://www.apache.org/licenses/LICENSE-2.0
+// 
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+/**
+ * CompatibilityMatrix.java
+ *
+ * Records which of the valid Texts and Tunes in
+ * the Database can be combined into a Hymn.
+ *
+ * Texts and Tunes are grouped into classes whose
+ * members all combine with the same things: Texts
+ * by Meter and whether they can be doubled, Tunes
+ * by Meter. Each Text class keeps a bit for every
+ * Tune class it can be combined with, so testing
+ * a pair is a constant time lookup and the matrix
+ * only grows with the number of distinct Meters.
+ */
+
+package io;
+
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+
+import model.Hymn;
+import model.InvalidHymnException;
+import model.Meter;
+import model.Text;
+import model.Tune;
+
+final class CompatibilityMatrix {
+
+	/** The Text classes, by id */
+	private final ArrayList<TextClass> textClasses = new ArrayList<TextClass>();
+
+	/** The Tune classes, by id */
+	private final ArrayList<TuneClass> tuneClasses = new ArrayList<TuneClass>();
+
+	/** The classes of the Texts which cannot be doubled, by their unnamed Meter */
+	private final HashMap<Meter, TextClass> textClassFor = new HashMap<Meter, TextClass>();
+
+	/** The classes of the Texts which can be doubled, by their unnamed Meter */
+	private final HashMap<Meter, TextClass> doubledTextClassFor = new HashMap<Meter, TextClass>();
+
+	/** The Tune classes, by their unnamed Meter */
+	private final HashMap<Meter, TuneClass> tuneClassFor = new HashMap<Meter, TuneClass>();
+
+	/** The class of each Text in the matrix */
+	private final IdentityHashMap<Text, TextClass> textClassOf = new IdentityHashMap<Text, TextClass>();
+
+	/** The class of each Tune in the matrix */
+	private final IdentityHashMap<Tune, TuneClass> tuneClassOf = new IdentityHashMap<Tune, TuneClass>();
+
+	/** The index of each Text and Tune in the members of its class */
+	private final IdentityHashMap<Object, Integer> positions = new IdentityHashMap<Object, Integer>();
+
+	/**
+	 * Add a valid Text to the matrix. A new class is
+	 * compared against every Tune class once.
+	 * @param text The Text to add.
+	 */
+	void add(Text text) {
+		Meter meter = text.getMeter().unnamed();
+		boolean doubled = MeterIndex.doubleKey(text) != null;
+		HashMap<Meter, TextClass> classFor = (doubled) ? doubledTextClassFor : textClassFor;
+
+		TextClass c = classFor.get(meter);
+		if(c == null) {
+			c = new TextClass(textClasses.size(), meter, doubled);
+			for(TuneClass t : tuneClasses)
+				if(c.combinesWith(t))
+					c.tunes.set(t.id);
+			textClasses.add(c);
+			classFor.put(meter, c);
+		}
+		positions.put(text, c.members.size());
+		c.members.add(text);
+		textClassOf.put(text, c);
+	}
+
+	/**
+	 * Add a valid Tune to the matrix. A new class is
+	 * compared against every Text class once.
+	 * @param tune The Tune to add.
+	 */
+	void add(Tune tune) {
+		Meter meter = tune.getMeter().unnamed();
+
+		TuneClass c = tuneClassFor.get(meter);
+		if(c == null) {
+			c = new TuneClass(tuneClasses.size(), meter);
+			for(TextClass t : textClasses)
+				if(t.combinesWith(c))
+					t.tunes.set(c.id);
+			tuneClasses.add(c);
+			tuneClassFor.put(meter, c);
+		}
+		positions.put(tune, c.members.size());
+		c.members.add(tune);
+		tuneClassOf.put(tune, c);
+	}
+
+	/**
+	 * Remove a Text from the matrix. Its class is kept,
+	 * even if it is now empty, so it can be reused.
+	 * @param text The Text to remove.
+	 */
+	void remove(Text text) {
+		TextClass c = textClassOf.remove(text);
+		if(c != null)
+			removeMember(c.members, text);
+	}
+
+	/**
+	 * Remove a Tune from the matrix. Its class is kept,
+	 * even if it is now empty, so it can be reused.
+	 * @param tune The Tune to remove.
+	 */
+	void remove(Tune tune) {
+		TuneClass c = tuneClassOf.remove(tune);
+		if(c != null)
+			removeMember(c.members, tune);
+	}
+
+	/**
+	 * Test if a Text and Tune in the matrix can be combined.
+	 * @param text The Text to test.
+	 * @param tune The Tune to test.
+	 * @return True if both are in the matrix and can be
+	 * combined, otherwise false.
+	 */
+	boolean canCombine(Text text, Tune tune) {
+		TextClass x = textClassOf.get(text);
+		TuneClass y = tuneClassOf.get(tune);
+		return x != null && y != null && x.tunes.get(y.id);
+	}
+
+	/**
+	 * Get an Iterator over a Hymn for every Text and Tune
+	 * in the matrix that can be combined. The Hymns are
+	 * grouped by class, not by the order the Texts and
+	 * Tunes were added in.
+	 * @return An Iterator over every combinable pair as a Hymn.
+	 */
+	Iterator<Hymn> pairIterator() {
+		return new PairIterator();
+	}
+
+	/* ---------- Helper methods ---------- */
+
+	/**
+	 * Remove an item from the members of its class, moving
+	 * the last member into its place.
+	 * @param members The members of the item's class.
+	 * @param item The item to remove.
+	 */
+	private <T> void removeMember(ArrayList<T> members, T item) {
+		int i = positions.remove(item);
+		T last = members.remove(members.size() - 1);
+		if(last != item) {
+			members.set(i, last);
+			positions.put(last, i);
+		}
+	}
+
+	/**
+	 * Texts which have the same Meter and can either
+	 * all be doubled or all not be doubled.
+	 */
+	private static class TextClass {
+		/** The index of this class */
+		private final int id;
+
+		/** The Meter, without a name */
+		private final Meter meter;
+
+		/** Whether the Texts can be doubled */
+		private final boolean doubled;
+
+		/** The Texts in this class */
+		private final ArrayList<Text> members = new ArrayList<Text>();
+
+		/** The ids of the Tune classes these Texts can be combined with */
+		private final BitSet tunes = new BitSet();
+
+		/**
+		 * Constructor.
+		 * @param id The index of this class.
+		 * @param meter The Meter, without a name.
+		 * @param doubled Whether the Texts can be doubled.
+		 */
+		private TextClass(int id, Meter meter, boolean doubled) {
+			this.id = id;
+			this.meter = meter;
+			this.doubled = doubled;
+		}
+
+		/**
+		 * Test if the Texts in this class can be combined with
+		 * the Tunes in a Tune class. This is the same test as
+		 * Hymn.canCombine, i.e. the Meters are equal or the
+		 * Text can be doubled to fit the Tune.
+		 * @param t The Tune class.
+		 * @return True if they can be combined, otherwise false.
+		 */
+		private boolean combinesWith(TuneClass t) {
+			return meter.sameCounts(t.meter) || (doubled && t.meter.hasSecondHalf(meter));
+		}
+	}
+
+	/**
+	 * Tunes which have the same Meter.
+	 */
+	private static class TuneClass {
+		/** The index of this class */
+		private final int id;
+
+		/** The Meter, without a name */
+		private final Meter meter;
+
+		/** The Tunes in this class */
+		private final ArrayList<Tune> members = new ArrayList<Tune>();
+
+		/**
+		 * Constructor.
+		 * @param id The index of this class.
+		 * @param meter The Meter, without a name.
+		 */
+		private TuneClass(int id, Meter meter) {
+			this.id = id;
+			this.meter = meter;
+		}
+	}
+
+	/**
+	 * Iterator over every Text and Tune that can be combined,
+	 * walking the set bits of each Text class and the members
+	 * of both classes for each bit.
+	 */
+	private class PairIterator implements Iterator<Hymn> {
+		/** The current Text class */
+		private int textClass = 0;
+
+		/** The current Tune class, -1 before the first set bit of a Text class */
+		private int tuneClass = -1;
+
+		/** The index of the current Text in its class */
+		private int text = 0;
+
+		/** The index of the next Tune in its class */
+		private int tune = 0;
+
+		/** The next Hymn, null if it has not been found yet */
+		private Hymn next;
+
+		@Override
+		public boolean hasNext() {
+			while(next == null && textClass < textClasses.size()) {
+				TextClass x = textClasses.get(textClass);
+				TuneClass y = (tuneClass >= 0) ? tuneClasses.get(tuneClass) : null;
+
+				if(y == null || text >= x.members.size()) {
+					// Move to the next Tune class for this Text class, or the next Text class
+					tuneClass = x.tunes.nextSetBit(tuneClass + 1);
+					if(tuneClass < 0) textClass++;
+					text = 0;
+					tune = 0;
+				}
+				else if(tune >= y.members.size()) {
+					text++;
+					tune = 0;
+				}
+				else {
+					Text t = x.members.get(text);
+					Tune u = y.members.get(tune);
+					tune++;
+					if(!t.isValid() || !u.isValid()) // Failed to load, and on its way out of the matrix
+						continue;
+					try {
+						next = new Hymn(t, u);
+						if(!u.isValid()) // Its Music failed to load while the Hymn was made
+							next = null;
+					} catch(InvalidHymnException ihe) {
+						System.err.println("CompatibilityMatrix.PairIterator - " + ihe.getMessage());
+					}
+				}
+			}
+			return next != null;
+		}
+
+		@Override
+		public Hymn next() {
+			if(!hasNext())
+				throw new NoSuchElementException();
+			Hymn hymn = next;
+			next = null;
+			return hymn;
+		}
+
+		@Override
+		public void remove() {
+			throw new UnsupportedOperationException();
+		}
+	}
+
+}
@@ -18,6 +18,12 @@
  * Class that contains all the Texts/Tunes
  * that we display in the hymnal.
  * 
+ * Once watch() is called, as the GUI does, the
+ * files of the Database are watched and those
+ * which change are loaded again, so every method
+ * is synchronized and the lists it hands out
+ * are copies.
+ * 
  * @author Jason Petersen, Nathan Bliss
  */
 
@@ -26,8 +32,17 @@ package io;
 import java.io.File;
 import java.io.IOException;
 import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
 
 import model.Hymn;
+import model.HymnComponent;
 import model.Text;
 import model.Tune;
 
@@ -38,17 +53,55 @@ public class Database {
 	/** The String indicating the folder location of the images */
 	static final String imgCache = "data/images";
 	
+	/** The String indicating the location of the snapshot of the parsed database */
+	static final String snapshotFile = "data/database.snapshot";
+	
 	private static XMLWriter writer = XMLWriter.getInstance();
 	
-	private ArrayList<Text> allTexts;
+	/** The system property which, when "true", makes the Database load only the metadata of each Text and Tune */
+	static final String lazyProperty = "jhymnal.database.lazy";
+	
+	/** The number of files below which a LoadTask parses its files instead of splitting them */
+	private static final int loadThreshold = 8;
+	
+	/** The folder this Database was loaded from and writes to */
+	private File folder;
+	
+	/** The snapshot of the folder, may be null */
+	private DatabaseSnapshot snapshot;
+	
+	/** True if only the metadata of each Text and Tune is kept */
+	private boolean lazy;
+	
+	/** The Text or Tune last loaded from or written to each file in the folder, by file name */
+	private HashMap<String, HymnComponent> byFile = new HashMap<String, HymnComponent>();
 	
-	private ArrayList<Tune> allTunes;
+	/** The listeners told when the Texts and Tunes change */
+	private CopyOnWriteArrayList<DatabaseListener> listeners = new CopyOnWriteArrayList<DatabaseListener>();
 	
-	/** The Texts in the database */
-	private ArrayList<Text> validTexts;
+	/** Loads the files again when they change, null if they are not watched */
+	private DatabaseWatcher watcher;
+	
+	/** Every Text in the database by name, in the order they were added */
+	private LinkedHashMap<String, Text> allTexts;
+	
+	/** Every Tune in the database by name, in the order they were added */
+	private LinkedHashMap<String, Tune> allTunes;
+	
+	/** The valid Texts in the database by name, in the order they were added */
+	private LinkedHashMap<String, Text> validTexts;
 
-	/** The Tunes in the database */
-	private ArrayList<Tune> validTunes;
+	/** The valid Tunes in the database by name, in the order they were added */
+	private LinkedHashMap<String, Tune> validTunes;
+	
+	/** The valid Texts by Meter, used to find the Texts for a Tune */
+	private MeterIndex<Text> textIndex = new MeterIndex<Text>();
+	
+	/** The valid Tunes by Meter, used to find the Tunes for a Text */
+	private MeterIndex<Tune> tuneIndex = new MeterIndex<Tune>();
+	
+	/** Which of the valid Texts and Tunes can be combined */
+	private CompatibilityMatrix matrix = new CompatibilityMatrix();
 
 	/** Singleton for Database */
 	private static Database instance;
@@ -67,36 +120,96 @@ public class Database {
 	 * @author Jason Petersen
 	 */
 	private Database() throws IOException {
-		allTexts = new ArrayList<Text>();
-		allTunes = new ArrayList<Tune>();
+		this(new File(dbFolder), new File(snapshotFile), Boolean.getBoolean(lazyProperty));
+	}
+	
+	/**
+	 * Constructor. Loads every Text and Tune in the given folder
+	 * without using a snapshot.
+	 * @param db The folder from which to load the Texts and Tunes.
+	 * @throws IOException The given folder is not a directory.
+	 */
+	Database(File db) throws IOException {
+		this(db, null, false);
+	}
+	
+	/**
+	 * Constructor. Loads every Text and Tune in the given folder,
+	 * using the given snapshot.
+	 * @param db The folder from which to load the Texts and Tunes.
+	 * @param snapshotFile The snapshot of the folder, or null to parse every file.
+	 * @throws IOException The given folder is not a directory.
+	 */
+	Database(File db, File snapshotFile) throws IOException {
+		this(db, snapshotFile, false);
+	}
+	
+	/**
+	 * Constructor. Loads every Text and Tune in the given folder.
+	 * Each file is parsed once, on a work-stealing pool using
+	 * all the available processors. The Texts and Tunes are kept
+	 * in the order the folder listed their files.
+	 * Files which have not changed since the snapshot was written
+	 * are read from the snapshot instead of being parsed, and the
+	 * snapshot is written again if any file changed.
+	 * When lazy, only the metadata of each Text and Tune is kept,
+	 * e.g. its name, Meter and validity, and their verses and
+	 * Music are loaded again the first time they are asked for.
+	 * Files found unchanged in the snapshot are then never parsed
+	 * at all, as their metadata is decoded on its own.
+	 * @param db The folder from which to load the Texts and Tunes.
+	 * @param snapshotFile The snapshot of the folder, or null to parse every file.
+	 * @param lazy True to load only the metadata of each Text and Tune.
+	 * @throws IOException The given folder is not a directory.
+	 */
+	Database(File db, File snapshotFile, boolean lazy) throws IOException {
+		allTexts = new LinkedHashMap<String, Text>();
+		allTunes = new LinkedHashMap<String, Tune>();
 		
-		validTexts = new ArrayList<Text>();
-		validTunes = new ArrayList<Tune>();
+		validTexts = new LinkedHashMap<String, Text>();
+		validTunes = new LinkedHashMap<String, Tune>();
 		
-		File db = new File(dbFolder);
-		if(db.isDirectory()) {
-			for(File file : db.listFiles()) {
-				if(file.isFile()) {
-					try {
-						Text text = ParserEngine.parseText(file);
-						allTexts.add(text);
-						if(text.isValid())
-							validTexts.add(text);
-					} catch(UnsupportedFileException e){
-						try {
-							Tune tune = ParserEngine.parseTune(file);
-							allTunes.add(tune);
-							if(tune.isValid())
-								validTunes.add(tune);
-						} catch(UnsupportedFileException ioe){
-							System.err.println("Database - Failed to parse " + file.getName());
-							ioe.printStackTrace();
-						}
-					}
-				}
+		if(!db.isDirectory())
+			throw new IOException("The Database location is not a directory");
+		this.folder = db;
+		this.lazy = lazy;
+		
+		File[] files = db.listFiles();
+		HymnComponent[] parsed = new HymnComponent[files.length];
+		snapshot = (snapshotFile != null) ? new DatabaseSnapshot(snapshotFile) : null;
+		
+		ForkJoinPool pool = new ForkJoinPool();
+		try {
+			pool.invoke(new LoadTask(files, parsed, snapshot, lazy ? this : null, 0, files.length));
+		} finally {
+			pool.shutdown();
+		}
+		
+		// Save the parsed files for the next launch
+		int loaded = 0;
+		for(HymnComponent hc : parsed)
+			if(hc != null) loaded++;
+		if(snapshot != null && snapshot.isStale(loaded)) {
+			try {
+				snapshot.write(files, parsed);
+			} catch(IOException ioe) {
+				System.err.println("Database - Failed to write the snapshot: " + ioe.getMessage());
 			}
 		}
-		else throw new IOException("The Database location is not a directory");
+		
+		// Let go of the Music of the files which had to be parsed
+		if(lazy)
+			unload(files, parsed);
+		
+		// Merge the results in the order the files were listed, a later file replacing an earlier one of the same name
+		for(int i=0; i<parsed.length; i++) {
+			if(parsed[i] instanceof Text)
+				put((Text) parsed[i]);
+			else if(parsed[i] instanceof Tune)
+				put((Tune) parsed[i]);
+			if(parsed[i] != null)
+				byFile.put(files[i].getName(), parsed[i]);
+		}
 	}
 
 	/**
@@ -114,11 +227,24 @@ public class Database {
 	 * @author Jason Petersen
 	 */
 	public void clearCache() {
-		File cache = new File(imgCache);
-		if(cache.isDirectory())
-			for(File file : cache.listFiles())
-				if(file.isFile())
-					file.delete();
+		RenderEngine.clearCache();
+	}
+	
+	/**
+	 * Add a listener to be told when the Texts and Tunes
+	 * in the Database change, e.g. because a file was edited.
+	 * @param listener The listener to add.
+	 */
+	public void addListener(DatabaseListener listener) {
+		listeners.addIfAbsent(listener);
+	}
+	
+	/**
+	 * Stop telling a listener when the Database changes.
+	 * @param listener The listener to remove.
+	 */
+	public void removeListener(DatabaseListener listener) {
+		listeners.remove(listener);
 	}
 	
 	/**
@@ -126,8 +252,8 @@ public class Database {
 	 * @return An iterable list of all the valid Texts in the Database.
 	 * @author Jason Petersen
 	 */
-	public Iterable<Text> allTextIterator() {
-		return allTexts;
+	public synchronized Iterable<Text> allTextIterator() {
+		return new ArrayList<Text>(allTexts.values());
 	}
 	
 	/**
@@ -135,8 +261,8 @@ public class Database {
 	 * @return An iterable list of all the valid Tunes in the Database.
 	 * @author Jason Petersen
 	 */
-	public Iterable<Tune> allTuneIterator() {
-		return allTunes;
+	public synchronized Iterable<Tune> allTuneIterator() {
+		return new ArrayList<Tune>(allTunes.values());
 	}
 	
 	/**
@@ -144,8 +270,8 @@ public class Database {
 	 * @return An iterable list of all the valid Texts in the Database.
 	 * @author Tim Macdonald
 	 */
-	public Iterable<Text> validTextIterator() {
-		return validTexts;
+	public synchronized Iterable<Text> validTextIterator() {
+		return new ArrayList<Text>(validTexts.values());
 	}
 	
 	/**
@@ -153,21 +279,75 @@ public class Database {
 	 * @return An iterable list of all the valid Tunes in the Database.
 	 * @author Tim Macdonald
 	 */
-	public Iterable<Tune> validTuneIterator() {
-		return validTunes;
+	public synchronized Iterable<Tune> validTuneIterator() {
+		return new ArrayList<Tune>(validTunes.values());
 	}
 
+	/**
+	 * Get an iterable list of a Hymn for every valid Text
+	 * and Tune in the Database that can be combined.
+	 * The Hymns are grouped by Meter. The pairs are found as
+	 * they are iterated over, so if the Database changes
+	 * meanwhile some may be missed or given twice.
+	 * @return An iterable list of every Hymn in the Database.
+	 */
+	public Iterable<Hymn> validHymnIterator() {
+		return new Iterable<Hymn>() {
+			@Override
+			public Iterator<Hymn> iterator() {
+				final Iterator<Hymn> pairs;
+				synchronized(Database.this) {
+					pairs = matrix.pairIterator();
+				}
+				return new Iterator<Hymn>() {
+					@Override
+					public boolean hasNext() {
+						synchronized(Database.this) {
+							return pairs.hasNext();
+						}
+					}
+
+					@Override
+					public Hymn next() {
+						synchronized(Database.this) {
+							return pairs.next();
+						}
+					}
+
+					@Override
+					public void remove() {
+						throw new UnsupportedOperationException();
+					}
+				};
+			}
+		};
+	}
+	
+	/**
+	 * Determine if a Text and Tune in the Database can be
+	 * combined to create a Hymn. This gives the same answer
+	 * as Hymn.canCombine, but only takes constant time.
+	 * @param text The Text to test for combining.
+	 * @param tune The Tune to test for combining.
+	 * @return True if both are valid and in the Database and
+	 * can be combined, otherwise false.
+	 */
+	public synchronized boolean canCombine(Text text, Tune tune) {
+		return matrix.canCombine(text, tune);
+	}
+	
 	/**
 	 * Get the list of Texts that can be combined
-	 * with the given Tune.
+	 * with the given Tune. Only the Texts with a
+	 * matching Meter are looked at.
 	 * @param tune Tune for which to get the relevant Texts.
 	 * @return An ArrayList of relevant Texts.
 	 * @author Jason Petersen
 	 */
-	public ArrayList<Text> relevantTexts(Tune tune) {
+	public synchronized ArrayList<Text> relevantTexts(Tune tune) {
 		ArrayList<Text> relevant = new ArrayList<Text>();
 		if(tune == null) return relevant;
-		for(Text text : validTexts)
+		for(Text text : textIndex.find(MeterIndex.signature(tune.getMeter()), MeterIndex.doubleKey(tune)))
 			if(Hymn.canCombine(text, tune))
 				relevant.add(text);
 		return relevant;
@@ -175,97 +355,488 @@ public class Database {
 	
 	/**
 	 * Get the list of Tunes that can be combined
-	 * with the given Text.
+	 * with the given Text. Only the Tunes with a
+	 * matching Meter are looked at.
 	 * @param text Text for which to get the relevant Tunes.
 	 * @return An ArrayList of relevant Tunes.
 	 * @author Jason Petersen
 	 */
-	public ArrayList<Tune> relevantTunes(Text text) {
+	public synchronized ArrayList<Tune> relevantTunes(Text text) {
 		ArrayList<Tune> relevant = new ArrayList<Tune>();
-		for(Tune tune : validTunes)
+		if(text == null) return relevant;
+		for(Tune tune : tuneIndex.find(MeterIndex.signature(text.getMeter()), MeterIndex.doubleKey(text)))
 			if(Hymn.canCombine(text, tune))
 				relevant.add(tune);
 		return relevant;
 	}
 	
+	/**
+	 * Get the Text in the Database with the given name.
+	 * @param name The name of the Text.
+	 * @return The Text, or null if there is none by that name.
+	 */
+	public synchronized Text getText(String name) {
+		return allTexts.get(name);
+	}
+	
+	/**
+	 * Get the Tune in the Database with the given name.
+	 * @param name The name of the Tune.
+	 * @return The Tune, or null if there is none by that name.
+	 */
+	public synchronized Tune getTune(String name) {
+		return allTunes.get(name);
+	}
+	
 	/**
 	 * Add a Text to the Database.
 	 * This will also write out the XML
-	 * to the Database location.
+	 * to the Database location. A Text
+	 * with the same name is replaced.
 	 * @param text The Text to add to the Database.
 	 * @throws IOException Failed to write out
 	 * the Text to disk.
 	 * @author Jason Petersen
 	 */
-	public void add(Text text) throws IOException {
+	public synchronized void add(Text text) throws IOException {
 		if(text == null)
 			throw new IOException("Text cannot be null");
 		
-		Text old = null;
-		
-		for(Text t : allTexts) {
-			if(t.equals(text)) {
-				return; // The Text wasn't changed
-			}
-			if(t.getName().equals(text.getName())) {
-				old = t; // Grab the old Text
-				break;
-			}
-		}
-		
-		// Remove old Text
-		if(old != null) {
-			allTexts.remove(old);
-			if(validTexts.contains(old)) {
-				validTexts.remove(old);
-			}
-		}
+		Text old = allTexts.get(text.getName());
+		if(old != null && old.digest().equals(text.digest()))
+			return; // The Text wasn't changed
 		
-		// Write out the Text, save it to ArrayLists
-		writer.write(text, new File(dbFolder + "/" + text.getFilename() + ".xml"));
-		allTexts.add(text);
-		if(text.isValid())
-			validTexts.add(text);
+		// Write out the Text, then replace the old one
+		String name = text.getFilename() + ".xml";
+		writer.write(text, new File(folder, name));
+		put(text);
+		byFile.put(name, text);
 	}
 	
 	/**
 	 * Add a Tune to the Database.
 	 * This will also write out the XML
-	 * to the Database location.
+	 * to the Database location. A Tune
+	 * with the same name is replaced.
 	 * @param tune The Tune to add to the Database.
 	 * @throws IOException Failed to write out
 	 * the Tune to disk.
 	 * @author Jason Petersen
 	 */
-	public void add(Tune tune) throws IOException {
+	public synchronized void add(Tune tune) throws IOException {
 		if(tune == null)
 			throw new IOException("Tune cannot be null");
 		
-		Tune old = null;
+		Tune old = allTunes.get(tune.getName());
+		if(old != null && old.digest().equals(tune.digest()))
+			return; // The Tune wasn't changed
 		
-		for(Tune t : allTunes) {
-			if(t.equals(tune)) {
-				return; // The Tune wasn't changed
+		// Write out the Tune, then replace the old one
+		String name = tune.getFilename() + ".xml";
+		writer.write(tune, new File(folder, name));
+		put(tune);
+		byFile.put(name, tune);
+	}
+	
+	/**
+	 * Remove a Text from the Database.
+	 * The file it was loaded from or written
+	 * to is left where it is.
+	 * @param text The Text to remove.
+	 * @return True if the Text was in the Database, otherwise false.
+	 */
+	public synchronized boolean remove(Text text) {
+		if(text == null || allTexts.get(text.getName()) != text)
+			return false;
+		drop(text);
+		return true;
+	}
+	
+	/**
+	 * Remove a Tune from the Database.
+	 * The file it was loaded from or written
+	 * to is left where it is.
+	 * @param tune The Tune to remove.
+	 * @return True if the Tune was in the Database, otherwise false.
+	 */
+	public synchronized boolean remove(Tune tune) {
+		if(tune == null || allTunes.get(tune.getName()) != tune)
+			return false;
+		drop(tune);
+		return true;
+	}
+	
+	/**
+	 * Start loading the files of the Database again
+	 * in the background when they change. A tool which
+	 * only reads the Database need not call this, and
+	 * then no thread watches the files.
+	 */
+	public synchronized void watch() {
+		if(watcher != null)
+			return;
+		try {
+			watcher = new DatabaseWatcher(this, folder);
+			watcher.start();
+		} catch(IOException ioe) {
+			System.err.println("Database.watch - Failed to watch " + folder + ": " + ioe.getMessage());
+			watcher = null;
+		}
+	}
+	
+	/**
+	 * Stop loading the files of the Database again when they change.
+	 */
+	public synchronized void unwatch() {
+		if(watcher != null)
+			watcher.stop();
+		watcher = null;
+	}
+	
+	/**
+	 * Get the names of the files the Texts and Tunes
+	 * in the Database were loaded from or written to.
+	 * @return The names of the files.
+	 */
+	synchronized ArrayList<String> fileNames() {
+		return new ArrayList<String>(byFile.keySet());
+	}
+	
+	/**
+	 * Apply a batch of changes to the files of the Database at once,
+	 * so no reader sees only part of it. A Text or Tune replaces the
+	 * one its file held and the one with the same name, unless its
+	 * content is the same, e.g. when the file was written by add.
+	 * A lazy Text or Tune is always replaced, as its old content
+	 * can no longer be read back from its file to compare.
+	 * @param loaded The Text or Tune parsed from each created or changed file, by file name.
+	 * @param deleted The names of the files which were deleted.
+	 * @return True if any Text or Tune was added, replaced or removed.
+	 */
+	synchronized boolean reload(Map<String, HymnComponent> loaded, Collection<String> deleted) {
+		boolean changed = false;
+		for(String name : deleted)
+			changed |= forget(byFile.remove(name));
+		for(Map.Entry<String, HymnComponent> e : loaded.entrySet()) {
+			if(e.getValue() instanceof Text)
+				changed |= reload(e.getKey(), (Text) e.getValue());
+			else if(e.getValue() instanceof Tune)
+				changed |= reload(e.getKey(), (Tune) e.getValue());
+		}
+		return changed;
+	}
+	
+	/**
+	 * Take a Text or Tune whose content failed to load out of
+	 * the valid Texts and Tunes, and tell the listeners, unless
+	 * it has been replaced or taken out since. It is left with
+	 * the rest of the Texts and Tunes, marked invalid.
+	 * @param hc The Text or Tune which failed to load.
+	 */
+	void failedToLoad(HymnComponent hc) {
+		synchronized(this) {
+			if(hc instanceof Text && validTexts.get(hc.getName()) == hc) {
+				validTexts.remove(hc.getName());
+				unindex((Text) hc);
 			}
-			if(t.getName().equals(tune.getName())) {
-				old = t; // Grab the old Tune
-				break;
+			else if(hc instanceof Tune && validTunes.get(hc.getName()) == hc) {
+				validTunes.remove(hc.getName());
+				unindex((Tune) hc);
 			}
+			else
+				return;
+		}
+		fireChanged();
+	}
+	
+	/**
+	 * Tell the listeners the Texts and Tunes in the Database changed.
+	 */
+	void fireChanged() {
+		for(DatabaseListener listener : listeners) {
+			try {
+				listener.databaseChanged(this);
+			} catch(RuntimeException re) {
+				System.err.println("Database.fireChanged - " + re);
+			}
+		}
+	}
+	
+	/* ---------- Helper methods ---------- */
+	
+	/**
+	 * Put a Text parsed again from a file in the Database,
+	 * unless the Database already has it.
+	 * @param name The name of the file.
+	 * @param text The Text parsed from the file.
+	 * @return True if the Text was put in the Database, otherwise false.
+	 */
+	private boolean reload(String name, Text text) {
+		HymnComponent old = byFile.get(name);
+		Text same = allTexts.get(text.getName());
+		if(same != null && !same.isLazy() && same.digest().equals(text.digest())) {
+			byFile.put(name, same);
+			return old != same && forget(old);
+		}
+		
+		forget(old);
+		if(lazy) {
+			try {
+				text = LazyLoader.unload(text, new File(folder, name), snapshot, this);
+			} catch(BadInputException bie) {
+				System.err.println("Database.reload - Failed to unload " + name + ": " + bie.getMessage());
+			}
+		}
+		put(text);
+		byFile.put(name, text);
+		return true;
+	}
+	
+	/**
+	 * Put a Tune parsed again from a file in the Database,
+	 * unless the Database already has it.
+	 * @param name The name of the file.
+	 * @param tune The Tune parsed from the file.
+	 * @return True if the Tune was put in the Database, otherwise false.
+	 */
+	private boolean reload(String name, Tune tune) {
+		HymnComponent old = byFile.get(name);
+		Tune same = allTunes.get(tune.getName());
+		if(same != null && !same.isLazy() && same.digest().equals(tune.digest())) {
+			byFile.put(name, same);
+			return old != same && forget(old);
 		}
 		
-		// Remove the old Tune
+		forget(old);
+		if(lazy) {
+			try {
+				tune = LazyLoader.unload(tune, new File(folder, name), snapshot, this);
+			} catch(BadInputException bie) {
+				System.err.println("Database.reload - Failed to unload " + name + ": " + bie.getMessage());
+			}
+		}
+		put(tune);
+		byFile.put(name, tune);
+		return true;
+	}
+	
+	/**
+	 * Take a Text or Tune loaded from a file out of the Database,
+	 * if it has not been replaced since.
+	 * @param hc The Text or Tune to take out, may be null.
+	 * @return True if it was taken out, otherwise false.
+	 */
+	private boolean forget(HymnComponent hc) {
+		if(hc instanceof Text && allTexts.get(hc.getName()) == hc)
+			drop((Text) hc);
+		else if(hc instanceof Tune && allTunes.get(hc.getName()) == hc)
+			drop((Tune) hc);
+		else
+			return false;
+		return true;
+	}
+	
+	/**
+	 * Put a Text in the Database, after any other, in place
+	 * of the Text with the same name if there is one. The
+	 * file the replaced Text came from no longer holds a Text
+	 * in the Database, so the caller must record this one's.
+	 * @param text The Text to put in the Database.
+	 */
+	private void put(Text text) {
+		Text old = allTexts.get(text.getName());
+		if(old != null) {
+			drop(old);
+			forgetFile(old);
+		}
+		allTexts.put(text.getName(), text);
+		if(text.isValid()) {
+			validTexts.put(text.getName(), text);
+			index(text);
+		}
+	}
+	
+	/**
+	 * Put a Tune in the Database, after any other, in place
+	 * of the Tune with the same name if there is one. The
+	 * file the replaced Tune came from no longer holds a Tune
+	 * in the Database, so the caller must record this one's.
+	 * @param tune The Tune to put in the Database.
+	 */
+	private void put(Tune tune) {
+		Tune old = allTunes.get(tune.getName());
 		if(old != null) {
-			allTunes.remove(old);
-			if(validTunes.contains(old)) {
-				validTunes.remove(old);
+			drop(old);
+			forgetFile(old);
+		}
+		allTunes.put(tune.getName(), tune);
+		if(tune.isValid()) {
+			validTunes.put(tune.getName(), tune);
+			index(tune);
+		}
+	}
+	
+	/**
+	 * Forget the file a replaced Text or Tune was loaded
+	 * from or written to, e.g. when it was added again under
+	 * a new file name, so the old file is not taken to still
+	 * hold it. Only called when a Text or Tune is replaced.
+	 * @param hc The replaced Text or Tune.
+	 */
+	private void forgetFile(HymnComponent hc) {
+		Iterator<HymnComponent> it = byFile.values().iterator();
+		while(it.hasNext())
+			if(it.next() == hc) // Not equals, which compares content
+				it.remove();
+	}
+	
+	/**
+	 * Take a Text which is in the Database out of it.
+	 * @param text The Text to take out.
+	 */
+	private void drop(Text text) {
+		allTexts.remove(text.getName());
+		if(validTexts.remove(text.getName()) != null)
+			unindex(text);
+	}
+	
+	/**
+	 * Take a Tune which is in the Database out of it,
+	 * with the LilyPond kept for it.
+	 * @param tune The Tune to take out.
+	 */
+	private void drop(Tune tune) {
+		LilyPondUtility.getInstance().invalidate(tune);
+		allTunes.remove(tune.getName());
+		if(validTunes.remove(tune.getName()) != null)
+			unindex(tune);
+	}
+	
+	/**
+	 * Replace each fully loaded Text and Tune with one created
+	 * from its metadata, whose verses or Music are loaded again
+	 * when they are asked for.
+	 * @param files The files the Texts and Tunes were parsed from.
+	 * @param parsed The Texts and Tunes, at the same index as their file.
+	 */
+	private void unload(File[] files, HymnComponent[] parsed) {
+		for(int i=0; i<parsed.length; i++) {
+			try {
+				if(parsed[i] instanceof Text && !((Text) parsed[i]).isLazy())
+					parsed[i] = LazyLoader.unload((Text) parsed[i], files[i], snapshot, this);
+				else if(parsed[i] instanceof Tune && !((Tune) parsed[i]).isLazy())
+					parsed[i] = LazyLoader.unload((Tune) parsed[i], files[i], snapshot, this);
+			} catch(BadInputException bie) {
+				System.err.println("Database - Failed to unload " + files[i].getName() + ": " + bie.getMessage());
 			}
 		}
+	}
+	
+	/**
+	 * Add a valid Text to the Meter index and compatibility matrix.
+	 * @param text The Text to add.
+	 */
+	private void index(Text text) {
+		textIndex.add(text, MeterIndex.signature(text.getMeter()), MeterIndex.doubleKey(text));
+		matrix.add(text);
+	}
+	
+	/**
+	 * Remove a Text from the Meter index and compatibility matrix.
+	 * @param text The Text to remove.
+	 */
+	private void unindex(Text text) {
+		textIndex.remove(text);
+		matrix.remove(text);
+	}
+	
+	/**
+	 * Add a valid Tune to the Meter index and compatibility matrix.
+	 * @param tune The Tune to add.
+	 */
+	private void index(Tune tune) {
+		tuneIndex.add(tune, MeterIndex.signature(tune.getMeter()), MeterIndex.doubleKey(tune));
+		matrix.add(tune);
+	}
+	
+	/**
+	 * Remove a Tune from the Meter index and compatibility matrix.
+	 * @param tune The Tune to remove.
+	 */
+	private void unindex(Tune tune) {
+		tuneIndex.remove(tune);
+		matrix.remove(tune);
+	}
+	
+	/**
+	 * Task which parses a range of files into the matching
+	 * range of an array, splitting the range in half until
+	 * it is small enough to parse directly. Files found
+	 * unchanged in the snapshot are read from it instead.
+	 */
+	private static class LoadTask extends RecursiveAction {
+		/** Useful if we were going to serialize this class, but this mostly just keeps Eclipse from complaining */
+		private static final long serialVersionUID = 1L;
+		
+		/** The files to parse */
+		private final File[] files;
+		
+		/** The parsed Texts and Tunes, at the same index as their file */
+		private final HymnComponent[] parsed;
+		
+		/** The snapshot of previously parsed files, may be null */
+		private final DatabaseSnapshot snapshot;
+		
+		/** The Database to read only the metadata of the files found in the snapshot for, null to read them fully */
+		private final Database lazy;
+		
+		/** The first index to parse */
+		private final int from;
+		
+		/** One past the last index to parse */
+		private final int to;
+		
+		/**
+		 * Constructor.
+		 * @param files The files to parse.
+		 * @param parsed The array in which to store the parsed Texts and Tunes.
+		 * @param snapshot The snapshot of previously parsed files, may be null.
+		 * @param lazy The Database to read only the metadata of the files
+		 * found in the snapshot for, null to read them fully.
+		 * @param from The first index to parse.
+		 * @param to One past the last index to parse.
+		 */
+		private LoadTask(File[] files, HymnComponent[] parsed, DatabaseSnapshot snapshot, Database lazy, int from, int to) {
+			this.files = files;
+			this.parsed = parsed;
+			this.snapshot = snapshot;
+			this.lazy = lazy;
+			this.from = from;
+			this.to = to;
+		}
 		
-		// Write out the Tune, save it to ArrayLists
-		writer.write(tune, new File(dbFolder + "/" + tune.getFilename() + ".xml"));
-		allTunes.add(tune);
-		if(tune.isValid())
-			validTunes.add(tune);
+		@Override
+		protected void compute() {
+			if(to - from <= loadThreshold) {
+				for(int i=from; i<to; i++) {
+					File file = files[i];
+					if(file.isFile()) {
+						if(snapshot != null && (parsed[i] = (lazy != null) ? snapshot.getMetadata(file, lazy) : snapshot.get(file)) != null)
+							continue;
+						try {
+							parsed[i] = ParserEngine.parse(file);
+						} catch(UnsupportedFileException e) {
+							System.err.println("Database - Failed to parse " + file.getName());
+							e.printStackTrace();
+						}
+					}
+				}
+			}
+			else {
+				int middle = (from + to) >>> 1;
+				invokeAll(new LoadTask(files, parsed, snapshot, lazy, from, middle), new LoadTask(files, parsed, snapshot, lazy, middle, to));
+			}
+		}
 	}
 
 }
@@ -0,0 +1,37 @@
+// Copyright 2012 Jason Petersen and Timothy Macdonald
+// 
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+// 
+//     http://www.apache.org/licenses/LICENSE-2.0
+// 
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+/**
+ * DatabaseListener.java
+ *
+ * Told when the Texts and Tunes in the Database
+ * change while JHymnal is running, e.g. because
+ * a file in its folder was edited, so a view of
+ * them can be built again.
+ */
+
+package io;
+
+public interface DatabaseListener {
+
+	/**
+	 * Called after Texts or Tunes were added to, replaced in
+	 * or removed from the Database. This is called on the thread
+	 * which changed the Database, not the event dispatch thread,
+	 * so it should return quickly.
+	 * @param db The Database which changed.
+	 */
+	public void databaseChanged(Database db);
+
+}
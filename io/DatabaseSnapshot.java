@@ -0,0 +1,706 @@
+// Copyright 2012 Jason Petersen and Timothy Macdonald
+// 
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+// 
+//     http://www.apache.org/licenses/LICENSE-2.0
+// 
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+/**
+ * DatabaseSnapshot.java
+ *
+ * Compact binary copy of the Texts and Tunes
+ * parsed from the Database folder, so that
+ * files which have not changed since the last
+ * launch do not need to be parsed again.
+ *
+ * Each entry is keyed by the name, size and
+ * last modified time of the file it was parsed
+ * from. The snapshot is memory-mapped when read
+ * and each entry is only decoded when asked for,
+ * so entries may be decoded from many threads.
+ * Each entry begins with the metadata of its Text
+ * or Tune, so the metadata can be decoded alone.
+ *
+ * Each entry ends with a CRC32 of the entry, which
+ * is checked before it is decoded, and every length
+ * is checked against the bytes left, so a damaged
+ * entry is parsed from its file again instead of
+ * being decoded into the wrong Text or Tune.
+ */
+
+package io;
+
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.zip.CRC32;
+import java.util.zip.CheckedOutputStream;
+
+import model.ContentLoader;
+import model.HymnComponent;
+import model.KeySignature;
+import model.Line;
+import model.Lyric;
+import model.Meter;
+import model.Music;
+import model.Note;
+import model.Part;
+import model.Refrain;
+import model.Slur;
+import model.Text;
+import model.TimeSignature;
+import model.Tune;
+import model.Unit;
+import model.UnsupportedNoteException;
+import model.Voice;
+import model.Word;
+
+final class DatabaseSnapshot {
+
+	/** Marks a file as a snapshot */
+	private static final int magic = 0x4A48594D;
+
+	/** The version of the snapshot format. Increase whenever the format or the encoded model classes change. */
+	private static final int version = 3;
+
+	/** Entry kind for a Text */
+	private static final byte textEntry = 1;
+
+	/** Entry kind for a Tune */
+	private static final byte tuneEntry = 2;
+
+	/** The fewest bytes an entry takes: an empty name, the size, time, kind, length and CRC */
+	private static final int smallestEntry = 4 + 8 + 8 + 1 + 4 + 4;
+
+	/** Used to encode and decode Strings */
+	private static final Charset utf8 = Charset.forName("UTF-8");
+
+	/** The file the snapshot is read from and written to */
+	private final File file;
+
+	/** The mapped contents of the snapshot, null if there was no usable snapshot */
+	private ByteBuffer buffer;
+
+	/** The entries in the snapshot, by file name */
+	private final HashMap<String, Entry> entries = new HashMap<String, Entry>();
+
+	/** The number of entries which have been decoded */
+	private final AtomicInteger hits = new AtomicInteger();
+
+	/**
+	 * Constructor. Maps the given snapshot and reads its list of entries.
+	 * A missing, outdated or damaged snapshot is treated as empty.
+	 * @param file The snapshot file.
+	 */
+	DatabaseSnapshot(File file) {
+		this.file = file;
+		map();
+	}
+
+	/**
+	 * Get the Text or Tune stored for the given file, if the file
+	 * has not changed since the snapshot was written.
+	 * This method is safe to call from multiple threads.
+	 * @param source The file the Text or Tune was parsed from.
+	 * @return The stored Text or Tune, or null if the file
+	 * has to be parsed again.
+	 */
+	HymnComponent get(File source) {
+		HymnComponent hc = read(source, null);
+		if(hc != null)
+			hits.incrementAndGet();
+		return hc;
+	}
+
+	/**
+	 * Get the metadata of the Text or Tune stored for the given file,
+	 * if the file has not changed since the snapshot was written.
+	 * The Text's verses or the Tune's Music are decoded from the
+	 * snapshot, or parsed from the file, when they are asked for.
+	 * This method is safe to call from multiple threads.
+	 * @param source The file the Text or Tune was parsed from.
+	 * @param database The Database which will hold the Text or Tune.
+	 * @return The Text or Tune created from its metadata, or null
+	 * if the file has to be parsed again.
+	 */
+	HymnComponent getMetadata(File source, Database database) {
+		HymnComponent hc = read(source, database);
+		if(hc != null)
+			hits.incrementAndGet();
+		return hc;
+	}
+
+	/**
+	 * Get the Text or Tune stored for the given file for a LazyLoader,
+	 * which is not counted as the file having been loaded.
+	 * This method is safe to call from multiple threads.
+	 * @param source The file the Text or Tune was parsed from.
+	 * @return The stored Text or Tune, or null if the file
+	 * has to be parsed again.
+	 */
+	HymnComponent load(File source) {
+		return read(source, null);
+	}
+
+	/**
+	 * Test if the snapshot no longer matches the loaded files, i.e.
+	 * some file was added, changed or removed since it was written.
+	 * @param loaded The number of Texts and Tunes that were loaded.
+	 * @return True if the snapshot should be written again, otherwise false.
+	 */
+	boolean isStale(int loaded) {
+		return hits.get() != loaded || entries.size() != loaded;
+	}
+
+	/**
+	 * Replace the snapshot with the given Texts and Tunes.
+	 * The snapshot is written to a temporary file which is
+	 * then moved over the old one, so a crash never leaves
+	 * a half-written snapshot behind. Each entry is followed
+	 * by the CRC32 of all of its bytes, from its name on.
+	 * @param files The files the Texts and Tunes were parsed from.
+	 * @param parsed The Texts and Tunes, at the same index as their file.
+	 * May contain nulls for files which could not be parsed.
+	 * @throws IOException Failed to write out the snapshot.
+	 */
+	void write(File[] files, HymnComponent[] parsed) throws IOException {
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		DataOutputStream data = new DataOutputStream(bytes);
+
+		File temp = new File(file.getPath() + ".tmp");
+		CRC32 crc = new CRC32();
+		DataOutputStream out = new DataOutputStream(new CheckedOutputStream(new BufferedOutputStream(new FileOutputStream(temp)), crc));
+		try {
+			int count = 0;
+			for(HymnComponent hc : parsed)
+				if(hc != null) count++;
+
+			out.writeInt(magic);
+			out.writeInt(version);
+			out.writeInt(count);
+			for(int i=0; i<files.length; i++) {
+				if(parsed[i] == null)
+					continue;
+
+				bytes.reset();
+				if(parsed[i] instanceof Text)
+					writeText(data, (Text) parsed[i]);
+				else
+					writeTune(data, (Tune) parsed[i]);
+				data.flush();
+
+				crc.reset();
+				writeString(out, files[i].getName());
+				out.writeLong(files[i].length());
+				out.writeLong(files[i].lastModified());
+				out.writeByte((parsed[i] instanceof Text) ? textEntry : tuneEntry);
+				out.writeInt(bytes.size());
+				bytes.writeTo(out);
+				out.writeInt((int) crc.getValue());
+			}
+		} finally {
+			out.close();
+		}
+
+		discard(); // Let go of the old mapping before replacing its file
+		Files.move(temp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+		map(); // Texts and Tunes created from their metadata load from the new snapshot
+	}
+
+	/* ---------- Helper methods ---------- */
+
+	/**
+	 * Map the snapshot and read its list of entries.
+	 * A missing, outdated or damaged snapshot is treated as empty.
+	 * The CRC of each entry is only checked when it is decoded.
+	 */
+	private void map() {
+		if(!file.isFile())
+			return;
+
+		try {
+			RandomAccessFile raf = new RandomAccessFile(file, "r");
+			try {
+				buffer = raf.getChannel().map(FileChannel.MapMode.READ_ONLY, 0, raf.length());
+			} finally {
+				raf.close(); // The mapping stays valid after the channel is closed
+			}
+
+			if(buffer.getInt() != magic || buffer.getInt() != version) {
+				buffer = null;
+				return;
+			}
+
+			int count = readCount(buffer, smallestEntry);
+			for(int i=0; i<count; i++) {
+				int start = buffer.position();
+				String name = readString(buffer);
+				Entry entry = new Entry(buffer.getLong(), buffer.getLong(), buffer.get(), readCount(buffer, 1));
+				entry.start = start;
+				entry.offset = buffer.position();
+				buffer.position(entry.offset + entry.length);
+				entry.crc = buffer.getInt();
+				entries.put(name, entry);
+			}
+		} catch(IOException ioe) {
+			System.err.println("DatabaseSnapshot - " + ioe.getMessage());
+			discard();
+		} catch(RuntimeException re) { // The snapshot was truncated or damaged
+			System.err.println("DatabaseSnapshot - Ignoring damaged snapshot " + file.getName());
+			discard();
+		}
+	}
+
+	/**
+	 * Decode the Text or Tune stored for the given file, if the
+	 * file has not changed since the snapshot was written and
+	 * the entry is not damaged, i.e. its CRC matches.
+	 * @param source The file the Text or Tune was parsed from.
+	 * @param database The Database to decode only the metadata for,
+	 * so the rest is loaded when it is asked for, or null to
+	 * decode everything.
+	 * @return The stored Text or Tune, or null if the file
+	 * has to be parsed again.
+	 */
+	private HymnComponent read(File source, Database database) {
+		ByteBuffer mapped = buffer;
+		Entry entry = entries.get(source.getName());
+		if(mapped == null || entry == null || entry.size != source.length() || entry.modified != source.lastModified())
+			return null;
+
+		ByteBuffer in = mapped.duplicate();
+		in.limit(entry.offset + entry.length);
+		in.position(entry.start);
+		CRC32 crc = new CRC32();
+		crc.update(in);
+		if((int) crc.getValue() != entry.crc) {
+			System.err.println("DatabaseSnapshot.read - Damaged entry for " + source.getName());
+			return null;
+		}
+
+		in.position(entry.offset);
+		try {
+			if(entry.kind == textEntry)
+				return readText(in, (database != null) ? new LazyLoader<Text>(source, this, Text.class, database) : null);
+			return readTune(in, (database != null) ? new LazyLoader<Tune>(source, this, Tune.class, database) : null);
+		} catch(BadInputException bie) {
+			System.err.println("DatabaseSnapshot.read - " + bie.getMessage());
+		} catch(UnsupportedNoteException usne) {
+			System.err.println("DatabaseSnapshot.read - " + usne.getMessage());
+		} catch(RuntimeException re) {
+			System.err.println("DatabaseSnapshot.read - Damaged entry for " + source.getName());
+		}
+		return null;
+	}
+
+	/**
+	 * Forget the mapped snapshot and its entries.
+	 */
+	private void discard() {
+		buffer = null;
+		entries.clear();
+	}
+
+	/**
+	 * Write a String as its length followed by its UTF-8 bytes.
+	 * @param out The stream to which to write the String.
+	 * @param s The String to write.
+	 * @throws IOException Failed to write the String.
+	 */
+	private static void writeString(DataOutputStream out, String s) throws IOException {
+		byte[] b = s.getBytes(utf8);
+		out.writeInt(b.length);
+		out.write(b);
+	}
+
+	/**
+	 * Read a String written by writeString.
+	 * @param in The buffer from which to read the String.
+	 * @return The String read from the buffer.
+	 * @throws BufferUnderflowException The String is longer than the bytes left.
+	 */
+	private static String readString(ByteBuffer in) {
+		byte[] b = new byte[readCount(in, 1)];
+		in.get(b);
+		return new String(b, utf8);
+	}
+
+	/**
+	 * Read the number of items which follow, checking that
+	 * they could fit in the bytes left, so a damaged count
+	 * never allocates more than the snapshot holds.
+	 * @param in The buffer from which to read the count.
+	 * @param size The fewest bytes each item takes.
+	 * @return The number of items.
+	 * @throws BufferUnderflowException The count is negative
+	 * or the items cannot fit in the bytes left.
+	 */
+	private static int readCount(ByteBuffer in, int size) {
+		int count = in.getInt();
+		if(count < 0 || (long) count*size > in.remaining())
+			throw new BufferUnderflowException();
+		return count;
+	}
+
+	/**
+	 * Write the fields of a Text.
+	 * @param out The stream to which to write the Text.
+	 * @param text The Text to write.
+	 * @throws IOException Failed to write the Text.
+	 */
+	private static void writeText(DataOutputStream out, Text text) throws IOException {
+		writeString(out, text.getName());
+		writeMeter(out, text.getMeter());
+		writeString(out, text.getAuthor());
+		out.writeInt(text.getYear());
+		out.writeBoolean(text.isValid());
+		out.writeInt(text.numberOfVerses());
+		for(Lyric verse : text)
+			writeLyric(out, verse);
+	}
+
+	/**
+	 * Read a Text written by writeText.
+	 * @param in The buffer from which to read the Text.
+	 * @param loader Loads the verses later, or null to read them now.
+	 * @return The Text read from the buffer.
+	 * @throws BadInputException The stored Text is not a valid Text.
+	 */
+	private static Text readText(ByteBuffer in, ContentLoader<Text> loader) throws BadInputException {
+		String name = readString(in);
+		Meter meter = readMeter(in);
+		String author = readString(in);
+		int year = in.getInt();
+		boolean valid = in.get() != 0;
+		int verses = readCount(in, 4);
+
+		Text text = (loader != null) ? new Text(name, meter, verses, valid, loader) : new Text(name, meter);
+		text.setAuthor(author);
+		text.setYear(year);
+		if(loader != null)
+			return text;
+
+		ArrayList<Lyric> list = new ArrayList<Lyric>(verses);
+		for(int i=0; i<verses; i++)
+			list.add(readLyric(in));
+		text.setVerses(list);
+		return text;
+	}
+
+	/**
+	 * Write the fields of a Tune, including its chorus and alleluias.
+	 * @param out The stream to which to write the Tune.
+	 * @param tune The Tune to write.
+	 * @throws IOException Failed to write the Tune.
+	 */
+	private static void writeTune(DataOutputStream out, Tune tune) throws IOException {
+		writeString(out, tune.getName());
+		writeMeter(out, tune.getMeter());
+		out.writeByte(tune.getKeySignature().ordinal());
+		out.writeInt(tune.getTimeSignature().getNumBeats());
+		out.writeInt(tune.getTimeSignature().getBeatLength());
+		writeString(out, tune.getAuthor());
+		out.writeInt(tune.getYear());
+		out.writeDouble(tune.getStartingBeat());
+		out.writeByte(tune.getMelody().ordinal());
+		out.writeBoolean(tune.isValid());
+
+		out.writeBoolean(tune.getMusic() != null);
+		if(tune.getMusic() != null)
+			writeMusic(out, tune.getMusic());
+
+		out.writeBoolean(tune.hasChorus());
+		if(tune.hasChorus())
+			writeRefrain(out, tune.getChorus());
+
+		int alleluias = 0;
+		for(int line=1; line<=tune.getMeter().numberOfLines(); line++)
+			if(tune.getAlleluiaForLine(line) != null) alleluias++;
+		out.writeInt(alleluias);
+		for(int line=1; line<=tune.getMeter().numberOfLines(); line++) {
+			if(tune.getAlleluiaForLine(line) != null) {
+				out.writeInt(line);
+				writeRefrain(out, tune.getAlleluiaForLine(line));
+			}
+		}
+	}
+
+	/**
+	 * Read a Tune written by writeTune.
+	 * @param in The buffer from which to read the Tune.
+	 * @param loader Loads the Music later, or null to read it now.
+	 * @return The Tune read from the buffer.
+	 * @throws BadInputException The stored Tune is not a valid Tune.
+	 * @throws UnsupportedNoteException The stored Tune has an unsupported Note.
+	 */
+	private static Tune readTune(ByteBuffer in, ContentLoader<Tune> loader) throws BadInputException, UnsupportedNoteException {
+		String name = readString(in);
+		Meter meter = readMeter(in);
+		KeySignature key = KeySignature.values()[in.get()];
+		TimeSignature time = new TimeSignature(in.getInt(), in.getInt());
+		String author = readString(in);
+		int year = in.getInt();
+		double startingBeat = in.getDouble();
+		Part melody = Part.values()[in.get()];
+		boolean valid = in.get() != 0;
+
+		Tune tune = (loader != null) ? new Tune(name, meter, key, time, valid, loader) : new Tune(name, meter, key, time);
+		tune.setAuthor(author);
+		tune.setYear(year);
+		tune.setStartingBeat(Double.toString(startingBeat));
+		tune.setMelody(melody);
+		if(loader != null)
+			return tune;
+
+		if(in.get() != 0)
+			tune.setMusic(readMusic(in));
+
+		if(in.get() != 0)
+			tune.setChorus(readRefrain(in));
+
+		int alleluias = readCount(in, 4);
+		for(int i=0; i<alleluias; i++) {
+			int line = in.getInt();
+			tune.addAlleluia(line, readRefrain(in));
+		}
+		return tune;
+	}
+
+	/**
+	 * Write a Meter as its name, if any, and its counts.
+	 * @param out The stream to which to write the Meter.
+	 * @param meter The Meter to write.
+	 * @throws IOException Failed to write the Meter.
+	 */
+	private static void writeMeter(DataOutputStream out, Meter meter) throws IOException {
+		out.writeBoolean(meter.hasName());
+		if(meter.hasName())
+			writeString(out, meter.getName());
+		out.writeInt(meter.numberOfLines());
+		for(int count : meter)
+			out.writeInt(count);
+	}
+
+	/**
+	 * Read a Meter written by writeMeter.
+	 * @param in The buffer from which to read the Meter.
+	 * @return The Meter read from the buffer.
+	 */
+	private static Meter readMeter(ByteBuffer in) {
+		String name = (in.get() != 0) ? readString(in) : null;
+		int lines = readCount(in, 4);
+		int[] counts = new int[lines];
+		for(int i=0; i<lines; i++)
+			counts[i] = in.getInt();
+		return new Meter(name, counts).intern();
+	}
+
+	/**
+	 * Write the Words of a Lyric, line by line.
+	 * @param out The stream to which to write the Lyric.
+	 * @param lyric The Lyric to write.
+	 * @throws IOException Failed to write the Lyric.
+	 */
+	private static void writeLyric(DataOutputStream out, Lyric lyric) throws IOException {
+		out.writeInt(lyric.numberOfLines());
+		for(Line<Word> line : lyric) {
+			out.writeInt(line.numberOfSyllables());
+			for(Word word : line)
+				writeString(out, word.toString());
+		}
+	}
+
+	/**
+	 * Read a Lyric written by writeLyric.
+	 * @param in The buffer from which to read the Lyric.
+	 * @return The Lyric read from the buffer.
+	 */
+	private static Lyric readLyric(ByteBuffer in) {
+		Lyric lyric = new Lyric();
+		int lines = readCount(in, 4);
+		for(int i=0; i<lines; i++) {
+			Line<Word> line = new Line<Word>();
+			int words = readCount(in, 4);
+			for(int j=0; j<words; j++)
+				line.addSyllable(Word.valueOf(readString(in)));
+			lyric.addLine(line);
+		}
+		return lyric;
+	}
+
+	/**
+	 * Write the Music and Lyric of a Refrain.
+	 * @param out The stream to which to write the Refrain.
+	 * @param refrain The Refrain to write.
+	 * @throws IOException Failed to write the Refrain.
+	 */
+	private static void writeRefrain(DataOutputStream out, Refrain refrain) throws IOException {
+		writeMusic(out, refrain.getMusic());
+		writeLyric(out, refrain.getLyric());
+	}
+
+	/**
+	 * Read a Refrain written by writeRefrain.
+	 * @param in The buffer from which to read the Refrain.
+	 * @return The Refrain read from the buffer.
+	 * @throws BadInputException The stored Refrain is not a valid Refrain.
+	 * @throws UnsupportedNoteException The stored Refrain has an unsupported Note.
+	 */
+	private static Refrain readRefrain(ByteBuffer in) throws BadInputException, UnsupportedNoteException {
+		Music music = readMusic(in);
+		return new Refrain(music, readLyric(in));
+	}
+
+	/**
+	 * Write each Voice of a Music, marking the Voices it does not have.
+	 * @param out The stream to which to write the Music.
+	 * @param music The Music to write.
+	 * @throws IOException Failed to write the Music.
+	 */
+	private static void writeMusic(DataOutputStream out, Music music) throws IOException {
+		for(Part p : Part.values()) {
+			Voice voice = music.getVoiceFor(p);
+			out.writeBoolean(voice != null);
+			if(voice != null)
+				writeVoice(out, voice);
+		}
+	}
+
+	/**
+	 * Read a Music written by writeMusic.
+	 * @param in The buffer from which to read the Music.
+	 * @return The Music read from the buffer.
+	 * @throws BadInputException The stored Music is not valid.
+	 * @throws UnsupportedNoteException The stored Music has an unsupported Note.
+	 */
+	private static Music readMusic(ByteBuffer in) throws BadInputException, UnsupportedNoteException {
+		Music music = new Music();
+		for(Part p : Part.values()) {
+			if(in.get() == 0)
+				continue;
+			Voice voice = readVoice(in, p);
+			if(p == Part.SOPRANO) music.setSoprano(voice);
+			else if(p == Part.ALTO) music.setAlto(voice);
+			else if(p == Part.TENOR) music.setTenor(voice);
+			else music.setBass(voice);
+		}
+		return music;
+	}
+
+	/**
+	 * Write the Units of a Voice, line by line.
+	 * Each Note is its pitch name, duration and a byte of flags.
+	 * @param out The stream to which to write the Voice.
+	 * @param voice The Voice to write.
+	 * @throws IOException Failed to write the Voice.
+	 */
+	private static void writeVoice(DataOutputStream out, Voice voice) throws IOException {
+		out.writeInt(voice.numberOfLines());
+		for(Line<Unit> line : voice) {
+			out.writeInt(line.numberOfSyllables());
+			for(Unit unit : line) {
+				out.writeBoolean(unit.getWordRepeat());
+				out.writeInt(unit.numberOfNotes());
+				for(Note note : unit) {
+					writeString(out, note.getPitchName());
+					out.writeByte(note.getDurationDenom());
+					out.writeByte((note.isDotted() ? 1 : 0) | (note.startsTie() ? 2 : 0) | (note.isRest() ? 4 : 0));
+					out.writeByte(note.slurStatus().ordinal());
+				}
+			}
+		}
+	}
+
+	/**
+	 * Read a Voice written by writeVoice.
+	 * @param in The buffer from which to read the Voice.
+	 * @param p The Part of the Voice.
+	 * @return The Voice read from the buffer.
+	 * @throws BadInputException The stored Voice is not valid.
+	 * @throws UnsupportedNoteException The stored Voice has an unsupported Note.
+	 */
+	private static Voice readVoice(ByteBuffer in, Part p) throws BadInputException, UnsupportedNoteException {
+		Voice voice = new Voice(p);
+		int lines = readCount(in, 4);
+		for(int i=0; i<lines; i++) {
+			Line<Unit> line = new Line<Unit>();
+			int units = readCount(in, 5);
+			for(int j=0; j<units; j++) {
+				Unit unit = new Unit();
+				unit.setWordRepeat(in.get() != 0);
+				int notes = readCount(in, 7);
+				for(int k=0; k<notes; k++) {
+					String pitch = readString(in);
+					int denom = in.get();
+					int flags = in.get();
+					Slur slur = Slur.values()[in.get()];
+					unit.addNote(Note.valueOf(pitch, denom, (flags & 1) != 0, (flags & 2) != 0, slur, (flags & 4) != 0));
+				}
+				line.addSyllable(unit);
+			}
+			voice.addLine(line);
+		}
+		return voice;
+	}
+
+	/**
+	 * Location and key of one Text or Tune in the snapshot.
+	 */
+	private static class Entry {
+		/** The size of the file the entry was parsed from */
+		private final long size;
+
+		/** The last modified time of the file the entry was parsed from */
+		private final long modified;
+
+		/** Whether the entry is a Text or a Tune */
+		private final byte kind;
+
+		/** The number of bytes in the encoded entry */
+		private final int length;
+
+		/** The position of the entry's name in the snapshot, where its CRC starts */
+		private int start;
+
+		/** The position of the encoded entry in the snapshot */
+		private int offset;
+
+		/** The CRC32 of the entry, from its name to the end of the encoded entry */
+		private int crc;
+
+		/**
+		 * Constructor.
+		 * @param size The size of the file the entry was parsed from.
+		 * @param modified The last modified time of the file the entry was parsed from.
+		 * @param kind Whether the entry is a Text or a Tune.
+		 * @param length The number of bytes in the encoded entry.
+		 */
+		private Entry(long size, long modified, byte kind, int length) {
+			this.size = size;
+			this.modified = modified;
+			this.kind = kind;
+			this.length = length;
+		}
+	}
+
+}
@@ -0,0 +1,186 @@
+// Copyright 2012 Jason Petersen and Timothy Macdonald
+// 
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+// 
+//     http://www.apache.org/licenses/LICENSE-2.0
+// 
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+/**
+ * DatabaseWatcher.java
+ *
+ * Loads the files in the folder of the Database
+ * again when they are created, changed or deleted
+ * while JHymnal is running, so new and edited
+ * Texts and Tunes show up without a restart.
+ *
+ * One daemon thread waits for the folder to change.
+ * Saving a file often changes it several times, so
+ * the changes are gathered until the folder has been
+ * quiet for a moment, and each changed file is then
+ * parsed once. The whole batch is handed to the
+ * Database at once, which tells its listeners if
+ * any Text or Tune was added, replaced or removed.
+ */
+
+package io;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.ClosedWatchServiceException;
+import java.nio.file.StandardWatchEventKinds;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.concurrent.TimeUnit;
+
+import model.HymnComponent;
+
+final class DatabaseWatcher implements Runnable {
+
+	/** How long the folder must be quiet before the changed files are loaded, in milliseconds */
+	private static final long quietDelay = 250;
+
+	/** The longest to wait for the folder to be quiet before loading anyway, in milliseconds */
+	private static final long batchDelay = 2000;
+
+	/** The Database to load the changed files into */
+	private final Database db;
+
+	/** The folder being watched */
+	private final File folder;
+
+	/** The service telling this which files changed */
+	private final WatchService service;
+
+	/** The thread which watches, null until started */
+	private Thread thread;
+
+	/**
+	 * Constructor. Changes are noticed from now on,
+	 * but are only loaded once the watcher is started.
+	 * @param db The Database to load the changed files into.
+	 * @param folder The folder the Database was loaded from.
+	 * @throws IOException The folder could not be watched.
+	 */
+	DatabaseWatcher(Database db, File folder) throws IOException {
+		this.db = db;
+		this.folder = folder;
+		this.service = folder.toPath().getFileSystem().newWatchService();
+		folder.toPath().register(service, StandardWatchEventKinds.ENTRY_CREATE,
+				StandardWatchEventKinds.ENTRY_MODIFY, StandardWatchEventKinds.ENTRY_DELETE);
+	}
+
+	/**
+	 * Start loading the changed files in the background.
+	 */
+	synchronized void start() {
+		if(thread != null)
+			return;
+		thread = new Thread(this, "DatabaseWatcher");
+		thread.setDaemon(true);
+		thread.start();
+	}
+
+	/**
+	 * Stop watching the folder. Changes made
+	 * afterwards are not loaded.
+	 */
+	void stop() {
+		try {
+			service.close();
+		} catch(IOException ioe) {
+			System.err.println("DatabaseWatcher.stop - " + ioe.getMessage());
+		}
+	}
+
+	@Override
+	public void run() {
+		while(true) {
+			try {
+				LinkedHashSet<String> changed = new LinkedHashSet<String>();
+				boolean overflowed = gather(service.take(), changed);
+
+				// Wait for the folder to be quiet, so a file is not loaded halfway through being saved
+				long deadline = System.currentTimeMillis() + batchDelay;
+				WatchKey key;
+				while(System.currentTimeMillis() < deadline && (key = service.poll(quietDelay, TimeUnit.MILLISECONDS)) != null)
+					overflowed |= gather(key, changed);
+
+				// Some changes were lost, so look at every file
+				if(overflowed) {
+					changed.addAll(db.fileNames());
+					String[] names = folder.list();
+					if(names != null)
+						changed.addAll(Arrays.asList(names));
+				}
+				load(changed);
+			} catch(ClosedWatchServiceException cwse) {
+				return;
+			} catch(InterruptedException ie) {
+				// Nothing interrupts the thread, so just carry on
+			} catch(RuntimeException re) {
+				System.err.println("DatabaseWatcher.run - " + re);
+			}
+		}
+	}
+
+	/* ---------- Helper methods ---------- */
+
+	/**
+	 * Add the names of the files changed in the events
+	 * of a key to the batch, and ready it for more events.
+	 * @param key The key whose events to gather.
+	 * @param changed The names of the changed files.
+	 * @return True if some events were lost, otherwise false.
+	 */
+	private boolean gather(WatchKey key, LinkedHashSet<String> changed) {
+		boolean overflowed = false;
+		for(WatchEvent<?> event : key.pollEvents()) {
+			if(event.kind() == StandardWatchEventKinds.OVERFLOW)
+				overflowed = true;
+			else
+				changed.add(event.context().toString());
+		}
+		if(!key.reset())
+			System.err.println("DatabaseWatcher.gather - " + folder + " can no longer be watched");
+		return overflowed;
+	}
+
+	/**
+	 * Parse the changed files which still exist, and hand them
+	 * and the names of the deleted ones to the Database at once.
+	 * A file which fails to parse, e.g. because it is being
+	 * saved again, leaves what it held in the Database.
+	 * @param changed The names of the changed files.
+	 */
+	private void load(LinkedHashSet<String> changed) {
+		LinkedHashMap<String, HymnComponent> loaded = new LinkedHashMap<String, HymnComponent>();
+		ArrayList<String> deleted = new ArrayList<String>();
+		for(String name : changed) {
+			File file = new File(folder, name);
+			if(!file.exists())
+				deleted.add(name);
+			else if(file.isFile()) {
+				try {
+					loaded.put(name, ParserEngine.parse(file));
+				} catch(UnsupportedFileException ufe) {
+					System.err.println("DatabaseWatcher.load - Failed to parse " + name + ": " + ufe.getMessage());
+				}
+			}
+		}
+		if(db.reload(loaded, deleted))
+			db.fireChanged();
+	}
+
+}
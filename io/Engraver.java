@@ -0,0 +1,1329 @@
+// Copyright 2012 Jason Petersen and Timothy Macdonald
+// 
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+// 
+//     http://www.apache.org/licenses/LICENSE-2.0
+// 
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+/**
+ * Engraver.java
+ *
+ * Draws Hymns, Tunes and Texts straight onto
+ * pages with Java2D, without running LilyPond.
+ *
+ * The layout follows the LilyPond score: soprano
+ * and alto share a treble staff, tenor and bass a
+ * bass staff, and the verses sit between the two.
+ * Notes are spaced by their duration and by the
+ * width of the syllables under them, and systems
+ * are broken at bar lines where possible. It is
+ * nowhere near as pretty as LilyPond, but a page
+ * takes milliseconds rather than seconds.
+ *
+ * Noteheads, stems, flags and rests are drawn as
+ * shapes; clefs and accidentals come from the same
+ * Sonata font the Tune editor uses, when it can be
+ * loaded. The Engraver keeps no state between
+ * calls, so any number of threads may use it.
+ */
+
+package io;
+
+import java.awt.BasicStroke;
+import java.awt.Color;
+import java.awt.Font;
+import java.awt.FontFormatException;
+import java.awt.Graphics2D;
+import java.awt.RenderingHints;
+import java.awt.Shape;
+import java.awt.Stroke;
+import java.awt.font.FontRenderContext;
+import java.awt.geom.AffineTransform;
+import java.awt.geom.Ellipse2D;
+import java.awt.geom.GeneralPath;
+import java.awt.geom.Line2D;
+import java.awt.geom.QuadCurve2D;
+import java.awt.geom.Rectangle2D;
+import java.awt.image.BufferedImage;
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.TreeSet;
+
+import javax.imageio.ImageIO;
+
+import model.Accidental;
+import model.Hymn;
+import model.KeySignature;
+import model.Line;
+import model.Lyric;
+import model.Music;
+import model.Note;
+import model.Part;
+import model.Refrain;
+import model.Slur;
+import model.Text;
+import model.TimeSignature;
+import model.Tune;
+import model.Unit;
+import model.Voice;
+import model.Word;
+
+final class Engraver {
+
+	/** The only instance of the Engraver */
+	private static Engraver instance = new Engraver();
+
+	/** The music font, relative to where JHymnal is run */
+	private static final String fontFile = "resources/fonts/sonata.ttf";
+
+	/** The width of a page in pixels, A4 at the resolution lilypond renders PNGs at */
+	private static final int pageWidth = 835;
+
+	/** The height of a page in pixels */
+	private static final int pageHeight = 1181;
+
+	/** The space around the edge of a page */
+	private static final int margin = 48;
+
+	/** The distance between two lines of a staff, which everything else on a staff is measured in */
+	private static final int space = 8;
+
+	/** The distance between the baselines of two rows of lyrics */
+	private static final int lyricHeight = 17;
+
+	/** The space between two systems */
+	private static final int systemGap = 3*space;
+
+	/** The pitch of the bottom line of the treble staff, E4, as given by Note.getPitch */
+	private static final int trebleBottom = 30;
+
+	/** The pitch of the bottom line of the bass staff, G2 */
+	private static final int bassBottom = 18;
+
+	/** Where the sharps of a key signature go on the treble staff, in the order they are added */
+	private static final int[] sharpPitches = {38, 35, 39, 36, 33, 37, 34};
+
+	/** Where the flats of a key signature go on the treble staff, in the order they are added */
+	private static final int[] flatPitches = {34, 37, 33, 36, 32, 35, 31};
+
+	/** The music font, null if it could not be loaded */
+	private final Font music;
+
+	/** The font of the title */
+	private final Font titleFont = new Font(Font.SERIF, Font.BOLD, 22);
+
+	/** The font of the subtitle */
+	private final Font subtitleFont = new Font(Font.SERIF, Font.PLAIN, 15);
+
+	/** The font of the poet and composer */
+	private final Font creditFont = new Font(Font.SERIF, Font.ITALIC, 12);
+
+	/** The font of the meter and stanza numbers */
+	private final Font plainFont = new Font(Font.SERIF, Font.PLAIN, 12);
+
+	/** The font of the lyrics */
+	private final Font lyricFont = new Font(Font.SERIF, Font.PLAIN, 12);
+
+	/** The font of the time signature */
+	private final Font timeFont = new Font(Font.SERIF, Font.BOLD, 2*space + 3);
+
+	/** The font of the tagline */
+	private final Font taglineFont = new Font(Font.SERIF, Font.PLAIN, 9);
+
+	/** Used to measure text without a Graphics2D, with the same hints the pages are drawn with */
+	private final FontRenderContext frc = new FontRenderContext(null, true, true);
+
+	/** The stroke of staff lines, ledger lines and bar lines */
+	private final Stroke thin = new BasicStroke(1.0f);
+
+	/** The stroke of stems, ties and hollow noteheads */
+	private final Stroke medium = new BasicStroke(1.4f);
+
+	/** The stroke of flags, rests and the end bar */
+	private final Stroke thick = new BasicStroke(2.2f, BasicStroke.CAP_BUTT, BasicStroke.JOIN_MITER);
+
+	/**
+	 * Private constructor, loads the music font.
+	 */
+	private Engraver() {
+		Font font = null;
+		try {
+			font = Font.createFont(Font.TRUETYPE_FONT, new File(fontFile)).deriveFont(4.4f*space);
+		} catch(FontFormatException ffe) {
+			System.err.println("Engraver - " + ffe.getMessage());
+		} catch(IOException ioe) {
+			System.err.println("Engraver - Could not load " + fontFile + ", drawing clefs and accidentals as text");
+		}
+		music = font;
+	}
+
+	/**
+	 * Get the instance of the Engraver.
+	 * @return The instance of the Engraver.
+	 */
+	static Engraver getInstance() {
+		return instance;
+	}
+
+	/**
+	 * Engrave a Hymn: its header, then both staves with
+	 * the verses it displays between them.
+	 * @param hymn The Hymn to engrave.
+	 * @return The pages.
+	 */
+	ArrayList<BufferedImage> engrave(Hymn hymn) {
+		Text text = hymn.getText();
+		Tune tune = hymn.getTune();
+
+		Score score = new Score(tune, hymn.displayChorus());
+		addVerses(hymn, score);
+
+		Pages pages = new Pages();
+		drawHeader(pages, text.getName(), tune.getName(), tune.getMeter().toString(),
+				credit(text.getAuthor(), text.getYear()), credit(tune.getAuthor(), tune.getYear()));
+		drawScore(pages, score);
+		return pages.finish();
+	}
+
+	/**
+	 * Engrave a Tune on its own, without any lyrics.
+	 * @param tune The Tune to engrave.
+	 * @return The pages.
+	 */
+	ArrayList<BufferedImage> engrave(Tune tune) {
+		Score score = new Score(tune, tune.hasChorus());
+
+		Pages pages = new Pages();
+		drawHeader(pages, tune.getName(), null, tune.getMeter().toString(), null, credit(tune.getAuthor(), tune.getYear()));
+		drawScore(pages, score);
+		return pages.finish();
+	}
+
+	/**
+	 * Engrave a Text on its own. With no Tune there is
+	 * nothing to put on a staff, so each verse is set
+	 * as numbered lines of text.
+	 * @param text The Text to engrave.
+	 * @return The pages.
+	 */
+	ArrayList<BufferedImage> engrave(Text text) {
+		Pages pages = new Pages();
+		drawHeader(pages, text.getName(), null, text.getMeter().toString(), credit(text.getAuthor(), text.getYear()), null);
+
+		int verseNumber = 1;
+		for(Lyric lyric : text) {
+			int lines = lyric.numberOfLines();
+			int top = pages.place(lines*lyricHeight + lyricHeight);
+			int baseline = top + lyricHeight;
+
+			pages.g.setFont(plainFont);
+			pages.g.drawString(verseNumber + ".", margin, baseline);
+			pages.g.setFont(lyricFont);
+			for(Line<Word> line : lyric) {
+				StringBuilder sb = new StringBuilder();
+				boolean joined = true;
+				for(Word w : line) {
+					Syllable s = syllable(0, w);
+					if(s == null) continue;
+					if(!joined) sb.append(' ');
+					sb.append(s.text);
+					joined = s.hyphen;
+				}
+				pages.g.drawString(sb.toString(), margin + 3*space, baseline);
+				baseline += lyricHeight;
+			}
+			verseNumber++;
+		}
+		return pages.finish();
+	}
+
+	/**
+	 * Write pages to PNG files named the way lilypond names
+	 * them, i.e. target.png for a single page, otherwise
+	 * target-page1.png, target-page2.png and so on. Each
+	 * page is written under another name and then moved into
+	 * place, and the first page is moved last, so nobody
+	 * looking for the images sees only some of the pages.
+	 * @param pages The pages to write.
+	 * @param target The path of the images to create, without an extension.
+	 * @throws IOException The images could not be written.
+	 */
+	static void write(ArrayList<BufferedImage> pages, File target) throws IOException {
+		for(int page=pages.size(); page >= 1; page--) {
+			File file = new File(target.getPath() + ((pages.size() == 1) ? ".png" : "-page" + page + ".png"));
+			File part = new File(file.getPath() + ".part");
+			if(!ImageIO.write(pages.get(page-1), "png", part))
+				throw new IOException("No PNG writer for " + file.getName());
+			Files.move(part.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+		}
+	}
+
+	/* ---------- Helper methods to place the lyrics ---------- */
+
+	/**
+	 * Add a row of lyrics to the Score for each verse the Hymn
+	 * displays. Doubled Texts put two verses in each row. The
+	 * alleluias and chorus are only sung in the first row.
+	 * @param hymn The Hymn whose verses to add.
+	 * @param score The Score of the Hymn's Tune.
+	 */
+	private void addVerses(Hymn hymn, Score score) {
+		Text text = hymn.getText();
+		Tune tune = hymn.getTune();
+		int half = text.getMeter().numberOfLines();
+
+		int verseNumber = 1;
+		boolean first = true;
+		for(Iterator<Lyric> verses = text.iterator(); verses.hasNext(); verseNumber++) {
+			Lyric lyric = verses.next();
+			Lyric second = null;
+			if(hymn.doubleText()) {
+				if(!verses.hasNext())
+					break;
+				second = verses.next();
+			}
+			if(!hymn.display(verseNumber))
+				continue;
+
+			ArrayList<Syllable> row = new ArrayList<Syllable>();
+			placeLyric(lyric, score, 0, row);
+			if(second != null)
+				placeLyric(second, score, half, row);
+			if(first) {
+				for(int line=1; line <= score.alleluias.size(); line++) {
+					Refrain alleluia = tune.getAlleluiaForLine(line);
+					if(alleluia != null)
+						placeRefrain(alleluia.getLyric(), score.alleluias.get(line-1), row);
+				}
+				if(!score.chorus.isEmpty())
+					placeRefrain(tune.getChorus().getLyric(), score.chorus, row);
+			}
+
+			Collections.sort(row, new Comparator<Syllable>() {
+				@Override
+				public int compare(Syllable a, Syllable b) {
+					return (a.start < b.start) ? -1 : ((a.start == b.start) ? 0 : 1);
+				}
+			});
+			score.verses.add(row);
+			score.stanzas.add(verseNumber + ".");
+			first = false;
+		}
+	}
+
+	/**
+	 * Put each Word of a Lyric under the next melody Unit,
+	 * singing Words again where the Tune repeats them. This
+	 * follows the same rules as LilyPondUtility.makeHymnLyric.
+	 * @param lyric The Lyric to place.
+	 * @param score The Score holding the melody Units.
+	 * @param firstLine The first line of the melody to use, which
+	 * is not 0 for the second half of a doubled Text.
+	 * @param row Where to add the syllables.
+	 */
+	private void placeLyric(Lyric lyric, Score score, int firstLine, ArrayList<Syllable> row) {
+		ArrayList<Slot> slots = new ArrayList<Slot>();
+		for(int i=firstLine; i<score.lines.size(); i++)
+			slots.addAll(score.lines.get(i));
+
+		ArrayList<Word> repeatedWords = new ArrayList<Word>();
+		boolean previousRepeat = false;
+		int next = 0;
+		words:
+		for(Line<Word> line : lyric) {
+			for(Word w : line) {
+				if(next >= slots.size())
+					break words;
+
+				// Determine if the current word gets repeated
+				boolean repeat = slots.get(next).repeat;
+				if(repeat) repeatedWords.add(w);
+
+				// If we're no longer repeating, sing the repeated words first
+				if(!repeat && previousRepeat) {
+					for(Word r : repeatedWords)
+						if(next < slots.size())
+							addSyllable(row, slots.get(next++).start, r);
+					repeatedWords.clear();
+					if(next >= slots.size())
+						break words;
+				}
+
+				addSyllable(row, slots.get(next++).start, w);
+				previousRepeat = repeat;
+			}
+		}
+
+		for(Word r : repeatedWords)
+			if(next < slots.size())
+				addSyllable(row, slots.get(next++).start, r);
+	}
+
+	/**
+	 * Put each Word of a Refrain's Lyric under the next
+	 * of its melody Units.
+	 * @param lyric The Lyric of the Refrain.
+	 * @param slots The melody Units of the Refrain.
+	 * @param row Where to add the syllables.
+	 */
+	private void placeRefrain(Lyric lyric, ArrayList<Slot> slots, ArrayList<Syllable> row) {
+		int next = 0;
+		for(Line<Word> line : lyric)
+			for(Word w : line)
+				if(next < slots.size())
+					addSyllable(row, slots.get(next++).start, w);
+	}
+
+	/**
+	 * Add the syllable for a Word to a row, unless it is a skip.
+	 * @param row Where to add the syllable.
+	 * @param start When the syllable is sung.
+	 * @param w The Word.
+	 */
+	private void addSyllable(ArrayList<Syllable> row, int start, Word w) {
+		Syllable s = syllable(start, w);
+		if(s != null)
+			row.add(s);
+	}
+
+	/**
+	 * Make the syllable for a Word. A Word of several Strings
+	 * is sung on one note, so they are joined with spaces.
+	 * @param start When the syllable is sung.
+	 * @param w The Word.
+	 * @return The syllable, or null if the Word is a skip.
+	 */
+	private static Syllable syllable(int start, Word w) {
+		StringBuilder sb = new StringBuilder();
+		boolean hyphen = false;
+		for(String s : w) {
+			if(s.equals(Word.skip))
+				continue;
+			hyphen = s.indexOf('-') >= 0;
+			if(hyphen)
+				s = s.replace("-", "");
+			if(sb.length() > 0)
+				sb.append(' ');
+			sb.append(s);
+		}
+		return (sb.length() > 0) ? new Syllable(start, sb.toString(), hyphen) : null;
+	}
+
+	/**
+	 * Make the italic credit for a poet or composer, see
+	 * LilyPondUtility.createAuthor.
+	 * @param name The name of the poet or composer.
+	 * @param year The year they wrote the piece, 0 if unknown.
+	 * @return The credit, or null if there is no name.
+	 */
+	private static String credit(String name, int year) {
+		if(name == null || name.length() == 0)
+			return null;
+		return (year != 0) ? name + ", " + year : name;
+	}
+
+	/* ---------- Helper methods to lay out and draw ---------- */
+
+	/**
+	 * Draw the title block at the top of the first page, the
+	 * same fields in the same places as lilypond's titles.
+	 * @param pages The pages to draw on.
+	 * @param title The title.
+	 * @param subtitle The subtitle, may be null.
+	 * @param meter The meter, shown under the poet.
+	 * @param poet The poet, on the left, may be null.
+	 * @param composer The composer, on the right, may be null.
+	 */
+	private void drawHeader(Pages pages, String title, String subtitle, String meter, String poet, String composer) {
+		Graphics2D g = pages.g;
+		int y = pages.y + titleFont.getSize();
+		drawCentered(g, titleFont, title, y);
+		if(subtitle != null) {
+			y += subtitleFont.getSize() + 6;
+			drawCentered(g, subtitleFont, subtitle, y);
+		}
+
+		y += creditFont.getSize() + 14;
+		g.setFont(creditFont);
+		if(poet != null)
+			g.drawString(poet, margin, y);
+		if(composer != null)
+			g.drawString(composer, (float)(pageWidth - margin - width(creditFont, composer)), y);
+
+		y += plainFont.getSize() + 4;
+		g.setFont(plainFont);
+		g.drawString(meter, margin, y);
+
+		pages.y = y + 2*space;
+	}
+
+	/**
+	 * Lay the Score out in systems and draw them, starting
+	 * new pages as they fill up.
+	 * @param pages The pages to draw on.
+	 * @param score The Score to draw.
+	 */
+	private void drawScore(Pages pages, Score score) {
+		int[] times = score.times();
+		int n = times.length;
+		if(n == 0)
+			return;
+
+		// Horizontal space for each column of notes
+		double[] barPad = new double[n];
+		double[] accPad = new double[n];
+		double[] width = new double[n];
+		for(int i=0; i<n; i++) {
+			int duration = ((i+1 < n) ? times[i+1] : score.length) - times[i];
+			width[i] = 1.6*space + 1.2*space*Math.sqrt(duration);
+			if(i > 0 && score.isBar(times[i]))
+				barPad[i] = 1.5*space;
+		}
+		for(ArrayList<Event> voice : score.voices) {
+			for(Event e : voice) {
+				int i = Arrays.binarySearch(times, e.start);
+				if(e.shown != null)
+					accPad[i] = 1.6*space;
+				if(e.note.isDotted())
+					width[i] = Math.max(width[i], 2.6*space + 1.2*space*Math.sqrt(e.note.getDuration()));
+			}
+		}
+
+		// Make room for the syllables, so neighbours never overlap
+		for(ArrayList<Syllable> row : score.verses) {
+			Syllable previous = null;
+			for(Syllable s : row) {
+				s.width = width(lyricFont, s.text);
+				if(previous != null) {
+					int i = Arrays.binarySearch(times, previous.start);
+					int j = Arrays.binarySearch(times, s.start);
+					if(i >= 0 && j > i) {
+						double needed = (previous.width + s.width)/2 + ((previous.hyphen) ? 2*space : space);
+						double have = width[i] + barPad[j] + accPad[j];
+						for(int k=i+1; k<j; k++)
+							have += barPad[k] + accPad[k] + width[k];
+						if(have < needed)
+							width[j-1] += needed - have;
+					}
+				}
+				previous = s;
+			}
+		}
+
+		// Break into systems, at bar lines if possible
+		int keyWidth = space*(score.key.numAccidentals() + 1);
+		int height = systemHeight(score.verses.size());
+		double[] x = new double[n];
+		double[] barX = new double[n];
+		int from = 0;
+		boolean first = true;
+		while(from < n) {
+			double left = margin + 2*space + 4*space + keyWidth + ((first) ? 3*space : 0);
+			double available = pageWidth - margin - left;
+
+			int to = from;
+			int lastBar = -1;
+			double used = 0;
+			while(to < n) {
+				double w = ((to > from) ? barPad[to] : 0) + accPad[to] + width[to];
+				if(used + w > available && to > from)
+					break;
+				used += w;
+				to++;
+				if(to < n && barPad[to] > 0)
+					lastBar = to;
+			}
+			if(to < n && lastBar > from)
+				to = lastBar;
+
+			// Spread the notes out to fill the line, unless it is a short last line
+			double natural = 0;
+			double stretchable = 0;
+			for(int i=from; i<to; i++) {
+				natural += ((i > from) ? barPad[i] : 0) + accPad[i] + width[i];
+				stretchable += width[i];
+			}
+			double stretch = 1;
+			if(to < n || natural > 0.7*available)
+				stretch = 1 + (available - natural)/stretchable;
+
+			double position = left;
+			double right = pageWidth - margin;
+			if(stretch == 1) // The staves end soon after the last note
+				right = left + natural + space;
+			for(int i=from; i<to; i++) {
+				if(i > from) {
+					barX[i] = position + barPad[i]*0.4;
+					position += barPad[i];
+				}
+				position += accPad[i];
+				x[i] = position + 0.7*space;
+				position += width[i]*stretch;
+			}
+
+			int top = pages.place(height + systemGap);
+			drawSystem(pages.g, score, times, x, barX, from, to, first, top, right);
+			from = to;
+			first = false;
+		}
+	}
+
+	/**
+	 * Get the height of a system.
+	 * @param rows The number of rows of lyrics.
+	 * @return The height of the system.
+	 */
+	private static int systemHeight(int rows) {
+		return 4*space + 4*space + lyricsHeight(rows) + 4*space + 3*space;
+	}
+
+	/**
+	 * Get the space between the treble and bass staves.
+	 * @param rows The number of rows of lyrics.
+	 * @return The space between the staves.
+	 */
+	private static int lyricsHeight(int rows) {
+		return (rows > 0) ? 5*space + rows*lyricHeight + 3*space : 6*space;
+	}
+
+	/**
+	 * Draw one system: both staves, the clefs and key
+	 * signature, the notes in the given columns, and the
+	 * lyrics under them.
+	 * @param g Where to draw.
+	 * @param score The Score being drawn.
+	 * @param times The start of each column of notes.
+	 * @param x The position of each column of notes.
+	 * @param barX The position of the bar line before each column which starts a measure.
+	 * @param from The first column in this system.
+	 * @param to The column after the last one in this system.
+	 * @param first True if this is the first system, which shows the time signature.
+	 * @param top The top of the system.
+	 * @param right The end of the staves.
+	 */
+	private void drawSystem(Graphics2D g, Score score, int[] times, double[] x, double[] barX, int from, int to,
+			boolean first, int top, double right) {
+		int rows = score.verses.size();
+		double trebleY = top + 4*space + 4*space; // Bottom line of the treble staff
+		double bassY = trebleY + lyricsHeight(rows) + 4*space; // Bottom line of the bass staff
+		double start = margin + 2*space;
+		int end = (to < times.length) ? times[to] : Integer.MAX_VALUE;
+
+		// Staves, with the brace line and the start of the system
+		g.setStroke(thin);
+		for(int i=0; i<5; i++) {
+			g.draw(new Line2D.Double(start, trebleY - i*space, right, trebleY - i*space));
+			g.draw(new Line2D.Double(start, bassY - i*space, right, bassY - i*space));
+		}
+		g.draw(new Line2D.Double(start, trebleY - 4*space, start, bassY));
+		g.setStroke(thick);
+		g.draw(new Line2D.Double(start - space, trebleY - 4*space - 2, start - space, bassY + 2));
+
+		// Clefs, key and time signatures
+		drawGlyph(g, "&", "G", start + space*0.6, trebleY - space);
+		drawGlyph(g, "?", "F", start + space*0.6, bassY - 3*space);
+		double keyX = start + 4*space;
+		drawKey(g, score.key, keyX, trebleY, trebleBottom);
+		drawKey(g, score.key, keyX, bassY, bassBottom);
+		if(first) {
+			double timeX = keyX + space*(score.key.numAccidentals() + 0.5);
+			drawTime(g, score.time, timeX, trebleY);
+			drawTime(g, score.time, timeX, bassY);
+		}
+
+		// Bar lines, the one which ends the system included
+		for(int i=from+1; i<to; i++)
+			if(score.isBar(times[i]))
+				drawBar(g, barX[i], trebleY, bassY, times[i] == score.verseEnd, false);
+		if(to == times.length)
+			drawBar(g, right, trebleY, bassY, false, true);
+		else if(score.isBar(times[to]))
+			drawBar(g, right, trebleY, bassY, times[to] == score.verseEnd, false);
+
+		// Notes
+		for(int v=0; v<score.voices.size(); v++) {
+			ArrayList<Event> voice = score.voices.get(v);
+			boolean up = (v % 2 == 0); // Soprano and tenor are voice one, alto and bass voice two
+			double bottom = (v < 2) ? trebleY : bassY;
+			int bottomPitch = (v < 2) ? trebleBottom : bassBottom;
+			for(int k=0; k<voice.size(); k++) {
+				Event e = voice.get(k);
+				if(e.start < times[from] || e.start >= end)
+					continue;
+				double ex = x[Arrays.binarySearch(times, e.start)];
+				drawNote(g, e, ex, bottom, bottomPitch, up);
+				drawCurves(g, voice, k, times, x, end, right, bottom, bottomPitch, up);
+			}
+		}
+
+		// Lyrics, centred under their notes
+		g.setFont(lyricFont);
+		double rowY = trebleY + 5*space + lyricHeight - 4;
+		for(int r=0; r<rows; r++) {
+			ArrayList<Syllable> row = score.verses.get(r);
+			boolean labelled = !first;
+			for(int k=0; k<row.size(); k++) {
+				Syllable s = row.get(k);
+				int i = Arrays.binarySearch(times, s.start);
+				if(i < from || s.start >= end)
+					continue;
+				double sx = x[i] - s.width/2;
+				g.drawString(s.text, (float)sx, (float)rowY);
+				if(!labelled) {
+					g.setFont(plainFont);
+					String stanza = score.stanzas.get(r);
+					g.drawString(stanza, (float)(sx - width(plainFont, stanza) - space*0.6), (float)rowY);
+					g.setFont(lyricFont);
+					labelled = true;
+				}
+				if(s.hyphen && k+1 < row.size()) {
+					Syllable next = row.get(k+1);
+					int j = Arrays.binarySearch(times, next.start);
+					double hyphenEnd = (j >= 0 && next.start < end) ? x[j] - next.width/2 : right;
+					double mid = (sx + s.width + hyphenEnd)/2;
+					g.draw(new Line2D.Double(mid - space*0.4, rowY - 4, mid + space*0.4, rowY - 4));
+				}
+			}
+			rowY += lyricHeight;
+		}
+	}
+
+	/**
+	 * Draw a note or rest.
+	 * @param g Where to draw.
+	 * @param e The note or rest.
+	 * @param x The centre of the notehead.
+	 * @param bottom The bottom line of the staff.
+	 * @param bottomPitch The pitch of the bottom line of the staff.
+	 * @param up True if stems point up, i.e. for voice one.
+	 */
+	private void drawNote(Graphics2D g, Event e, double x, double bottom, int bottomPitch, boolean up) {
+		Note note = e.note;
+		int denom = note.getDurationDenom();
+		if(note.isRest()) {
+			drawRest(g, denom, x, bottom - 2*space + ((up) ? -space : space));
+			return;
+		}
+
+		int pitch = note.getPitch();
+		double y = pitchY(pitch, bottom, bottomPitch);
+		double rx = (denom == 1) ? space*0.8 : space*0.65;
+
+		// Ledger lines
+		g.setStroke(thin);
+		for(int p=bottomPitch-2; p >= pitch; p-=2)
+			g.draw(new Line2D.Double(x - rx - 3, pitchY(p, bottom, bottomPitch), x + rx + 3, pitchY(p, bottom, bottomPitch)));
+		for(int p=bottomPitch+10; p <= pitch; p+=2)
+			g.draw(new Line2D.Double(x - rx - 3, pitchY(p, bottom, bottomPitch), x + rx + 3, pitchY(p, bottom, bottomPitch)));
+
+		if(e.shown != null)
+			drawAccidental(g, e.shown, x - rx - space*0.3, y);
+
+		// Notehead
+		Shape head = new Ellipse2D.Double(x - rx, y - space*0.5, 2*rx, space);
+		if(denom != 1)
+			head = AffineTransform.getRotateInstance(-0.35, x, y).createTransformedShape(head);
+		if(denom <= 2) {
+			g.setStroke(medium);
+			g.draw(head);
+		}
+		else g.fill(head);
+
+		// Stem and flags
+		if(denom > 1) {
+			double sx = (up) ? x + rx - 0.7 : x - rx + 0.7;
+			double tip = (up) ? y - 3.5*space : y + 3.5*space;
+			g.setStroke(medium);
+			g.draw(new Line2D.Double(sx, y, sx, tip));
+
+			int dir = (up) ? 1 : -1;
+			g.setStroke(thick);
+			for(int f=0; f<flags(denom); f++) {
+				double fy = tip + dir*f*space*0.8;
+				g.draw(new QuadCurve2D.Double(sx, fy, sx + space*1.3, fy + dir*space*1.2, sx + space*0.9, fy + dir*space*2.4));
+			}
+		}
+
+		// A dot sits in a space, so move it up off a line
+		if(note.isDotted()) {
+			double dy = ((pitch - bottomPitch) % 2 == 0) ? -space*0.5 : 0;
+			g.fill(new Ellipse2D.Double(x + rx + space*0.35, y + dy - 1.6, 3.2, 3.2));
+		}
+	}
+
+	/**
+	 * Draw a rest.
+	 * @param g Where to draw.
+	 * @param denom The duration denominator of the rest.
+	 * @param x The centre of the rest.
+	 * @param y The middle of the rest.
+	 */
+	private void drawRest(Graphics2D g, int denom, double x, double y) {
+		if(denom <= 2) { // Whole rests hang from a line, half rests sit on one
+			double line = y - space*0.5;
+			double ry = (denom == 1) ? line : line - space*0.5;
+			g.fill(new Rectangle2D.Double(x - space*0.6, ry, space*1.2, space*0.5));
+			g.setStroke(thin);
+			g.draw(new Line2D.Double(x - space, line, x + space, line));
+		}
+		else if(denom == 4) {
+			GeneralPath zigzag = new GeneralPath();
+			zigzag.moveTo(x - space*0.3, y - space*1.5);
+			zigzag.lineTo(x + space*0.4, y - space*0.6);
+			zigzag.lineTo(x - space*0.3, y + space*0.1);
+			zigzag.lineTo(x + space*0.4, y + space*0.8);
+			zigzag.quadTo(x - space*0.6, y + space*0.6, x, y + space*1.5);
+			g.setStroke(thick);
+			g.draw(zigzag);
+		}
+		else {
+			g.setStroke(medium);
+			int flags = flags(denom);
+			g.draw(new Line2D.Double(x + space*0.5, y - space, x - space*0.1, y + space*(flags - 0.2)));
+			for(int f=0; f<flags; f++) {
+				double fy = y - space*0.8 + f*space;
+				g.fill(new Ellipse2D.Double(x - space*0.55, fy - space*0.25, space*0.5, space*0.5));
+				g.draw(new QuadCurve2D.Double(x - space*0.4, fy + space*0.1, x, fy + space*0.3, x + space*0.5 - f*space*0.6/flags, fy - space*0.2));
+			}
+		}
+	}
+
+	/**
+	 * Draw the tie or slur which starts at a note, if there
+	 * is one. A curve whose end is on a later system runs
+	 * to the end of this one.
+	 * @param g Where to draw.
+	 * @param voice The notes of the voice.
+	 * @param k The index of the note in the voice.
+	 * @param times The start of each column of notes.
+	 * @param x The position of each column of notes.
+	 * @param end The start of the first note after this system.
+	 * @param right The end of the staves.
+	 * @param bottom The bottom line of the staff.
+	 * @param bottomPitch The pitch of the bottom line of the staff.
+	 * @param up True for voice one, whose curves go above the notes.
+	 */
+	private void drawCurves(Graphics2D g, ArrayList<Event> voice, int k, int[] times, double[] x,
+			int end, double right, double bottom, int bottomPitch, boolean up) {
+		Note note = voice.get(k).note;
+		if(note.isRest() || k+1 >= voice.size())
+			return;
+
+		int to = -1;
+		if(note.startsTie())
+			to = k+1;
+		else if(note.slurStatus() == Slur.BEGIN) {
+			for(int j=k+1; j<voice.size() && to < 0; j++)
+				if(voice.get(j).note.slurStatus() == Slur.END)
+					to = j;
+		}
+		if(to < 0)
+			return;
+
+		Event a = voice.get(k);
+		Event b = voice.get(to);
+		int dir = (up) ? -1 : 1;
+		double x1 = x[Arrays.binarySearch(times, a.start)] + space*0.5;
+		double y1 = pitchY(note.getPitch(), bottom, bottomPitch) + dir*space*0.7;
+		double x2;
+		double y2;
+		if(b.start < end) {
+			x2 = x[Arrays.binarySearch(times, b.start)] - space*0.5;
+			y2 = pitchY(b.note.getPitch(), bottom, bottomPitch) + dir*space*0.7;
+		}
+		else {
+			x2 = right;
+			y2 = y1;
+		}
+		double lift = Math.min(space*1.5, space*0.4 + (x2 - x1)*0.08);
+		g.setStroke(medium);
+		g.draw(new QuadCurve2D.Double(x1, y1, (x1 + x2)/2, (y1 + y2)/2 + dir*lift, x2, y2));
+	}
+
+	/**
+	 * Draw a bar line on both staves.
+	 * @param g Where to draw.
+	 * @param x Where to draw the bar line.
+	 * @param trebleY The bottom line of the treble staff.
+	 * @param bassY The bottom line of the bass staff.
+	 * @param verseEnd True for the double bar between the verse and chorus.
+	 * @param last True for the end bar.
+	 */
+	private void drawBar(Graphics2D g, double x, double trebleY, double bassY, boolean verseEnd, boolean last) {
+		double[] staves = {trebleY, bassY};
+		for(double y : staves) {
+			g.setStroke(thin);
+			if(last) {
+				g.draw(new Line2D.Double(x - space*0.9, y, x - space*0.9, y - 4*space));
+				g.fill(new Rectangle2D.Double(x - space*0.45, y - 4*space, space*0.45, 4*space));
+			}
+			else {
+				g.draw(new Line2D.Double(x, y, x, y - 4*space));
+				if(verseEnd)
+					g.draw(new Line2D.Double(x - space*0.4, y, x - space*0.4, y - 4*space));
+			}
+		}
+	}
+
+	/**
+	 * Draw a key signature.
+	 * @param g Where to draw.
+	 * @param key The key signature.
+	 * @param x Where the first accidental goes.
+	 * @param bottom The bottom line of the staff.
+	 * @param bottomPitch The pitch of the bottom line of the staff.
+	 */
+	private void drawKey(Graphics2D g, KeySignature key, double x, double bottom, int bottomPitch) {
+		boolean sharp = key.isSharpKey();
+		int[] pitches = (sharp) ? sharpPitches : flatPitches;
+		int shift = (bottomPitch == bassBottom) ? 14 : 0; // The bass clef uses the same shape, two octaves down
+		for(int i=0; i<key.numAccidentals(); i++) {
+			double y = pitchY(pitches[i] - shift, bottom, bottomPitch);
+			drawAccidental(g, (sharp) ? Accidental.SHARP : Accidental.FLAT, x + (i+1)*space, y);
+		}
+	}
+
+	/**
+	 * Draw a time signature.
+	 * @param g Where to draw.
+	 * @param time The time signature.
+	 * @param x The left of the time signature.
+	 * @param bottom The bottom line of the staff.
+	 */
+	private void drawTime(Graphics2D g, TimeSignature time, double x, double bottom) {
+		String beats = Integer.toString(time.getNumBeats());
+		String length = Integer.toString(time.getBeatLength());
+		double w = Math.max(width(timeFont, beats), width(timeFont, length));
+		g.setFont(timeFont);
+		g.drawString(beats, (float)(x + (w - width(timeFont, beats))/2), (float)(bottom - 2*space - 1));
+		g.drawString(length, (float)(x + (w - width(timeFont, length))/2), (float)(bottom - 1));
+	}
+
+	/**
+	 * Draw an accidental, with its right edge at x.
+	 * @param g Where to draw.
+	 * @param accidental The accidental.
+	 * @param x The right edge of the accidental.
+	 * @param y The line or space the accidental belongs to.
+	 */
+	private void drawAccidental(Graphics2D g, Accidental accidental, double x, double y) {
+		String glyph;
+		String fallback;
+		switch(accidental) {
+			case FLAT: glyph = "b"; fallback = "\u266d"; break;
+			case SHARP: glyph = "#"; fallback = "\u266f"; break;
+			default: glyph = "n"; fallback = "\u266e"; break;
+		}
+		Font font = (music != null) ? music : plainFont;
+		String s = (music != null) ? glyph : fallback;
+		drawGlyph(g, glyph, fallback, x - width(font, s), y);
+	}
+
+	/**
+	 * Draw a glyph from the music font, or the fallback
+	 * in a text font if the music font is missing.
+	 * @param g Where to draw.
+	 * @param glyph The glyph in the music font.
+	 * @param fallback What to draw without the music font.
+	 * @param x The left of the glyph.
+	 * @param y The baseline of the glyph.
+	 */
+	private void drawGlyph(Graphics2D g, String glyph, String fallback, double x, double y) {
+		if(music != null) {
+			g.setFont(music);
+			g.drawString(glyph, (float)x, (float)y);
+		}
+		else {
+			g.setFont(timeFont);
+			g.drawString(fallback, (float)x, (float)(y + space*0.5));
+		}
+	}
+
+	/**
+	 * Draw text centred on the page.
+	 * @param g Where to draw.
+	 * @param font The font of the text.
+	 * @param s The text.
+	 * @param y The baseline of the text.
+	 */
+	private void drawCentered(Graphics2D g, Font font, String s, int y) {
+		g.setFont(font);
+		g.drawString(s, (float)((pageWidth - width(font, s))/2), y);
+	}
+
+	/**
+	 * Get the width of some text.
+	 * @param font The font of the text.
+	 * @param s The text.
+	 * @return The width of the text.
+	 */
+	private double width(Font font, String s) {
+		return font.getStringBounds(s, frc).getWidth();
+	}
+
+	/**
+	 * Get the height of a pitch on a staff.
+	 * @param pitch The pitch, as given by Note.getPitch.
+	 * @param bottom The bottom line of the staff.
+	 * @param bottomPitch The pitch of the bottom line of the staff.
+	 * @return The height of the pitch.
+	 */
+	private static double pitchY(int pitch, double bottom, int bottomPitch) {
+		return bottom - (pitch - bottomPitch)*space*0.5;
+	}
+
+	/**
+	 * Get the number of flags on a note.
+	 * @param denom The duration denominator of the note.
+	 * @return The number of flags.
+	 */
+	private static int flags(int denom) {
+		int flags = 0;
+		for(int d=denom; d > 4; d/=2)
+			flags++;
+		return flags;
+	}
+
+	/**
+	 * The pages being drawn on, which hands out space
+	 * from the top of the current page down.
+	 */
+	private class Pages {
+		/** The pages so far */
+		private final ArrayList<BufferedImage> images = new ArrayList<BufferedImage>();
+
+		/** Draws on the current page */
+		private Graphics2D g;
+
+		/** The top of the free space on the current page */
+		private int y;
+
+		/**
+		 * Constructor. Starts the first page.
+		 */
+		private Pages() {
+			newPage();
+		}
+
+		/**
+		 * Take space for something from the current page, or
+		 * from a new page if it does not fit. Anything taller
+		 * than a page is put at the top of one.
+		 * @param height The height of the space.
+		 * @return The top of the space.
+		 */
+		private int place(int height) {
+			if(y + height > pageHeight - margin && y > margin)
+				newPage();
+			int top = y;
+			y += height;
+			return top;
+		}
+
+		/**
+		 * Finish the last page with the tagline.
+		 * @return The pages.
+		 */
+		private ArrayList<BufferedImage> finish() {
+			drawCentered(g, taglineFont, LilyPondUtility.tagline, pageHeight - margin/2);
+			g.dispose();
+			return images;
+		}
+
+		/**
+		 * Start a new page.
+		 */
+		private void newPage() {
+			if(g != null)
+				g.dispose();
+
+			BufferedImage image = new BufferedImage(pageWidth, pageHeight, BufferedImage.TYPE_BYTE_GRAY);
+			g = image.createGraphics();
+			g.setColor(Color.WHITE);
+			g.fillRect(0, 0, pageWidth, pageHeight);
+			g.setColor(Color.BLACK);
+			g.setRenderingHint(RenderingHints.KEY_ANTIALIASING, RenderingHints.VALUE_ANTIALIAS_ON);
+			g.setRenderingHint(RenderingHints.KEY_TEXT_ANTIALIASING, RenderingHints.VALUE_TEXT_ANTIALIAS_ON);
+			g.setRenderingHint(RenderingHints.KEY_FRACTIONALMETRICS, RenderingHints.VALUE_FRACTIONALMETRICS_ON);
+			g.setRenderingHint(RenderingHints.KEY_STROKE_CONTROL, RenderingHints.VALUE_STROKE_PURE);
+			images.add(image);
+			y = margin;
+		}
+	}
+
+	/**
+	 * The music of a Tune laid end to end in time, in the
+	 * order of the LilyPond score: each line with its alleluia,
+	 * then the chorus. Times are in Note.SMALLESTNOTE.
+	 */
+	private static class Score {
+		/** The notes of each voice, in the order of Part */
+		private final ArrayList<ArrayList<Event>> voices = new ArrayList<ArrayList<Event>>();
+
+		/** The melody Units of each line, which the verses are sung to */
+		private final ArrayList<ArrayList<Slot>> lines = new ArrayList<ArrayList<Slot>>();
+
+		/** The melody Units of the alleluia after each line, empty where there is none */
+		private final ArrayList<ArrayList<Slot>> alleluias = new ArrayList<ArrayList<Slot>>();
+
+		/** The melody Units of the chorus, empty if it is not shown */
+		private final ArrayList<Slot> chorus = new ArrayList<Slot>();
+
+		/** The rows of lyrics, one for each verse shown */
+		private final ArrayList<ArrayList<Syllable>> verses = new ArrayList<ArrayList<Syllable>>();
+
+		/** The stanza number of each row of lyrics */
+		private final ArrayList<String> stanzas = new ArrayList<String>();
+
+		/** The key signature */
+		private final KeySignature key;
+
+		/** The time signature */
+		private final TimeSignature time;
+
+		/** The length of a measure */
+		private final int measure;
+
+		/** The length of the first measure, which is short if the Tune starts with a pickup */
+		private final int firstMeasure;
+
+		/** The length of the music */
+		private int length = 0;
+
+		/** When the chorus starts, after a double bar, -1 if there is no chorus */
+		private int verseEnd = -1;
+
+		/**
+		 * Constructor. Lays the voices of a Tune out in time.
+		 * @param tune The Tune.
+		 * @param addChorus Whether to add the chorus.
+		 */
+		private Score(Tune tune, boolean addChorus) {
+			key = tune.getKeySignature();
+			time = tune.getTimeSignature();
+			measure = time.smallestNotesPerMeasure();
+			int pickup = (int) (time.getNumBeats() - (tune.getStartingBeat()-1))*(Note.SMALLESTNOTE/time.getBeatLength());
+			firstMeasure = (pickup > 0 && pickup < measure) ? pickup : measure;
+
+			Music music = tune.getMusic();
+			Part melody = tune.getMelody();
+			for(Part part : Part.values()) {
+				ArrayList<Event> events = new ArrayList<Event>();
+				voices.add(events);
+				Voice v = (music != null) ? music.getVoiceFor(part) : null;
+				if(v == null)
+					continue;
+
+				boolean isMelody = (part == melody);
+				int t = 0;
+				int line = 1;
+				for(Line<Unit> l : v) {
+					ArrayList<Slot> slots = (isMelody) ? new ArrayList<Slot>() : null;
+					t = addLine(l, t, events, slots);
+					if(isMelody) lines.add(slots);
+
+					Refrain alleluia = tune.getAlleluiaForLine(line);
+					slots = (isMelody) ? new ArrayList<Slot>() : null;
+					if(alleluia != null)
+						t = addVoice(alleluia.getMusic().getVoiceFor(part), t, events, slots);
+					if(isMelody) alleluias.add(slots);
+					line++;
+				}
+
+				if(addChorus && tune.getChorus() != null) {
+					verseEnd = Math.max(verseEnd, t);
+					t = addVoice(tune.getChorus().getMusic().getVoiceFor(part), t, events, (isMelody) ? chorus : null);
+				}
+				length = Math.max(length, t);
+			}
+
+			for(ArrayList<Event> events : voices)
+				findAccidentals(events);
+		}
+
+		/**
+		 * Add the notes of every line of a Voice.
+		 * @param v The Voice, may be null.
+		 * @param t When the Voice starts.
+		 * @param events Where to add the notes.
+		 * @param slots Where to add the Units, null if they are not needed.
+		 * @return When the Voice ends.
+		 */
+		private static int addVoice(Voice v, int t, ArrayList<Event> events, ArrayList<Slot> slots) {
+			if(v != null)
+				for(Line<Unit> l : v)
+					t = addLine(l, t, events, slots);
+			return t;
+		}
+
+		/**
+		 * Add the notes of one line.
+		 * @param line The line.
+		 * @param t When the line starts.
+		 * @param events Where to add the notes.
+		 * @param slots Where to add the Units, null if they are not needed.
+		 * @return When the line ends.
+		 */
+		private static int addLine(Line<Unit> line, int t, ArrayList<Event> events, ArrayList<Slot> slots) {
+			for(Unit u : line) {
+				if(slots != null)
+					slots.add(new Slot(t, u.getWordRepeat()));
+				for(Note note : u) {
+					events.add(new Event(t, note));
+					t += note.getDuration();
+				}
+			}
+			return t;
+		}
+
+		/**
+		 * Work out which notes of a voice need an accidental,
+		 * i.e. those which differ from the key signature or
+		 * from an earlier note of the same measure.
+		 * @param events The notes of the voice.
+		 */
+		private void findAccidentals(ArrayList<Event> events) {
+			Accidental[] inKey = key.getAccidentals();
+			Accidental[] inMeasure = new Accidental[10*7];
+			int current = -1;
+			for(Event e : events) {
+				if(e.note.isRest())
+					continue;
+				int m = measureOf(e.start);
+				if(m != current) {
+					Arrays.fill(inMeasure, null);
+					current = m;
+				}
+				int pitch = e.note.getPitch();
+				Accidental expected = (inMeasure[pitch] != null) ? inMeasure[pitch] : inKey[pitch % 7];
+				if(e.note.getAccidental() != expected)
+					e.shown = e.note.getAccidental();
+				inMeasure[pitch] = e.note.getAccidental();
+			}
+		}
+
+		/**
+		 * Get the start of every column of notes, i.e. every
+		 * time at which a note starts in any voice.
+		 * @return The times, in order.
+		 */
+		private int[] times() {
+			TreeSet<Integer> starts = new TreeSet<Integer>();
+			for(ArrayList<Event> events : voices)
+				for(Event e : events)
+					starts.add(e.start);
+			int[] times = new int[starts.size()];
+			int i = 0;
+			for(int t : starts)
+				times[i++] = t;
+			return times;
+		}
+
+		/**
+		 * Get the measure a time falls in.
+		 * @param t The time.
+		 * @return The measure, counting from 0.
+		 */
+		private int measureOf(int t) {
+			return (t < firstMeasure) ? 0 : 1 + (t - firstMeasure)/measure;
+		}
+
+		/**
+		 * Test if a measure starts at a time.
+		 * @param t The time.
+		 * @return True if there is a bar line before the time.
+		 */
+		private boolean isBar(int t) {
+			return t == verseEnd || (t >= firstMeasure && (t - firstMeasure) % measure == 0);
+		}
+	}
+
+	/**
+	 * A note or rest of one voice, and when it starts.
+	 */
+	private static class Event {
+		/** When the note starts */
+		private final int start;
+
+		/** The note */
+		private final Note note;
+
+		/** The accidental to draw in front of the note, null if none */
+		private Accidental shown;
+
+		/**
+		 * Constructor.
+		 * @param start When the note starts.
+		 * @param note The note.
+		 */
+		private Event(int start, Note note) {
+			this.start = start;
+			this.note = note;
+		}
+	}
+
+	/**
+	 * A melody Unit, which one Word is sung to.
+	 */
+	private static class Slot {
+		/** When the Unit starts */
+		private final int start;
+
+		/** Whether the Word sung to the Unit is repeated */
+		private final boolean repeat;
+
+		/**
+		 * Constructor.
+		 * @param start When the Unit starts.
+		 * @param repeat Whether the Word sung to the Unit is repeated.
+		 */
+		private Slot(int start, boolean repeat) {
+			this.start = start;
+			this.repeat = repeat;
+		}
+	}
+
+	/**
+	 * A syllable of lyrics and when it is sung.
+	 */
+	private static class Syllable {
+		/** When the syllable is sung */
+		private final int start;
+
+		/** The text of the syllable, without any dash */
+		private final String text;
+
+		/** Whether the word carries on into the next syllable */
+		private final boolean hyphen;
+
+		/** The width of the text, set when it is laid out */
+		private double width;
+
+		/**
+		 * Constructor.
+		 * @param start When the syllable is sung.
+		 * @param text The text of the syllable.
+		 * @param hyphen Whether the word carries on into the next syllable.
+		 */
+		private Syllable(int start, String text, boolean hyphen) {
+			this.start = start;
+			this.text = text;
+			this.hyphen = hyphen;
+		}
+	}
+
+}
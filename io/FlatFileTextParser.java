@@ -69,8 +69,9 @@ final class FlatFileTextParser implements TextParser {
     	return instance;
     }
     
+    /* The Scanner is kept in a field, so only one File may be parsed at a time */
     @Override
-    public Text parse(File file) throws IOException {
+    public synchronized Text parse(File file) throws IOException {
     	sc = new Scanner(new BufferedReader(new FileReader(file)));
 		if (this.sc == null) throw new BadInputException(lineNumber, "Scanner for input file not initialized");
 
@@ -134,7 +135,7 @@ final class FlatFileTextParser implements TextParser {
 				StringTokenizer lineTokenizer = new StringTokenizer(line);
 				Line<Word> l = new Line<Word>();
 				while (lineTokenizer.hasMoreTokens()) { // iterate through the syllables for this line
-					l.addSyllable(new Word(lineTokenizer.nextToken()));
+					l.addSyllable(Word.valueOf(lineTokenizer.nextToken()));
 				}
 				words.addLine(l);
 			} else throw new BadInputException(lineNumber, "Number of syllables does not match meter");
@@ -75,8 +75,9 @@ final class FlatFileTuneParser implements TuneParser {
 		return instance;
 	}
 
+	/* The Scanner is kept in a field, so only one File may be parsed at a time */
 	@Override
-	public Tune parse(File file) throws FileNotFoundException, BadInputException {
+	public synchronized Tune parse(File file) throws FileNotFoundException, BadInputException {
 		sc = new Scanner(new BufferedReader(new FileReader(file)));
 		if (this.sc == null) throw new BadInputException(lineNumber, "Scanner for input file not initialized");
 
@@ -259,7 +260,7 @@ final class FlatFileTuneParser implements TuneParser {
 		
 		Note n;
 		try {
-			n = new Note(pitch, durationDenom, dotted, startsTie, slurStatus, rest);
+			n = Note.valueOf(pitch, durationDenom, dotted, startsTie, slurStatus, rest);
 		} catch (UnsupportedNoteException usne) {
 			throw new BadInputException(lineNumber, "UnsupportedNoteException: " + 
 					usne.getMessage());
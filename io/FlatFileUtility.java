@@ -96,7 +96,7 @@ final class FlatFileUtility extends Utility {
 				throw new BadInputException(lineNumber, "Invalid character in meter description");
 			}
 		}
-		return new Meter(list);
+		return new Meter(list).intern();
 	}
    	
    	/* ---------- Helper methods ---------- */
@@ -26,11 +26,31 @@ package io;
 
 import java.io.File;
 import java.io.IOException;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.lang.management.ManagementFactory;
+import java.nio.charset.Charset;
+import java.nio.file.Files;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.IdentityHashMap;
+import java.util.Random;
+
+import javax.xml.parsers.DocumentBuilder;
+import javax.xml.parsers.DocumentBuilderFactory;
+import javax.xml.validation.Schema;
 
-import model.InvalidHymnException;
 import model.Hymn;
+import model.HymnComponent;
+import model.Line;
+import model.Lyric;
+import model.Meter;
+import model.Music;
 import model.Text;
 import model.Tune;
+import model.Unit;
+import model.Voice;
 
 final class IOTester {
 
@@ -77,6 +97,30 @@ final class IOTester {
 		rebuildLilyPondAndPNGs();
 		//testRenderCaching();
 		//printMeters();
+		//benchmarkLoading(50000);
+		//benchmarkSnapshot(100000);
+		//testDamagedSnapshot(300);
+		//benchmarkParsing(20);
+		//benchmarkStreaming(20);
+		//benchmarkRelevant(100000, 50000, 100);
+		//benchmarkRenderPool(200, 4);
+		//benchmarkBatchRendering(16);
+		//benchmarkGenerating(200);
+		//stressGenerating(8, 5000);
+		//benchmarkFragments(300);
+		//benchmarkEngraving(20);
+		//benchmarkPrefetch(10);
+		//testRenderCache();
+		//testRenderTimeout();
+		//benchmarkRenderCache(200000, 100000);
+		//benchmarkMetrics(10000000);
+		//benchmarkLazyLoading(50000);
+		//testMissingLazyFiles(200);
+		//benchmarkNoteStorage(20);
+		//benchmarkInterning(50);
+		//benchmarkMeters(200);
+		//benchmarkDigests(1000);
+		//benchmarkBulkAdd(50000);
 	}
 	
 	private static void testLilyPondTunes() {
@@ -107,18 +151,12 @@ final class IOTester {
 	}
 	
 	private static void testRenderCaching() {
-		for(Text text : db.validTextIterator()){
-			for(Tune tune : db.validTuneIterator()){
-				try {
-					Hymn hymn = new Hymn(text, tune);
-					hymn.render();
-				}
-				catch(InvalidHymnException ihe){
-					// Do nothing
-				}
-				catch(IOException ioe){ // Failed to render the image
-					System.err.println("IOTester.databaseTest() - " + ioe.getMessage());
-				}
+		for(Hymn hymn : db.validHymnIterator()){
+			try {
+				hymn.render();
+			}
+			catch(IOException ioe){ // Failed to render the image
+				System.err.println("IOTester.databaseTest() - " + ioe.getMessage());
 			}
 		}
 	}
@@ -157,34 +195,1390 @@ final class IOTester {
 	private static void rebuildLilyPondAndPNGs(){		
 		LilyPondWriter w = LilyPondWriter.getInstance();
 
-		for(Text text : db.validTextIterator()){
-			for(Tune tune : db.validTuneIterator()){
-				Hymn hymn;
+		for(Hymn hymn : db.validHymnIterator()){
+			try {
+				io.RenderEngine.render(hymn);
 				try {
-					hymn = new Hymn(text, tune);
-					io.RenderEngine.render(hymn);
-					try {
-						w.write(hymn, new File("data/lilypond/" + hymn.getFilename() + ".ly"));
-					} catch(IOException e){
-						// Do nothing
+					w.write(hymn, new File("data/lilypond/" + hymn.getFilename() + ".ly"));
+				} catch(IOException e){
+					// Do nothing
+				}
+			}
+			catch(IOException ioe){ // Failed to render the image
+				try {
+					w.write(hymn, new File("data/bad/" + hymn.getFilename() + ".ly"));
+				} catch(IOException e) {
+					System.err.println("IOTester.rebuildLilyPondAndPNGs() - " + e.getMessage());
+				}
+				System.err.println("IOTester.rebuildLilyPondAndPNGs() - " + ioe.getMessage());
+			}
+		}
+	}
+	
+	/**
+	 * Time loading a synthetic library of the given size, built by
+	 * copying the files in the Database folder with numbered titles.
+	 * The parallel Database loader is compared to parsing every file
+	 * in turn on a single thread.
+	 * @param size The number of files in the synthetic library.
+	 */
+	private static void benchmarkLoading(int size) {
+		File library = null;
+		try {
+			library = createLibrary(size);
+			
+			long start = System.nanoTime();
+			for(File file : library.listFiles()) {
+				try {
+					ParserEngine.parse(file);
+				} catch(UnsupportedFileException e) {
+					// Do nothing
+				}
+			}
+			long serial = System.nanoTime() - start;
+			
+			start = System.nanoTime();
+			new Database(library);
+			long parallel = System.nanoTime() - start;
+			
+			System.out.println("Loaded " + size + " files: serial " + serial/1000000 + " ms, parallel " + parallel/1000000 + " ms");
+		} catch(IOException ioe) {
+			System.err.println("IOTester.benchmarkLoading() - " + ioe.getMessage());
+		} finally {
+			deleteLibrary(library);
+		}
+	}
+	
+	/**
+	 * Time loading a synthetic library of the given size when
+	 * there is no snapshot, which parses every file and writes
+	 * the snapshot, against loading it again from the snapshot.
+	 * @param size The number of files in the synthetic library.
+	 */
+	private static void benchmarkSnapshot(int size) {
+		File library = null;
+		File snapshot = null;
+		try {
+			library = createLibrary(size);
+			snapshot = File.createTempFile("jhymnal", ".snapshot");
+			snapshot.delete();
+			
+			long start = System.nanoTime();
+			new Database(library, snapshot);
+			long cold = System.nanoTime() - start;
+			
+			start = System.nanoTime();
+			new Database(library, snapshot);
+			long warm = System.nanoTime() - start;
+			
+			System.out.println("Loaded " + size + " files: without snapshot " + cold/1000000 + " ms, from snapshot " + warm/1000000 +
+					" ms (" + snapshot.length()/1024 + " KB)");
+		} catch(IOException ioe) {
+			System.err.println("IOTester.benchmarkSnapshot() - " + ioe.getMessage());
+		} finally {
+			deleteLibrary(library);
+			if(snapshot != null)
+				snapshot.delete();
+		}
+	}
+	
+	/**
+	 * Load the Database folder from damaged copies of its snapshot,
+	 * each cut short or with a few bits flipped at random, and check
+	 * that every Text and Tune comes out the same as when its file
+	 * is parsed. Every other copy is loaded lazily.
+	 * @param runs The number of damaged copies to load from.
+	 */
+	private static void testDamagedSnapshot(int runs) {
+		File folder = new File(Database.dbFolder);
+		File snapshot = null;
+		PrintStream err = System.err;
+		int failed = 0;
+		int wrong = 0;
+		try {
+			snapshot = File.createTempFile("jhymnal", ".snapshot");
+			snapshot.delete();
+			String expected = describe(new Database(folder));
+			new Database(folder, snapshot); // Write the snapshot
+			byte[] good = Files.readAllBytes(snapshot.toPath());
+			
+			Random random = new Random(42);
+			System.setErr(new PrintStream(new OutputStream() { // Each damaged entry is reported
+				@Override
+				public void write(int b) {}
+			}));
+			for(int i=0; i<runs; i++) {
+				byte[] damaged;
+				if(random.nextBoolean())
+					damaged = Arrays.copyOf(good, random.nextInt(good.length));
+				else {
+					damaged = good.clone();
+					for(int flips = 1 + random.nextInt(8); flips > 0; flips--) {
+						int bit = random.nextInt(damaged.length*8);
+						damaged[bit/8] ^= 1 << (bit % 8);
 					}
 				}
-				catch(InvalidHymnException ihe){
+				Files.write(snapshot.toPath(), damaged);
+				
+				try {
+					if(!expected.equals(describe(new Database(folder, snapshot, i % 2 == 1))))
+						wrong++;
+				} catch(Throwable t) { // e.g. running out of memory for a damaged length
+					failed++;
+				}
+			}
+			
+			System.setErr(err);
+			System.out.println(runs + " damaged snapshots: " + failed + " failed to load, " + wrong + " loaded the wrong Texts or Tunes");
+		} catch(IOException ioe) {
+			System.err.println("IOTester.testDamagedSnapshot() - " + ioe.getMessage());
+		} finally {
+			System.setErr(err);
+			if(snapshot != null)
+				snapshot.delete();
+		}
+	}
+	
+	/**
+	 * Describe every Text and Tune in a Database, with the LilyPond
+	 * of the valid ones, so two Databases can be compared.
+	 * @param library The Database to describe.
+	 * @return The description.
+	 */
+	private static String describe(Database library) {
+		LilyPondUtility util = LilyPondUtility.getInstance();
+		StringBuilder sb = new StringBuilder();
+		for(Text text : library.allTextIterator()) {
+			sb.append(text.getName()).append(' ').append(text.isValid()).append(' ').append(text.getMeter()).append('\n');
+			if(text.isValid())
+				sb.append(util.createString(text));
+		}
+		for(Tune tune : library.allTuneIterator()) {
+			sb.append(tune.getName()).append(' ').append(tune.isValid()).append(' ').append(tune.getMeter()).append('\n');
+			if(tune.isValid())
+				sb.append(util.createString(tune));
+		}
+		return sb.toString();
+	}
+	
+	/**
+	 * Time loading a synthetic library of the given size from its
+	 * snapshot, fully and then only the metadata of each Text and
+	 * Tune, and measure the heap each Database holds on to. Then
+	 * time getting the Music of every Tune of the lazy Database.
+	 * @param size The number of files in the synthetic library.
+	 */
+	private static void benchmarkLazyLoading(int size) {
+		File library = null;
+		File snapshot = null;
+		try {
+			library = createLibrary(size);
+			snapshot = File.createTempFile("jhymnal", ".snapshot");
+			snapshot.delete();
+			new Database(library, snapshot); // Write the snapshot
+			
+			long before = usedHeap();
+			long start = System.nanoTime();
+			Database lazy = new Database(library, snapshot, true);
+			long lazyTime = System.nanoTime() - start;
+			long lazyHeap = usedHeap() - before;
+			
+			before = usedHeap();
+			start = System.nanoTime();
+			Database full = new Database(library, snapshot, false);
+			long fullTime = System.nanoTime() - start;
+			long fullHeap = usedHeap() - before;
+			full.hashCode(); // Keep the Database until the heap is measured
+			full = null;
+			
+			int tunes = 0;
+			start = System.nanoTime();
+			for(Tune tune : lazy.allTuneIterator()) {
+				if(tune.getMusic() != null)
+					tunes++;
+			}
+			long music = System.nanoTime() - start;
+			
+			System.out.println("Loaded " + size + " files: full " + fullTime/1000000 + " ms, " + fullHeap/1024 + " KB; metadata only " +
+					lazyTime/1000000 + " ms, " + lazyHeap/1024 + " KB");
+			System.out.println("Loaded the Music of " + tunes + " Tunes on demand in " + music/1000000 + " ms");
+		} catch(IOException ioe) {
+			System.err.println("IOTester.benchmarkLazyLoading() - " + ioe.getMessage());
+		} finally {
+			deleteLibrary(library);
+			if(snapshot != null)
+				snapshot.delete();
+		}
+	}
+	
+	/**
+	 * Load a synthetic library of the given size lazily, delete
+	 * every third file and change the one after it, then load the
+	 * content of every Text and Tune. The valid ones whose file was
+	 * deleted or changed must be left
+	 * invalid and empty, out of the Database's valid Texts and
+	 * Tunes, and no Hymn may be made from them; the rest must
+	 * load as before.
+	 * @param size The number of files in the synthetic library.
+	 */
+	private static void testMissingLazyFiles(int size) {
+		File library = null;
+		File snapshot = null;
+		PrintStream err = System.err;
+		try {
+			library = createLibrary(size);
+			snapshot = File.createTempFile("jhymnal", ".snapshot");
+			snapshot.delete();
+			new Database(library, snapshot); // Write the snapshot
+			Database lazy = new Database(library, snapshot, true);
+			IdentityHashMap<HymnComponent, Boolean> valid = new IdentityHashMap<HymnComponent, Boolean>();
+			for(Text text : lazy.allTextIterator())
+				valid.put(text, text.isValid());
+			for(Tune tune : lazy.allTuneIterator())
+				valid.put(tune, tune.isValid());
+			
+			int deleted = 0;
+			int changed = 0;
+			File[] files = library.listFiles();
+			for(int i=0; i<files.length; i+=3) {
+				if(files[i].delete())
+					deleted++;
+				if(i+1 < files.length) {
+					Files.write(files[i+1].toPath(), "\n".getBytes("UTF-8"), StandardOpenOption.APPEND);
+					changed++;
+				}
+			}
+			
+			System.setErr(new PrintStream(new OutputStream() { // Each failed load is reported
+				@Override
+				public void write(int b) {}
+			}));
+			int invalid = 0;
+			int wrong = 0;
+			for(Text text : lazy.allTextIterator()) {
+				boolean loaded = text.iterator().hasNext();
+				if(!valid.get(text))
+					continue;
+				if(!text.isValid()) {
+					invalid++;
+					if(loaded || text.numberOfVerses() != 0 || text.isLazy())
+						wrong++;
+				}
+				else if(!loaded)
+					wrong++;
+			}
+			for(Tune tune : lazy.allTuneIterator()) {
+				boolean loaded = tune.getMusic() != null;
+				if(!valid.get(tune))
+					continue;
+				if(!tune.isValid()) {
+					invalid++;
+					if(loaded || tune.getChorus() != null || tune.isLazy())
+						wrong++;
+				}
+				else if(!loaded)
+					wrong++;
+			}
+			for(Text text : lazy.validTextIterator())
+				if(!text.isValid())
+					wrong++;
+			for(Tune tune : lazy.validTuneIterator())
+				if(!tune.isValid())
+					wrong++;
+			int hymns = 0;
+			for(Hymn hymn : lazy.validHymnIterator()) {
+				hymns++;
+				if(!hymn.getText().isValid() || !hymn.getTune().isValid())
+					wrong++;
+			}
+			System.setErr(err);
+			
+			System.out.println("Deleted " + deleted + " and changed " + changed + " of " + files.length + " files: " + invalid + " Texts and Tunes left invalid, " +
+					wrong + " wrong, " + hymns + " Hymns made from the rest");
+		} catch(IOException ioe) {
+			System.err.println("IOTester.testMissingLazyFiles() - " + ioe.getMessage());
+		} finally {
+			System.setErr(err);
+			deleteLibrary(library);
+			if(snapshot != null)
+				snapshot.delete();
+		}
+	}
+	
+	/**
+	 * Measure the heap taken by each Note of the Tunes in the Database
+	 * folder, including the Units, Lines and Voices holding them. The
+	 * folder is parsed the given number of times, so the Tunes take
+	 * enough of the heap to measure.
+	 * @param copies The number of times to parse the Database folder.
+	 */
+	private static void benchmarkNoteStorage(int copies) {
+		ArrayList<Tune> tunes = new ArrayList<Tune>();
+		long before = usedHeap();
+		for(int i=0; i<copies; i++) {
+			for(File file : new File(Database.dbFolder).listFiles()) {
+				try {
+					HymnComponent hc = ParserEngine.parse(file);
+					if(hc instanceof Tune)
+						tunes.add((Tune) hc);
+				} catch(UnsupportedFileException e) {
+					// Do nothing
+				}
+			}
+		}
+		long heap = usedHeap() - before;
+		
+		long notes = 0;
+		for(Tune tune : tunes) {
+			notes += countNotes(tune.getMusic());
+			if(tune.hasChorus())
+				notes += countNotes(tune.getChorus().getMusic());
+			for(int line=1; line<=tune.getMeter().numberOfLines(); line++)
+				if(tune.getAlleluiaForLine(line) != null)
+					notes += countNotes(tune.getAlleluiaForLine(line).getMusic());
+		}
+		
+		System.out.println("Parsed " + tunes.size() + " Tunes with " + notes + " Notes: " + heap/1024 + " KB, " + heap/notes + " bytes/Note");
+	}
+	
+	/**
+	 * Measure the time to parse every file in the Database folder and
+	 * the heap the parsed Texts and Tunes hold on to. The folder is
+	 * parsed the given number of times and every copy is kept, as a
+	 * library of that many times the size would be.
+	 * @param copies The number of times to parse the Database folder.
+	 */
+	private static void benchmarkInterning(int copies) {
+		File[] files = new File(Database.dbFolder).listFiles();
+		ArrayList<HymnComponent> parsed = new ArrayList<HymnComponent>();
+		for(File file : files) { // Warm up
+			try {
+				ParserEngine.parse(file);
+			} catch(UnsupportedFileException e) {
+				// Do nothing
+			}
+		}
+		
+		long before = usedHeap();
+		long start = System.nanoTime();
+		for(int i=0; i<copies; i++) {
+			for(File file : files) {
+				try {
+					parsed.add(ParserEngine.parse(file));
+				} catch(UnsupportedFileException e) {
 					// Do nothing
 				}
-				catch(IOException ioe){ // Failed to render the image
+			}
+		}
+		long elapsed = System.nanoTime() - start;
+		long heap = usedHeap() - before;
+		
+		System.out.println("Parsed " + parsed.size() + " files: " + elapsed/parsed.size()/1000 + " us/file, " + heap/parsed.size() + " bytes/file held");
+	}
+	
+	/**
+	 * Time Hymn.canCombine for every valid Text and Tune in the
+	 * Database, and count how many Meter instances they share.
+	 * @param rounds The number of times to test every pair.
+	 */
+	private static void benchmarkMeters(int rounds) {
+		IdentityHashMap<Meter, Meter> instances = new IdentityHashMap<Meter, Meter>();
+		int components = 0;
+		for(Text text : db.validTextIterator()) {
+			instances.put(text.getMeter(), text.getMeter());
+			components++;
+		}
+		for(Tune tune : db.validTuneIterator()) {
+			instances.put(tune.getMeter(), tune.getMeter());
+			components++;
+		}
+		
+		long pairs = 0;
+		long combined = 0;
+		long start = 0;
+		for(int i=-1; i<rounds; i++) {
+			if(i == 0) // The first round warms up
+				start = System.nanoTime();
+			for(Tune tune : db.validTuneIterator()) {
+				for(Text text : db.validTextIterator()) {
+					if(Hymn.canCombine(text, tune)) combined++;
+					pairs++;
+				}
+			}
+		}
+		long elapsed = System.nanoTime() - start;
+		pairs = pairs*rounds/(rounds + 1);
+		
+		System.out.println(components + " Texts and Tunes share " + instances.size() + " Meters; canCombine " +
+				elapsed/Math.max(pairs, 1) + " ns/pair, " + combined/(rounds + 1) + " pairs combine");
+	}
+	
+	/**
+	 * Time telling whether a Text or Tune changed, as Database.add
+	 * does, by comparing every file parsed twice with equals and
+	 * with their digests, once the digests have been computed.
+	 * @param rounds The number of times to compare every file.
+	 */
+	private static void benchmarkDigests(int rounds) {
+		ArrayList<HymnComponent> first = new ArrayList<HymnComponent>();
+		ArrayList<HymnComponent> second = new ArrayList<HymnComponent>();
+		for(File file : new File(Database.dbFolder).listFiles()) {
+			try {
+				first.add(ParserEngine.parse(file));
+				second.add(ParserEngine.parse(file));
+			} catch(UnsupportedFileException e) {
+				// Do nothing
+			}
+		}
+		
+		for(HymnComponent hc : first) // Warm up
+			digestOf(hc);
+		long start = System.nanoTime();
+		for(HymnComponent hc : second)
+			digestOf(hc);
+		long computing = System.nanoTime() - start;
+		
+		int same = 0;
+		start = System.nanoTime();
+		for(int r=0; r<rounds; r++)
+			for(int i=0; i<first.size(); i++)
+				if(first.get(i).equals(second.get(i))) same++;
+		long equals = System.nanoTime() - start;
+		
+		start = System.nanoTime();
+		for(int r=0; r<rounds; r++)
+			for(int i=0; i<first.size(); i++)
+				if(digestOf(first.get(i)).equals(digestOf(second.get(i)))) same--;
+		long digests = System.nanoTime() - start;
+		
+		long compares = (long)rounds*first.size();
+		System.out.println(first.size() + " files: equals " + equals/compares + " ns, digests " + digests/compares +
+				" ns after " + computing/second.size()/1000 + " us to compute each" + ((same != 0) ? " (results differ!)" : ""));
+	}
+	
+	/**
+	 * Time adding many new Tunes to an empty Database one at a time,
+	 * as a bulk import would, then adding them all again unchanged.
+	 * The Tunes are copies of the valid Tunes with numbered names.
+	 * Their XML is written to a temporary folder, deleted afterwards.
+	 * @param size The number of Tunes to add.
+	 */
+	private static void benchmarkBulkAdd(int size) {
+		ArrayList<Tune> sources = new ArrayList<Tune>();
+		for(Tune tune : db.validTuneIterator())
+			sources.add(tune);
+		
+		File folder = null;
+		PrintStream out = System.out;
+		try {
+			ArrayList<Tune> tunes = new ArrayList<Tune>(size);
+			for(int i=0; i<size; i++) {
+				Tune source = sources.get(i % sources.size());
+				Tune tune = new Tune(source.getName() + " " + i, source.getMeter(), source.getKeySignature(), source.getTimeSignature());
+				tune.setMusic(source.getMusic());
+				tunes.add(tune);
+			}
+			
+			folder = Files.createTempDirectory("jhymnal").toFile();
+			Database target = new Database(folder);
+			System.setOut(new PrintStream(new OutputStream() { // Each write prints the file it created
+				@Override
+				public void write(int b) {}
+			}));
+			
+			long start = System.nanoTime();
+			for(Tune tune : tunes)
+				target.add(tune);
+			long added = System.nanoTime() - start;
+			
+			start = System.nanoTime();
+			for(Tune tune : tunes)
+				target.add(tune);
+			long unchanged = System.nanoTime() - start;
+			
+			System.setOut(out);
+			System.out.println(size + " Tunes: added in " + added/1000000 + " ms (" + added/size/1000 + " us each), added again unchanged in " +
+					unchanged/1000000 + " ms (" + unchanged/size/1000 + " us each)");
+		} catch(IOException ioe) {
+			System.err.println("IOTester.benchmarkBulkAdd() - " + ioe.getMessage());
+		} finally {
+			System.setOut(out);
+			deleteLibrary(folder);
+		}
+	}
+	
+	/**
+	 * Get the digest of a Text or Tune.
+	 * @param hc The Text or Tune.
+	 * @return Its digest.
+	 */
+	private static String digestOf(HymnComponent hc) {
+		return (hc instanceof Text) ? ((Text) hc).digest() : ((Tune) hc).digest();
+	}
+	
+	/**
+	 * Count the Notes in every Voice of a Music.
+	 * @param music The Music whose Notes to count, may be null.
+	 * @return The number of Notes in the Music.
+	 */
+	private static long countNotes(Music music) {
+		long notes = 0;
+		if(music == null)
+			return notes;
+		for(Voice voice : music)
+			for(Line<Unit> line : voice)
+				for(Unit unit : line)
+					notes += unit.numberOfNotes();
+		return notes;
+	}
+	
+	/**
+	 * Get the heap in use once the garbage collector has run.
+	 * @return The bytes of heap in use.
+	 */
+	private static long usedHeap() {
+		for(int i=0; i<3; i++)
+			System.gc();
+		return ManagementFactory.getMemoryMXBean().getHeapMemoryUsage().getUsed();
+	}
+	
+	/**
+	 * Build a synthetic library of the given size in a temporary folder
+	 * by copying the files in the Database folder with numbered titles.
+	 * @param size The number of files in the synthetic library.
+	 * @return The folder holding the synthetic library.
+	 * @throws IOException Failed to write the library.
+	 */
+	private static File createLibrary(int size) throws IOException {
+		Charset utf8 = Charset.forName("UTF-8");
+		File library = Files.createTempDirectory("jhymnal").toFile();
+		File[] sources = new File(Database.dbFolder).listFiles();
+		for(int i=0; i<size; i++) {
+			File source = sources[i % sources.length];
+			String xml = new String(Files.readAllBytes(source.toPath()), utf8);
+			xml = xml.replaceFirst("</title>", " " + i + "</title>");
+			Files.write(new File(library, i + "_" + source.getName()).toPath(), xml.getBytes(utf8));
+		}
+		return library;
+	}
+	
+	/**
+	 * Delete a synthetic library made by createLibrary.
+	 * @param library The folder holding the library, may be null.
+	 */
+	private static void deleteLibrary(File library) {
+		if(library != null) {
+			for(File file : library.listFiles())
+				file.delete();
+			library.delete();
+		}
+	}
+	
+	/**
+	 * Compare the per-file latency of building a validated Document with
+	 * a new DocumentBuilderFactory for every file against the reusable
+	 * DocumentBuilders kept by XMLUtility.
+	 * @param rounds The number of times to parse every file in the Database folder.
+	 */
+	private static void benchmarkParsing(int rounds) {
+		XMLUtility util = XMLUtility.getInstance();
+		File[] files = new File(Database.dbFolder).listFiles();
+		
+		long fresh = 0;
+		long pooled = 0;
+		int parsed = 0;
+		try {
+			for(int round=0; round<rounds; round++) {
+				for(File file : files) {
+					Schema schema = "text".equals(util.getRootName(file)) ? util.textSchema : util.tuneSchema;
+					
+					long start = System.nanoTime();
+					DocumentBuilderFactory dbf = DocumentBuilderFactory.newInstance();
+					dbf.setSchema(schema);
+					DocumentBuilder db = dbf.newDocumentBuilder();
+					db.parse(file);
+					fresh += System.nanoTime() - start;
+					
+					start = System.nanoTime();
+					util.getDocument(file, schema);
+					pooled += System.nanoTime() - start;
+					parsed++;
+				}
+			}
+		} catch(Exception e) {
+			System.err.println("IOTester.benchmarkParsing() - " + e.getMessage());
+			return;
+		}
+		
+		System.out.println("Parsed " + parsed + " files: new factory " + fresh/parsed/1000 + " us/file, reused builder " + pooled/parsed/1000 + " us/file");
+	}
+	
+	/**
+	 * Compare the per-file latency of the DOM parsers against the
+	 * streaming parsers, with and without schema validation.
+	 * @param rounds The number of times to parse every file in the Database folder.
+	 */
+	private static void benchmarkStreaming(int rounds) {
+		XMLUtility util = XMLUtility.getInstance();
+		File[] files = new File(Database.dbFolder).listFiles();
+		
+		long dom = 0;
+		long stax = 0;
+		long unvalidated = 0;
+		int parsed = 0;
+		try {
+			for(int round=0; round<rounds; round++) {
+				for(File file : files) {
+					boolean text = "text".equals(util.getRootName(file));
+					
+					long start = System.nanoTime();
+					if(text) XMLTextParser.getInstance().parse(file);
+					else XMLTuneParser.getInstance().parse(file);
+					dom += System.nanoTime() - start;
+					
+					StAXTextParser.getInstance().setValidating(true);
+					StAXTuneParser.getInstance().setValidating(true);
+					start = System.nanoTime();
+					if(text) StAXTextParser.getInstance().parse(file);
+					else StAXTuneParser.getInstance().parse(file);
+					stax += System.nanoTime() - start;
+					
+					StAXTextParser.getInstance().setValidating(false);
+					StAXTuneParser.getInstance().setValidating(false);
+					start = System.nanoTime();
+					if(text) StAXTextParser.getInstance().parse(file);
+					else StAXTuneParser.getInstance().parse(file);
+					unvalidated += System.nanoTime() - start;
+					parsed++;
+				}
+			}
+		} catch(IOException ioe) {
+			System.err.println("IOTester.benchmarkStreaming() - " + ioe.getMessage());
+			return;
+		} finally {
+			StAXTextParser.getInstance().setValidating(true);
+			StAXTuneParser.getInstance().setValidating(true);
+		}
+		
+		System.out.println("Parsed " + parsed + " files: DOM " + dom/parsed/1000 + " us/file, StAX " + stax/parsed/1000 +
+				" us/file, StAX without validation " + unvalidated/parsed/1000 + " us/file");
+	}
+	
+	/**
+	 * Compare finding the Texts and Tunes that can be combined by
+	 * testing every one against looking them up in a MeterIndex,
+	 * over a synthetic library made by copying the valid Texts and
+	 * Tunes in the Database with numbered names.
+	 * @param texts The number of Texts in the synthetic library.
+	 * @param tunes The number of Tunes in the synthetic library.
+	 * @param lookups The number of lookups to time in each direction.
+	 */
+	private static void benchmarkRelevant(int texts, int tunes, int lookups) {
+		ArrayList<Text> sourceTexts = new ArrayList<Text>();
+		for(Text text : db.validTextIterator())
+			sourceTexts.add(text);
+		ArrayList<Tune> sourceTunes = new ArrayList<Tune>();
+		for(Tune tune : db.validTuneIterator())
+			sourceTunes.add(tune);
+		
+		ArrayList<Text> allTexts = new ArrayList<Text>(texts);
+		ArrayList<Tune> allTunes = new ArrayList<Tune>(tunes);
+		MeterIndex<Text> textIndex = new MeterIndex<Text>();
+		MeterIndex<Tune> tuneIndex = new MeterIndex<Tune>();
+		try {
+			for(int i=0; i<texts; i++) {
+				Text source = sourceTexts.get(i % sourceTexts.size());
+				ArrayList<Lyric> verses = new ArrayList<Lyric>();
+				for(Lyric verse : source)
+					verses.add(verse);
+				Text text = new Text(source.getName() + " " + i, source.getMeter());
+				text.setVerses(verses);
+				allTexts.add(text);
+				textIndex.add(text, MeterIndex.signature(text.getMeter()), MeterIndex.doubleKey(text));
+			}
+			for(int i=0; i<tunes; i++) {
+				Tune source = sourceTunes.get(i % sourceTunes.size());
+				Tune tune = new Tune(source.getName() + " " + i, source.getMeter(), source.getKeySignature(), source.getTimeSignature());
+				tune.setMusic(source.getMusic());
+				allTunes.add(tune);
+				tuneIndex.add(tune, MeterIndex.signature(tune.getMeter()), MeterIndex.doubleKey(tune));
+			}
+		} catch(BadInputException bie) {
+			System.err.println("IOTester.benchmarkRelevant() - " + bie.getMessage());
+			return;
+		}
+		
+		long scan = 0;
+		long indexed = 0;
+		long found = 0;
+		for(int i=0; i<lookups; i++) {
+			Tune tune = allTunes.get(i % allTunes.size());
+			Text text = allTexts.get(i % allTexts.size());
+			
+			long start = System.nanoTime();
+			for(Text t : allTexts)
+				if(Hymn.canCombine(t, tune)) found++;
+			for(Tune t : allTunes)
+				if(Hymn.canCombine(text, t)) found++;
+			scan += System.nanoTime() - start;
+			
+			start = System.nanoTime();
+			for(Text t : textIndex.find(MeterIndex.signature(tune.getMeter()), MeterIndex.doubleKey(tune)))
+				if(Hymn.canCombine(t, tune)) found--;
+			for(Tune t : tuneIndex.find(MeterIndex.signature(text.getMeter()), MeterIndex.doubleKey(text)))
+				if(Hymn.canCombine(text, t)) found--;
+			indexed += System.nanoTime() - start;
+		}
+		
+		System.out.println(texts + " Texts x " + tunes + " Tunes: scan " + scan/lookups/1000 + " us/lookup, index " + indexed/lookups/1000 +
+				" us/lookup" + ((found != 0) ? " (results differ!)" : ""));
+	}
+	
+	/**
+	 * Time rendering with a RenderPool from several threads at once,
+	 * using a stub in place of lilypond which copies its stdin to the
+	 * target image. This measures the overhead of the pool and of
+	 * starting the renderer, not the time lilypond itself takes.
+	 * @param jobs The number of renders.
+	 * @param workers The number of workers in the pool.
+	 */
+	private static void benchmarkRenderPool(final int jobs, int workers) {
+		File folder = null;
+		RenderPool pool = null;
+		try {
+			folder = Files.createTempDirectory("jhymnal").toFile();
+			File stub = new File(folder, "lilypond");
+			String script = "#!/bin/sh\nwhile [ \"$1\" != \"-o\" ]; do shift; done\ncat > \"$2.png\"\n";
+			Files.write(stub.toPath(), script.getBytes("UTF-8"));
+			stub.setExecutable(true);
+			
+			final RenderPool renderer = pool = new RenderPool(stub.getAbsolutePath(), workers, workers*4, 10000);
+			final File images = folder;
+			final String source = LilyPondUtility.getInstance().createString(db.validHymnIterator().iterator().next());
+			
+			// Submit from more threads than there are workers, so the queue fills up
+			final Thread[] clients = new Thread[workers*2];
+			long start = System.nanoTime();
+			for(int c=0; c<clients.length; c++) {
+				final int client = c;
+				clients[c] = new Thread(new Runnable() {
+					public void run() {
+						for(int i=client; i<jobs; i+=clients.length) {
+							try {
+								renderer.render(source, new File(images, "hymn" + i).getPath());
+							} catch(IOException ioe) {
+								System.err.println("IOTester.benchmarkRenderPool() - " + ioe.getMessage());
+							}
+						}
+					}
+				});
+				clients[c].start();
+			}
+			for(Thread client : clients)
+				client.join();
+			long elapsed = System.nanoTime() - start;
+			
+			System.out.println("Rendered " + jobs + " hymns with " + workers + " workers: " + elapsed/jobs/1000 + " us/render, " +
+					(images.list().length - 1) + " images");
+		} catch(Exception e) {
+			System.err.println("IOTester.benchmarkRenderPool() - " + e.getMessage());
+		} finally {
+			if(pool != null)
+				pool.shutdown();
+			deleteLibrary(folder);
+		}
+	}
+	
+	private static void benchmarkBatchRendering(int batchSize) {
+		File folder = null;
+		RenderPool pool = null;
+		try {
+			folder = Files.createTempDirectory("jhymnal").toFile();
+			File images = new File(folder, "images");
+			images.mkdir();
+			
+			// Stands in for lilypond, with a fixed startup cost and one image per book
+			File stub = new File(folder, "lilypond");
+			String script = "#!/bin/sh\nsleep 0.2\nwhile [ \"$1\" != \"-o\" ]; do shift; done\ndir=`dirname \"$2\"`\n" +
+					"grep -o 'bookOutputName \"[^\"]*\"' | cut -d '\"' -f 2 | while read name; do echo png > \"$dir/$name.png\"; done\n";
+			Files.write(stub.toPath(), script.getBytes("UTF-8"));
+			stub.setExecutable(true);
+			pool = new RenderPool(stub.getAbsolutePath(), 1, 4, 10000);
+			
+			int hymns = 0;
+			for(Hymn hymn : db.validHymnIterator())
+				hymns++;
+			
+			for(int size : new int[] {1, batchSize}) {
+				RenderCache cache = new RenderCache(images, Long.MAX_VALUE, Long.MAX_VALUE);
+				cache.clear();
+				double throughput = RenderEngine.renderAll(db.validHymnIterator(), RenderEngine.Backend.LILYPOND, pool, cache, size);
+				System.out.println("Rendered " + hymns + " hymns in batches of " + size + ": " + Math.round(throughput*10)/10.0 + " hymns/s, " +
+						images.list().length + " images");
+			}
+		} catch(Exception e) {
+			System.err.println("IOTester.benchmarkBatchRendering() - " + e.getMessage());
+		} finally {
+			if(pool != null)
+				pool.shutdown();
+			if(folder != null)
+				deleteLibrary(new File(folder, "images"));
+			deleteLibrary(folder);
+		}
+	}
+	
+	/**
+	 * Measure the time and memory allocated to generate the LilyPond
+	 * source of every valid Hymn in the Database, both as Strings and
+	 * written straight to a reused buffer.
+	 * @param rounds The number of times to generate every Hymn.
+	 */
+	private static void benchmarkGenerating(int rounds) {
+		LilyPondUtility util = LilyPondUtility.getInstance();
+		com.sun.management.ThreadMXBean threads = (com.sun.management.ThreadMXBean)ManagementFactory.getThreadMXBean();
+		long thread = Thread.currentThread().getId();
+		
+		ArrayList<Hymn> hymns = new ArrayList<Hymn>();
+		for(Hymn hymn : db.validHymnIterator())
+			hymns.add(hymn);
+		
+		// Warm up
+		long length = 0;
+		for(int r=0; r<rounds/10 + 1; r++)
+			for(Hymn hymn : hymns)
+				length += util.createString(hymn).length();
+		
+		long bytes = threads.getThreadAllocatedBytes(thread);
+		long start = System.nanoTime();
+		for(int r=0; r<rounds; r++)
+			for(Hymn hymn : hymns)
+				length += util.createString(hymn).length();
+		long elapsed = System.nanoTime() - start;
+		bytes = threads.getThreadAllocatedBytes(thread) - bytes;
+		
+		long generated = (long)rounds * hymns.size();
+		System.out.println("createString: " + elapsed/generated/1000 + " us, " + bytes/generated/1024 + " KB allocated per hymn (" + length + " chars)");
+		
+		// Write into the same buffer every time, as a stream to a file or process would
+		StringBuilder buffer = new StringBuilder();
+		length = 0;
+		try {
+			bytes = threads.getThreadAllocatedBytes(thread);
+			start = System.nanoTime();
+			for(int r=0; r<rounds; r++) {
+				for(Hymn hymn : hymns) {
+					buffer.setLength(0);
+					util.write(hymn, buffer);
+					length += buffer.length();
+				}
+			}
+			elapsed = System.nanoTime() - start;
+			bytes = threads.getThreadAllocatedBytes(thread) - bytes;
+		} catch(IOException ioe) {
+			System.err.println("IOTester.benchmarkGenerating() - " + ioe.getMessage());
+		}
+		System.out.println("write: " + elapsed/generated/1000 + " us, " + bytes/generated/1024 + " KB allocated per hymn (" + length + " chars)");
+	}
+	
+	/**
+	 * Generate the LilyPond source of every valid Hymn, Tune and Text
+	 * from many threads at once, and check that every one is the same
+	 * as the source generated by a single thread.
+	 * @param threads The number of threads generating at once.
+	 * @param perThread The number of sources each thread generates.
+	 */
+	private static void stressGenerating(int threads, final int perThread) {
+		final LilyPondUtility util = LilyPondUtility.getInstance();
+		
+		final ArrayList<Object> items = new ArrayList<Object>();
+		final ArrayList<String> expected = new ArrayList<String>();
+		for(Hymn hymn : db.validHymnIterator()) {
+			items.add(hymn);
+			expected.add(util.createString(hymn));
+		}
+		for(Tune tune : db.validTuneIterator()) {
+			items.add(tune);
+			expected.add(util.createString(tune));
+		}
+		for(Text text : db.validTextIterator()) {
+			items.add(text);
+			expected.add(util.createString(text));
+		}
+		
+		final java.util.concurrent.atomic.AtomicInteger mismatches = new java.util.concurrent.atomic.AtomicInteger();
+		final java.util.concurrent.CountDownLatch go = new java.util.concurrent.CountDownLatch(1);
+		Thread[] workers = new Thread[threads];
+		for(int t=0; t<threads; t++) {
+			final int offset = t*7;
+			workers[t] = new Thread(new Runnable() {
+				public void run() {
 					try {
-						hymn = new Hymn(text, tune);
-						w.write(hymn, new File("data/bad/" + hymn.getFilename() + ".ly"));
-					} catch (InvalidHymnException e) {
-						// Do nothing
-					} catch(IOException e) {
-						System.err.println("IOTester.rebuildLilyPondAndPNGs() - " + e.getMessage());
+						go.await();
+					} catch(InterruptedException ie) {
+						return;
+					}
+					// Each thread walks the items from a different place, so different kinds overlap
+					for(int i=0; i<perThread; i++) {
+						int index = (offset + i) % items.size();
+						Object item = items.get(index);
+						String actual;
+						if(item instanceof Hymn) actual = util.createString((Hymn)item);
+						else if(item instanceof Tune) actual = util.createString((Tune)item);
+						else actual = util.createString((Text)item);
+						if(!actual.equals(expected.get(index)))
+							mismatches.incrementAndGet();
 					}
-					System.err.println("IOTester.rebuildLilyPondAndPNGs() - " + ioe.getMessage());
 				}
+			});
+			workers[t].start();
+		}
+		
+		long start = System.nanoTime();
+		go.countDown();
+		try {
+			for(Thread worker : workers)
+				worker.join();
+		} catch(InterruptedException ie) {
+			System.err.println("IOTester.stressGenerating() - Interrupted");
+			return;
+		}
+		long elapsed = System.nanoTime() - start;
+		
+		System.out.println("Generated " + threads*perThread + " sources on " + threads + " threads in " + elapsed/1000000 + " ms: " +
+				mismatches.get() + " differed from single-threaded output");
+	}
+	
+	/**
+	 * Compare generating the LilyPond source of every valid pairing in
+	 * a synthetic library with the Tune blocks created for every Hymn,
+	 * as they were before they were kept per Tune, against reusing them.
+	 * @param size The number of files in the synthetic library.
+	 */
+	private static void benchmarkFragments(int size) {
+		LilyPondUtility util = LilyPondUtility.getInstance();
+		File library = null;
+		try {
+			library = createLibrary(size);
+			Database lib = new Database(library);
+			ArrayList<Hymn> hymns = new ArrayList<Hymn>();
+			for(Hymn hymn : lib.validHymnIterator())
+				hymns.add(hymn);
+			
+			long length = 0;
+			for(Hymn hymn : hymns) // Warm up
+				length += util.createString(hymn).length();
+			
+			long start = System.nanoTime();
+			for(Hymn hymn : hymns) {
+				util.clearFragments();
+				length += util.createString(hymn).length();
+			}
+			long uncached = System.nanoTime() - start;
+			
+			util.clearFragments();
+			start = System.nanoTime();
+			for(Hymn hymn : hymns)
+				length += util.createString(hymn).length();
+			long cached = System.nanoTime() - start;
+			
+			System.out.println("Generated " + hymns.size() + " pairings: " + hymns.size()*1000000000L/uncached + " hymns/s without Tune blocks kept, " +
+					hymns.size()*1000000000L/cached + " hymns/s with (" + length + " chars)");
+		} catch(IOException ioe) {
+			System.err.println("IOTester.benchmarkFragments() - " + ioe.getMessage());
+		} finally {
+			util.clearFragments();
+			deleteLibrary(library);
+		}
+	}
+	
+	/**
+	 * Measure how long the Java2D Engraver takes to draw every valid
+	 * Hymn, and to encode the pages as PNGs, and write the pages of
+	 * the first Hymn to data/images to be looked at.
+	 * @param rounds The number of times to engrave every Hymn.
+	 */
+	private static void benchmarkEngraving(int rounds) {
+		Engraver engraver = Engraver.getInstance();
+		ArrayList<Hymn> hymns = new ArrayList<Hymn>();
+		for(Hymn hymn : db.validHymnIterator())
+			hymns.add(hymn);
+		if(hymns.isEmpty())
+			return;
+		
+		int pages = 0;
+		for(Hymn hymn : hymns) // Warm up
+			pages += engraver.engrave(hymn).size();
+		
+		long start = System.nanoTime();
+		for(int r=0; r<rounds; r++)
+			for(Hymn hymn : hymns)
+				pages += engraver.engrave(hymn).size();
+		long drawing = System.nanoTime() - start;
+		
+		long bytes = 0;
+		long encoding = 0;
+		try {
+			for(int pass=0; pass<2; pass++) { // The first pass warms up the encoder
+				bytes = 0;
+				encoding = 0;
+				for(Hymn hymn : hymns) {
+					ArrayList<java.awt.image.BufferedImage> images = engraver.engrave(hymn);
+					start = System.nanoTime();
+					for(java.awt.image.BufferedImage image : images) {
+						java.io.ByteArrayOutputStream out = new java.io.ByteArrayOutputStream();
+						javax.imageio.ImageIO.write(image, "png", out);
+						bytes += out.size();
+					}
+					encoding += System.nanoTime() - start;
+				}
+			}
+			Engraver.write(engraver.engrave(hymns.get(0)), new File(Database.imgCache, "engraved-" + hymns.get(0).getFilename()));
+		} catch(IOException ioe) {
+			System.err.println("IOTester.benchmarkEngraving() - " + ioe.getMessage());
+		}
+		
+		long engraved = (long)rounds * hymns.size();
+		System.out.println("Engraved " + hymns.size() + " hymns: " + drawing/engraved/1000 + " us to draw, " +
+				encoding/hymns.size()/1000 + " us to encode as PNG, " + bytes/hymns.size()/1024 + " KB per hymn (" + pages + " pages)");
+	}
+	
+	/**
+	 * Compare opening the Hymns which fit a Tune straight
+	 * after picking it with opening them once they have
+	 * been prefetched. The cache is cleared before each.
+	 * @param tunes The number of Tunes to pick.
+	 */
+	private static void benchmarkPrefetch(int tunes) {
+		long cold = 0, warm = 0, waiting = 0;
+		int opened = 0, picked = 0;
+		try {
+			for(Tune tune : db.validTuneIterator()) {
+				if(picked == tunes)
+					break;
+				ArrayList<Hymn> hymns = new ArrayList<Hymn>();
+				for(Text text : db.relevantTexts(tune))
+					if(hymns.size() < 8)
+						hymns.add(new Hymn(text, tune));
+				if(hymns.isEmpty())
+					continue;
+				picked++;
+				
+				RenderEngine.clearCache();
+				long start = System.nanoTime();
+				for(Hymn hymn : hymns)
+					hymn.renderImages();
+				cold += System.nanoTime() - start;
+				
+				RenderEngine.clearCache();
+				start = System.nanoTime();
+				RenderEngine.prefetch(tune);
+				while(Prefetcher.getInstance().pending() > 0)
+					Thread.sleep(10);
+				waiting += System.nanoTime() - start;
+				
+				start = System.nanoTime();
+				for(Hymn hymn : hymns)
+					hymn.renderImages();
+				warm += System.nanoTime() - start;
+				opened += hymns.size();
+			}
+		} catch(Exception e) {
+			System.err.println("IOTester.benchmarkPrefetch() - " + e);
+		} finally {
+			RenderEngine.clearCache();
+		}
+		
+		if(opened == 0)
+			return;
+		System.out.println("Opened " + opened + " hymns for " + picked + " tunes: " + cold/opened/1000 + " us each without prefetching, " +
+				warm/opened/1000 + " us after prefetching (" + waiting/picked/1000000 + " ms per tune to prefetch)");
+	}
+	
+	/**
+	 * Check the render cache against a temporary folder: an added
+	 * image is found with its pages in order; the least recently
+	 * used images are evicted whole; a reopened cache finds the
+	 * same images and evicts them in the same order, with or
+	 * without its manifest, and looking for an image does not
+	 * change that order; pages deleted behind its back are
+	 * noticed; the memory tier keeps to its limit; and clear()
+	 * leaves the files which are not the cache's alone.
+	 */
+	private static void testRenderCache() {
+		File folder = null;
+		int failed = 0;
+		try {
+			folder = Files.createTempDirectory("rendercache").toFile();
+			byte[] page = new byte[100];
+			Arrays.fill(page, (byte) 1);
+			File placeholder = new File(folder, ".placeholder");
+			Files.write(placeholder.toPath(), page);
+			
+			RenderCache cache = new RenderCache(folder, Long.MAX_VALUE, Long.MAX_VALUE);
+			String a = RenderCache.key("a");
+			failed += expect("a is not found before it is added", cache.getFiles(a).isEmpty());
+			addImage(folder, "a", page);
+			failed += expect("a is found once added", cache.added(a).size() == 1 && cache.getFiles(a).size() == 1);
+			
+			String b = RenderCache.key("b");
+			Files.write(new File(folder, b + "-page1.png").toPath(), page);
+			Files.write(new File(folder, b + "-page2.png").toPath(), new byte[50]);
+			cache.added(b);
+			ArrayList<File> files = cache.getFiles(b);
+			failed += expect("b has both pages in order", files.size() == 2 && files.get(0).getName().equals(b + "-page1.png") &&
+					files.get(1).getName().equals(b + "-page2.png"));
+			ArrayList<byte[]> pages = cache.getImages(b);
+			failed += expect("b reads back its pages", pages != null && pages.size() == 2 && Arrays.equals(pages.get(0), page) &&
+					pages.get(1).length == 50);
+			String c = addImage(folder, "c", page);
+			cache.added(c);
+			
+			// Full with a, b and c, and using a leaves b the least recently used
+			long diskLimit = 3*page.length + 50;
+			cache.setLimits(Long.MAX_VALUE, diskLimit);
+			cache.getFiles(a);
+			String d = addImage(folder, "d", page);
+			cache.added(d);
+			failed += expect("b is evicted whole", !new File(folder, b + "-page1.png").exists() && !new File(folder, b + "-page2.png").exists());
+			failed += expect("b is evicted from memory too", cache.getImages(b) == null);
+			failed += expect("a, c and d are kept", isCached(folder, a) && isCached(folder, c) && isCached(folder, d));
+			
+			// Reopened, c is still the least recently used, and looking for it does not use it
+			cache = new RenderCache(folder, Long.MAX_VALUE, diskLimit);
+			failed += expect("a reopened cache finds a", cache.getFiles(a).size() == 1);
+			failed += expect("a reopened cache contains c", cache.contains(c));
+			String e = addImage(folder, "e", page);
+			cache.added(e);
+			failed += expect("a reopened cache evicts c", !isCached(folder, c) && isCached(folder, a) && isCached(folder, d) && isCached(folder, e));
+			
+			// Using d leaves a the least recently used, once flushed to the manifest
+			cache.getFiles(d);
+			cache.flush();
+			cache = new RenderCache(folder, Long.MAX_VALUE, diskLimit);
+			String f = addImage(folder, "f", page);
+			cache.added(f);
+			failed += expect("a flushed use is kept", !isCached(folder, a) && isCached(folder, d) && isCached(folder, e) && isCached(folder, f));
+			
+			new File(folder, "manifest").delete();
+			cache = new RenderCache(folder, Long.MAX_VALUE, Long.MAX_VALUE);
+			failed += expect("a rebuilt manifest finds d, e and f", cache.getFiles(d).size() == 1 && cache.getFiles(e).size() == 1 &&
+					cache.getFiles(f).size() == 1);
+			failed += expect("a rebuilt manifest does not find a, b or c", cache.getFiles(a).isEmpty() && cache.getFiles(b).isEmpty() &&
+					cache.getFiles(c).isEmpty());
+			
+			new File(folder, d + ".png").delete();
+			failed += expect("d is gone once deleted behind the cache's back", cache.getImages(d) == null && cache.getFiles(d).isEmpty());
+			
+			// Room in memory for one image, so reading f pushes e out
+			RenderMetrics metrics = RenderMetrics.getInstance();
+			cache.setLimits(page.length, Long.MAX_VALUE);
+			cache.getImages(e);
+			cache.getImages(f);
+			long hits = metrics.getCounters().get("memory_hit");
+			cache.getImages(f);
+			cache.getImages(e);
+			failed += expect("the memory tier keeps to its limit", metrics.getCounters().get("memory_hit") == hits + 1);
+			
+			cache.clear();
+			failed += expect("clear deletes every image", cache.getImages(e) == null && cache.getImages(f) == null &&
+					!isCached(folder, e) && !isCached(folder, f));
+			failed += expect("clear leaves the placeholder", placeholder.isFile());
+			
+			System.out.println("Render cache: " + failed + " checks failed");
+		} catch(IOException ioe) {
+			System.err.println("IOTester.testRenderCache() - " + ioe.getMessage());
+		} finally {
+			if(folder != null) {
+				File[] files = folder.listFiles();
+				if(files != null)
+					for(File file : files)
+						file.delete();
+				folder.delete();
+			}
+		}
+	}
+	
+	/**
+	 * Check that a render which times out leaves no images behind,
+	 * while one which finishes keeps its images, using a stub in
+	 * place of lilypond which writes its pages and then sleeps.
+	 */
+	private static void testRenderTimeout() {
+		File folder = null;
+		RenderPool pool = null;
+		int failed = 0;
+		try {
+			folder = Files.createTempDirectory("jhymnal").toFile();
+			File stub = new File(folder, "lilypond");
+			String script = "#!/bin/sh\nwhile [ \"$1\" != \"-o\" ]; do shift; done\ncat > /dev/null\n" +
+					"echo png > \"$2-page1.png\"\necho png > \"$2-page2.png\"\nsleep $(basename \"$2\")\n";
+			Files.write(stub.toPath(), script.getBytes("UTF-8"));
+			stub.setExecutable(true);
+			pool = new RenderPool(stub.getAbsolutePath(), 1, 4, 10000);
+			
+			// The stub sleeps for as many seconds as the name of its target
+			File quick = new File(folder, "0");
+			pool.render("", quick.getPath(), 5000);
+			failed += expect("a finished render keeps its pages", new File(folder, "0-page1.png").isFile() &&
+					new File(folder, "0-page2.png").isFile());
+			
+			boolean timedOut = false;
+			try {
+				pool.render("", new File(folder, "30").getPath(), 1000);
+			} catch(IOException ioe) {
+				timedOut = true;
+			}
+			failed += expect("a slow render times out", timedOut);
+			failed += expect("a timed out render leaves no pages", !new File(folder, "30-page1.png").exists() &&
+					!new File(folder, "30-page2.png").exists());
+			
+			System.out.println("Render timeout: " + failed + " checks failed");
+		} catch(IOException ioe) {
+			System.err.println("IOTester.testRenderTimeout() - " + ioe.getMessage());
+		} finally {
+			if(pool != null)
+				pool.shutdown();
+			deleteLibrary(folder);
+		}
+	}
+	
+	/**
+	 * Check whether the single page of an image is in a cache folder.
+	 * @param folder The folder of the cache.
+	 * @param key The key of the image.
+	 * @return True if the page is in the folder.
+	 */
+	private static boolean isCached(File folder, String key) {
+		return new File(folder, key + ".png").isFile();
+	}
+	
+	/**
+	 * Print a check which failed.
+	 * @param what What was checked.
+	 * @param ok Whether the check passed.
+	 * @return 1 if the check failed, otherwise 0.
+	 */
+	private static int expect(String what, boolean ok) {
+		if(!ok)
+			System.out.println("Failed: " + what);
+		return ok ? 0 : 1;
+	}
+	
+	/**
+	 * Time the render cache with many images on disk: opening
+	 * it, reopening it, finding images and adding images once
+	 * the disk tier is full, so every add evicts another. The
+	 * images are a few bytes each, in a temporary folder.
+	 * @param images The number of images in the cache.
+	 * @param lookups The number of images to look for.
+	 */
+	private static void benchmarkRenderCache(int images, int lookups) {
+		File folder = null;
+		try {
+			folder = Files.createTempDirectory("rendercache").toFile();
+			byte[] page = new byte[64];
+			String[] keys = new String[images];
+			long size = 0;
+			for(int i=0; i<images; i++) {
+				keys[i] = RenderCache.key("image " + i);
+				if(i % 4 == 0) { // Some images have two pages
+					Files.write(new File(folder, keys[i] + "-page1.png").toPath(), page);
+					Files.write(new File(folder, keys[i] + "-page2.png").toPath(), page);
+					size += 2*page.length;
+				}
+				else {
+					Files.write(new File(folder, keys[i] + ".png").toPath(), page);
+					size += page.length;
+				}
+			}
+			
+			long start = System.nanoTime();
+			RenderCache cache = new RenderCache(folder, 0, Long.MAX_VALUE);
+			cache.getFiles(keys[0]);
+			cache.added(addImage(folder, "opened", page));
+			long opening = System.nanoTime() - start;
+			
+			start = System.nanoTime();
+			cache = new RenderCache(folder, 0, Long.MAX_VALUE);
+			cache.getFiles(keys[0]);
+			cache.added(addImage(folder, "reopened", page));
+			long reopening = System.nanoTime() - start;
+			
+			java.util.Random random = new java.util.Random(42);
+			int found = 0;
+			start = System.nanoTime();
+			for(int i=0; i<lookups; i++) {
+				String key = (i % 2 == 0) ? keys[random.nextInt(images)] : RenderCache.key("missing " + i);
+				if(!cache.getFiles(key).isEmpty())
+					found++;
+			}
+			long looking = System.nanoTime() - start;
+			
+			cache.setLimits(0, size);
+			int adds = Math.min(200, images);
+			start = System.nanoTime();
+			for(int i=0; i<adds; i++)
+				cache.added(addImage(folder, "added " + i, page));
+			long adding = System.nanoTime() - start;
+			
+			System.out.println("Render cache of " + images + " images: " + opening/1000000 + " ms to open, " +
+					reopening/1000000 + " ms to reopen, " + looking/lookups/1000 + " us per lookup (" + found + " found), " +
+					adding/adds/1000 + " us per add with eviction");
+		} catch(IOException ioe) {
+			System.err.println("IOTester.benchmarkRenderCache() - " + ioe.getMessage());
+		} finally {
+			if(folder != null) {
+				File[] files = folder.listFiles();
+				if(files != null)
+					for(File file : files)
+						file.delete();
+				folder.delete();
+			}
+		}
+	}
+	
+	/**
+	 * Write a one page image into a cache folder.
+	 * @param folder The folder of the cache.
+	 * @param name Used to make the key of the image.
+	 * @param page The bytes of the page.
+	 * @return The key of the image.
+	 * @throws IOException Failed to write the image.
+	 */
+	private static String addImage(File folder, String name, byte[] page) throws IOException {
+		String key = RenderCache.key(name);
+		Files.write(new File(folder, key + ".png").toPath(), page);
+		return key;
+	}
+	
+	/**
+	 * Time recording into RenderMetrics, then render a few
+	 * Hymns and print the metrics they leave behind.
+	 * @param records The number of latencies to record.
+	 */
+	private static void benchmarkMetrics(int records) {
+		RenderMetrics metrics = RenderMetrics.getInstance();
+		long start = System.nanoTime();
+		for(int i=0; i<records; i++) {
+			metrics.time(RenderMetrics.Phase.DECODE, System.nanoTime());
+			metrics.count(RenderMetrics.Counter.MEMORY_HIT);
+		}
+		long recording = System.nanoTime() - start;
+		metrics.reset();
+		System.out.println("Recorded " + records + " latencies: " + recording/records + " ns each, with a count");
+		
+		int rendered = 0;
+		try {
+			for(Hymn hymn : db.validHymnIterator()) {
+				if(rendered++ == 5)
+					break;
+				hymn.renderImages();
+				hymn.renderImages();
 			}
+		} catch(IOException ioe) {
+			System.err.println("IOTester.benchmarkMetrics() - " + ioe.getMessage());
 		}
+		System.out.print(metrics.getSummary());
 	}
 	
 }
@@ -0,0 +1,197 @@
+// Copyright 2012 Jason Petersen and Timothy Macdonald
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+/**
+ * LazyLoader.java
+ *
+ * Loads the verses or Music of a Text or Tune
+ * the Database created from its metadata only.
+ * The content is decoded from the snapshot if
+ * the file has not changed since it was written,
+ * otherwise the file is parsed again. If the
+ * file has changed since the Text or Tune was
+ * created, or no longer holds the same one, the
+ * content is not loaded at all, as it would not
+ * match what the Database knows of it. The Text
+ * or Tune is then marked invalid, and taken out
+ * of the Database's valid Texts and Tunes.
+ *
+ * Only the most recently used fully loaded
+ * Texts and Tunes are kept, so a large Database
+ * never holds all of its Music at once.
+ */
+
+package io;
+
+import java.io.File;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import model.ContentLoader;
+import model.HymnComponent;
+import model.Text;
+import model.Tune;
+
+final class LazyLoader<T extends HymnComponent> implements ContentLoader<T> {
+
+	/** The most fully loaded Texts and Tunes to keep */
+	private static final int loadedLimit = 64;
+
+	/** The fully loaded Texts and Tunes, by their loader, least recently used first */
+	private static final Map<LazyLoader<?>, HymnComponent> loaded =
+		new LinkedHashMap<LazyLoader<?>, HymnComponent>(16, 0.75f, true) {
+			private static final long serialVersionUID = 1L;
+
+			@Override
+			protected boolean removeEldestEntry(Map.Entry<LazyLoader<?>, HymnComponent> eldest) {
+				return size() > loadedLimit;
+			}
+		};
+
+	/** The file the Text or Tune was parsed from */
+	private final File file;
+
+	/** The snapshot holding the Text or Tune, may be null */
+	private final DatabaseSnapshot snapshot;
+
+	/** Whether a Text or a Tune is loaded */
+	private final Class<T> type;
+
+	/** The Database holding the Text or Tune */
+	private final Database database;
+
+	/** The size of the file when the Text or Tune was created */
+	private final long size;
+
+	/** When the file was last modified when the Text or Tune was created */
+	private final long modified;
+
+	/**
+	 * Constructor.
+	 * @param file The file the Text or Tune was parsed from.
+	 * @param snapshot The snapshot holding the Text or Tune, may be null.
+	 * @param type Whether a Text or a Tune is loaded.
+	 * @param database The Database holding the Text or Tune.
+	 */
+	LazyLoader(File file, DatabaseSnapshot snapshot, Class<T> type, Database database) {
+		this.file = file;
+		this.snapshot = snapshot;
+		this.type = type;
+		this.database = database;
+		this.size = file.length();
+		this.modified = file.lastModified();
+	}
+
+	/**
+	 * Create a Text from the metadata of a fully loaded one,
+	 * whose verses are loaded again when they are asked for.
+	 * @param text The fully loaded Text.
+	 * @param file The file the Text was parsed from.
+	 * @param snapshot The snapshot holding the Text, may be null.
+	 * @param database The Database holding the Text.
+	 * @return The Text created from its metadata.
+	 * @throws BadInputException The Text has no name or Meter.
+	 */
+	static Text unload(Text text, File file, DatabaseSnapshot snapshot, Database database) throws BadInputException {
+		Text lazy = new Text(text.getName(), text.getMeter(), text.numberOfVerses(), text.isValid(),
+				new LazyLoader<Text>(file, snapshot, Text.class, database));
+		lazy.setAuthor(text.getAuthor());
+		lazy.setYear(text.getYear());
+		return lazy;
+	}
+
+	/**
+	 * Create a Tune from the metadata of a fully loaded one,
+	 * whose Music is loaded again when it is asked for.
+	 * @param tune The fully loaded Tune.
+	 * @param file The file the Tune was parsed from.
+	 * @param snapshot The snapshot holding the Tune, may be null.
+	 * @param database The Database holding the Tune.
+	 * @return The Tune created from its metadata.
+	 * @throws BadInputException The Tune has no name, Meter, key or time.
+	 */
+	static Tune unload(Tune tune, File file, DatabaseSnapshot snapshot, Database database) throws BadInputException {
+		Tune lazy = new Tune(tune.getName(), tune.getMeter(), tune.getKeySignature(), tune.getTimeSignature(), tune.isValid(),
+				new LazyLoader<Tune>(file, snapshot, Tune.class, database));
+		lazy.setAuthor(tune.getAuthor());
+		lazy.setYear(tune.getYear());
+		lazy.setStartingBeat(Double.toString(tune.getStartingBeat()));
+		lazy.setMelody(tune.getMelody());
+		return lazy;
+	}
+
+	/**
+	 * Forget every fully loaded Text and Tune.
+	 */
+	static void clear() {
+		synchronized(loaded) {
+			loaded.clear();
+		}
+	}
+
+	@Override
+	public T load(T component) {
+		synchronized(loaded) {
+			HymnComponent hc = loaded.get(this);
+			if(hc != null)
+				return type.cast(hc);
+		}
+
+		if(file.length() != size || file.lastModified() != modified) {
+			System.err.println("LazyLoader.load - " + file.getName() + " has changed since " + component.getName() + " was loaded");
+			return null;
+		}
+
+		HymnComponent hc = (snapshot != null) ? snapshot.load(file) : null;
+		if(hc == null) {
+			try {
+				hc = ParserEngine.parse(file);
+			} catch(UnsupportedFileException ufe) {
+				System.err.println("LazyLoader.load - Failed to parse " + file.getName());
+			}
+		}
+		if(!matches(hc, component)) {
+			System.err.println("LazyLoader.load - " + file.getName() + " no longer holds " + component.getName());
+			return null;
+		}
+
+		synchronized(loaded) {
+			loaded.put(this, hc);
+		}
+		return type.cast(hc);
+	}
+
+	@Override
+	public void failed(T component) {
+		database.failedToLoad(component);
+	}
+
+	/**
+	 * Determine if a loaded Text or Tune is the same one a
+	 * component was created from: the same name, Meter and
+	 * validity, and for a Text, the same number of verses.
+	 * @param hc The loaded Text or Tune, may be null.
+	 * @param component The component created from its metadata.
+	 * @return True if the loaded Text or Tune matches the component.
+	 */
+	private boolean matches(HymnComponent hc, T component) {
+		if(!type.isInstance(hc) || !hc.getName().equals(component.getName()) ||
+				!component.getMeter().equals(hc.getMeter()) || hc.isValid() != component.isValid())
+			return false;
+		if(hc instanceof Text)
+			return ((Text) hc).numberOfVerses() == ((Text) component).numberOfVerses();
+		return true;
+	}
+
+}
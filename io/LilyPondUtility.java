@@ -25,8 +25,16 @@
 
 package io;
 
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.Charset;
 import java.util.ArrayList;
 import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
 import java.util.StringTokenizer;
 
 import model.*;
@@ -93,17 +101,53 @@ final class LilyPondUtility extends Utility {
 	/** Array of Strings used to map integers to their String names, e.g. 1 is "One" */
 	private static final String[] numberStrings = {"", "One", "Two", "Three", "Four", "Five", "Six", "Seven", "Eight", "Nine" };
 	
+	/** The initial size of the buffer for a String, a little more than a typical Hymn needs */
+	private static final int initialLength = 4096;
+	
+	/** The most Tunes to keep LilyPond fragments for */
+	private static final int fragmentCacheSize = 1024;
+	
 	/** Tagline at the end of the page generated by LilyPond */
-	private static final String tagline = "Wheaton College Spring 2012";
+	static final String tagline = "Wheaton College Spring 2012";
+	
+	/** The version line at the top of every LilyPond file */
+	private final String versionLine = "\\version \"" + versionNumber + "\"\n\n";
+	
+	/** The LilyPond pitch of each note, by letter (a-g), Accidental and octave, e.g. "bes'" */
+	private final String[][][] pitchTokens = new String[7][Accidental.values().length][10];
+	
+	/** Small numbers as Strings, e.g. duration denominators */
+	private final String[] numberTokens = new String[Note.SMALLESTNOTE + 1];
+	
+	/** The result of increaseFromSmallestNote for durations up to four whole notes */
+	private final String[] durationTokens = new String[4*Note.SMALLESTNOTE + 1];
 	
-	/** Names of the verse variables created. This is added to in createVerses */
-	private static ArrayList<String> verseVariables = new ArrayList<String>();
+	/** The LilyPond blocks which only depend on the Tune, by the digest of the most recently used Tunes */
+	private final LinkedHashMap<String, TuneFragments> fragments = new LinkedHashMap<String, TuneFragments>(16, 0.75f, true) {
+		@Override
+		protected boolean removeEldestEntry(Map.Entry<String, TuneFragments> eldest) {
+			return size() > fragmentCacheSize;
+		}
+	};
 	
 	/** 
-	 * Constructor for Singleton.
+	 * Constructor for Singleton. Works out the tokens for every
+	 * pitch and duration up front, so writing a note is just a
+	 * matter of looking them up.
 	 * @author Jason Petersen 
 	 */
-	private LilyPondUtility() { }
+	private LilyPondUtility() {
+		for(int letter=0; letter<pitchTokens.length; letter++)
+			for(Accidental accidental : Accidental.values())
+				for(int octave=0; octave<pitchTokens[letter][accidental.ordinal()].length; octave++)
+					pitchTokens[letter][accidental.ordinal()][octave] = makePitch((char)('a' + letter), accidental, octave);
+		
+		for(int n=0; n<numberTokens.length; n++)
+			numberTokens[n] = Integer.toString(n);
+		
+		for(int y=0; y<durationTokens.length; y++)
+			durationTokens[y] = makeDuration(y);
+	}
 	
 	/**
 	 * Accessor method for the singleton of LilyPondUtility
@@ -124,172 +168,366 @@ final class LilyPondUtility extends Utility {
 	 * @author Jason Petersen
 	 */
 	String createString(Hymn hymn) {
-		if(hymn == null) return "";
+		StringBuilder asString = new StringBuilder(initialLength);
+		try {
+			write(hymn, asString);
+		} catch(IOException ioe) { // A StringBuilder never throws
+			throw new IllegalStateException(ioe);
+		}
+		return asString.toString();
+	}
+	
+	/**
+	 * Transform a Tune into a LilyPond-formatted String which
+	 * can be used in LilyPond or to create a LilyPond file.
+	 * @param tune The Tune for which to make the LilyPond-formatted String.
+	 * @return The Tune as a LilyPond-formatted String.
+	 * @author Jason Petersen
+	 */
+	String createString(Tune tune) {
+		StringBuilder asString = new StringBuilder(initialLength);
+		try {
+			write(tune, asString);
+		} catch(IOException ioe) { // A StringBuilder never throws
+			throw new IllegalStateException(ioe);
+		}
+		return asString.toString();
+	}
+	
+	/**
+	 * Transform a Text into a LilyPond-formatted String which
+	 * can be used in LilyPond or to create a LilyPond file.
+	 * @param text The Text for which to make the LilyPond-formatted String.
+	 * @return The Text as a LilyPond-formatted String.
+	 * @author Jason Petersen
+	 */
+	String createString(Text text) {
+		StringBuilder asString = new StringBuilder(initialLength);
+		try {
+			write(text, asString);
+		} catch(IOException ioe) { // A StringBuilder never throws
+			throw new IllegalStateException(ioe);
+		}
+		return asString.toString();
+	}
+	
+	/* ---------- Methods for streaming ---------- */
+	
+	/**
+	 * Write a Hymn in LilyPond format straight to the given
+	 * Appendable, e.g. a Writer or StringBuilder, without
+	 * building it as a String first. Writes nothing for null.
+	 * @param hymn The Hymn to write.
+	 * @param out Where to write the Hymn.
+	 * @throws IOException The Appendable failed.
+	 */
+	void write(Hymn hymn, Appendable out) throws IOException {
+		if(hymn == null) return;
 		
-		verseVariables.clear();
+		Context context = new Context();
 		Tune tune = hymn.getTune();
 		
 		// Add version number
-		String asString = "\\version \"" + versionNumber + "\"\n\n";
+		out.append(versionLine);
 		
 		// Add properties for image generation
-		asString += paperBlock + "\n";
-		asString += layoutBlock + "\n";
+		out.append(paperBlock).append('\n');
+		out.append(layoutBlock).append('\n');
 
 		// Add lyric vertical modifiers
-		asString += dropLyrics + "\n";
-		asString += raiseLyrics + "\n";
+		out.append(dropLyrics).append('\n');
+		out.append(raiseLyrics).append('\n');
 		
 		// Add variables for bars at end of hymn
-		asString += verseBar;
-		asString += endBar + "\n";
+		out.append(verseBar);
+		out.append(endBar).append('\n');
+		
+		// The blocks which only depend on the Tune are shared by every Text it is paired with
+		TuneFragments tuneFragments = getFragments(tune);
 		
 		// Add variable keyTime which sets the key, time and starting beat
-		asString += createKeyTime(tune) + "\n";
+		out.append(tuneFragments.keyTime).append('\n');
 
-		asString += createAlleluiaLyrics(tune) + "\n"; // Add alleluias
-		if(hymn.displayChorus()) asString += createChorus(tune) + "\n"; // Add chorus if it's to be displayed
-		
-		asString += createVoices(tune) + "\n";	// Add voices
-		asString += createVerses(hymn) + "\n";	// Add verses
+		out.append(tuneFragments.alleluias).append('\n'); // Add alleluias
+		if(hymn.displayChorus()) // Add chorus if it's to be displayed
+			out.append(tuneFragments.chorus).append('\n');
 		
-		asString += createHeader(hymn) + "\n"; // Add the header
-		asString += createScore(true, hymn.displayChorus()); // Create the score
+		out.append(tuneFragments.voices).append('\n'); // Add voices
+		createVerses(hymn, context, out); // Add verses
+		out.append('\n');
 		
-		return asString;
+		createHeader(hymn, out); // Add the header
+		out.append('\n');
+		createScore(true, hymn.displayChorus(), context, out); // Create the score
 	}
 	
 	/**
-	 * Transform a Tune into a LilyPond-formatted String which
-	 * can be used in LilyPond or to create a LilyPond file.
-	 * @param tune The Tune for which to make the LilyPond-formatted String.
-	 * @return The Tune as a LilyPond-formatted String.
-	 * @author Jason Petersen
+	 * Write a Tune in LilyPond format straight to the given
+	 * Appendable, e.g. a Writer or StringBuilder, without
+	 * building it as a String first. Writes nothing for null.
+	 * @param tune The Tune to write.
+	 * @param out Where to write the Tune.
+	 * @throws IOException The Appendable failed.
 	 */
-	String createString(Tune tune) {
-		if(tune == null) return "";
+	void write(Tune tune, Appendable out) throws IOException {
+		if(tune == null) return;
+		
+		Context context = new Context();
 		
 		// Add version number
-		String asString = "\\version \"" + versionNumber + "\"\n\n";
+		out.append(versionLine);
 		
 		// Add properties for image generation
-		asString += paperBlock + "\n";
-		asString += layoutBlock + "\n";
+		out.append(paperBlock).append('\n');
+		out.append(layoutBlock).append('\n');
 
 		// Add lyric vertical modifiers
-		asString += dropLyrics + "\n";
-		asString += raiseLyrics + "\n";
+		out.append(dropLyrics).append('\n');
+		out.append(raiseLyrics).append('\n');
 		
 		// Add variables for bars at end of hymn
-		asString += verseBar;
-		asString += endBar + "\n";
+		out.append(verseBar);
+		out.append(endBar).append('\n');
+		
+		TuneFragments tuneFragments = getFragments(tune);
 		
 		// Add variable keyTime which sets the key, time and starting beat
-		asString += createKeyTime(tune) + "\n";
+		out.append(tuneFragments.keyTime).append('\n');
 		
-		asString += createAlleluiaLyrics(tune) + "\n"; // Add alleluias
-		if(tune.hasChorus()) asString += createChorus(tune) + "\n"; // Add chorus if it's to be displayed
+		out.append(tuneFragments.alleluias).append('\n'); // Add alleluias
+		if(tune.hasChorus()) // Add chorus if it's to be displayed
+			out.append(tuneFragments.chorus).append('\n');
 		
 		// Add the voices
-		asString += createVoices(tune) + "\n";
-		
-		asString += createHeader(tune) + "\n"; // Add the header
-		asString += createScore(true, tune.hasChorus()); // Create the score
+		out.append(tuneFragments.voices).append('\n');
 		
-		return asString;
+		createHeader(tune, out); // Add the header
+		out.append('\n');
+		createScore(true, tune.hasChorus(), context, out); // Create the score
 	}
 	
 	/**
-	 * Transform a Tune into a LilyPond-formatted String which
-	 * can be used in LilyPond or to create a LilyPond file.
-	 * @param tune The Tune for which to make the LilyPond-formatted String.
-	 * @return The Tune as a LilyPond-formatted String.
-	 * @author Jason Petersen
+	 * Write a Text in LilyPond format straight to the given
+	 * Appendable, e.g. a Writer or StringBuilder, without
+	 * building it as a String first. Writes nothing for null.
+	 * @param text The Text to write.
+	 * @param out Where to write the Text.
+	 * @throws IOException The Appendable failed.
 	 */
-	String createString(Text text) {
-		if(text == null) return "";
-		verseVariables.clear();
+	void write(Text text, Appendable out) throws IOException {
+		if(text == null) return;
+		Context context = new Context();
 		
 		// Add version number
-		String asString = "\\version \"" + versionNumber + "\"\n\n";
+		out.append(versionLine);
 		
 		// Add properties for image generation
-		asString += paperBlock + "\n";
-		asString += layoutBlock + "\n";
+		out.append(paperBlock).append('\n');
+		out.append(layoutBlock).append('\n');
 
 		// Add lyric vertical modifiers
-		asString += dropLyrics + "\n";
-		asString += raiseLyrics + "\n";
+		out.append(dropLyrics).append('\n');
+		out.append(raiseLyrics).append('\n');
 		
 		// Add variables for bars at end of hymn
-		asString += endBar + "\n";
+		out.append(endBar).append('\n');
 		
 		// Add the voices
-		asString += createVerses(text) + "\n";
+		createVerses(text, context, out);
+		out.append('\n');
 		
-		asString += createHeader(text) + "\n"; // Add the header
-		asString += createScoreForText(); // Create the score
+		createHeader(text, out); // Add the header
+		out.append('\n');
+		createScoreForText(context, out); // Create the score
+	}
+	
+	/**
+	 * Write a Hymn in LilyPond format to the given stream as UTF-8,
+	 * e.g. the stdin of lilypond. The stream is flushed, not closed.
+	 * @param hymn The Hymn to write.
+	 * @param out Where to write the Hymn.
+	 * @throws IOException The stream failed.
+	 */
+	void write(Hymn hymn, OutputStream out) throws IOException {
+		Writer writer = createWriter(out);
+		write(hymn, writer);
+		writer.flush();
+	}
+	
+	/**
+	 * Write a Tune in LilyPond format to the given stream as UTF-8,
+	 * e.g. the stdin of lilypond. The stream is flushed, not closed.
+	 * @param tune The Tune to write.
+	 * @param out Where to write the Tune.
+	 * @throws IOException The stream failed.
+	 */
+	void write(Tune tune, OutputStream out) throws IOException {
+		Writer writer = createWriter(out);
+		write(tune, writer);
+		writer.flush();
+	}
+	
+	/**
+	 * Write a Text in LilyPond format to the given stream as UTF-8,
+	 * e.g. the stdin of lilypond. The stream is flushed, not closed.
+	 * @param text The Text to write.
+	 * @param out Where to write the Text.
+	 * @throws IOException The stream failed.
+	 */
+	void write(Text text, OutputStream out) throws IOException {
+		Writer writer = createWriter(out);
+		write(text, writer);
+		writer.flush();
+	}
+	
+	/**
+	 * Forget the LilyPond blocks kept for a Tune, e.g. because
+	 * the Database has replaced it with a new version. A Tune
+	 * which is changed never finds its old blocks, as they are
+	 * kept by its digest, so this only frees them sooner.
+	 * @param tune The Tune to forget.
+	 */
+	void invalidate(Tune tune) {
+		String key = tune.digest();
+		synchronized(fragments) {
+			fragments.remove(key);
+		}
+	}
+	
+	/**
+	 * Forget the LilyPond blocks kept for every Tune.
+	 */
+	void clearFragments() {
+		synchronized(fragments) {
+			fragments.clear();
+		}
+	}
+	
+	/**
+	 * Combine several LilyPond-formatted Strings, as made by createString,
+	 * into one String which LilyPond renders in a single run. Each String
+	 * becomes its own book, whose images are named by the given name rather
+	 * than the name of the output file. LilyPond reads the books in order,
+	 * so each one uses the variables defined just before it.
+	 * @param sources The LilyPond-formatted Strings to combine.
+	 * @param names The name of the images for each String, without an extension.
+	 * @return The combined LilyPond-formatted String.
+	 */
+	String createBatch(ArrayList<String> sources, ArrayList<String> names) {
+		String version = "\\version \"" + versionNumber + "\"\n\n";
+		StringBuilder batch = new StringBuilder(version);
+		
+		for(int i=0; i<sources.size(); i++) {
+			String asString = sources.get(i);
+			if(asString.startsWith(version)) asString = asString.substring(version.length());
+			
+			// createString always ends with the header and then the score, which make up the book
+			int book = asString.lastIndexOf("\\header {");
+			if(book < 0) continue;
+			
+			batch.append(asString, 0, book);
+			batch.append("\\book {\n");
+			batch.append("\\bookOutputName \"").append(names.get(i)).append("\"\n");
+			batch.append(asString, book, asString.length());
+			batch.append("}\n\n");
+		}
 		
-		return asString;
+		return batch.toString();
 	}
 	
 	/* ---------- Helper functions to create the LilyPond variables ---------- */
 	
+	/**
+	 * Get the LilyPond blocks which only depend on the given Tune,
+	 * creating them if they are not kept already. The blocks are
+	 * kept by the digest of the Tune, so a Tune which is changed,
+	 * e.g. its starting beat or melody, gets new ones.
+	 * @param tune The Tune for which to get the blocks.
+	 * @return The blocks for the Tune.
+	 * @throws IOException The Appendable failed.
+	 */
+	private TuneFragments getFragments(Tune tune) throws IOException {
+		String key = tune.digest();
+		TuneFragments tuneFragments;
+		synchronized(fragments) {
+			tuneFragments = fragments.get(key);
+		}
+		if(tuneFragments != null)
+			return tuneFragments;
+		
+		// Two threads may both create the blocks, but they create the same ones
+		tuneFragments = new TuneFragments(tune);
+		synchronized(fragments) {
+			fragments.put(key, tuneFragments);
+		}
+		return tuneFragments;
+	}
+	
 	/**
 	 * Create the score for a Hymn. All SATB Voices are added as well as all
 	 * the verses for the Hymn which are specified to be displayed.
 	 * NOTE: When adding parts, the music is named "partVoice," where part is
 	 * the name of the part in uppercase (e.g. ALTO).  This is because of the
 	 * way LilyPondUtility.makeVoice names the voice variables.
-	 * @param song The Hymn to transform into a LilyPond-formatted String.
-	 * @return The Hymn score formatted as a LilyPond String.
+	 * @param addLyrics Whether to add the verses.
+	 * @param addChorus Whether to add the chorus.
+	 * @param context The state of the current call, holding the verses to add.
+	 * @param out Where to write the score.
+	 * @throws IOException The Appendable failed.
 	 * @author Jason Petersen
 	 */
-	private String createScore(boolean addLyrics, boolean addChorus) {
-		String bar = (addChorus) ? "\\verseBar" : "\\endBar";
-		
-		String soprano = "\\SOPRANOVoice " + bar;		
-		String alto = "\\ALTOVoice " + bar;
-		String tenor = "\\TENORVoice " + bar;
-		String bass = "\\BASSVoice " + bar;
-		
-		if(addChorus) {
-			soprano += " \\SOPRANOChorus \\endBar";
-			alto += " \\ALTOChorus \\endBar";
-			tenor += " \\TENORChorus \\endBar";
-			bass += " \\BASSChorus \\endBar";
-		}
-		
+	private void createScore(boolean addLyrics, boolean addChorus, Context context, Appendable out) throws IOException {
 		// Create the score
-		String toReturn = "\\score {\n";
+		out.append("\\score {\n");
 			// Add ChoirStaff
-			toReturn += "\t\\new ChoirStaff <<\n";
+			out.append("\t\\new ChoirStaff <<\n");
 				// Add treble clef
-				toReturn += "\t\t\\new Staff <<\n";		
-					toReturn += "\t\t\t\\clef \"treble\"\n";
-					toReturn += "\t\t\t\\new Voice = \"SOPRANO\" { \\voiceOne \\keyTime " + soprano + " }\n";	// Add soprano part
-					toReturn += "\t\t\t\\new Voice = \"ALTO\" { \\voiceTwo " + alto + " }\n";	// Add alto part
+				out.append("\t\t\\new Staff <<\n");
+					out.append("\t\t\t\\clef \"treble\"\n");
+					out.append("\t\t\t\\new Voice = \"SOPRANO\" { \\voiceOne \\keyTime ");	// Add soprano part
+					createPart("SOPRANO", addChorus, out);
+					out.append(" }\n");
+					out.append("\t\t\t\\new Voice = \"ALTO\" { \\voiceTwo ");	// Add alto part
+					createPart("ALTO", addChorus, out);
+					out.append(" }\n");
 					// Add lyrics
 					if(addLyrics) {
 						boolean first = true;
-						for(String verseVar : verseVariables){
-							toReturn += "\t\t\t\\new Lyrics { \\" + verseVar;
-							if(addChorus && first) toReturn += " \\Chorus";
-							toReturn += " }\n";
+						for(String verseVar : context.verseVariables){
+							out.append("\t\t\t\\new Lyrics { \\").append(verseVar);
+							if(addChorus && first) out.append(" \\Chorus");
+							out.append(" }\n");
 							first = false;
 						}
 					}
-				toReturn += "\t\t>>\n";
+				out.append("\t\t>>\n");
 				// Add bass clef
-				toReturn += "\t\t\\new Staff <<\n";	
-					toReturn += "\t\t\t\\clef \"bass\"\n";
-					toReturn += "\t\t\t\\new Voice = \"TENOR\" { \\voiceOne \\keyTime " + tenor + " }\n";	// Add tenor part
-					toReturn += "\t\t\t\\new Voice = \"BASS\" { \\voiceTwo " + bass + " }\n";	// Add bass part
-				toReturn += "\t\t>>\n";
-			toReturn += "\t>>\n";
-		toReturn += "}\n";
-		
-		return toReturn;
+				out.append("\t\t\\new Staff <<\n");
+					out.append("\t\t\t\\clef \"bass\"\n");
+					out.append("\t\t\t\\new Voice = \"TENOR\" { \\voiceOne \\keyTime ");	// Add tenor part
+					createPart("TENOR", addChorus, out);
+					out.append(" }\n");
+					out.append("\t\t\t\\new Voice = \"BASS\" { \\voiceTwo ");	// Add bass part
+					createPart("BASS", addChorus, out);
+					out.append(" }\n");
+				out.append("\t\t>>\n");
+			out.append("\t>>\n");
+		out.append("}\n");
+	}
+	
+	/**
+	 * Write the music of one part for the score, i.e. its voice and
+	 * the bar after it, then its chorus and the end bar if there is one.
+	 * @param part The name of the part in uppercase, e.g. ALTO.
+	 * @param addChorus Whether to add the chorus.
+	 * @param out Where to write the part.
+	 * @throws IOException The Appendable failed.
+	 */
+	private void createPart(String part, boolean addChorus, Appendable out) throws IOException {
+		out.append('\\').append(part).append("Voice ");
+		out.append((addChorus) ? "\\verseBar" : "\\endBar");
+		if(addChorus)
+			out.append(" \\").append(part).append("Chorus \\endBar");
 	}
 	
 	/**
@@ -297,84 +535,92 @@ final class LilyPondUtility extends Utility {
 	 * This is done by adding lyrics for all the verseVariables
 	 * as set by createVerses(text) and the verseSkips variable
 	 * again set by createVerses(text).
-	 * @return The dummy score for the Text.
+	 * @param context The state of the current call, holding the verses to add.
+	 * @param out Where to write the score.
+	 * @throws IOException The Appendable failed.
 	 * @author Jason Petersen
 	 */
-	private String createScoreForText() {
+	private void createScoreForText(Context context, Appendable out) throws IOException {
 		// Create the score
-		String toReturn = "\\score {\n";
+		out.append("\\score {\n");
 			// Add ChoirStaff
-			toReturn += "\t\\new ChoirStaff <<\n";
+			out.append("\t\\new ChoirStaff <<\n");
 				// Add treble clef
-				toReturn += "\t\t\\new Staff <<\n";		
-					toReturn += "\t\t\t\\clef \"treble\"\n";
-					toReturn += "\t\t\t\\new Voice = \"TREBLE\" { \\verseSkips \\endBar }\n";
+				out.append("\t\t\\new Staff <<\n");
+					out.append("\t\t\t\\clef \"treble\"\n");
+					out.append("\t\t\t\\new Voice = \"TREBLE\" { \\verseSkips \\endBar }\n");
 					// Add lyrics
-					for(String verseVar : verseVariables)
-						toReturn += "\t\t\t\\new Lyrics { \\" + verseVar + " }\n";
-				toReturn += "\t\t>>\n";
+					for(String verseVar : context.verseVariables)
+						out.append("\t\t\t\\new Lyrics { \\").append(verseVar).append(" }\n");
+				out.append("\t\t>>\n");
 				// Add bass clef
-				toReturn += "\t\t\\new Staff <<\n";	
-					toReturn += "\t\t\t\\clef \"bass\"\n";
-					toReturn += "\t\t\t\\new Voice = \"BASS\" { \\verseSkips \\endBar }\n";
-				toReturn += "\t\t>>\n";
-			toReturn += "\t>>\n";
-		toReturn += "}\n";
-		
-		return toReturn;
+				out.append("\t\t\\new Staff <<\n");
+					out.append("\t\t\t\\clef \"bass\"\n");
+					out.append("\t\t\t\\new Voice = \"BASS\" { \\verseSkips \\endBar }\n");
+				out.append("\t\t>>\n");
+			out.append("\t>>\n");
+		out.append("}\n");
 	}
 	
 	/** 
 	 * Create header block for the LilyPond file.
 	 * @param hymn The Hymn used to create the header.
-	 * @return The LilyPond-formatted String representing the header.
+	 * @param out Where to write the header.
+	 * @throws IOException The Appendable failed.
 	 * @author Jason Petersen
 	 */
-	private String createHeader(Hymn hymn) {
+	private void createHeader(Hymn hymn, Appendable out) throws IOException {
 		Text text = hymn.getText();
 		Tune tune = hymn.getTune();
 		
-		String toReturn = "\\header {\n";
-			toReturn += "\ttitle = \"" + text.getName() + "\"\n";
-			toReturn += "\tsubtitle = \"" + tune.getName() + "\"\n";
-			toReturn += "\tmeter = \"" + tune.getMeter().toString() + "\"\n";
-			toReturn += "\tcomposer = " + createAuthor(tune.getAuthor(), tune.getYear()) + "\n";
-			toReturn += "\tpoet = " + createAuthor(text.getAuthor(), text.getYear()) + "\n";
-			toReturn += "\ttagline = \"" + tagline + "\"\n";
-		toReturn += "}\n";
-		return toReturn;
+		out.append("\\header {\n");
+			out.append("\ttitle = \"").append(text.getName()).append("\"\n");
+			out.append("\tsubtitle = \"").append(tune.getName()).append("\"\n");
+			out.append("\tmeter = \"").append(tune.getMeter().toString()).append("\"\n");
+			out.append("\tcomposer = ");
+			createAuthor(tune.getAuthor(), tune.getYear(), out);
+			out.append('\n');
+			out.append("\tpoet = ");
+			createAuthor(text.getAuthor(), text.getYear(), out);
+			out.append('\n');
+			out.append("\ttagline = \"").append(tagline).append("\"\n");
+		out.append("}\n");
 	}
 	
 	/** 
 	 * Create header block for the LilyPond file.
 	 * @param tune The Tune used to create the header.
-	 * @return The LilyPond-formatted String representing the header.
+	 * @param out Where to write the header.
+	 * @throws IOException The Appendable failed.
 	 * @author Jason Petersen
 	 */
-	private String createHeader(Tune tune) {
-		String toReturn = "\\header {\n";
-			toReturn += "\ttitle = \"" + tune.getName() + "\"\n";
-			toReturn += "\tmeter = \"" + tune.getMeter().toString() + "\"\n";
-			toReturn += "\tcomposer = " + createAuthor(tune.getAuthor(), tune.getYear()) + "\n";
-			toReturn += "\ttagline = \"" + tagline + "\"\n";
-		toReturn += "}\n";
-		return toReturn;
+	private void createHeader(Tune tune, Appendable out) throws IOException {
+		out.append("\\header {\n");
+			out.append("\ttitle = \"").append(tune.getName()).append("\"\n");
+			out.append("\tmeter = \"").append(tune.getMeter().toString()).append("\"\n");
+			out.append("\tcomposer = ");
+			createAuthor(tune.getAuthor(), tune.getYear(), out);
+			out.append('\n');
+			out.append("\ttagline = \"").append(tagline).append("\"\n");
+		out.append("}\n");
 	}
 
 	/** 
 	 * Create header block for the LilyPond file.
 	 * @param text The Text used to create the header.
-	 * @return The LilyPond-formatted String representing the header.
+	 * @param out Where to write the header.
+	 * @throws IOException The Appendable failed.
 	 * @author Jason Petersen
 	 */
-	private String createHeader(Text text) {
-		String toReturn = "\\header {\n";
-			toReturn += "\ttitle = \"" + text.getName() + "\"\n";
-			toReturn += "\tmeter = \"" + text.getMeter().toString() + "\"\n";
-			toReturn += "\tpoet = " + createAuthor(text.getAuthor(), text.getYear()) + "\n";
-			toReturn += "\ttagline = \"" + tagline + "\"\n";
-		toReturn += "}\n";
-		return toReturn;
+	private void createHeader(Text text, Appendable out) throws IOException {
+		out.append("\\header {\n");
+			out.append("\ttitle = \"").append(text.getName()).append("\"\n");
+			out.append("\tmeter = \"").append(text.getMeter().toString()).append("\"\n");
+			out.append("\tpoet = ");
+			createAuthor(text.getAuthor(), text.getYear(), out);
+			out.append('\n');
+			out.append("\ttagline = \"").append(tagline).append("\"\n");
+		out.append("}\n");
 	}
 	
 	/** 
@@ -382,36 +628,38 @@ final class LilyPondUtility extends Utility {
 	 * This is a little piece of LilyPond flair.
 	 * @param name The name of the poet or composer.
 	 * @param date The year the poet/composer wrote the piece.
-	 * @return A LilyPond-formatted String containing
-	 * instructions to italicize the given information.
+	 * @param out Where to write the LilyPond instructions to
+	 * italicize the given information.
+	 * @throws IOException The Appendable failed.
 	 * @author Jason Petersen
 	 */
-	private String createAuthor(String name, int date) {
-		String toReturn = "\\markup \\italic { \"";
-		toReturn += name;
-		if(date != 0) toReturn += ", " + date;
-		toReturn += "\" }";
-		return toReturn;
+	private void createAuthor(String name, int date, Appendable out) throws IOException {
+		out.append("\\markup \\italic { \"");
+		out.append(name);
+		if(date != 0) out.append(", ").append(Integer.toString(date));
+		out.append("\" }");
 	}
 	
 	/** 
 	 * Create LilyPond variable keyTime which sets the key, time and starting beat
 	 * @param tune The Tune used to get the key, time signature and starting beat.
-	 * @return The String representing the LilyPond variables keyTime and startBeat.
+	 * @param out Where to write the LilyPond variables keyTime and startBeat.
+	 * @throws IOException The Appendable failed.
 	 * @author Jason Petersen
 	 */
-	private String createKeyTime(Tune tune) {
+	private void createKeyTime(Tune tune, Appendable out) throws IOException {
 		TimeSignature time = tune.getTimeSignature();
 		double start = tune.getStartingBeat();
 		
-		String toReturn = "keyTime = { " + makeKeySignature(tune.getKeySignature()) + " ";
-		toReturn += makeTimeSignature(time);
+		out.append("keyTime = { ");
+		makeKeySignature(tune.getKeySignature(), out);
+		out.append(' ');
+		makeTimeSignature(time, out);
 		
 		int smallestInFirst = smallestNotesInFirstMeasure(time, start);
-		if(smallestInFirst != 0) toReturn += " \\partial " + increaseFromSmallestNote(smallestInFirst);
+		if(smallestInFirst != 0) out.append(" \\partial ").append(increaseFromSmallestNote(smallestInFirst));
 		
-		toReturn += " }\n";
-		return toReturn;
+		out.append(" }\n");
 	}
 	
 	/**
@@ -421,24 +669,25 @@ final class LilyPondUtility extends Utility {
 	 * Alleluias are integrated automatically. The alleluia lyrics,
 	 * however, need to be created with a separate call to createAlleluiaLyrics.
 	 * @param tune The tune for which to build the block of Voices.
-	 * @return The block of Voices for the given Tune.
+	 * @param out Where to write the block of Voices.
+	 * @throws IOException The Appendable failed.
 	 * @author Jason Petersen
 	 */
-	private String createVoices(Tune tune) {
+	private void createVoices(Tune tune, Appendable out) throws IOException {
 		Music music = tune.getMusic();
-		if(music == null) return "";
-		
-		String toReturn = "";
+		if(music == null) return;
 		
 		for(Iterator<Voice> voices = music.iterator(); voices.hasNext(); ) {
 			Voice v = voices.next();
-			toReturn += v.getPart().toString().toUpperCase() + "Voice\t= {"; 
+			out.append(v.getPart().toString().toUpperCase()).append("Voice\t= {"); 
 			
 			int line = 1;
 			for(Iterator<Line<Unit>> lines = v.iterator(); lines.hasNext(); ) {
 				for(Iterator<Unit> units = lines.next().iterator(); units.hasNext(); )
-					for(Iterator<Note> notes = units.next().iterator(); notes.hasNext(); )
-						toReturn += makeNote(notes.next()) + " ";
+					for(Iterator<Note> notes = units.next().iterator(); notes.hasNext(); ) {
+						makeNote(notes.next(), out);
+						out.append(' ');
+					}
 				
 				// Add the alleluia notes for the current line, if it exists
 				Refrain alleluia = tune.getAlleluiaForLine(line);
@@ -447,7 +696,8 @@ final class LilyPondUtility extends Utility {
 					for(Iterator<Line<Unit>> alleluiaLines = alleluiaVoice.iterator(); alleluiaLines.hasNext(); ) {
 						for(Iterator<Unit> alleluiaUnits = alleluiaLines.next().iterator(); alleluiaUnits.hasNext(); ) {
 							for(Iterator<Note> notes = alleluiaUnits.next().iterator(); notes.hasNext(); ) {
-								toReturn += makeNote(notes.next()) + " ";
+								makeNote(notes.next(), out);
+								out.append(' ');
 							}
 						}
 					}
@@ -456,26 +706,25 @@ final class LilyPondUtility extends Utility {
 				line++;
 			}
 			
-			toReturn += "}\n";
+			out.append("}\n");
 		}
-		
-		return toReturn;
 	}
 	
 	/**
 	 * Create the block of verses as LilyPond variables,
 	 * using the Tune for the Hymn to determine syllable lengths.
 	 * @param hymn Hymn for which to create the verses block.
-	 * @return The block of verses for the given Hymn as LilyPond variables.
+	 * @param context The state of the current call, to which the verses are added.
+	 * @param out Where to write the block of verses.
+	 * @throws IOException The Appendable failed.
 	 * @author Jason Petersen
 	 */
-	private String createVerses(Hymn hymn) {
+	private void createVerses(Hymn hymn, Context context, Appendable out) throws IOException {
 		int totalToDisplay = hymn.numberOfVersesToDisplay();
-		if(totalToDisplay < 1) return "";
+		if(totalToDisplay < 1) return;
 
 		Tune tune = hymn.getTune();
 		Text text = hymn.getText();
-		String toReturn = "";
 		
 		int verseNumber = 1;
 		boolean skip = false;
@@ -484,13 +733,13 @@ final class LilyPondUtility extends Utility {
 			for(Iterator<Lyric> verses = text.iterator(); verses.hasNext(); ){
 				if(hymn.display(verseNumber)){ // Only add verses we want to display
 					String name = "Verse" + numberStrings[verseNumber];
-					toReturn += name + "\t= { \\set stanza = #\"" + (verseNumber) + ". \" \\lyricmode { ";
-					verseVariables.add(name);
+					out.append(name).append("\t= { \\set stanza = #\"").append(numberToken(verseNumber)).append(". \" \\lyricmode { ");
+					context.verseVariables.add(name);
 					
-					toReturn += makeHymnLyric(verses.next(), tune, skip, 0);
-					toReturn += makeHymnLyric(verses.next(), tune, skip, text.getMeter().numberOfLines());
+					makeHymnLyric(verses.next(), tune, skip, 0, context, out);
+					makeHymnLyric(verses.next(), tune, skip, text.getMeter().numberOfLines(), context, out);
 					
-					toReturn += " } }\n";
+					out.append(" } }\n");
 					
 					skip = true;
 				}
@@ -507,47 +756,45 @@ final class LilyPondUtility extends Utility {
 			for(Iterator<Lyric> verses = text.iterator(); verses.hasNext(); ){
 				if(hymn.display(verseNumber)){ // Only add verses we want to display
 					String name = "Verse" + numberStrings[verseNumber];
-					toReturn += name + "\t= { \\set stanza = #\"" + verseNumber + ". \" \\lyricmode { ";
-					toReturn += makeHymnLyric(verses.next(), tune, skip, 0) + " } }\n";
-					verseVariables.add(name);
+					out.append(name).append("\t= { \\set stanza = #\"").append(numberToken(verseNumber)).append(". \" \\lyricmode { ");
+					makeHymnLyric(verses.next(), tune, skip, 0, context, out);
+					out.append(" } }\n");
+					context.verseVariables.add(name);
 					skip = true;
 				}
 				else verses.next(); // Advance the iterator
 				verseNumber++;
 			}
 		}
-		
-		return toReturn;
 	}
 	
 	/**
 	 * Create the verses and verseSkip variable
 	 * for a text, not using any tune.
 	 * @param text The text for which to create the verses.
-	 * @return The verses as a lilypond block.
+	 * @param context The state of the current call, to which the verses are added.
+	 * @param out Where to write the verses as a lilypond block.
+	 * @throws IOException The Appendable failed.
 	 * @author Jason Petersen
 	 */
-	private String createVerses(Text text) {
-		String toReturn = "";
-		
-		toReturn += "verseSkips = \\repeat unfold " + text.getMeter().numberOfSyllables() + " { \\skip 4 }\n\n";
+	private void createVerses(Text text, Context context, Appendable out) throws IOException {
+		out.append("verseSkips = \\repeat unfold ").append(Integer.toString(text.getMeter().numberOfSyllables())).append(" { \\skip 4 }\n\n");
 		
 		int verseNumber = 1;
 		for(Iterator<Lyric> verses = text.iterator(); verses.hasNext(); ) {
 			String name = "Verse" + numberStrings[verseNumber];
-			toReturn += name + "\t= { \\set stanza = #\"" + (verseNumber) + ". \" \\lyricmode { ";
-			verseVariables.add(name);
+			out.append(name).append("\t= { \\set stanza = #\"").append(numberToken(verseNumber)).append(". \" \\lyricmode { ");
+			context.verseVariables.add(name);
 			
 			for(Iterator<Line<Word>> lines = verses.next().iterator(); lines.hasNext(); ) {
 				for(Iterator<Word> words = lines.next().iterator(); words.hasNext(); ) {
-					toReturn += buildLyricSyllable(words.next(), 4);
+					buildLyricSyllable(words.next(), 4, out);
 				}
 			}
 			
-			toReturn += " } }\n";
+			out.append(" } }\n");
 			verseNumber++;
 		}
-		return toReturn;
 	}
 	
 	/**
@@ -555,11 +802,11 @@ final class LilyPondUtility extends Utility {
 	 * For each alleluia, a skip variable is also created, e.g.
 	 * \AlleluiaOne and \skipAlleluiaOne
 	 * @param tune The Tune which is used to get the alleluias.
-	 * @return A block of all the alleluia lyrics/skips
+	 * @param out Where to write the block of all the alleluia lyrics/skips.
+	 * @throws IOException The Appendable failed.
 	 * @author Jason Petersen
 	 */
-	private String createAlleluiaLyrics(Tune tune) {
-		String toReturn = "";
+	private void createAlleluiaLyrics(Tune tune, Appendable out) throws IOException {
 		Meter meter = tune.getMeter();
 		
 		for(int i=0; i<meter.numberOfLines(); i++){
@@ -572,7 +819,7 @@ final class LilyPondUtility extends Utility {
 				Voice melody = alleluia.getMusic().getVoiceFor(tune.getMelody());
 				
 				// Create alleluia lyric
-				toReturn += createRefrainLyric(lyric, melody, name);
+				createRefrainLyric(lyric, melody, name, out);
 				
 				// Create alleluia lyric skip
 				int skip = 0;
@@ -583,11 +830,9 @@ final class LilyPondUtility extends Utility {
 					}
 				}
 				// I'm not sure why we need to subtract here, but it seems to work
-				toReturn += "skip" + name + "\t= \\repeat unfold " + (skip-1) + " { \\lyricmode { _ } }\n"; // See http://old.nabble.com/skip-lyrics-td31109981.html
+				out.append("skip").append(name).append("\t= \\repeat unfold ").append(Integer.toString(skip-1)).append(" { \\lyricmode { _ } }\n"); // See http://old.nabble.com/skip-lyrics-td31109981.html
 			}
 		}
-		
-		return toReturn;
 	}
 	
 	/**
@@ -596,11 +841,11 @@ final class LilyPondUtility extends Utility {
 	 * if the tune has a chorus.
 	 * @param tune The Tune for which to get the chorus Refrain and melody
 	 * to build the chorus LilyPond variables.
-	 * @return The block of LilyPond chorus variables.
+	 * @param out Where to write the block of LilyPond chorus variables.
+	 * @throws IOException The Appendable failed.
 	 * @author Jason Petersen
 	 */
-	private String createChorus(Tune tune) {
-		String toReturn = "";
+	private void createChorus(Tune tune, Appendable out) throws IOException {
 		Refrain chorus = tune.getChorus();
 		
 		if(chorus != null){
@@ -608,26 +853,26 @@ final class LilyPondUtility extends Utility {
 			Music music = chorus.getMusic();
 			for(Iterator<Voice> voices = music.iterator(); voices.hasNext(); ){
 				Voice v = voices.next();
-				toReturn += v.getPart().toString().toUpperCase() + "Chorus\t= {";
+				out.append(v.getPart().toString().toUpperCase()).append("Chorus\t= {");
 				
 				// Refrains should only have one line, we're assuming valid input here
 				for(Iterator<Line<Unit>> lines = v.iterator(); lines.hasNext(); )
 					for(Iterator<Unit> units = lines.next().iterator(); units.hasNext(); )
-						for(Iterator<Note> notes = units.next().iterator(); notes.hasNext(); )
-							toReturn += makeNote(notes.next()) + " ";
+						for(Iterator<Note> notes = units.next().iterator(); notes.hasNext(); ) {
+							makeNote(notes.next(), out);
+							out.append(' ');
+						}
 				
-				toReturn += "}\n";
+				out.append("}\n");
 			}
-			toReturn += "\n";
+			out.append('\n');
 			
 			// Get the chorus voice corresponding to the tune's melody
 			Voice melody = chorus.getMusic().getVoiceFor(tune.getMelody());
 			
 			// Add chorus lyrics
-			toReturn += createRefrainLyric(chorus.getLyric(), melody, "Chorus");
+			createRefrainLyric(chorus.getLyric(), melody, "Chorus", out);
 		}
-		
-		return toReturn;
 	}
 	
 	/**
@@ -640,13 +885,12 @@ final class LilyPondUtility extends Utility {
 	 * @param melody The melody Voice used to determine the length of
 	 * each of the Words.
 	 * @param name The name of the variable to make, e.g. "Chorus" or "AlleluiaOne"
-	 * @return A LilyPond variable representing the lyric, called the given name.
+	 * @param out Where to write the LilyPond variable representing the lyric.
+	 * @throws IOException The Appendable failed.
 	 * @author Jason Petersen
 	 */
-	private String createRefrainLyric(Lyric lyric, Voice melody, String name) {
-		String toReturn = "";
-		
-		toReturn += name + "\t= \\lyricmode { \\dropLyrics ";
+	private void createRefrainLyric(Lyric lyric, Voice melody, String name, Appendable out) throws IOException {
+		out.append(name).append("\t= \\lyricmode { \\dropLyrics ");
 		
 		Iterator<Line<Unit>> melodyLines = melody.iterator();
 		Iterator<Line<Word>> lyricLines = lyric.iterator();
@@ -657,12 +901,10 @@ final class LilyPondUtility extends Utility {
 			Iterator<Unit> units = melodyLines.next().iterator();
 			Iterator<Word> words = lyricLines.next().iterator();
 			while(units.hasNext() && words.hasNext())
-				toReturn += buildLyricSyllable(words.next(), units.next().duration()); 
+				buildLyricSyllable(words.next(), units.next().duration(), out); 
 		}
 			
-		toReturn += "\\raiseLyrics }\n";
-		
-		return toReturn;
+		out.append("\\raiseLyrics }\n");
 	}
 
 	/* ---------- Helper methods to make a LilyPond formatted String from model objects ---------- */
@@ -675,15 +917,19 @@ final class LilyPondUtility extends Utility {
 	 * is the Unit associated with the Word in the Lyric needs to be repeated,
 	 * we need to add those Words twice. The algorithm below has additonal comments
 	 * which should make it relatively easy to follow.
+	 * The result is NOT enclosed by brackets and does not create a variable,
+	 * it will need to be wrapped as such. It is built in the context's buffer
+	 * first so the whitespace at either end can be trimmed before it is written.
 	 * @param lyric The Lyric to format properly.
 	 * @param tune The Tune used to get the Units for the melody.
 	 * @param skip Whether or not to skip the alleluia lyrics.
 	 * @param linesProcessed The number of lines processed so far, used for lyric doubling.
-	 * @return A LilyPond formatted String NOT enclosed by brackets representing the
-	 * given Lyric. This does not create a variable, the result will need to be wrapped as such.
+	 * @param context The state of the current call, holding the buffer.
+	 * @param out Where to write the LilyPond formatted Lyric.
+	 * @throws IOException The Appendable failed.
 	 * @author Jason Petersen
 	 */
-	private String makeHymnLyric(Lyric lyric, Tune tune, boolean skip, int linesProcessed) {
+	private void makeHymnLyric(Lyric lyric, Tune tune, boolean skip, int linesProcessed, Context context, Appendable out) throws IOException {
 		Part melody = tune.getMelody();
 		
 		Iterator<Line<Word>> lyricLines = lyric.iterator();
@@ -706,7 +952,8 @@ final class LilyPondUtility extends Utility {
 		Iterator<Unit> units = null;
 		Unit u = null;
 		
-		String toReturn = "";
+		StringBuilder buffer = context.buffer;
+		buffer.setLength(0);
 		int line = 1;
 		int index = 0;
 		
@@ -720,7 +967,7 @@ final class LilyPondUtility extends Utility {
 					w = lyricWords.get(index);
 				else {
 					for(int i=0; i<repeatedWords.size(); i++){
-						toReturn += buildLyricSyllable(repeatedWords.get(i), u.duration());
+						buildLyricSyllable(repeatedWords.get(i), u.duration(), buffer);
 						if(!units.hasNext()) {
 							if(!melodyLines.hasNext())
 								break;
@@ -738,7 +985,7 @@ final class LilyPondUtility extends Utility {
 				// If we're no longer repeating, need to add repeats
 				if(!repeat && previousRepeat){
 					for(int i=0; i<repeatedWords.size(); i++){
-						toReturn += buildLyricSyllable(repeatedWords.get(i), u.duration());
+						buildLyricSyllable(repeatedWords.get(i), u.duration(), buffer);
 						if(!units.hasNext())
 							units = melodyLines.next().iterator();
 						u = units.next();
@@ -747,7 +994,7 @@ final class LilyPondUtility extends Utility {
 				}
 				
 				// Add the current word using the corresponding unit for duration
-				toReturn += buildLyricSyllable(w, u.duration());
+				buildLyricSyllable(w, u.duration(), buffer);
 				
 				previousRepeat = repeat;
 				index++;
@@ -756,75 +1003,119 @@ final class LilyPondUtility extends Utility {
 			// Add alleluia placeholder, if any
 			Refrain alleluia = tune.getAlleluiaForLine(line);
 			if(alleluia != null){
-				toReturn += "\\";
-				if(skip) toReturn += "skip";
-				toReturn += "Alleluia" + numberStrings[line] + " ";
+				buffer.append('\\');
+				if(skip) buffer.append("skip");
+				buffer.append("Alleluia").append(numberStrings[line]).append(' ');
 			}
 			
 			line++;
 		}
 		
-		return toReturn.trim();
+		// Trim the same characters as String.trim
+		int start = 0;
+		int end = buffer.length();
+		while(start < end && buffer.charAt(start) <= ' ') start++;
+		while(end > start && buffer.charAt(end-1) <= ' ') end--;
+		out.append(buffer, start, end);
 	}
 	
 	/** 
-	 * Write out KeySignature to LilyPond-formatted String.
-	 * @param key KeySignature to write out to LilyPond-formatted String.
-	 * @return The KeySignature as a LilyPond-formatted String.
+	 * Write out KeySignature in LilyPond format.
+	 * @param key KeySignature to write out in LilyPond format.
+	 * @param out Where to write the KeySignature.
+	 * @throws IOException The Appendable failed.
 	 * @author Jason Petersen
 	 */
-	private String makeKeySignature(KeySignature key) {
+	private void makeKeySignature(KeySignature key, Appendable out) throws IOException {
 		String name = key.majorName();
 		StringTokenizer token = new StringTokenizer(name.toLowerCase());
 	
 		// Add key
-		String toReturn = "\\key " + token.nextToken();
+		out.append("\\key ").append(token.nextToken());
 		
 		// Add flat or sharp to key		
 		String next = token.nextToken();
 		if(next.equals("flat")){
-			toReturn += flat;
+			out.append(flat);
 			next = token.nextToken();
 		}
 		else if(next.equals("sharp")){
-			toReturn += sharp;
+			out.append(sharp);
 			next = token.nextToken();
 		}
 		
 		// Add major or minor;
-		toReturn += " \\" + next; 
-			
-		return toReturn;
+		out.append(" \\").append(next); 
 	}
 
 	/**
-	 * Write out TimeSignature to LilyPond-formatted String.
-	 * @param time TimeSignature to write out to LilyPond-formatted String.
-	 * @return The TimeSignature as an LilyPond-formatted String.
+	 * Write out TimeSignature in LilyPond format.
+	 * @param time TimeSignature to write out in LilyPond format.
+	 * @param out Where to write the TimeSignature.
+	 * @throws IOException The Appendable failed.
 	 * @author Jason Petersen
 	 */
-	private String makeTimeSignature(TimeSignature time) {
-		String toReturn = "\\time ";
-		toReturn += time.getNumBeats() + "/" + time.getBeatLength();
-		return toReturn;
+	private void makeTimeSignature(TimeSignature time, Appendable out) throws IOException {
+		out.append("\\time ");
+		out.append(numberToken(time.getNumBeats())).append('/').append(numberToken(time.getBeatLength()));
 	}
 	
 	/**
-	 * Write out Note to LilyPond-formatted String.
-	 * @param note Note to write out to LilyPond-formatted String.
-	 * @return The Note as an LilyPond-formatted String.
+	 * Write out Note in LilyPond format. The pitch and
+	 * duration are looked up rather than built each time.
+	 * @param note Note to write out in LilyPond format.
+	 * @param out Where to write the Note.
+	 * @throws IOException The Appendable failed.
 	 * @author Jason Petersen
 	 */
-	private String makeNote(Note note) {
-		Slur slur = note.slurStatus();
-		Accidental accidental = note.getAccidental();
-		String pitch = note.getPitchName().toLowerCase();
+	private void makeNote(Note note, Appendable out) throws IOException {
+		if(note.isRest()) {
+			out.append('r').append(numberToken(note.getDurationDenom()));
+			return;
+		}
+		
+		// Add pitch, with its accidental and octave
+		out.append(pitchToken(note.getPitchName(), note.getAccidental()));
+		
+		// Add duration
+		out.append(numberToken(note.getDurationDenom()));
 		
-		String toReturn = "";
-		if(note.isRest()) return "r" + note.getDurationDenom();
+		// Add dot
+		if(note.isDotted()) out.append('.');
 		
-		// Add pitch
-		toReturn += pitch.charAt(0) + "";
+		// Add tie
+		if(note.startsTie()) out.append('~');
+		
+		// Add slur
+		Slur slur = note.slurStatus();
+		if(slur.equals(Slur.BEGIN)) out.append('(');
+		if(slur.equals(Slur.END)) out.append(')');
+	}
+	
+	/**
+	 * Get the LilyPond pitch for a note, looking it up
+	 * if it is one of the pitches worked out up front.
+	 * @param pitch The pitch name of the note, e.g. Bf4.
+	 * @param accidental The Accidental of the note.
+	 * @return The pitch as a LilyPond-formatted String, e.g. bes'
+	 */
+	private String pitchToken(String pitch, Accidental accidental) {
+		char letter = Character.toLowerCase(pitch.charAt(0));
+		char octave = pitch.charAt(pitch.length()-1);
+		if(letter >= 'a' && letter < 'a' + pitchTokens.length && octave >= '0' && octave <= '9')
+			return pitchTokens[letter - 'a'][accidental.ordinal()][octave - '0'];
+		return makePitch(letter, accidental, Integer.parseInt(octave + ""));
+	}
+	
+	/**
+	 * Write out a pitch to a LilyPond-formatted String.
+	 * @param letter The letter of the pitch, in lowercase.
+	 * @param accidental The Accidental of the pitch.
+	 * @param octave The octave of the pitch in scientific pitch notation.
+	 * @return The pitch as a LilyPond-formatted String.
+	 */
+	private String makePitch(char letter, Accidental accidental, int octave) {
+		String toReturn = letter + "";
 		
 		// Add accidentals - see notes from data.TuneInputSpecification as to why we don't need
 		// to consider accidentals from the key when using LilyPond.
@@ -832,25 +1123,12 @@ final class LilyPondUtility extends Utility {
 		if(accidental.equals(Accidental.SHARP)) toReturn += sharp;
 		
 		// Change pitch's location on staff - instead of using \relative, use absolute pitch		
-		int oct = Integer.parseInt(pitch.charAt(pitch.length()-1) + "") - 3;
+		int oct = octave - 3;
 		if(oct < 0)															
 			while(oct < 0){ toReturn += ","; oct++;}						
 		if(oct > 0)
 			while(oct > 0){ toReturn += "'"; oct--;} 
 		
-		// Add duration
-		toReturn += note.getDurationDenom();
-		
-		// Add dot
-		if(note.isDotted()) toReturn += ".";
-		
-		// Add tie
-		if(note.startsTie()) toReturn += "~";
-		
-		// Add slur
-		if(slur.equals(Slur.BEGIN)) toReturn += "(";
-		if(slur.equals(Slur.END)) toReturn += ")";
-
 		return toReturn;
 	}
 	
@@ -859,31 +1137,31 @@ final class LilyPondUtility extends Utility {
 	/**
 	 * Build a lyric syllable using the duration of the given Unit.
 	 * See http://lilypond.org/doc/v2.12/Documentation/user/lilypond/Entering-lyrics
-	 * @param w The lyric syllable to build into a String.
+	 * @param w The lyric syllable to build.
 	 * @param d The duration to use for this Word.
-	 * @return The lyric, all pretty and with proper duration,
-	 * with a space at the end.
+	 * @param out Where to write the lyric, all pretty and with
+	 * proper duration, with a space at the end.
+	 * @throws IOException The Appendable failed.
 	 * @author Jason Petersen
 	 */
-	private String buildLyricSyllable(Word w, int d) {
-		String toReturn = "";
-		
+	private void buildLyricSyllable(Word w, int d, Appendable out) throws IOException {
 		int num = w.numberOfStrings();
 		String duration = increaseFromSmallestNote(d);
 		
 		if(num == 1){
-			toReturn = replaceLyricQuote(w.toString());
-			if(!toReturn.equals(Word.skip)){
+			String syllable = replaceLyricQuote(w.iterator().next());
+			if(!syllable.equals(Word.skip)){
 				boolean addDash = false;
-				if(toReturn.contains("-")){
-					toReturn = toReturn.replace("-", ""); // Dash at the end of the word needs to get chopped off
+				if(syllable.indexOf('-') >= 0){
+					syllable = syllable.replace("-", ""); // Dash at the end of the word needs to get chopped off
 					addDash = true;
 				}
-				toReturn += duration + ((addDash) ? " -- " : " ");
+				out.append(syllable).append(duration).append((addDash) ? " -- " : " ");
 			}
-			else toReturn = "_ "; // Lyric skip
+			else out.append("_ "); // Lyric skip
 		}
 		else if(num != 0) {
+			String toReturn = "";
 			for(Iterator<String> strings = w.iterator(); strings.hasNext(); ){
 				String next = strings.next();
 				if(!next.equals(Word.skip)){ // Skip the skips
@@ -893,10 +1171,8 @@ final class LilyPondUtility extends Utility {
 			}
 			
 			// Add quotes around String, replace dashes with space and dash
-			toReturn = "\"" + toReturn.trim().replaceAll("-", " -") + "\"" + duration + " ";
+			out.append('"').append(toReturn.trim().replaceAll("-", " -")).append('"').append(duration).append(' ');
 		}
-		
-		return toReturn;
 	}
 	
 	/**
@@ -911,6 +1187,18 @@ final class LilyPondUtility extends Utility {
 	 * @author Jason Petersen
 	 */
 	private String increaseFromSmallestNote(int y) {
+		if(y >= 0 && y < durationTokens.length) return durationTokens[y];
+		return makeDuration(y);
+	}
+	
+	/**
+	 * Work out the LilyPond-formatted String for a duration,
+	 * see increaseFromSmallestNote.
+	 * @param y The integer representing a duration in terms of Note.SMALLESTNOTE
+	 * @return The LilyPond-formatted String duration in terms of the largest
+	 * possible duration.
+	 */
+	private String makeDuration(int y) {
 		if(y == 0) return "0";
 
 		int x = Note.SMALLESTNOTE;
@@ -921,6 +1209,15 @@ final class LilyPondUtility extends Utility {
 		return (y == 1) ? x + "" : x + "*" + y;
 	}
 	
+	/**
+	 * Get a number as a String, looking it up if it is small.
+	 * @param n The number.
+	 * @return The number as a String.
+	 */
+	private String numberToken(int n) {
+		return (n >= 0 && n < numberTokens.length) ? numberTokens[n] : Integer.toString(n);
+	}
+	
 	/**
 	 * Helper function to calculate the number of notes in the first measure
 	 * in terms of model.Note.SMALLESTNOTE.
@@ -951,5 +1248,67 @@ final class LilyPondUtility extends Utility {
 		}
 		return s;
 	}
+	
+	/**
+	 * Wrap a stream in a Writer which encodes UTF-8.
+	 * @param out The stream to wrap.
+	 * @return A buffered Writer for the stream.
+	 */
+	private static Writer createWriter(OutputStream out) {
+		return new BufferedWriter(new OutputStreamWriter(out, Charset.forName("UTF-8")));
+	}
+	
+	/**
+	 * The state of one call to write or createString, so that
+	 * any number of threads can generate LilyPond at once.
+	 */
+	private static class Context {
+		/** Names of the verse variables created. This is added to in createVerses */
+		private final ArrayList<String> verseVariables = new ArrayList<String>();
+		
+		/** Each verse is built here first so its ends can be trimmed, see makeHymnLyric */
+		private final StringBuilder buffer = new StringBuilder(256);
+	}
+	
+	/**
+	 * The LilyPond blocks which only depend on a Tune,
+	 * without the blank line which follows each one.
+	 */
+	private class TuneFragments {
+		/** The keyTime variable */
+		private final String keyTime;
+		
+		/** The alleluia lyrics and skips */
+		private final String alleluias;
+		
+		/** The chorus voices and lyrics, empty if there is no chorus */
+		private final String chorus;
+		
+		/** The voices */
+		private final String voices;
+		
+		/**
+		 * Constructor. Creates the blocks.
+		 * @param tune The Tune for which to create the blocks.
+		 * @throws IOException The Appendable failed.
+		 */
+		private TuneFragments(Tune tune) throws IOException {
+			StringBuilder block = new StringBuilder(initialLength);
+			createKeyTime(tune, block);
+			keyTime = block.toString();
+			
+			block.setLength(0);
+			createAlleluiaLyrics(tune, block);
+			alleluias = block.toString();
+			
+			block.setLength(0);
+			createChorus(tune, block);
+			chorus = block.toString();
+			
+			block.setLength(0);
+			createVoices(tune, block);
+			voices = block.toString();
+		}
+	}
 
 }
@@ -57,40 +57,53 @@ public final class LilyPondWriter implements Writer {
 
 	@Override
 	public void write(Tune tune, File file) throws IOException {
-		String toWrite = util.createString(tune);
-		createFileFrom(toWrite, file);
+		BufferedWriter bw = createFile(file);
+		try {
+			util.write(tune, bw);
+		} finally {
+			bw.close();
+		}
+		System.out.println("Created file " + file.getAbsolutePath());
 	}
 
 	@Override
 	public void write(Text text, File file) throws IOException {
-		String toWrite = util.createString(text);
-		createFileFrom(toWrite, file);
+		BufferedWriter bw = createFile(file);
+		try {
+			util.write(text, bw);
+		} finally {
+			bw.close();
+		}
+		System.out.println("Created file " + file.getAbsolutePath());
 	}
 	
 	@Override
 	public void write(Hymn hymn, File file) throws IOException {
-		String toWrite = util.createString(hymn);
-		createFileFrom(toWrite, file);
+		BufferedWriter bw = createFile(file);
+		try {
+			util.write(hymn, bw);
+		} finally {
+			bw.close();
+		}
+		System.out.println("Created file " + file.getAbsolutePath());
 	}
 
 	/* ---------- Helper methods ---------- */
 	
 	/**
-	 * Helper method to write a LilyPond-formatted String to a file.
-	 * @param asLilyPond The Text, Tune or Song as a LilyPond-formatted String.
-	 * @throws InputFileException There was an IOException when creating the file.
+	 * Helper method to open a file to write LilyPond to. The Text,
+	 * Tune or Song is written straight to it, not built as a String first.
+	 * @param file The file to create. Any existing file is replaced.
+	 * @return A Writer for the new file.
+	 * @throws IOException The file is null or could not be created.
 	 * @author Jason Petersen
 	 */
-	private void createFileFrom(String asLilyPond, File file) throws IOException {
+	private BufferedWriter createFile(File file) throws IOException {
 		if(file == null)
 			throw new IOException("File cannot be null");
 		
 		if(file.exists()) file.delete();
 		
-		BufferedWriter bw = new BufferedWriter(new FileWriter(file));
-		bw.write(asLilyPond);
-		bw.close();
-		
-		System.out.println("Created file " + file.getAbsolutePath());
+		return new BufferedWriter(new FileWriter(file));
 	}
 }
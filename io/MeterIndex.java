@@ -0,0 +1,218 @@
+// Copyright 2012 Jason Petersen and Timothy Macdonald
+// 
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+// 
+//     http://www.apache.org/licenses/LICENSE-2.0
+// 
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+/**
+ * MeterIndex.java
+ *
+ * Index of Texts or Tunes by the signature of
+ * their Meter, so that the Texts or Tunes which
+ * can be combined with a Tune or Text are found
+ * without testing every one in the Database.
+ *
+ * Every item is kept under two keys: the signature
+ * of its whole Meter, for Meters which match exactly,
+ * and a second key for a doubled Text, i.e. a Text
+ * sung twice through a Tune with twice as many lines.
+ *
+ * Removed items are only marked as removed, and are
+ * dropped from the lists once as many have been
+ * removed as are left, so removing takes constant
+ * time on average.
+ */
+
+package io;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.Iterator;
+
+import model.Meter;
+import model.Text;
+import model.Tune;
+
+final class MeterIndex<T> {
+
+	/** The items for each Meter signature */
+	private final HashMap<Long, ArrayList<Entry<T>>> byMeter = new HashMap<Long, ArrayList<Entry<T>>>();
+
+	/** The items for each doubled-Text key */
+	private final HashMap<Long, ArrayList<Entry<T>>> byDouble = new HashMap<Long, ArrayList<Entry<T>>>();
+
+	/** The entry of each item, by identity */
+	private final IdentityHashMap<T, Entry<T>> entries = new IdentityHashMap<T, Entry<T>>();
+
+	/** The order given to the next item, so lookups return items in the order they were added */
+	private long next = 0;
+
+	/** The number of removed entries still in the lists */
+	private int removed = 0;
+
+	/**
+	 * Add an item to the index.
+	 * @param item The item to add.
+	 * @param meterKey The signature of the item's Meter.
+	 * @param doubleKey The doubled-Text key of the item, null if it has none.
+	 */
+	void add(T item, Long meterKey, Long doubleKey) {
+		Entry<T> entry = new Entry<T>(item, next++);
+		entries.put(item, entry);
+		put(byMeter, meterKey, entry);
+		if(doubleKey != null)
+			put(byDouble, doubleKey, entry);
+	}
+
+	/**
+	 * Remove an item from the index.
+	 * @param item The item to remove.
+	 */
+	void remove(T item) {
+		Entry<T> entry = entries.remove(item);
+		if(entry == null)
+			return;
+		entry.removed = true;
+		if(++removed > entries.size()) {
+			compact(byMeter);
+			compact(byDouble);
+			removed = 0;
+		}
+	}
+
+	/**
+	 * Get the items whose Meter signature matches one key or
+	 * whose doubled-Text key matches the other, in the order
+	 * they were added.
+	 * @param meterKey The Meter signature to look up.
+	 * @param doubleKey The doubled-Text key to look up, may be null.
+	 * @return The matching items.
+	 */
+	ArrayList<T> find(Long meterKey, Long doubleKey) {
+		ArrayList<Entry<T>> a = byMeter.get(meterKey);
+		ArrayList<Entry<T>> b = (doubleKey != null) ? byDouble.get(doubleKey) : null;
+		int sizeA = (a != null) ? a.size() : 0;
+		int sizeB = (b != null) ? b.size() : 0;
+
+		// Both lists are in the order the items were added, so merge them
+		ArrayList<T> found = new ArrayList<T>(sizeA + sizeB);
+		int i = 0;
+		int j = 0;
+		while(i < sizeA || j < sizeB) {
+			Entry<T> entry = (j == sizeB || (i < sizeA && a.get(i).order < b.get(j).order)) ? a.get(i++) : b.get(j++);
+			if(!entry.removed)
+				found.add(entry.item);
+		}
+		return found;
+	}
+
+	/* ---------- Keys ---------- */
+
+	/**
+	 * Get the signature of a Meter. Two Meters have the same
+	 * signature if they have the same counts, and Meters with
+	 * different counts almost never do, so the items found
+	 * must still be tested with Hymn.canCombine.
+	 * @param meter The Meter for which to get the signature.
+	 * @return The signature of the Meter.
+	 */
+	static Long signature(Meter meter) {
+		return meter.signature();
+	}
+
+	/**
+	 * Get the doubled-Text key of a Text, which is the
+	 * signature of its Meter. Only Texts with at least
+	 * two verses can be doubled.
+	 * @param text The Text for which to get the key.
+	 * @return The key of the Text, null if it cannot be doubled.
+	 */
+	static Long doubleKey(Text text) {
+		if(text.numberOfVerses() < 2) return null;
+		return signature(text.getMeter());
+	}
+
+	/**
+	 * Get the doubled-Text key of a Tune. A Text is doubled
+	 * to fit a Tune with twice as many lines when the Text's
+	 * Meter matches the second half of the Tune's Meter, so
+	 * the key is the signature of that second half.
+	 * @param tune The Tune for which to get the key.
+	 * @return The key of the Tune, null if its Meter has an odd
+	 * number of lines or no lines.
+	 */
+	static Long doubleKey(Tune tune) {
+		int lines = tune.getMeter().numberOfLines();
+		if(lines == 0 || lines % 2 != 0) return null;
+		return tune.getMeter().secondHalfSignature();
+	}
+
+	/* ---------- Helper methods ---------- */
+
+	/**
+	 * Add an entry to the list for a key.
+	 * @param map The map holding the lists.
+	 * @param key The key of the list.
+	 * @param entry The entry to add.
+	 */
+	private static <T> void put(HashMap<Long, ArrayList<Entry<T>>> map, Long key, Entry<T> entry) {
+		ArrayList<Entry<T>> list = map.get(key);
+		if(list == null) {
+			list = new ArrayList<Entry<T>>();
+			map.put(key, list);
+		}
+		list.add(entry);
+	}
+
+	/**
+	 * Drop the removed entries from every list in a map,
+	 * and the lists left empty.
+	 * @param map The map holding the lists.
+	 */
+	private static <T> void compact(HashMap<Long, ArrayList<Entry<T>>> map) {
+		for(Iterator<ArrayList<Entry<T>>> lists = map.values().iterator(); lists.hasNext(); ) {
+			ArrayList<Entry<T>> list = lists.next();
+			int kept = 0;
+			for(Entry<T> entry : list)
+				if(!entry.removed)
+					list.set(kept++, entry);
+			list.subList(kept, list.size()).clear();
+			if(list.isEmpty())
+				lists.remove();
+		}
+	}
+
+	/**
+	 * An item in the index with the order it was added in.
+	 */
+	private static class Entry<T> {
+		/** The indexed item */
+		private final T item;
+
+		/** The order the item was added in */
+		private final long order;
+
+		/** True once the item has been removed from the index */
+		private boolean removed = false;
+
+		/**
+		 * Constructor.
+		 * @param item The indexed item.
+		 * @param order The order the item was added in.
+		 */
+		private Entry(T item, long order) {
+			this.item = item;
+			this.order = order;
+		}
+	}
+
+}
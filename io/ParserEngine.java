@@ -26,16 +26,71 @@ package io;
 import java.io.File;
 import java.io.IOException;
 
+import model.HymnComponent;
 import model.Text;
 import model.Tune;
 
 public class ParserEngine {
 	
 	/** The list of possible TextParsers */
-	private static TextParser[] textParsers = { XMLTextParser.getInstance(), FlatFileTextParser.getInstance() };
+	private static TextParser[] textParsers = { StAXTextParser.getInstance(), XMLTextParser.getInstance(), FlatFileTextParser.getInstance() };
 	
 	/** The list of possible TuneParsers */
-	private static TuneParser[] tuneParsers = { XMLTuneParser.getInstance(), FlatFileTuneParser.getInstance() };  
+	private static TuneParser[] tuneParsers = { StAXTuneParser.getInstance(), XMLTuneParser.getInstance(), FlatFileTuneParser.getInstance() };  
+	
+	/** Used to classify XML files by their root element */
+	private static XMLUtility util = XMLUtility.getInstance();
+	
+	/** Where the time goes */
+	private static final RenderMetrics metrics = RenderMetrics.getInstance();
+	
+	/**
+	 * Set whether XML files are validated against their schema
+	 * before they are streamed into a Text or Tune. Validation
+	 * is on by default; turning it off trades the schema checks
+	 * for faster loading of a trusted library.
+	 * @param validating True if files should be validated, otherwise false.
+	 */
+	public static void setValidating(boolean validating) {
+		StAXTextParser.getInstance().setValidating(validating);
+		StAXTuneParser.getInstance().setValidating(validating);
+	}
+	
+	/**
+	 * Get the Text or Tune stored in the given File.
+	 * XML files are classified by their root element, so
+	 * each file is only handed to the parsers for its type.
+	 * Any other file is tried as a Text and then as a Tune.
+	 * This method is safe to call from multiple threads.
+	 * @param file The File from which to get the Text or Tune.
+	 * @return The Text or Tune parsed from the given File.
+	 * @throws UnsupportedFileException The given File does not
+	 * have an associated TextParser or TuneParser.
+	 */
+	public static HymnComponent parse(File file) throws UnsupportedFileException {
+		if(file == null)
+			throw new UnsupportedFileException("File cannot be null");
+		
+		String root = null;
+		try {
+			root = util.getRootName(file);
+		}
+		catch(IOException ioe) {
+			throw new UnsupportedFileException("Failed to read " + file.getName() + ": " + ioe.getMessage());
+		}
+		
+		if("text".equals(root))
+			return parseText(file);
+		if("tune".equals(root))
+			return parseTune(file);
+		
+		try {
+			return parseText(file);
+		}
+		catch(UnsupportedFileException e) {
+			return parseTune(file);
+		}
+	}
 	
 	/**
 	 * Get the Text stored in the given File.
@@ -49,9 +104,12 @@ public class ParserEngine {
 		if(file == null)
 			throw new UnsupportedFileException("File cannot be null");
 		
+		long start = System.nanoTime();
 		for(TextParser p : textParsers){
 			try {
-				return p.parse(file);
+				Text text = p.parse(file);
+				metrics.time(RenderMetrics.Phase.PARSE, start);
+				return text;
 			}
 			catch (IOException ioe){
 				/* System.err.println("ParserEngine.parseText - " + ioe.getMessage()); */
@@ -72,9 +130,12 @@ public class ParserEngine {
 		if(file == null)
 			throw new UnsupportedFileException("File cannot be null");
 		
+		long start = System.nanoTime();
 		for(TuneParser p : tuneParsers){
 			try {
-				return p.parse(file);
+				Tune tune = p.parse(file);
+				metrics.time(RenderMetrics.Phase.PARSE, start);
+				return tune;
 			}
 			catch (IOException ioe){
 				System.err.println("ParserEngine.parseTune - " + ioe.getMessage());
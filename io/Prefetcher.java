@@ -0,0 +1,223 @@
+// Copyright 2012 Jason Petersen and Timothy Macdonald
+// 
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+// 
+//     http://www.apache.org/licenses/LICENSE-2.0
+// 
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+/**
+ * Prefetcher.java
+ *
+ * Renders the Hymns the user is likely to
+ * open next, e.g. every Text which fits the
+ * Tune just picked, so they come straight
+ * from the cache when they are opened.
+ *
+ * One low priority thread renders them one
+ * at a time, and only once no render has been
+ * asked for in a while. A render asked for by
+ * the user cancels the one being prefetched.
+ * After each render the thread rests, so it
+ * uses no more than its share of the CPU, and
+ * it stops once it has written its share of
+ * the disk or the cache has no room left, so
+ * it never evicts images the user has seen.
+ */
+
+package io;
+
+import java.io.IOException;
+import java.util.ArrayDeque;
+
+import model.Hymn;
+
+final class Prefetcher implements Runnable {
+
+	/** The instance of the Prefetcher */
+	private static final Prefetcher instance = new Prefetcher();
+
+	/** The default number of Hymns to prefetch for each selection */
+	private static final int defaultCount = 8;
+
+	/** The default share of one CPU to use while prefetching */
+	private static final double defaultCpuShare = 0.25;
+
+	/** The default number of bytes of images to prefetch for each selection */
+	private static final long defaultDiskBudget = 16L*1024*1024;
+
+	/** How long no render must have been asked for before prefetching, in milliseconds */
+	private static final long idleDelay = 1000;
+
+	/** The longest to wait before checking again whether the user is idle, in milliseconds */
+	private static final long pollInterval = 250;
+
+	/** The number of Hymns to prefetch for each selection */
+	private int count = defaultCount;
+
+	/** The share of one CPU to use while prefetching */
+	private double cpuShare = defaultCpuShare;
+
+	/** The number of bytes of images to prefetch for each selection */
+	private long diskBudget = defaultDiskBudget;
+
+	/** The Hymns waiting to be prefetched, most likely first */
+	private final ArrayDeque<Hymn> queue = new ArrayDeque<Hymn>();
+
+	/** The bytes of images prefetched for the current selection */
+	private long written = 0;
+
+	/** The most bytes one prefetched Hymn has taken, used to guess the next */
+	private long largest = 0;
+
+	/** Counts the selections, so a render cancelled for an old one is not retried */
+	private int selection = 0;
+
+	/** True while a Hymn is being prefetched */
+	private boolean working = false;
+
+	/** The thread which prefetches, null until the first selection */
+	private Thread thread;
+
+	/**
+	 * Private constructor for the singleton.
+	 */
+	private Prefetcher() {}
+
+	/**
+	 * Get the instance of the Prefetcher.
+	 * @return The instance of the Prefetcher.
+	 */
+	static Prefetcher getInstance() {
+		return instance;
+	}
+
+	/**
+	 * Replace the Hymns waiting to be prefetched. Only the first
+	 * few are kept, so they should be given most likely first.
+	 * @param hymns The Hymns the user is likely to open next.
+	 */
+	synchronized void prefetch(Iterable<Hymn> hymns) {
+		queue.clear();
+		for(Hymn hymn : hymns) {
+			if(queue.size() >= count)
+				break;
+			queue.add(hymn);
+		}
+		written = 0;
+		selection++;
+
+		if(thread == null && !queue.isEmpty()) {
+			thread = new Thread(this, "Prefetcher");
+			thread.setDaemon(true);
+			thread.setPriority(Thread.MIN_PRIORITY);
+			thread.start();
+		}
+		notifyAll();
+	}
+
+	/**
+	 * Set how much the Prefetcher may do for each selection.
+	 * @param count The number of Hymns to prefetch, 0 to stop prefetching.
+	 * @param cpuShare The share of one CPU to use, between 0 and 1.
+	 * @param diskBytes The number of bytes of images to write.
+	 */
+	synchronized void setLimits(int count, double cpuShare, long diskBytes) {
+		if(count < 0 || diskBytes < 0)
+			throw new IllegalArgumentException("The prefetch limits cannot be negative");
+		if(!(cpuShare > 0 && cpuShare <= 1))
+			throw new IllegalArgumentException("The share of the CPU must be more than 0 and at most 1");
+		this.count = count;
+		this.cpuShare = cpuShare;
+		this.diskBudget = diskBytes;
+		while(queue.size() > count)
+			queue.removeLast();
+	}
+
+	/**
+	 * Get the number of Hymns still to be prefetched for
+	 * the current selection, counting the one being rendered.
+	 * @return The number of Hymns left to prefetch.
+	 */
+	synchronized int pending() {
+		return queue.size() + (working ? 1 : 0);
+	}
+
+	@Override
+	public void run() {
+		while(true) {
+			try {
+				Hymn hymn = next();
+				int current;
+				synchronized(this) {
+					current = selection;
+				}
+				long start = System.nanoTime();
+				long bytes = 0;
+				try {
+					bytes = RenderEngine.prefetch(hymn);
+				} catch(IOException ioe) {
+					System.err.println("Prefetcher.run - " + ioe.getMessage());
+				} catch(RuntimeException re) {
+					System.err.println("Prefetcher.run - " + re);
+				}
+				long took = (System.nanoTime() - start)/1000000;
+
+				synchronized(this) {
+					if(bytes < 0 && current == selection) // Cancelled for the user, so try again later
+						queue.addFirst(hymn);
+					written += Math.max(bytes, 0);
+					largest = Math.max(largest, bytes);
+					working = false;
+				}
+				Thread.sleep((long)(took*(1 - cpuShare)/cpuShare));
+			} catch(InterruptedException ie) {
+				// Nothing interrupts the thread, so just carry on
+			}
+		}
+	}
+
+	/* ---------- Helper methods ---------- */
+
+	/**
+	 * Wait until there is a Hymn to prefetch and the user is
+	 * idle, and take it from the queue. The queue is dropped if
+	 * the selection's disk budget is spent or the cache is full.
+	 * @return The next Hymn to prefetch.
+	 * @throws InterruptedException The thread was interrupted.
+	 */
+	private Hymn next() throws InterruptedException {
+		while(true) {
+			synchronized(this) {
+				while(queue.isEmpty())
+					wait();
+			}
+
+			long idle = RenderEngine.idleFor();
+			if(idle < idleDelay || RenderEngine.isBusy()) {
+				Thread.sleep(Math.max(10, Math.min(idleDelay - idle, pollInterval)));
+				continue;
+			}
+
+			long room = RenderEngine.cacheRoom();
+			synchronized(this) {
+				if(written >= diskBudget || room < Math.max(largest, 1)) {
+					queue.clear();
+					continue;
+				}
+				Hymn hymn = queue.poll();
+				if(hymn != null) {
+					working = true;
+					return hymn;
+				}
+			}
+		}
+	}
+
+}
@@ -0,0 +1,766 @@
+// Copyright 2012 Jason Petersen and Timothy Macdonald
+// 
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+// 
+//     http://www.apache.org/licenses/LICENSE-2.0
+// 
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+/**
+ * RenderCache.java
+ *
+ * Cache of rendered images, keyed by a hash
+ * of the LilyPond source they were rendered
+ * from. Anything that changes the output,
+ * e.g. an edited Tune or a removed verse,
+ * changes the key, so stale images are never
+ * returned.
+ *
+ * There are two tiers. The images themselves
+ * are kept on disk, named by their key, and the
+ * least recently used are deleted once they take
+ * up too much space. The bytes of recently used
+ * images are also kept in memory, again up to a
+ * limit on their total size.
+ *
+ * The images on disk are indexed by a manifest,
+ * which records the pages and size of each image
+ * and when it was last used, so finding an image
+ * or the next to evict never lists the folder.
+ * The manifest is a log, appended to as images
+ * are added, used and evicted, and rewritten once
+ * it has grown to twice what it needs to be. If
+ * it goes missing or cannot be read, it is rebuilt
+ * from the images in the folder. Additions and
+ * evictions are written out straight away, but
+ * uses are only written out every few seconds
+ * and when the cache is flushed, since losing
+ * some of them only loses a little of the order
+ * of use. The manifest is trusted, so finding an
+ * image does not look at its files; pages which
+ * turn out to be gone when they are read are
+ * taken out of the cache then.
+ */
+
+package io;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.UnsupportedEncodingException;
+import java.io.Writer;
+import java.nio.charset.Charset;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+final class RenderCache {
+
+	/** The name of the manifest in the folder */
+	private static final String manifestName = "manifest";
+
+	/** The fewest records the manifest may hold before it is rewritten */
+	private static final int minimumRecords = 1024;
+
+	/** The longest records may wait to be written out to the manifest, in milliseconds */
+	private static final long flushDelay = 5000;
+
+	/** The folder holding the images */
+	private final File folder;
+
+	/** The most bytes of images to keep in memory */
+	private long memoryLimit;
+
+	/** The most bytes of images to keep on disk */
+	private long diskLimit;
+
+	/** The bytes of the pages of recently used images, in order of use */
+	private final LinkedHashMap<String, ArrayList<byte[]>> memory = new LinkedHashMap<String, ArrayList<byte[]>>(16, 0.75f, true);
+
+	/** The number of bytes held in memory */
+	private long memoryUsed = 0;
+
+	/** The number of bytes held on disk */
+	private long diskUsed = 0;
+
+	/** The images on disk, least recently used first, null until the manifest has been read */
+	private LinkedHashMap<String, Image> index;
+
+	/** The manifest, open for appending, null if it cannot be written */
+	private Writer manifest;
+
+	/** The number of records in the manifest */
+	private int records = 0;
+
+	/** When the records were last written out to the manifest, in milliseconds */
+	private long flushed = System.currentTimeMillis();
+
+	/** Where the time goes */
+	private final RenderMetrics metrics = RenderMetrics.getInstance();
+
+	/**
+	 * Constructor.
+	 * @param folder The folder holding the images.
+	 * @param memoryLimit The most bytes of images to keep in memory.
+	 * @param diskLimit The most bytes of images to keep on disk.
+	 */
+	RenderCache(File folder, long memoryLimit, long diskLimit) {
+		this.folder = folder;
+		this.memoryLimit = memoryLimit;
+		this.diskLimit = diskLimit;
+	}
+
+	/**
+	 * Get the key for the given LilyPond source, which is
+	 * the hex SHA-256 digest of the source.
+	 * @param asString A LilyPond compliant String.
+	 * @return The key of the images rendered from the String.
+	 */
+	static String key(String asString) {
+		try {
+			MessageDigest digest = MessageDigest.getInstance("SHA-256");
+			byte[] hash = digest.digest(asString.getBytes("UTF-8"));
+			StringBuilder sb = new StringBuilder(hash.length*2);
+			for(byte b : hash) {
+				sb.append(Character.forDigit((b >> 4) & 0xF, 16));
+				sb.append(Character.forDigit(b & 0xF, 16));
+			}
+			return sb.toString();
+		} catch(NoSuchAlgorithmException nsae) { // Every Java platform is required to support SHA-256
+			throw new IllegalStateException(nsae);
+		} catch(UnsupportedEncodingException uee) { // and UTF-8
+			throw new IllegalStateException(uee);
+		}
+	}
+
+	/**
+	 * Set the limits on the size of the cache. Images
+	 * are evicted straight away if the cache is too large.
+	 * @param memoryLimit The most bytes of images to keep in memory.
+	 * @param diskLimit The most bytes of images to keep on disk.
+	 */
+	synchronized void setLimits(long memoryLimit, long diskLimit) {
+		this.memoryLimit = memoryLimit;
+		this.diskLimit = diskLimit;
+		trimMemory();
+		if(index != null)
+			trimDisk(null);
+	}
+
+	/**
+	 * Get the image files for the given key from disk.
+	 * The files are marked as used, so they will be the
+	 * last to be evicted. They are found in the manifest
+	 * without looking at them, so they may have been
+	 * deleted behind the cache's back.
+	 * @param key The key of the images.
+	 * @return The image files, or an empty list if they
+	 * are not on disk.
+	 */
+	synchronized ArrayList<File> getFiles(String key) {
+		ArrayList<File> files = find(key);
+		if(!files.isEmpty()) {
+			Image image = index.remove(key); // Move it to the back of the queue for eviction
+			index.put(key, image);
+			image.used = System.currentTimeMillis();
+			record("@ " + key + " " + image.used);
+			metrics.count(RenderMetrics.Counter.DISK_HIT);
+		}
+		else
+			metrics.count(RenderMetrics.Counter.DISK_MISS);
+		return files;
+	}
+
+	/**
+	 * Check whether the images for the given key are on
+	 * disk, without marking them as used.
+	 * @param key The key of the images.
+	 * @return True if the images are on disk.
+	 */
+	synchronized boolean contains(String key) {
+		return !find(key).isEmpty();
+	}
+
+	/**
+	 * Get the number of bytes which may still be written
+	 * to disk before images are evicted. The folder is
+	 * measured the first time this is called.
+	 * @return The room left on disk, in bytes.
+	 */
+	synchronized long room() {
+		load();
+		return diskLimit - diskUsed;
+	}
+
+	/**
+	 * Get the bytes of the images for the given key,
+	 * reading them from disk if they are not in memory.
+	 * @param key The key of the images.
+	 * @return The bytes of each page, or null if the
+	 * images are not in the cache.
+	 * @throws IOException Failed to read the images.
+	 */
+	ArrayList<byte[]> getImages(String key) throws IOException {
+		synchronized(this) {
+			ArrayList<byte[]> pages = memory.get(key);
+			if(pages != null) {
+				metrics.count(RenderMetrics.Counter.MEMORY_HIT);
+				return pages;
+			}
+		}
+		metrics.count(RenderMetrics.Counter.MEMORY_MISS);
+
+		ArrayList<File> files = getFiles(key);
+		if(files.isEmpty())
+			return null;
+
+		long start = System.nanoTime();
+		ArrayList<byte[]> pages = new ArrayList<byte[]>(files.size());
+		long size = 0;
+		try {
+			for(File file : files) {
+				byte[] page = Files.readAllBytes(file.toPath());
+				pages.add(page);
+				size += page.length;
+			}
+		} catch(NoSuchFileException nsfe) { // Deleted behind the cache's back
+			missing(key);
+			return null;
+		}
+		metrics.time(RenderMetrics.Phase.CACHE_READ, start);
+
+		synchronized(this) {
+			ArrayList<byte[]> old = memory.put(key, pages);
+			if(old != null)
+				memoryUsed -= size(old);
+			memoryUsed += size;
+			trimMemory();
+		}
+		return pages;
+	}
+
+	/**
+	 * Get the File to which the images for the given key
+	 * should be rendered, without the png extension.
+	 * @param key The key of the images.
+	 * @return The File to which to render the images.
+	 */
+	File getTarget(String key) {
+		return new File(folder, key);
+	}
+
+	/**
+	 * Record that the images for the given key have
+	 * just been rendered, evicting the least recently
+	 * used images if the disk tier is now too large.
+	 * @param key The key of the images.
+	 * @return The rendered image files.
+	 */
+	synchronized ArrayList<File> added(String key) {
+		load();
+		ArrayList<File> files = probe(key);
+		Image old = index.remove(key);
+		if(old != null)
+			diskUsed -= old.size;
+		if(files.isEmpty()) {
+			if(old != null)
+				record("- " + key);
+			return files;
+		}
+
+		boolean single = files.get(0).getName().equals(key + ".png");
+		long size = 0;
+		for(File file : files)
+			size += file.length();
+		Image image = new Image(single ? 0 : files.size(), size, System.currentTimeMillis());
+		index.put(key, image);
+		diskUsed += size;
+		record("+ " + key + " " + image.used + " " + image.pages + " " + size);
+		trimDisk(key);
+		flush();
+		return files;
+	}
+
+	/**
+	 * Write out the records which have not yet been
+	 * written to the manifest, e.g. before exiting.
+	 */
+	synchronized void flush() {
+		if(manifest == null)
+			return;
+		try {
+			manifest.flush();
+		} catch(IOException ioe) {
+			System.err.println("RenderCache.flush - " + ioe.getMessage());
+			closeManifest();
+		}
+		flushed = System.currentTimeMillis();
+	}
+
+	/**
+	 * Delete every image in the cache, both in memory and on disk.
+	 */
+	synchronized void clear() {
+		memory.clear();
+		memoryUsed = 0;
+		closeManifest();
+		if(folder.isDirectory())
+			for(File file : folder.listFiles())
+				if(file.isFile() && isCached(file.getName()))
+					file.delete();
+		index = new LinkedHashMap<String, Image>();
+		diskUsed = 0;
+		rewrite();
+	}
+
+	/* ---------- Helper methods ---------- */
+
+	/**
+	 * Find the image files for the given key in the manifest,
+	 * without looking at them or changing the order of use.
+	 * @param key The key of the images.
+	 * @return The image files, in page order. May be empty.
+	 */
+	private ArrayList<File> find(String key) {
+		load();
+		ArrayList<File> files = new ArrayList<File>();
+		Image image = index.get(key);
+		if(image == null)
+			return files;
+
+		if(image.pages == 0)
+			files.add(new File(folder, key + ".png"));
+		else
+			for(int page=1; page<=image.pages; page++)
+				files.add(new File(folder, key + "-page" + page + ".png"));
+		return files;
+	}
+
+	/**
+	 * Take the images for the given key out of the cache
+	 * if some of their pages have gone from disk.
+	 * @param key The key of the images.
+	 */
+	private synchronized void missing(String key) {
+		for(File file : find(key)) {
+			if(!file.isFile()) {
+				Image image = index.remove(key);
+				diskUsed -= image.size;
+				record("- " + key);
+				flush();
+				return;
+			}
+		}
+	}
+
+	/**
+	 * Look for the image files for the given key on disk.
+	 * LilyPond names a single page key.png and several
+	 * pages key-page1.png, key-page2.png and so on.
+	 * @param key The key of the images.
+	 * @return The image files, in page order. May be empty.
+	 */
+	private ArrayList<File> probe(String key) {
+		ArrayList<File> files = new ArrayList<File>();
+		File single = new File(folder, key + ".png");
+		if(single.isFile()) {
+			files.add(single);
+			return files;
+		}
+
+		for(int page=1; ; page++) {
+			File file = new File(folder, key + "-page" + page + ".png");
+			if(!file.isFile())
+				break;
+			files.add(file);
+		}
+		return files;
+	}
+
+	/**
+	 * Evict the least recently used images from memory
+	 * until the memory tier is within its limit.
+	 */
+	private void trimMemory() {
+		Iterator<Map.Entry<String, ArrayList<byte[]>>> entries = memory.entrySet().iterator();
+		while(memoryUsed > memoryLimit && entries.hasNext()) {
+			memoryUsed -= size(entries.next().getValue());
+			entries.remove();
+		}
+	}
+
+	/**
+	 * Delete the least recently used images until the
+	 * disk tier is within its limit. The manifest keeps
+	 * them in order of use, so this only looks at the
+	 * images it evicts.
+	 * @param keep The key of images which must not be evicted, may be null.
+	 */
+	private void trimDisk(String keep) {
+		Iterator<Map.Entry<String, Image>> images = index.entrySet().iterator();
+		boolean evicted = false;
+		while(diskUsed > diskLimit && images.hasNext()) {
+			Map.Entry<String, Image> image = images.next();
+			String key = image.getKey();
+			if(key.equals(keep))
+				continue;
+
+			if(image.getValue().pages == 0)
+				new File(folder, key + ".png").delete();
+			else
+				for(int page=1; page<=image.getValue().pages; page++)
+					new File(folder, key + "-page" + page + ".png").delete();
+			diskUsed -= image.getValue().size;
+			images.remove();
+			record("- " + key);
+			metrics.count(RenderMetrics.Counter.DISK_EVICTION);
+			evicted = true;
+
+			ArrayList<byte[]> pages = memory.remove(key);
+			if(pages != null)
+				memoryUsed -= size(pages);
+		}
+		if(evicted)
+			flush();
+	}
+
+	/**
+	 * Read the manifest, the first time it is needed,
+	 * rebuilding it from the folder if it is missing
+	 * or cannot be read.
+	 */
+	private void load() {
+		if(index != null)
+			return;
+
+		index = new LinkedHashMap<String, Image>();
+		diskUsed = 0;
+		File file = new File(folder, manifestName);
+		if(file.isFile()) {
+			try {
+				read(file);
+				manifest = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(file, true), Charset.forName("UTF-8")));
+				return;
+			} catch(IOException ioe) {
+				System.err.println("RenderCache.load - Rebuilding the manifest: " + ioe.getMessage());
+				index.clear();
+				diskUsed = 0;
+			}
+		}
+		rebuild();
+		rewrite();
+	}
+
+	/**
+	 * Replay the records in the manifest. A record is one line:
+	 * "+ key used pages size" when an image is added, where
+	 * pages is 0 for a single page named key.png; "@ key used"
+	 * when it is used; and "- key" when it is evicted.
+	 * @param file The manifest.
+	 * @throws IOException Failed to read the manifest, or it
+	 * holds a record which makes no sense.
+	 */
+	private void read(File file) throws IOException {
+		BufferedReader in = new BufferedReader(new InputStreamReader(new FileInputStream(file), Charset.forName("UTF-8")));
+		try {
+			records = 0;
+			String line;
+			while((line = in.readLine()) != null) {
+				String[] fields = line.split(" ");
+				try {
+					if(fields[0].equals("+") && fields.length == 5) {
+						Image image = new Image(Integer.parseInt(fields[3]), Long.parseLong(fields[4]), Long.parseLong(fields[2]));
+						Image old = index.put(fields[1], image);
+						if(old != null)
+							diskUsed -= old.size;
+						diskUsed += image.size;
+					}
+					else if(fields[0].equals("@") && fields.length == 3) {
+						Image image = index.remove(fields[1]);
+						if(image != null) {
+							image.used = Long.parseLong(fields[2]);
+							index.put(fields[1], image);
+						}
+					}
+					else if(fields[0].equals("-") && fields.length == 2) {
+						Image old = index.remove(fields[1]);
+						if(old != null)
+							diskUsed -= old.size;
+					}
+					else throw new IOException("Bad record in the manifest: " + line);
+				} catch(NumberFormatException nfe) {
+					throw new IOException("Bad record in the manifest: " + line);
+				}
+				records++;
+			}
+		} finally {
+			in.close();
+		}
+	}
+
+	/**
+	 * Index the images in the folder, oldest first, going
+	 * by when their files were last modified. The folder
+	 * is read once, with one look at each file.
+	 */
+	private void rebuild() {
+		final HashMap<String, Pages> found = new HashMap<String, Pages>();
+		try {
+			DirectoryStream<Path> files = Files.newDirectoryStream(folder.toPath(), "*.png");
+			try {
+				for(Path file : files) {
+					BasicFileAttributes attributes = Files.readAttributes(file, BasicFileAttributes.class);
+					if(!attributes.isRegularFile())
+						continue;
+					String name = file.getFileName().toString();
+					String key = keyOf(file.toFile());
+					Pages pages = found.get(key);
+					if(pages == null) {
+						pages = new Pages();
+						found.put(key, pages);
+					}
+					pages.add(name.equals(key + ".png") ? 0 : pageOf(name, key), attributes.size(), attributes.lastModifiedTime().toMillis());
+				}
+			} finally {
+				files.close();
+			}
+		} catch(IOException ioe) {
+			System.err.println("RenderCache.rebuild - " + ioe.getMessage());
+		}
+
+		String[] keys = found.keySet().toArray(new String[found.size()]);
+		Arrays.sort(keys, new Comparator<String>() {
+			@Override
+			public int compare(String a, String b) {
+				long x = found.get(a).used;
+				long y = found.get(b).used;
+				return (x < y) ? -1 : ((x == y) ? 0 : 1);
+			}
+		});
+		for(String key : keys) {
+			Image image = found.get(key).toImage();
+			if(image == null) // Pages left over from a half finished render
+				continue;
+			index.put(key, image);
+			diskUsed += image.size;
+		}
+	}
+
+	/**
+	 * Append a record to the manifest, rewriting it if it
+	 * has grown to twice the number of images it indexes.
+	 * The record is buffered, and the buffer is written
+	 * out once it has waited long enough.
+	 * @param record The record, without the line break.
+	 */
+	private void record(String record) {
+		if(manifest == null)
+			return;
+		try {
+			manifest.write(record);
+			manifest.write('\n');
+			records++;
+		} catch(IOException ioe) {
+			System.err.println("RenderCache.record - " + ioe.getMessage());
+			closeManifest();
+			return;
+		}
+		if(records > Math.max(minimumRecords, 2*index.size()))
+			rewrite();
+		else if(System.currentTimeMillis() - flushed > flushDelay)
+			flush();
+	}
+
+	/**
+	 * Write a new manifest with one record for each image,
+	 * in order of use. It is written to a temporary file
+	 * which is then moved over the old one, so a crash
+	 * never leaves a half-written manifest behind.
+	 */
+	private void rewrite() {
+		closeManifest();
+		File file = new File(folder, manifestName);
+		File temp = new File(folder, manifestName + ".tmp");
+		try {
+			Writer out = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(temp), Charset.forName("UTF-8")));
+			try {
+				for(Map.Entry<String, Image> entry : index.entrySet()) {
+					Image image = entry.getValue();
+					out.write("+ " + entry.getKey() + " " + image.used + " " + image.pages + " " + image.size + "\n");
+				}
+			} finally {
+				out.close();
+			}
+			Files.move(temp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+			records = index.size();
+			manifest = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(file, true), Charset.forName("UTF-8")));
+		} catch(IOException ioe) { // Carry on without one, it is rebuilt next time
+			System.err.println("RenderCache.rewrite - " + ioe.getMessage());
+			temp.delete();
+			file.delete();
+		}
+	}
+
+	/**
+	 * Stop appending to the manifest.
+	 */
+	private void closeManifest() {
+		if(manifest == null)
+			return;
+		try {
+			manifest.close();
+		} catch(IOException ioe) {
+			System.err.println("RenderCache.closeManifest - " + ioe.getMessage());
+		}
+		manifest = null;
+	}
+
+	/**
+	 * Check whether a file in the folder belongs to the
+	 * cache, i.e. it is an image, part of one or the manifest.
+	 * @param name The name of the file.
+	 * @return True if the file belongs to the cache.
+	 */
+	private static boolean isCached(String name) {
+		return name.endsWith(".png") || name.endsWith(".part") || name.startsWith(manifestName);
+	}
+
+	/**
+	 * Get the page number of an image file named key-pageN.png.
+	 * @param name The name of the file.
+	 * @param key The key of the image.
+	 * @return The page number, or -1 if the name is not a page.
+	 */
+	private static int pageOf(String name, String key) {
+		try {
+			return Integer.parseInt(name.substring(key.length() + "-page".length(), name.length() - ".png".length()));
+		} catch(RuntimeException re) { // Not a number, or too short to hold one
+			return -1;
+		}
+	}
+
+	/**
+	 * Get the key of an image file, i.e. its name
+	 * without the page number or extension.
+	 * @param file The image file.
+	 * @return The key of the image.
+	 */
+	private static String keyOf(File file) {
+		String name = file.getName();
+		int end = name.lastIndexOf("-page");
+		if(end < 0) end = name.lastIndexOf('.');
+		return (end < 0) ? name : name.substring(0, end);
+	}
+
+	/**
+	 * Get the total size of the pages of an image.
+	 * @param pages The bytes of each page.
+	 * @return The number of bytes in all the pages.
+	 */
+	private static long size(ArrayList<byte[]> pages) {
+		long size = 0;
+		for(byte[] page : pages)
+			size += page.length;
+		return size;
+	}
+
+	/**
+	 * An image on disk, as recorded in the manifest.
+	 */
+	private static class Image {
+		/** The number of pages, 0 for a single page named key.png */
+		private final int pages;
+
+		/** The number of bytes in all the pages */
+		private final long size;
+
+		/** When the image was last used, in milliseconds */
+		private long used;
+
+		/**
+		 * Constructor.
+		 * @param pages The number of pages, 0 for a single page named key.png.
+		 * @param size The number of bytes in all the pages.
+		 * @param used When the image was last used, in milliseconds.
+		 */
+		private Image(int pages, long size, long used) {
+			this.pages = pages;
+			this.size = size;
+			this.used = used;
+		}
+	}
+
+	/**
+	 * The files of an image found while rebuilding the manifest.
+	 */
+	private static class Pages {
+		/** The size of key.png, -1 if there is none */
+		private long single = -1;
+
+		/** The number of pages named key-pageN.png */
+		private int pages = 0;
+
+		/** The highest N of the pages named key-pageN.png */
+		private int last = 0;
+
+		/** The number of bytes in the pages named key-pageN.png */
+		private long size = 0;
+
+		/** When the newest file was last modified, in milliseconds */
+		private long used = 0;
+
+		/**
+		 * Count a file of the image.
+		 * @param page The page number, 0 for key.png and -1 for a file which is not a page.
+		 * @param size The size of the file.
+		 * @param modified When the file was last modified, in milliseconds.
+		 */
+		private void add(int page, long size, long modified) {
+			if(page == 0)
+				single = size;
+			else if(page > 0) {
+				pages++;
+				last = Math.max(last, page);
+				this.size += size;
+			}
+			used = Math.max(used, modified);
+		}
+
+		/**
+		 * Get the image the files make up. As when rendering,
+		 * key.png wins over pages named key-pageN.png.
+		 * @return The image, or null if some of its pages are missing.
+		 */
+		private Image toImage() {
+			if(single >= 0)
+				return new Image(0, single, used);
+			if(pages == 0 || pages != last)
+				return null;
+			return new Image(pages, size, used);
+		}
+	}
+
+}
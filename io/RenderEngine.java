@@ -17,43 +17,272 @@
  * 
  * Class responsible for rendering
  * Hymns and HymnComponents.
- * Currently this is done via LilyPond,
- * though it could easily be changed.
+ * There are two backends: LilyPond, which
+ * gives the best looking images, and the
+ * Java2D Engraver, which needs nothing
+ * installed and takes milliseconds. LilyPond
+ * is used when it is installed.
+ * Hymns the user is likely to open next
+ * can be prefetched in the background.
  * 
  * @author Jason Petersen
  */
 
 package io;
 
-import java.io.BufferedReader;
+import java.awt.image.BufferedImage;
 import java.io.File;
 import java.io.IOException;
-import java.io.InputStream;
-import java.io.InputStreamReader;
-import java.io.OutputStream;
 import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.BiConsumer;
 
 import model.Hymn;
+import model.InvalidHymnException;
 import model.Text;
 import model.Tune;
 
 public final class RenderEngine {
 	
+	/**
+	 * The ways RenderEngine can turn Hymns and
+	 * HymnComponents into images.
+	 */
+	public enum Backend {
+		/** Render with lilypond, the best looking but the slowest */
+		LILYPOND,
+		/** Draw with the Java2D Engraver, in process */
+		JAVA2D
+	}
+	
 	/** Used to create the LilyPond compliant Strings for rendering */
 	private static LilyPondUtility util = LilyPondUtility.getInstance();
 	
+	/** Where the time goes */
+	private static final RenderMetrics metrics = RenderMetrics.getInstance();
+	
+	/** The most LilyPond sources of Hymns to keep */
+	private static final int sourceLimit = 64;
+	
+	/** The LilyPond sources of the Hymns rendered last, by the digest of the Hymn */
+	private static final Map<String, String> sources = new LinkedHashMap<String, String>(16, 0.75f, true) {
+		private static final long serialVersionUID = 1L;
+		
+		@Override
+		protected boolean removeEldestEntry(Map.Entry<String, String> eldest) {
+			return size() > sourceLimit;
+		}
+	};
+	
 	/** The location of lilypond on the user's computer */
 	private static final String cmd = "etc/bin/lilypond";
 	
+	/** The longest a single render may take, in milliseconds */
+	private static final long renderTimeout = 60000;
+	
+	/** The number of renders which may wait for a worker, per worker */
+	private static final int queuePerWorker = 4;
+	
+	/** The default number of items renderAll gives lilypond at once */
+	private static final int defaultBatchSize = 16;
+	
+	/** The number of items renderAll gives lilypond at once */
+	private static volatile int batchSize = defaultBatchSize;
+	
+	/** The workers which run lilypond, created on the first render */
+	private static RenderPool pool;
+	
+	/** The threads which run asynchronous renders, created on the first one */
+	private static ThreadPoolExecutor asyncExecutor;
+	
+	/** The asynchronous renders which have not finished, by cache key */
+	private static final HashMap<String, AsyncRender> inFlight = new HashMap<String, AsyncRender>();
+	
+	/** The default number of bytes of images to keep in memory */
+	private static final long memoryLimit = 32L*1024*1024;
+	
+	/** The default number of bytes of images to keep on disk */
+	private static final long diskLimit = 256L*1024*1024;
+	
+	/** The rendered images, keyed by their LilyPond source */
+	private static RenderCache cache = new RenderCache(new File(Database.imgCache), memoryLimit, diskLimit);
+	
+	static {
+		// Write out the uses of images which the cache has not yet written to its manifest
+		Runtime.getRuntime().addShutdownHook(new Thread(new Runnable() {
+			@Override
+			public void run() {
+				cache.flush();
+			}
+		}, "RenderCache"));
+	}
+	
+	/** The backend new renders use */
+	private static volatile Backend backend = defaultBackend();
+	
+	/** The number of renders asked for by the user which are running */
+	private static final AtomicInteger rendering = new AtomicInteger();
+	
+	/** When a render asked for by the user last started or finished, in milliseconds */
+	private static volatile long lastRequest = 0;
+	
 	/**
 	 * Create an image file from the given Hymn.
+	 * Images already rendered from the same LilyPond
+	 * source are reused.
 	 * @param hymn The Hymn from which to make an image files.
 	 * @return The image files created from the Hymn.
 	 * @throws IOException An error occurred when creating the file.s
 	 * @author Jason Petersen
 	 */
 	public static ArrayList<File> render(Hymn hymn) throws IOException {
-		return createFiles(util.createString(hymn), hymn.getFilename());
+		started();
+		try {
+			return createFiles(hymn, source(hymn), hymn.getFilename(), backend);
+		} finally {
+			finished();
+		}
+	}
+	
+	/**
+	 * Get the images for the given Hymn, rendering them if they
+	 * are not in the cache. Recently used images are kept in memory.
+	 * @param hymn The Hymn from which to make the images.
+	 * @return The bytes of each page of the rendered Hymn, as PNGs.
+	 * @throws IOException An error occurred when creating or reading the images.
+	 */
+	public static ArrayList<byte[]> renderImages(Hymn hymn) throws IOException {
+		long start = System.nanoTime();
+		Backend b = backend;
+		String asString = source(hymn);
+		String key = key(asString, b);
+		started();
+		try {
+			ArrayList<byte[]> images = cache.getImages(key);
+			if(images == null) {
+				createFiles(hymn, asString, hymn.getFilename(), b);
+				images = cache.getImages(key);
+				if(images == null)
+					throw new IOException("Failed to render " + hymn.getFilename());
+			}
+			return images;
+		} finally {
+			finished();
+			metrics.time(RenderMetrics.Phase.RENDER, start);
+		}
+	}
+	
+	/**
+	 * Get the images for the given Hymn without waiting for them.
+	 * Requests for a Hymn which is already being rendered share
+	 * that render. Cancelling the returned future gives up on the
+	 * render, and once nobody is waiting for a render it is taken
+	 * out of the queue, or lilypond is killed if it has started.
+	 * Renders with the Java2D backend run on the same threads.
+	 * A new render cancels any render being prefetched, and
+	 * a render which is being prefetched is simply joined.
+	 * Even the LilyPond source and digest of the Hymn, which
+	 * may have to load its Text and Tune, are made in the
+	 * background, so this returns at once, e.g. to the UI.
+	 * @param hymn The Hymn from which to make the images.
+	 * @return A future for the bytes of each page of the rendered
+	 * Hymn, as PNGs, which completes exceptionally with an
+	 * IOException if the images could not be made.
+	 */
+	public static CompletableFuture<ArrayList<byte[]>> renderAsync(final Hymn hymn) {
+		final long started = System.nanoTime();
+		final Backend b = backend;
+		lastRequest = System.currentTimeMillis();
+		
+		// Each caller gets its own future, so one can give up without cancelling the others
+		final Waiter waiter = new Waiter();
+		try {
+			getExecutor().execute(new Runnable() {
+				@Override
+				public void run() {
+					if(waiter.isDone()) // Given up on before its source was made
+						return;
+					try {
+						join(hymn, b, waiter, started);
+					} catch(RuntimeException re) {
+						waiter.completeExceptionally(new IOException("Rendering " + hymn.getFilename() + " failed: " + re));
+					}
+				}
+			});
+		} catch(RejectedExecutionException ree) {
+			waiter.completeExceptionally(new IOException("Too many renders waiting to render " + hymn.getFilename()));
+		}
+		return waiter;
+	}
+	
+	/**
+	 * Make the source of a Hymn and join the render of its
+	 * images, starting the render if there is none.
+	 * This runs on the render threads, for renderAsync.
+	 * @param hymn The Hymn from which to make the images.
+	 * @param b The backend to render with.
+	 * @param waiter The future of the caller of renderAsync.
+	 * @param started When renderAsync was called, in nanoseconds.
+	 */
+	private static void join(Hymn hymn, Backend b, final Waiter waiter, final long started) {
+		String asString = source(hymn);
+		String key = key(asString, b);
+		
+		final AsyncRender render;
+		boolean start = false;
+		synchronized(inFlight) {
+			AsyncRender r = inFlight.get(key);
+			if(r == null) {
+				r = new AsyncRender(key, hymn, asString, hymn.getFilename(), b);
+				inFlight.put(key, r);
+				start = true;
+			}
+			else
+				metrics.count(RenderMetrics.Counter.RENDER_JOINED);
+			r.speculative = false;
+			r.waiters++;
+			render = r;
+		}
+		if(!waiter.attach(render)) { // Given up on while its source was made
+			render.release();
+			return;
+		}
+		
+		if(start) {
+			cancelSpeculative();
+			try {
+				render.task = getExecutor().submit(render);
+			} catch(RejectedExecutionException ree) {
+				render.finish(null, new IOException("Too many renders waiting to render " + hymn.getFilename()));
+			}
+		}
+		
+		render.result.whenComplete(new BiConsumer<ArrayList<byte[]>, Throwable>() {
+			@Override
+			public void accept(ArrayList<byte[]> images, Throwable error) {
+				metrics.time(RenderMetrics.Phase.RENDER, started);
+				if(error != null)
+					waiter.completeExceptionally(error);
+				else
+					waiter.complete(images);
+			}
+		});
 	}
 	
 	/**
@@ -64,7 +293,12 @@ public final class RenderEngine {
 	 * @author Jason Petersen
 	 */
 	public static ArrayList<File> render(Tune tune) throws IOException {
-		return createFiles(util.createString(tune), tune.getFilename());
+		started();
+		try {
+			return createFiles(tune, source(tune), tune.getFilename(), backend);
+		} finally {
+			finished();
+		}
 	}
 	
 	/**
@@ -75,133 +309,626 @@ public final class RenderEngine {
 	 * @author Jason Petersen
 	 */
 	public static ArrayList<File> render(Text text) throws IOException {
-		return createFiles(util.createString(text), text.getFilename());
+		started();
+		try {
+			return createFiles(text, source(text), text.getFilename(), backend);
+		} finally {
+			finished();
+		}
 	}
 	
 	/**
-	 * Fetch the existing images rendered for the given filename.
-	 * @param filename The filename, minus any extensions, for which
-	 * to search for matching images.
-	 * @return The ArrayList of Files that are the images. May be empty.
-	 * @author Jason Petersen
+	 * Prefetch the given Hymns in the background, so they come
+	 * straight from the cache if they are opened. This replaces
+	 * the Hymns given before. Only the first few are rendered,
+	 * one at a time and only once the user has been idle for a
+	 * while, so they should be given most likely first.
+	 * {@see #setPrefetchLimits}
+	 * @param hymns The Hymns the user is likely to open next.
 	 */
-	public static ArrayList<File> fetch(String filename) {
-		ArrayList<File> fetched = new ArrayList<File>();
-		
-		File directory = new File(Database.imgCache);
-		if(directory.isDirectory()) {
-			for(File file : directory.listFiles()) {
-				if(file.isFile()) {
-					String image = file.getAbsolutePath();
-					if(image.contains(filename + ".png")) { // Grab the single image
-						fetched.add(file);
-						break;
-					}
-					else if(image.contains(filename + "-page")) { // Grab multiple images
-						fetched.add(file);
-					}
+	public static void prefetch(Iterable<Hymn> hymns) {
+		Prefetcher.getInstance().prefetch(hymns);
+	}
+	
+	/**
+	 * Prefetch the Hymns which pair the given Tune with
+	 * each Text that fits it, with their default verses.
+	 * @param tune The Tune the user has just picked.
+	 */
+	public static void prefetch(Tune tune) {
+		Database db = Database.getInstance();
+		if(db == null) // It failed to load, so there is nothing to pair with
+			return;
+		ArrayList<Hymn> hymns = new ArrayList<Hymn>();
+		for(Text text : db.relevantTexts(tune)) {
+			try {
+				hymns.add(new Hymn(text, tune));
+			} catch(InvalidHymnException ihe) {
+				System.err.println("RenderEngine.prefetch - " + ihe.getMessage());
+			}
+		}
+		prefetch(hymns);
+	}
+	
+	/**
+	 * Prefetch the Hymns which pair the given Text with
+	 * each Tune that fits it, with their default verses.
+	 * @param text The Text the user has just picked.
+	 */
+	public static void prefetch(Text text) {
+		Database db = Database.getInstance();
+		if(db == null) // It failed to load, so there is nothing to pair with
+			return;
+		ArrayList<Hymn> hymns = new ArrayList<Hymn>();
+		for(Tune tune : db.relevantTunes(text)) {
+			try {
+				hymns.add(new Hymn(text, tune));
+			} catch(InvalidHymnException ihe) {
+				System.err.println("RenderEngine.prefetch - " + ihe.getMessage());
+			}
+		}
+		prefetch(hymns);
+	}
+	
+	/**
+	 * Set how much prefetching may do for each selection.
+	 * By default it renders 8 Hymns, uses a quarter of one
+	 * CPU and writes 16MB of images. Prefetching never evicts
+	 * images from the disk tier of the cache.
+	 * @param count The number of Hymns to prefetch, 0 to stop prefetching.
+	 * @param cpuShare The share of one CPU to use, more than 0 and at most 1.
+	 * @param diskBytes The number of bytes of images to write.
+	 */
+	public static void setPrefetchLimits(int count, double cpuShare, long diskBytes) {
+		Prefetcher.getInstance().setLimits(count, cpuShare, diskBytes);
+	}
+	
+	/**
+	 * Render many Hymns, Tunes and Texts, e.g. a whole hymnal.
+	 * Items which are not in the cache are grouped into batches,
+	 * and each batch is rendered in one run of lilypond, so its
+	 * startup is paid once per batch rather than once per item.
+	 * The images are cached as though each item had been rendered
+	 * on its own. An item which fails in a batch is tried again
+	 * on its own before it is reported as failed. With the Java2D
+	 * backend there is no startup to save, so the items are just
+	 * engraved in parallel.
+	 * @param items The Hymns, Tunes and Texts to render.
+	 * @return The number of items rendered per second, counting
+	 * the items which were already in the cache.
+	 * @throws IOException The renders could not be run.
+	 */
+	public static double renderAll(Iterable<?> items) throws IOException {
+		Backend b = backend;
+		if(b == Backend.JAVA2D)
+			return renderAll(items, b, null, cache, batchSize);
+		if(!supportedOS())
+			throw new IOException("Unsupported operating system: " + System.getProperty("os.name"));
+		return renderAll(items, b, getPool(), cache, batchSize);
+	}
+	
+	/**
+	 * Set the number of items renderAll gives lilypond at once.
+	 * Larger batches pay lilypond's startup less often, but each
+	 * batch only runs on one worker.
+	 * @param size The number of items in each batch.
+	 */
+	public static void setBatchSize(int size) {
+		if(size < 1)
+			throw new IllegalArgumentException("A batch needs at least one item");
+		batchSize = size;
+	}
+	
+	/**
+	 * Choose the backend for new renders. Images from each
+	 * backend are cached under different keys, so switching
+	 * never returns the other backend's images.
+	 * @param b The backend to use.
+	 */
+	public static void setBackend(Backend b) {
+		if(b == null)
+			throw new IllegalArgumentException("The backend cannot be null");
+		backend = b;
+	}
+	
+	/**
+	 * Get the backend new renders use. This is LilyPond if
+	 * it is installed, otherwise Java2D, until it is changed
+	 * with setBackend or setRenderer.
+	 * @return The backend new renders use.
+	 */
+	public static Backend getBackend() {
+		return backend;
+	}
+	
+	/**
+	 * Set the limits on the size of the cache of rendered images.
+	 * @param memoryBytes The most bytes of images to keep in memory.
+	 * @param diskBytes The most bytes of images to keep on disk.
+	 */
+	public static void setCacheLimits(long memoryBytes, long diskBytes) {
+		cache.setLimits(memoryBytes, diskBytes);
+	}
+	
+	/**
+	 * Set the renderer and the number of renders to run at once,
+	 * and switch to the LilyPond backend to use it.
+	 * Renders already waiting for the old workers fail.
+	 * @param command The renderer to run, e.g. the location of lilypond.
+	 * It is given the arguments -fpng -o [target] - and the source on stdin.
+	 * @param workers The number of renders to run at once.
+	 */
+	public static synchronized void setRenderer(String command, int workers) {
+		RenderPool old = pool;
+		pool = new RenderPool(command, workers, workers*queuePerWorker, renderTimeout);
+		if(old != null)
+			old.shutdown();
+		backend = Backend.LILYPOND;
+		
+		if(asyncExecutor != null) { // Keep one thread waiting on each worker
+			if(workers > asyncExecutor.getMaximumPoolSize()) {
+				asyncExecutor.setMaximumPoolSize(workers);
+				asyncExecutor.setCorePoolSize(workers);
+			}
+			else {
+				asyncExecutor.setCorePoolSize(workers);
+				asyncExecutor.setMaximumPoolSize(workers);
+			}
+		}
+	}
+	
+	/**
+	 * Delete every rendered image, both in memory and on disk.
+	 */
+	static void clearCache() {
+		cache.clear();
+	}
+	
+	/**
+	 * Render the given Hymn for the Prefetcher, on the calling
+	 * thread. A render for the same images which is already
+	 * running is left to finish on its own. The render is
+	 * cancelled if the user asks for another one.
+	 * @param hymn The Hymn to render.
+	 * @return The number of bytes of images written, 0 if
+	 * nothing needed rendering, or -1 if the render was cancelled.
+	 * @throws IOException The render failed.
+	 */
+	static long prefetch(Hymn hymn) throws IOException {
+		Backend b = backend;
+		String asString = source(hymn);
+		String key = key(asString, b);
+		if(cache.contains(key))
+			return 0;
+		
+		AsyncRender render;
+		synchronized(inFlight) {
+			if(inFlight.containsKey(key))
+				return 0;
+			render = new AsyncRender(key, hymn, asString, hymn.getFilename(), b);
+			render.speculative = true;
+			inFlight.put(key, render);
+		}
+		
+		render.run();
+		try {
+			long bytes = 0;
+			for(byte[] page : render.result.get())
+				bytes += page.length;
+			metrics.count(RenderMetrics.Counter.PREFETCH);
+			return bytes;
+		} catch(CancellationException ce) {
+			metrics.count(RenderMetrics.Counter.PREFETCH_CANCELLED);
+			return -1;
+		} catch(InterruptedException ie) { // Cannot happen, the render has finished
+			Thread.currentThread().interrupt();
+			return 0;
+		} catch(ExecutionException ee) {
+			throw (ee.getCause() instanceof IOException) ? (IOException)ee.getCause()
+					: new IOException("Prefetching " + hymn.getFilename() + " failed: " + ee.getCause());
+		}
+	}
+	
+	/**
+	 * Get the number of asynchronous renders, including
+	 * prefetches, which have not finished.
+	 * @return The number of renders in flight.
+	 */
+	static int rendersInFlight() {
+		synchronized(inFlight) {
+			return inFlight.size();
+		}
+	}
+	
+	/**
+	 * Get the number of renders waiting for a lilypond worker.
+	 * @return The number of queued renders, 0 if lilypond has not been used.
+	 */
+	static synchronized int rendersQueued() {
+		return (pool != null) ? pool.queued() : 0;
+	}
+	
+	/**
+	 * Get how long it has been since a render asked for by
+	 * the user started or finished.
+	 * @return The time since the user last rendered, in milliseconds.
+	 */
+	static long idleFor() {
+		return System.currentTimeMillis() - lastRequest;
+	}
+	
+	/**
+	 * Check whether a render asked for by the user is running.
+	 * @return True if the user is waiting for a render.
+	 */
+	static boolean isBusy() {
+		if(rendering.get() > 0)
+			return true;
+		synchronized(inFlight) {
+			for(AsyncRender r : inFlight.values())
+				if(!r.speculative)
+					return true;
+		}
+		return false;
+	}
+	
+	/**
+	 * Get the number of bytes which may still be written
+	 * to the disk tier of the cache before it evicts images.
+	 * @return The room left in the cache, in bytes.
+	 */
+	static long cacheRoom() {
+		return cache.room();
+	}
+	
+	/**
+	 * Render many Hymns, Tunes and Texts in batches with the given
+	 * backend, workers and cache. The batches are handed to the
+	 * workers at once.
+	 * @param items The Hymns, Tunes and Texts to render.
+	 * @param b The backend to render with.
+	 * @param renderer The workers which run the renderer, may be null
+	 * for the Java2D backend.
+	 * @param images The cache to render into.
+	 * @param size The number of items in each batch.
+	 * @return The number of items rendered per second, counting
+	 * the items which were already in the cache.
+	 * @throws IOException The renders were interrupted or failed unexpectedly.
+	 */
+	static double renderAll(Iterable<?> items, final Backend b, final RenderPool renderer, final RenderCache images, int size) throws IOException {
+		long start = System.nanoTime();
+		
+		// Find what is not cached yet, once each
+		LinkedHashMap<String, BatchItem> toRender = new LinkedHashMap<String, BatchItem>();
+		int count = 0;
+		for(Object item : items) {
+			BatchItem i = new BatchItem(item, b);
+			if(!toRender.containsKey(i.key) && images.getFiles(i.key).isEmpty())
+				toRender.put(i.key, i);
+			count++;
+		}
+		
+		ArrayList<ArrayList<BatchItem>> batches = new ArrayList<ArrayList<BatchItem>>();
+		ArrayList<BatchItem> batch = null;
+		for(BatchItem i : toRender.values()) {
+			if(batch == null || batch.size() == size) {
+				batch = new ArrayList<BatchItem>(size);
+				batches.add(batch);
+			}
+			batch.add(i);
+		}
+		
+		if(!batches.isEmpty()) {
+			// The renders themselves block, so give each worker a thread to wait on them from
+			int workers = (renderer != null) ? renderer.numberOfWorkers() : Runtime.getRuntime().availableProcessors();
+			ExecutorService executor = Executors.newFixedThreadPool(Math.min(batches.size(), workers));
+			try {
+				ArrayList<Future<?>> results = new ArrayList<Future<?>>(batches.size());
+				for(final ArrayList<BatchItem> each : batches) {
+					results.add(executor.submit(new Callable<Void>() {
+						@Override
+						public Void call() {
+							if(b == Backend.JAVA2D)
+								engraveBatch(each, images);
+							else
+								renderBatch(each, renderer, images);
+							return null;
+						}
+					}));
 				}
+				for(Future<?> result : results)
+					result.get();
+			} catch(InterruptedException ie) {
+				Thread.currentThread().interrupt();
+				throw new IOException("Interrupted while rendering");
+			} catch(ExecutionException ee) {
+				throw new IOException("Rendering failed: " + ee.getCause());
+			} finally {
+				executor.shutdownNow();
 			}
 		}
-		return fetched;
+		
+		double seconds = (System.nanoTime() - start) / 1e9;
+		return (seconds > 0) ? count / seconds : 0;
 	}
 	
 	/* ---------- Private methods ---------- */
 	
-	private static ArrayList<File> createFiles(String asString, String filename) throws IOException {
-		if(supportedOS()) {
-			renderPNGs(asString, filename);
-			ArrayList<File> toReturn = fetch(filename);
-			if(toReturn.isEmpty())
-	        	throw new IOException("Failed to render " + filename);
+	/**
+	 * Render one batch in a single run of the renderer. Each item
+	 * is its own book in the source, named by its cache key, so the
+	 * renderer writes its images straight to their place in the cache.
+	 * Items with no images afterwards are rendered again on their own.
+	 * @param batch The items to render.
+	 * @param renderer The workers which run the renderer.
+	 * @param images The cache to render into.
+	 */
+	private static void renderBatch(ArrayList<BatchItem> batch, RenderPool renderer, RenderCache images) {
+		ArrayList<String> sources = new ArrayList<String>(batch.size());
+		ArrayList<String> names = new ArrayList<String>(batch.size());
+		for(BatchItem b : batch) {
+			sources.add(b.source);
+			names.add(b.key);
+		}
+		
+		try {
+			// The images are named by the books, so the name of the target itself is never used
+			File target = images.getTarget("batch-" + Thread.currentThread().getId());
+			renderer.render(util.createBatch(sources, names), target.getPath(), renderTimeout*batch.size());
+		} catch(IOException ioe) {
+			System.err.println("RenderEngine.renderBatch - " + ioe.getMessage());
+		}
+		
+		for(BatchItem b : batch) {
+			if(!images.added(b.key).isEmpty())
+				continue;
+			try {
+				renderer.render(b.source, images.getTarget(b.key).getPath());
+				if(images.added(b.key).isEmpty())
+					throw new IOException("Failed to render " + b.filename);
+			} catch(IOException ioe) {
+				System.err.println("RenderEngine.renderBatch - " + ioe.getMessage());
+			}
+		}
+	}
+	
+	
+	/**
+	 * Engrave one batch with the Java2D backend, one item at a time.
+	 * @param batch The items to render.
+	 * @param images The cache to render into.
+	 */
+	private static void engraveBatch(ArrayList<BatchItem> batch, RenderCache images) {
+		for(BatchItem b : batch) {
+			try {
+				engrave(b.item, images.getTarget(b.key));
+				if(images.added(b.key).isEmpty())
+					throw new IOException("Failed to render " + b.filename);
+			} catch(IOException ioe) {
+				System.err.println("RenderEngine.engraveBatch - " + ioe.getMessage());
+			}
+		}
+	}
+	
+	/**
+	 * Get the images rendered from the given Hymn, Tune or Text,
+	 * rendering them if they are not in the cache.
+	 * @param item The Hymn, Tune or Text to render.
+	 * @param asString The item as a LilyPond compliant String.
+	 * @param filename The name of what is being rendered, used in errors.
+	 * @param b The backend to render with.
+	 * @return The image files.
+	 * @throws IOException An error occurred when creating the files.
+	 * @author Jason Petersen
+	 */
+	private static ArrayList<File> createFiles(Object item, String asString, String filename, Backend b) throws IOException {
+		String key = key(asString, b);
+		ArrayList<File> toReturn = cache.getFiles(key);
+		if(!toReturn.isEmpty())
 			return toReturn;
+		
+		if(b == Backend.JAVA2D)
+			engrave(item, cache.getTarget(key));
+		else if(supportedOS())
+			renderPNGs(asString, cache.getTarget(key).getPath());
+		else
+			throw new IOException("Unsupported operating system: " + System.getProperty("os.name"));
+		
+		toReturn = cache.added(key);
+		if(toReturn.isEmpty())
+        	throw new IOException("Failed to render " + filename);
+		return toReturn;
+	}
+	
+	/**
+	 * Get the cache key of the images of the given LilyPond
+	 * compliant String. Images from the Java2D backend
+	 * are kept apart from lilypond's.
+	 * @param asString A LilyPond compliant String.
+	 * @param b The backend the images are rendered with.
+	 * @return The cache key.
+	 */
+	private static String key(String asString, Backend b) {
+		String key = RenderCache.key(asString);
+		return (b == Backend.JAVA2D) ? "java2d-" + key : key;
+	}
+	
+	/**
+	 * Draw the pages of the given Hymn, Tune or Text with the
+	 * Engraver, and write them where lilypond would have.
+	 * @param item The Hymn, Tune or Text to render.
+	 * @param target The path of the images to create, without an extension.
+	 * @throws IOException An error occurred when writing the images.
+	 */
+	private static void engrave(Object item, File target) throws IOException {
+		Engraver engraver = Engraver.getInstance();
+		metrics.count(RenderMetrics.Counter.RENDERER_RUN);
+		long start = System.nanoTime();
+		ArrayList<BufferedImage> pages;
+		if(item instanceof Hymn)
+			pages = engraver.engrave((Hymn)item);
+		else if(item instanceof Tune)
+			pages = engraver.engrave((Tune)item);
+		else if(item instanceof Text)
+			pages = engraver.engrave((Text)item);
+		else throw new IllegalArgumentException("Cannot render " + item);
+		metrics.time(RenderMetrics.Phase.ENGRAVE, start);
+		
+		start = System.nanoTime();
+		try {
+			Engraver.write(pages, target);
+		} catch(IOException ioe) {
+			metrics.count(RenderMetrics.Counter.RENDERER_FAILURE);
+			throw ioe;
 		}
-		throw new IOException("Unsupported operating system: " + System.getProperty("os.name"));
+		metrics.time(RenderMetrics.Phase.ENCODE, start);
 	}
 	
 	/**
 	 * Create the PNGs from the given LilyPond compliant String.
+	 * The String is handed to a worker, which writes it to the
+	 * renderer's stdin so no .ly file is written to disk.
 	 * @param asString A LilyPond compliant String.
-	 * @param filename The name of the file to create.
+	 * @param filename The path of the file to create, without an extension.
 	 * @throws IOException An error occurred when creating the file.
-	 * @return The image created from the given String.
 	 * @author Jason Petersen
 	 */
 	private static void renderPNGs(String asString, String filename) throws IOException {
-		filename = Database.imgCache + "/" + filename;
-		
-		// Call echo on the Hymn as a String
-		ProcessBuilder p = new ProcessBuilder("/bin/echo", asString);
-		p.redirectErrorStream(true);
-		Process echo = p.start();
-        
-        // Call lilypond
-		ProcessBuilder pb = new ProcessBuilder(cmd, "-fpng", "-o", filename, "-");
-		pb.redirectErrorStream(true);
-		Process lily = pb.start();
-		
-		// Pipe the output from echo to lilypond
-		pipe(echo.getInputStream(), lily.getOutputStream());
-
-		// Wait for LilyPond to finish its process
-		try {
-			lily.waitFor();
-		} catch (InterruptedException e) {
-			System.err.println("RenderEngine.createPNG - LilyPond was interrupted");
+		getPool().render(asString, filename);
+	}
+	
+	/**
+	 * Create the LilyPond source of a Hymn, timing it. The
+	 * source of a Hymn with the same digest as one rendered
+	 * lately is reused instead of being created again.
+	 * @param hymn The Hymn.
+	 * @return The Hymn as a LilyPond compliant String.
+	 */
+	private static String source(Hymn hymn) {
+		String digest = hymn.digest();
+		synchronized(sources) {
+			String asString = sources.get(digest);
+			if(asString != null) {
+				metrics.count(RenderMetrics.Counter.SOURCE_REUSED);
+				return asString;
+			}
 		}
 		
-		// Process the output from lilypond
-		String s = null;
-		BufferedReader stdInput = new BufferedReader(new InputStreamReader(lily.getInputStream()));
-        while((s = stdInput.readLine()) != null) {
-        	//System.out.println(s); 
-        }
+		long start = System.nanoTime();
+		String asString = util.createString(hymn);
+		metrics.time(RenderMetrics.Phase.SOURCE, start);
+		synchronized(sources) {
+			sources.put(digest, asString);
+		}
+		return asString;
 	}
-
+	
 	/**
-	 * Helper function to pipe data from the input stream of one process to
-	 * the output stream of another. Specifically, this is used to send the
-	 * stdin from echo to lilypond for conversion. This is done to prevent
-	 * writing .ly files to the disk, thereby cutting the number of disk writes
-	 * for hymn creation in half. Under the hood, a new thread is spawned and
-	 * started to do all the copying of the bytes.
-	 * 
-	 * This was not a solution I reached on my own, though the final product is. 
-	 * The code is modeled after that presented on the following two websites:
-	 * http://stackoverflow.com/questions/60302/starting-a-process-with-inherited-stdin-stdout-stderr-in-java-6
-	 * http://blog.bensmann.com/piping-between-processes
-	 * 
-	 * @param input The InputStream to copy to output.
-	 * @param output The OutputStream into which input will be copied.
-	 * @author Jason Petersen 
-	 */
-	private static void pipe(final InputStream input, final OutputStream output) {
-		new Thread(new Runnable(){
-			public void run(){
-				try {
-					int read;
-					byte[] b = new byte[512];
-					for(;;){
-						read = input.read(b, 0, b.length);
-						if(read > -1) output.write(b, 0, read);
-						else break;
-					}
-				} catch (IOException e) {
-					System.err.println("RenderEngine.pipe - Failed to pipe data from input to output");
-				} finally {
-					try {
-						input.close();
-					} catch (IOException e) {
-						System.err.println("RenderEngine.pipe - Failed to close input");
-					}
-					try {
-						output.close();
-					} catch (IOException e){
-						System.err.println("RenderEngine.pipe - Failed to close output");
-					}
-				}	
+	 * Create the LilyPond source of a Tune, timing it.
+	 * @param tune The Tune.
+	 * @return The Tune as a LilyPond compliant String.
+	 */
+	private static String source(Tune tune) {
+		long start = System.nanoTime();
+		String asString = util.createString(tune);
+		metrics.time(RenderMetrics.Phase.SOURCE, start);
+		return asString;
+	}
+	
+	/**
+	 * Create the LilyPond source of a Text, timing it.
+	 * @param text The Text.
+	 * @return The Text as a LilyPond compliant String.
+	 */
+	private static String source(Text text) {
+		long start = System.nanoTime();
+		String asString = util.createString(text);
+		metrics.time(RenderMetrics.Phase.SOURCE, start);
+		return asString;
+	}
+	
+	/**
+	 * Record that a render asked for by the user has started.
+	 */
+	private static void started() {
+		rendering.incrementAndGet();
+		lastRequest = System.currentTimeMillis();
+	}
+	
+	/**
+	 * Record that a render asked for by the user has finished.
+	 */
+	private static void finished() {
+		lastRequest = System.currentTimeMillis();
+		rendering.decrementAndGet();
+	}
+	
+	/**
+	 * Cancel the renders being prefetched, so they do not hold
+	 * up a render the user has asked for. Renders the user has
+	 * joined are no longer speculative, so they are left alone.
+	 */
+	private static void cancelSpeculative() {
+		ArrayList<AsyncRender> cancelled = new ArrayList<AsyncRender>();
+		synchronized(inFlight) {
+			Iterator<AsyncRender> renders = inFlight.values().iterator();
+			while(renders.hasNext()) {
+				AsyncRender r = renders.next();
+				if(r.speculative) {
+					renders.remove();
+					cancelled.add(r);
+				}
 			}
-		}).start();
+		}
+		for(AsyncRender r : cancelled)
+			r.cancel();
+	}
+	
+	/**
+	 * Get the render workers, starting them if needed.
+	 * @return The render workers.
+	 */
+	private static synchronized RenderPool getPool() {
+		if(pool == null) {
+			int workers = Runtime.getRuntime().availableProcessors();
+			pool = new RenderPool(cmd, workers, workers*queuePerWorker, renderTimeout);
+		}
+		return pool;
+	}
+	
+	/**
+	 * Get the threads which run asynchronous renders, starting
+	 * them if needed. There is one for each render worker, and
+	 * the same number of renders may wait for them per worker
+	 * as may wait for the workers themselves.
+	 * @return The threads which run asynchronous renders.
+	 */
+	private static synchronized ThreadPoolExecutor getExecutor() {
+		if(asyncExecutor == null) {
+			int workers = (pool != null) ? pool.numberOfWorkers() : Runtime.getRuntime().availableProcessors();
+			asyncExecutor = new ThreadPoolExecutor(workers, workers, 0, TimeUnit.MILLISECONDS,
+					new ArrayBlockingQueue<Runnable>(workers*queuePerWorker), new ThreadFactory() {
+				/** The number of threads started so far, used to name them */
+				private int started = 0;
+				
+				@Override
+				public synchronized Thread newThread(Runnable r) {
+					Thread thread = new Thread(r, "RenderEngine-" + (++started));
+					thread.setDaemon(true);
+					return thread;
+				}
+			});
+		}
+		return asyncExecutor;
+	}
+	
+	/**
+	 * Choose the backend to start with: LilyPond if it is
+	 * installed and can run here, otherwise Java2D.
+	 * @return The backend to start with.
+	 */
+	private static Backend defaultBackend() {
+		return (supportedOS() && new File(cmd).canExecute()) ? Backend.LILYPOND : Backend.JAVA2D;
 	}
 	
 	/**
@@ -216,4 +943,215 @@ public final class RenderEngine {
 		return System.getProperty("os.name").equals("Linux");
 	}
 	
+	/**
+	 * The future given to one caller of renderAsync, which
+	 * gives up on its render when it is cancelled.
+	 */
+	private static class Waiter extends CompletableFuture<ArrayList<byte[]>> {
+		/** The render this caller waits for, null until its source has been made */
+		private AsyncRender render;
+		
+		/**
+		 * Wait for a render, unless this caller has given up.
+		 * @param r The render to wait for.
+		 * @return True if this caller waits for the render, false
+		 * if it has already given up.
+		 */
+		private synchronized boolean attach(AsyncRender r) {
+			if(isCancelled())
+				return false;
+			render = r;
+			return true;
+		}
+		
+		@Override
+		public boolean cancel(boolean mayInterruptIfRunning) {
+			boolean cancelled = super.cancel(mayInterruptIfRunning);
+			AsyncRender r;
+			synchronized(this) {
+				r = render;
+			}
+			if(cancelled && r != null)
+				r.release();
+			return cancelled;
+		}
+	}
+	
+	/**
+	 * An asynchronous render, shared by everyone who asked
+	 * for the same images while it was running.
+	 */
+	private static class AsyncRender implements Runnable {
+		/** The cache key of the images */
+		private final String key;
+		
+		/** The Hymn being rendered */
+		private final Hymn hymn;
+		
+		/** The LilyPond source */
+		private final String source;
+		
+		/** The name of what is being rendered, used in errors */
+		private final String filename;
+		
+		/** The backend to render with */
+		private final Backend backend;
+		
+		/** The images, shared by every waiter */
+		private final CompletableFuture<ArrayList<byte[]>> result = new CompletableFuture<ArrayList<byte[]>>();
+		
+		/** The number of callers waiting for the images, guarded by inFlight */
+		private int waiters = 0;
+		
+		/** True while only the Prefetcher wants the images, guarded by inFlight */
+		private boolean speculative = false;
+		
+		/** The task running this render, null until it has been submitted */
+		private volatile Future<?> task;
+		
+		/** The render waiting for or running on a worker, null until it has been queued */
+		private volatile CompletableFuture<Void> job;
+		
+		/**
+		 * Constructor.
+		 * @param key The cache key of the images.
+		 * @param hymn The Hymn being rendered.
+		 * @param source The LilyPond source.
+		 * @param filename The name of what is being rendered, used in errors.
+		 * @param backend The backend to render with.
+		 */
+		private AsyncRender(String key, Hymn hymn, String source, String filename, Backend backend) {
+			this.key = key;
+			this.hymn = hymn;
+			this.source = source;
+			this.filename = filename;
+			this.backend = backend;
+		}
+		
+		@Override
+		public void run() {
+			if(result.isDone()) // Given up on before it started
+				return;
+			try {
+				ArrayList<byte[]> images = cache.getImages(key);
+				if(images == null) {
+					if(backend == Backend.JAVA2D)
+						engrave(hymn, cache.getTarget(key));
+					else {
+						if(!supportedOS())
+							throw new IOException("Unsupported operating system: " + System.getProperty("os.name"));
+						
+						CompletableFuture<Void> j = getPool().submit(source, cache.getTarget(key).getPath(), renderTimeout);
+						job = j;
+						if(result.isDone()) // Given up on while it was being queued
+							j.cancel(true);
+						j.get();
+					}
+					
+					cache.added(key);
+					images = cache.getImages(key);
+					if(images == null)
+						throw new IOException("Failed to render " + filename);
+				}
+				finish(images, null);
+			} catch(IOException ioe) {
+				finish(null, ioe);
+			} catch(InterruptedException ie) {
+				finish(null, new IOException("Interrupted while rendering " + filename));
+			} catch(CancellationException ce) {
+				finish(null, new IOException("Rendering " + filename + " was cancelled"));
+			} catch(ExecutionException ee) {
+				finish(null, (ee.getCause() instanceof IOException) ? (IOException)ee.getCause()
+						: new IOException("Rendering " + filename + " failed: " + ee.getCause()));
+			}
+		}
+		
+		/**
+		 * Finish the render, so that later requests for the
+		 * same images start again, or hit the cache.
+		 * @param images The rendered images, null if the render failed.
+		 * @param error The reason the render failed, null if it succeeded.
+		 */
+		private void finish(ArrayList<byte[]> images, IOException error) {
+			synchronized(inFlight) {
+				if(inFlight.get(key) == this)
+					inFlight.remove(key);
+				if(!speculative)
+					lastRequest = System.currentTimeMillis();
+			}
+			if(error != null)
+				result.completeExceptionally(error);
+			else
+				result.complete(images);
+		}
+		
+		/**
+		 * Called when a waiter gives up. The render is cancelled
+		 * once nobody is waiting for it.
+		 */
+		private void release() {
+			synchronized(inFlight) {
+				if(--waiters > 0)
+					return;
+				if(inFlight.get(key) == this)
+					inFlight.remove(key);
+			}
+			cancel();
+		}
+		
+		/**
+		 * Give up on the render, taking it out of the queue
+		 * or killing lilypond if it has started.
+		 */
+		private void cancel() {
+			result.cancel(false);
+			Future<?> t = task;
+			if(t != null)
+				t.cancel(true);
+			CompletableFuture<Void> j = job;
+			if(j != null)
+				j.cancel(true);
+		}
+	}
+	
+	/**
+	 * A Hymn, Tune or Text waiting to be rendered in a batch.
+	 */
+	private static class BatchItem {
+		/** The Hymn, Tune or Text */
+		private final Object item;
+		
+		/** The LilyPond source of the item */
+		private final String source;
+		
+		/** The cache key of the item's images */
+		private final String key;
+		
+		/** The name of the item, used in errors */
+		private final String filename;
+		
+		/**
+		 * Constructor.
+		 * @param item The Hymn, Tune or Text to render.
+		 * @param backend The backend it will be rendered with.
+		 */
+		private BatchItem(Object item, Backend backend) {
+			this.item = item;
+			if(item instanceof Hymn) {
+				source = source((Hymn)item);
+				filename = ((Hymn)item).getFilename();
+			}
+			else if(item instanceof Tune) {
+				source = source((Tune)item);
+				filename = ((Tune)item).getFilename();
+			}
+			else if(item instanceof Text) {
+				source = source((Text)item);
+				filename = ((Text)item).getFilename();
+			}
+			else throw new IllegalArgumentException("Cannot render " + item);
+			key = key(source, backend);
+		}
+	}
+	
 }
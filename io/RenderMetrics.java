@@ -0,0 +1,451 @@
+// Copyright 2012 Jason Petersen and Timothy Macdonald
+// 
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+// 
+//     http://www.apache.org/licenses/LICENSE-2.0
+// 
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+/**
+ * RenderMetrics.java
+ *
+ * Where the time goes when Hymns are parsed,
+ * rendered and displayed: a latency histogram
+ * for each phase, counters for the cache and
+ * the renderers, and gauges of the renders
+ * waiting. They are published over JMX as
+ * jhymnal:type=RenderMetrics, and are logged
+ * every so many seconds if the system property
+ * jhymnal.metrics.log is set to the number.
+ *
+ * Recording is cheap enough to leave on: a
+ * phase costs two calls to System.nanoTime and
+ * a few uncontended atomic adds, and nothing
+ * is allocated. The histograms have eight
+ * buckets for each power of two, so the
+ * percentiles are within an eighth of the truth.
+ */
+
+package io;
+
+import java.lang.management.ManagementFactory;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+
+import javax.management.JMException;
+import javax.management.ObjectName;
+
+public final class RenderMetrics implements RenderMetricsMXBean {
+
+	/**
+	 * The phases of parsing, rendering and displaying
+	 * which are timed.
+	 */
+	public enum Phase {
+		/** Parsing a Text or Tune from its file */
+		PARSE,
+		/** Creating the LilyPond source of an item */
+		SOURCE,
+		/** Waiting for a lilypond worker */
+		QUEUE,
+		/** Starting the lilypond process */
+		SPAWN,
+		/** Running lilypond, from starting it until it exits */
+		LILYPOND,
+		/** Drawing the pages with the Java2D Engraver */
+		ENGRAVE,
+		/** Encoding the Engraver's pages as PNGs */
+		ENCODE,
+		/** Reading images from the disk tier of the cache */
+		CACHE_READ,
+		/** Getting the images of a Hymn, from asking until they are ready */
+		RENDER,
+		/** Decoding a page to display it */
+		DECODE
+	}
+
+	/**
+	 * The events which are counted.
+	 */
+	public enum Counter {
+		/** Images found in the memory tier of the cache */
+		MEMORY_HIT,
+		/** Images not in the memory tier of the cache */
+		MEMORY_MISS,
+		/** Images found in the disk tier of the cache */
+		DISK_HIT,
+		/** Images not in the disk tier of the cache */
+		DISK_MISS,
+		/** Images evicted from the disk tier of the cache */
+		DISK_EVICTION,
+		/** Runs of lilypond or the Engraver */
+		RENDERER_RUN,
+		/** Runs of lilypond or the Engraver which failed */
+		RENDERER_FAILURE,
+		/** Asynchronous renders which joined one already running */
+		RENDER_JOINED,
+		/** Hymns rendered by the Prefetcher */
+		PREFETCH,
+		/** Prefetches cancelled for a render the user asked for */
+		PREFETCH_CANCELLED,
+		/** Hymns whose LilyPond source was reused from an earlier render */
+		SOURCE_REUSED
+	}
+
+	/** The instance of RenderMetrics */
+	private static final RenderMetrics instance = new RenderMetrics();
+
+	/** The name RenderMetrics is published under */
+	private static final String name = "jhymnal:type=RenderMetrics";
+
+	/** The system property giving the number of seconds between logs */
+	private static final String logProperty = "jhymnal.metrics.log";
+
+	/** The latency of each phase */
+	private final Histogram[] histograms = new Histogram[Phase.values().length];
+
+	/** The value of each counter */
+	private final LongAdder[] counters = new LongAdder[Counter.values().length];
+
+	/** The thread which logs the metrics, null until logging starts */
+	private ScheduledExecutorService logger;
+
+	/**
+	 * Private constructor for the singleton. Publishes the
+	 * metrics, and starts logging them if asked to.
+	 */
+	private RenderMetrics() {
+		for(int i=0; i<histograms.length; i++)
+			histograms[i] = new Histogram();
+		for(int i=0; i<counters.length; i++)
+			counters[i] = new LongAdder();
+
+		try {
+			ManagementFactory.getPlatformMBeanServer().registerMBean(this, new ObjectName(name));
+		} catch(JMException jme) {
+			System.err.println("RenderMetrics - Could not publish the metrics: " + jme.getMessage());
+		} catch(SecurityException se) {
+			System.err.println("RenderMetrics - Could not publish the metrics: " + se.getMessage());
+		}
+
+		String seconds = System.getProperty(logProperty);
+		if(seconds != null) {
+			try {
+				startLogging(Long.parseLong(seconds)*1000);
+			} catch(IllegalArgumentException iae) {
+				System.err.println("RenderMetrics - Bad number of seconds in " + logProperty + ": " + seconds);
+			}
+		}
+	}
+
+	/**
+	 * Get the instance of RenderMetrics.
+	 * @return The instance of RenderMetrics.
+	 */
+	public static RenderMetrics getInstance() {
+		return instance;
+	}
+
+	/**
+	 * Record that a phase has just finished.
+	 * @param phase The phase.
+	 * @param start When the phase started, from System.nanoTime.
+	 */
+	public void time(Phase phase, long start) {
+		histograms[phase.ordinal()].record(System.nanoTime() - start);
+	}
+
+	/**
+	 * Count an event.
+	 * @param counter The counter of the event.
+	 */
+	public void count(Counter counter) {
+		counters[counter.ordinal()].increment();
+	}
+
+	/**
+	 * Log the metrics to stdout every so often, from a
+	 * daemon thread. Replaces the logging already running.
+	 * @param periodMillis The time between logs, in milliseconds.
+	 */
+	public synchronized void startLogging(long periodMillis) {
+		if(periodMillis <= 0)
+			throw new IllegalArgumentException("The time between logs must be positive");
+		stopLogging();
+		logger = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+			@Override
+			public Thread newThread(Runnable r) {
+				Thread thread = new Thread(r, "RenderMetrics");
+				thread.setDaemon(true);
+				return thread;
+			}
+		});
+		logger.scheduleAtFixedRate(new Runnable() {
+			@Override
+			public void run() {
+				System.out.print(getSummary());
+			}
+		}, periodMillis, periodMillis, TimeUnit.MILLISECONDS);
+	}
+
+	/**
+	 * Stop logging the metrics.
+	 */
+	public synchronized void stopLogging() {
+		if(logger != null)
+			logger.shutdownNow();
+		logger = null;
+	}
+
+	@Override
+	public Map<String, Latency> getLatencies() {
+		LinkedHashMap<String, Latency> latencies = new LinkedHashMap<String, Latency>();
+		for(Phase phase : Phase.values()) {
+			Latency latency = histograms[phase.ordinal()].latency();
+			if(latency.getCount() > 0)
+				latencies.put(phase.name().toLowerCase(), latency);
+		}
+		return latencies;
+	}
+
+	@Override
+	public Map<String, Long> getCounters() {
+		LinkedHashMap<String, Long> values = new LinkedHashMap<String, Long>();
+		for(Counter counter : Counter.values())
+			values.put(counter.name().toLowerCase(), counters[counter.ordinal()].sum());
+		return values;
+	}
+
+	@Override
+	public int getRendersInFlight() {
+		return RenderEngine.rendersInFlight();
+	}
+
+	@Override
+	public int getRendersQueued() {
+		return RenderEngine.rendersQueued();
+	}
+
+	@Override
+	public int getPrefetchesPending() {
+		return Prefetcher.getInstance().pending();
+	}
+
+	@Override
+	public String getSummary() {
+		StringBuilder sb = new StringBuilder("--- RENDER METRICS ---\n");
+		for(Map.Entry<String, Latency> latency : getLatencies().entrySet())
+			sb.append(latency.getKey()).append(": ").append(latency.getValue()).append('\n');
+		for(Map.Entry<String, Long> counter : getCounters().entrySet())
+			sb.append(counter.getKey()).append(": ").append(counter.getValue()).append('\n');
+		sb.append("in flight: ").append(getRendersInFlight()).append(", queued: ").append(getRendersQueued())
+			.append(", prefetching: ").append(getPrefetchesPending()).append('\n');
+		return sb.toString();
+	}
+
+	@Override
+	public void reset() {
+		for(Histogram histogram : histograms)
+			histogram.reset();
+		for(LongAdder counter : counters)
+			counter.reset();
+	}
+
+	/**
+	 * The latency of a phase, as published over JMX.
+	 */
+	public static final class Latency {
+		/** The number of times the phase was timed */
+		private final long count;
+
+		/** The mean, median, 90th and 99th percentiles and maximum, in microseconds */
+		private final long mean, p50, p90, p99, max;
+
+		/**
+		 * Constructor.
+		 * @param count The number of times the phase was timed.
+		 * @param mean The mean latency, in microseconds.
+		 * @param p50 The median latency, in microseconds.
+		 * @param p90 The 90th percentile, in microseconds.
+		 * @param p99 The 99th percentile, in microseconds.
+		 * @param max The longest latency, in microseconds.
+		 */
+		private Latency(long count, long mean, long p50, long p90, long p99, long max) {
+			this.count = count;
+			this.mean = mean;
+			this.p50 = p50;
+			this.p90 = p90;
+			this.p99 = p99;
+			this.max = max;
+		}
+
+		/**
+		 * @return The number of times the phase was timed.
+		 */
+		public long getCount() {
+			return count;
+		}
+
+		/**
+		 * @return The mean latency, in microseconds.
+		 */
+		public long getMeanMicros() {
+			return mean;
+		}
+
+		/**
+		 * @return The median latency, in microseconds.
+		 */
+		public long getP50Micros() {
+			return p50;
+		}
+
+		/**
+		 * @return The 90th percentile, in microseconds.
+		 */
+		public long getP90Micros() {
+			return p90;
+		}
+
+		/**
+		 * @return The 99th percentile, in microseconds.
+		 */
+		public long getP99Micros() {
+			return p99;
+		}
+
+		/**
+		 * @return The longest latency, in microseconds.
+		 */
+		public long getMaxMicros() {
+			return max;
+		}
+
+		@Override
+		public String toString() {
+			return count + " timed, mean " + mean + " us, p50 " + p50 + " us, p90 " + p90 +
+					" us, p99 " + p99 + " us, max " + max + " us";
+		}
+	}
+
+	/**
+	 * A histogram of latencies in nanoseconds, with eight
+	 * buckets for each power of two. Threads may record
+	 * into it at once without locking.
+	 */
+	private static final class Histogram {
+		/** The number of buckets for each power of two, as a power of two */
+		private static final int subBits = 3;
+
+		/** The number of latencies in each bucket */
+		private final AtomicLongArray buckets = new AtomicLongArray((64 - subBits + 1) << subBits);
+
+		/** The number of latencies recorded */
+		private final LongAdder count = new LongAdder();
+
+		/** The sum of the latencies recorded */
+		private final LongAdder sum = new LongAdder();
+
+		/** The longest latency recorded */
+		private final AtomicLong max = new AtomicLong();
+
+		/**
+		 * Record a latency.
+		 * @param nanos The latency, in nanoseconds.
+		 */
+		private void record(long nanos) {
+			if(nanos < 0) nanos = 0;
+			buckets.incrementAndGet(bucketOf(nanos));
+			count.increment();
+			sum.add(nanos);
+			long m;
+			while(nanos > (m = max.get()) && !max.compareAndSet(m, nanos));
+		}
+
+		/**
+		 * Summarise the latencies recorded so far.
+		 * @return The summary, in microseconds.
+		 */
+		private Latency latency() {
+			long n = count.sum();
+			if(n == 0)
+				return new Latency(0, 0, 0, 0, 0, 0);
+			long m = max.get();
+			return new Latency(n, sum.sum()/n/1000, percentile(0.5, m)/1000,
+					percentile(0.9, m)/1000, percentile(0.99, m)/1000, m/1000);
+		}
+
+		/**
+		 * Estimate a percentile, as the middle of its bucket.
+		 * @param fraction The percentile, as a fraction.
+		 * @param max The longest latency recorded.
+		 * @return The percentile, in nanoseconds.
+		 */
+		private long percentile(double fraction, long max) {
+			long total = 0;
+			for(int i=0; i<buckets.length(); i++)
+				total += buckets.get(i);
+			long rank = (long)Math.ceil(fraction*total);
+			long seen = 0;
+			for(int i=0; i<buckets.length(); i++) {
+				seen += buckets.get(i);
+				if(seen >= rank && seen > 0)
+					return Math.min(max, lowest(i) + (lowest(i + 1) - lowest(i))/2);
+			}
+			return max;
+		}
+
+		/**
+		 * Start again from zero.
+		 */
+		private void reset() {
+			for(int i=0; i<buckets.length(); i++)
+				buckets.set(i, 0);
+			count.reset();
+			sum.reset();
+			max.set(0);
+		}
+
+		/**
+		 * Get the bucket of a latency. Latencies below 8 ns
+		 * have a bucket each; above that, each power of two
+		 * is split into eight buckets.
+		 * @param nanos The latency, in nanoseconds, at least 0.
+		 * @return The index of its bucket.
+		 */
+		private static int bucketOf(long nanos) {
+			if(nanos < (1 << subBits))
+				return (int)nanos;
+			int exponent = 63 - Long.numberOfLeadingZeros(nanos);
+			int sub = (int)(nanos >>> (exponent - subBits)) & ((1 << subBits) - 1);
+			return ((exponent - subBits + 1) << subBits) + sub;
+		}
+
+		/**
+		 * Get the lowest latency in a bucket.
+		 * @param bucket The index of the bucket.
+		 * @return The lowest latency in it, in nanoseconds.
+		 */
+		private static long lowest(int bucket) {
+			if(bucket < (1 << subBits))
+				return bucket;
+			int exponent = (bucket >> subBits) + subBits - 1;
+			long sub = bucket & ((1 << subBits) - 1);
+			return ((1L << subBits) + sub) << (exponent - subBits);
+		}
+	}
+
+}
@@ -0,0 +1,72 @@
+// Copyright 2012 Jason Petersen and Timothy Macdonald
+// 
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+// 
+//     http://www.apache.org/licenses/LICENSE-2.0
+// 
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+/**
+ * RenderMetricsMXBean.java
+ *
+ * The view of RenderMetrics given to JMX,
+ * e.g. to jconsole, under the name
+ * jhymnal:type=RenderMetrics.
+ */
+
+package io;
+
+import java.util.Map;
+
+public interface RenderMetricsMXBean {
+
+	/**
+	 * Get the latency of each phase of rendering, by the
+	 * name of the phase, e.g. "source" or "lilypond".
+	 * @return The latency of each phase which has been timed.
+	 */
+	public Map<String, RenderMetrics.Latency> getLatencies();
+
+	/**
+	 * Get the counters, e.g. cache hits and misses, by name.
+	 * @return The value of each counter.
+	 */
+	public Map<String, Long> getCounters();
+
+	/**
+	 * Get the number of renders which have been asked
+	 * for in the background and have not finished.
+	 * @return The number of asynchronous renders in flight.
+	 */
+	public int getRendersInFlight();
+
+	/**
+	 * Get the number of renders waiting for a lilypond worker.
+	 * @return The number of queued lilypond renders.
+	 */
+	public int getRendersQueued();
+
+	/**
+	 * Get the number of Hymns still to be prefetched.
+	 * @return The number of Hymns left to prefetch.
+	 */
+	public int getPrefetchesPending();
+
+	/**
+	 * Get everything above as text, as it is logged.
+	 * @return The metrics, one line for each.
+	 */
+	public String getSummary();
+
+	/**
+	 * Start again from zero.
+	 */
+	public void reset();
+
+}
@@ -0,0 +1,393 @@
+// Copyright 2012 Jason Petersen and Timothy Macdonald
+// 
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+// 
+//     http://www.apache.org/licenses/LICENSE-2.0
+// 
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+/**
+ * RenderPool.java
+ *
+ * Fixed set of long-lived worker threads which
+ * render LilyPond source into PNGs.
+ *
+ * Jobs wait in a bounded queue, so when every
+ * worker is busy and the queue is full, callers
+ * block until there is room. Each job runs the
+ * renderer once, writing the source straight to
+ * its stdin; a render which takes too long or
+ * is cancelled is killed. A worker which dies
+ * is replaced.
+ *
+ * LilyPond has no mode in which one process can
+ * render several inputs from stdin, so the process
+ * itself cannot be reused between jobs.
+ */
+
+package io;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+
+final class RenderPool {
+
+	/** The renderer to run, e.g. the location of lilypond */
+	private final String command;
+
+	/** The longest a single render may take by default, in milliseconds */
+	private final long timeout;
+
+	/** The jobs waiting for a worker */
+	private final BlockingQueue<Job> queue;
+
+	/** The worker threads */
+	private final ArrayList<Thread> workers = new ArrayList<Thread>();
+
+	/** False once the pool has been shut down */
+	private volatile boolean running = true;
+
+	/** The number of workers started so far, used to name them */
+	private int started = 0;
+
+	/** Where the time goes */
+	private final RenderMetrics metrics = RenderMetrics.getInstance();
+
+	/**
+	 * Constructor. Starts the workers.
+	 * @param command The renderer to run, e.g. the location of lilypond.
+	 * It is given the arguments -fpng -o [target] - and the source on stdin.
+	 * @param workers The number of renders to run at once.
+	 * @param capacity The number of jobs which may wait for a worker.
+	 * @param timeout The longest a single render may take, in milliseconds.
+	 */
+	RenderPool(String command, int workers, int capacity, long timeout) {
+		if(workers < 1)
+			throw new IllegalArgumentException("A RenderPool needs at least one worker");
+
+		this.command = command;
+		this.timeout = timeout;
+		this.queue = new ArrayBlockingQueue<Job>(capacity);
+		synchronized(this.workers) {
+			for(int i=0; i<workers; i++)
+				startWorker();
+		}
+	}
+
+	/**
+	 * Render the given LilyPond source, waiting until it is done.
+	 * Blocks while the queue is full.
+	 * @param asString A LilyPond compliant String.
+	 * @param target The path of the images to create, without an extension.
+	 * @throws IOException The render failed, timed out or was interrupted.
+	 */
+	void render(String asString, String target) throws IOException {
+		render(asString, target, timeout);
+	}
+
+	/**
+	 * Render the given LilyPond source, waiting until it is done,
+	 * with a different time limit to the rest of the pool. This is
+	 * for sources which hold more than one item, e.g. a batch.
+	 * Blocks while the queue is full.
+	 * @param asString A LilyPond compliant String.
+	 * @param target The path of the images to create, without an extension.
+	 * @param timeout The longest the render may take, in milliseconds.
+	 * @throws IOException The render failed, timed out or was interrupted.
+	 */
+	void render(String asString, String target, long timeout) throws IOException {
+		CompletableFuture<Void> job = submit(asString, target, timeout);
+		try {
+			job.get();
+		} catch(InterruptedException ie) {
+			job.cancel(true); // Nobody is waiting for it any more
+			Thread.currentThread().interrupt();
+			throw new IOException("Interrupted while waiting to render " + new File(target).getName());
+		} catch(CancellationException ce) {
+			throw new IOException("Rendering " + new File(target).getName() + " was cancelled");
+		} catch(ExecutionException ee) {
+			if(ee.getCause() instanceof IOException)
+				throw (IOException)ee.getCause();
+			throw new IOException("Rendering " + new File(target).getName() + " failed: " + ee.getCause());
+		}
+	}
+
+	/**
+	 * Queue the given LilyPond source to be rendered, without
+	 * waiting for it. Cancelling the returned future takes the
+	 * job out of the queue, or kills the renderer if it has
+	 * already started. Blocks while the queue is full.
+	 * @param asString A LilyPond compliant String.
+	 * @param target The path of the images to create, without an extension.
+	 * @param timeout The longest the render may take, in milliseconds.
+	 * @return A future which completes when the render is done, or
+	 * completes exceptionally with an IOException if it failed.
+	 * @throws IOException The pool has been shut down or the
+	 * caller was interrupted while the queue was full.
+	 */
+	CompletableFuture<Void> submit(String asString, String target, long timeout) throws IOException {
+		Job job = new Job(asString, target, timeout);
+		try {
+			if(!running)
+				throw new IOException("The render pool has been shut down");
+			queue.put(job);
+			if(!running) // Shut down while this job was being queued
+				failQueued();
+		} catch(InterruptedException ie) {
+			Thread.currentThread().interrupt();
+			throw new IOException("Interrupted while waiting to render " + new File(target).getName());
+		}
+		return job;
+	}
+
+	/**
+	 * Get the number of workers in the pool.
+	 * @return The number of workers in the pool.
+	 */
+	int numberOfWorkers() {
+		synchronized(workers) {
+			return workers.size();
+		}
+	}
+
+	/**
+	 * Get the number of jobs waiting for a worker.
+	 * @return The number of jobs in the queue.
+	 */
+	int queued() {
+		return queue.size();
+	}
+
+	/**
+	 * Stop the workers. Jobs still in the queue fail,
+	 * and running renders are killed.
+	 */
+	void shutdown() {
+		running = false;
+		synchronized(workers) {
+			for(Thread worker : workers)
+				worker.interrupt();
+		}
+
+		failQueued();
+	}
+
+	/* ---------- Helper methods ---------- */
+
+	/**
+	 * Fail every job still waiting in the queue.
+	 */
+	private void failQueued() {
+		Job job;
+		while((job = queue.poll()) != null)
+			job.finish(new IOException("The render pool was shut down"));
+	}
+
+	/**
+	 * Start a new worker thread. Must hold the lock on workers.
+	 */
+	private void startWorker() {
+		Thread worker = new Thread(new Worker(), "RenderPool-" + (++started));
+		worker.setDaemon(true);
+		workers.add(worker);
+		worker.start();
+	}
+
+	/**
+	 * Run the renderer for a job, killing it if it does
+	 * not finish in time. LilyPond exits with an error for
+	 * problems it can still render around, so the caller
+	 * checks for the images rather than the exit code.
+	 * A render which does not finish, for whatever reason,
+	 * has its images deleted, so no half written page is
+	 * taken for a finished one.
+	 * @param job The job to render.
+	 * @throws IOException The renderer failed or timed out.
+	 * @throws InterruptedException The worker was interrupted.
+	 */
+	private void run(Job job) throws IOException, InterruptedException {
+		ProcessBuilder pb = new ProcessBuilder(command, "-fpng", "-o", job.target, "-");
+		pb.redirectErrorStream(true);
+		pb.redirectOutput(new File("/dev/null")); // Nothing reads the log, so make sure it can't fill up a pipe
+		metrics.count(RenderMetrics.Counter.RENDERER_RUN);
+		long start = System.nanoTime();
+		Process process = pb.start();
+		metrics.time(RenderMetrics.Phase.SPAWN, start);
+		job.process = process;
+		boolean finished = false;
+		try {
+			if(job.isCancelled()) // Cancelled before the process could be killed
+				throw new IOException("Rendering " + new File(job.target).getName() + " was cancelled");
+
+			OutputStream stdin = process.getOutputStream();
+			try {
+				stdin.write(job.source.getBytes("UTF-8"));
+			} finally {
+				stdin.close();
+			}
+
+			if(!process.waitFor(job.timeout, TimeUnit.MILLISECONDS))
+				throw new IOException("Rendering " + new File(job.target).getName() + " took longer than " + job.timeout + " ms");
+			metrics.time(RenderMetrics.Phase.LILYPOND, start);
+			finished = true;
+		} finally {
+			if(process.isAlive())
+				kill(process);
+			if(!finished || job.isCancelled()) {
+				process.waitFor(); // Make sure it has stopped writing before deleting
+				deleteOutput(job.target);
+			}
+		}
+	}
+
+	/**
+	 * Kill a renderer along with every process it started, e.g.
+	 * lilypond started by a wrapper script, or Ghostscript started
+	 * by lilypond, which would otherwise carry on as orphans.
+	 * The processes are listed before the renderer is killed,
+	 * as they can no longer be found from it afterwards, and
+	 * killed after it, so it cannot start any more of them.
+	 * @param process The renderer to kill.
+	 */
+	private static void kill(Process process) {
+		ArrayList<ProcessHandle> descendants = new ArrayList<ProcessHandle>();
+		Iterator<ProcessHandle> it = process.descendants().iterator();
+		while(it.hasNext())
+			descendants.add(it.next());
+		process.destroyForcibly();
+		for(ProcessHandle descendant : descendants)
+			descendant.destroyForcibly();
+	}
+
+	/**
+	 * Delete the images a killed render may have left half written.
+	 * @param target The path of the images, without an extension.
+	 */
+	private static void deleteOutput(String target) {
+		new File(target + ".png").delete();
+		for(int page=1; new File(target + "-page" + page + ".png").delete(); page++);
+	}
+
+	/**
+	 * A worker, which renders jobs from the queue
+	 * until the pool is shut down.
+	 */
+	private class Worker implements Runnable {
+		@Override
+		public void run() {
+			boolean died = true;
+			try {
+				while(running) {
+					Job job;
+					try {
+						job = queue.take();
+					} catch(InterruptedException ie) {
+						continue; // Check if the pool is still running
+					}
+					if(job.isDone()) // Cancelled while it was queued
+						continue;
+					metrics.time(RenderMetrics.Phase.QUEUE, job.queued);
+
+					try {
+						RenderPool.this.run(job);
+						job.finish(null);
+					} catch(IOException ioe) {
+						metrics.count(RenderMetrics.Counter.RENDERER_FAILURE);
+						job.finish(ioe);
+					} catch(InterruptedException ie) {
+						job.finish(new IOException("Rendering " + new File(job.target).getName() + " was interrupted"));
+					} catch(RuntimeException re) {
+						job.finish(new IOException("Rendering " + new File(job.target).getName() + " failed: " + re));
+						throw re;
+					} catch(Error e) {
+						job.finish(new IOException("Rendering " + new File(job.target).getName() + " failed: " + e));
+						throw e;
+					}
+				}
+				died = false;
+			} finally {
+				synchronized(workers) {
+					workers.remove(Thread.currentThread());
+					if(died && running) {
+						System.err.println("RenderPool - Restarting " + Thread.currentThread().getName());
+						startWorker();
+					}
+				}
+			}
+		}
+	}
+
+	/**
+	 * LilyPond source waiting to be rendered, which
+	 * is also the future of its render.
+	 */
+	private static class Job extends CompletableFuture<Void> {
+		/** The LilyPond source */
+		private final String source;
+
+		/** The path of the images to create, without an extension */
+		private final String target;
+
+		/** The longest the render may take, in milliseconds */
+		private final long timeout;
+
+		/** The running renderer, null until it has started */
+		private volatile Process process;
+
+		/** When the job was created, from System.nanoTime */
+		private final long queued = System.nanoTime();
+
+		/**
+		 * Constructor.
+		 * @param source The LilyPond source.
+		 * @param target The path of the images to create, without an extension.
+		 * @param timeout The longest the render may take, in milliseconds.
+		 */
+		private Job(String source, String target, long timeout) {
+			this.source = source;
+			this.target = target;
+			this.timeout = timeout;
+		}
+
+		/**
+		 * Mark the job as finished.
+		 * @param error The reason the job failed, null if it succeeded.
+		 */
+		private void finish(IOException error) {
+			if(error == null)
+				complete(null);
+			else
+				completeExceptionally(error);
+		}
+
+		/**
+		 * Cancel the job, killing the renderer if it is running.
+		 * @param mayInterruptIfRunning Ignored, the renderer is always killed.
+		 * @return True if the job was cancelled, false if it had already finished.
+		 */
+		@Override
+		public boolean cancel(boolean mayInterruptIfRunning) {
+			boolean cancelled = super.cancel(mayInterruptIfRunning);
+			Process p = process;
+			if(cancelled && p != null)
+				kill(p);
+			return cancelled;
+		}
+	}
+
+}
@@ -0,0 +1,227 @@
+// Copyright 2012 Jason Petersen and Timothy Macdonald
+// 
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+// 
+//     http://www.apache.org/licenses/LICENSE-2.0
+// 
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+ /**
+ * StAXTextParser.java
+ *
+ * Instance of a TextParser.
+ * Reads in files formatted as per the
+ * XML schema for a Text, building the
+ * Text straight from the stream of XML
+ * events instead of from a Document.
+ */
+
+package io;
+
+import java.io.BufferedInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.StringTokenizer;
+
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamReader;
+
+import model.Line;
+import model.Lyric;
+import model.Meter;
+import model.Text;
+import model.Word;
+
+final class StAXTextParser implements TextParser {
+
+	/** Instance of XMLUtility, used to perform basic XML functions */
+	private static XMLUtility util = XMLUtility.getInstance();
+
+	/** Singleton */
+	private static StAXTextParser instance = new StAXTextParser();
+
+	/** Determine if files are validated against the Text schema before parsing */
+	private volatile boolean validating = true;
+
+	/**
+	 * Constructor for Singleton.
+	 */
+	private StAXTextParser(){ }
+
+	/**
+	 * Accessor for Singleton of StAXTextParser.
+	 * @return Singleton of StAXTextParser.
+	 */
+	static StAXTextParser getInstance() {
+		return instance;
+	}
+
+	/**
+	 * Set whether files are validated against the Text schema
+	 * before they are parsed. Default value is true.
+	 * @param validating True if files should be validated, otherwise false.
+	 */
+	void setValidating(boolean validating) {
+		this.validating = validating;
+	}
+
+	@Override
+	public Text parse(File file) throws IOException {
+		if(file == null)
+			throw new IOException("File cannot be null");
+
+		if(validating)
+			util.validate(file, util.textSchema);
+
+		InputStream in = new BufferedInputStream(new FileInputStream(file));
+		try {
+			XMLStreamReader reader = util.createStreamReader(in);
+			try {
+				return parseText(reader);
+			} finally {
+				reader.close();
+			}
+		}
+		catch(XMLStreamException xse) {
+			throw new XMLException(xse);
+		}
+		finally {
+			in.close();
+		}
+	}
+
+	/* ---------- Helper methods ---------- */
+
+	/**
+	 * Build a Text from the events of a streaming reader.
+	 * @param reader The reader positioned at the start of the document.
+	 * @return The parsed Text.
+	 * @throws XMLStreamException The document is not well-formed.
+	 * @throws BadInputException The document does not describe a Text.
+	 */
+	private Text parseText(XMLStreamReader reader) throws XMLStreamException, BadInputException {
+		util.nextRoot(reader, "text");
+
+		String name = null;
+		String author = "";
+		int year = 0;
+		Meter meter = null;
+		ArrayList<Lyric> list = null;
+
+		while(reader.nextTag() == XMLStreamReader.START_ELEMENT) {
+			String tag = reader.getLocalName();
+			if(tag.equals("title"))
+				name = util.getString(reader);
+			else if(tag.equals("author"))
+				author = reader.getElementText();
+			else if(tag.equals("year"))
+				year = parseYear(reader.getElementText());
+			else if(tag.equals("meter"))
+				meter = util.parseMeter(reader);
+			else if(tag.equals("verses"))
+				list = parseVerses(reader);
+			else
+				util.skipElement(reader);
+		}
+
+		// The minimum required to make a Text
+		if(meter == null)
+			throw new BadInputException("The element text does not have a \"meter\" tag.");
+		if(name == null)
+			throw new BadInputException("The element text does not have a \"title\" tag.");
+
+		Text text = new Text(name, meter);
+
+		// These fields are metadata and are not required.
+		text.setAuthor(author);
+		text.setYear(year);
+
+		// Add the verses
+		if(list == null) {
+			System.err.println("StAXTextParser.parseVerses - The element text does not have a \"verses\" tag.");
+			list = new ArrayList<Lyric>();
+		}
+		text.setVerses(list);
+
+		return text;
+	}
+
+	/**
+	 * Parse all the verses for this Text.
+	 * The ArrayList may be empty, but it will not
+	 * be null.
+	 * @param reader The reader positioned on the start tag of the verses element.
+	 * @return An ArrayList of parsed verses.
+	 * @throws XMLStreamException The document is not well-formed.
+	 */
+	private ArrayList<Lyric> parseVerses(XMLStreamReader reader) throws XMLStreamException {
+		ArrayList<Lyric> list = new ArrayList<Lyric>();
+
+		while(reader.nextTag() == XMLStreamReader.START_ELEMENT) {
+			if(reader.getLocalName().equals("verse"))
+				list.add(parseVerse(reader));
+			else
+				util.skipElement(reader);
+		}
+
+		return list;
+	}
+
+	/**
+	 * Create a Lyric from a verse element, whose lines
+	 * are space-delimited syllable strings.
+	 * @param reader The reader positioned on the start tag of a verse element.
+	 * @return The parsed Lyric.
+	 * @throws XMLStreamException The document is not well-formed.
+	 */
+	private Lyric parseVerse(XMLStreamReader reader) throws XMLStreamException {
+		Lyric lyric = new Lyric();
+
+		while(reader.nextTag() == XMLStreamReader.START_ELEMENT) {
+			if(!reader.getLocalName().equals("line")) {
+				util.skipElement(reader);
+				continue;
+			}
+
+			String s = reader.getElementText();
+			if(s.length() == 0) {
+				System.err.println("StAXTextParser.parseVerse - The element line does not have a FirstChild");
+				continue;
+			}
+
+			// Split the string around the spaces
+			StringTokenizer token = new StringTokenizer(s);
+
+			// Add the syllables
+			Line<Word> line = new Line<Word>();
+			while(token.hasMoreTokens())
+				line.addSyllable(Word.valueOf(token.nextToken()));
+			lyric.addLine(line);
+		}
+
+		return lyric;
+	}
+
+	/**
+	 * Parse the year metadata, which is 0 if it is not an integer.
+	 * @param s The text of the year element.
+	 * @return The year as an integer.
+	 */
+	private int parseYear(String s) {
+		try {
+			return util.makeStringInteger(s);
+		} catch(BadInputException bie) {
+			return 0;
+		}
+	}
+
+}
@@ -0,0 +1,562 @@
+// Copyright 2012 Jason Petersen and Timothy Macdonald
+// 
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+// 
+//     http://www.apache.org/licenses/LICENSE-2.0
+// 
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+ /**
+ * StAXTuneParser.java
+ *
+ * Instance of a TuneParser.
+ * Reads in files formatted as per the
+ * XML schema for a Tune, building the
+ * Notes, Units, Lines and Voices straight
+ * from the stream of XML events instead
+ * of from a Document.
+ */
+
+package io;
+
+import java.io.BufferedInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.StringTokenizer;
+
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamReader;
+
+import model.KeySignature;
+import model.Line;
+import model.Lyric;
+import model.Meter;
+import model.Music;
+import model.Note;
+import model.Part;
+import model.Refrain;
+import model.Slur;
+import model.TimeSignature;
+import model.Tune;
+import model.Unit;
+import model.UnsupportedNoteException;
+import model.Voice;
+import model.Word;
+
+final class StAXTuneParser implements TuneParser {
+
+	/** Default title, as given by the Tune schema */
+	private static final String defaultTitle = "Untitled";
+
+	/** Default starting beat, as given by the Tune schema */
+	private static final String defaultStart = "1";
+
+	/** Default melody, as given by the Tune schema */
+	private static final String defaultMelody = "SOPRANO";
+
+	/** Instance of XMLUtility, used to perform basic XML functions */
+	private static XMLUtility util = XMLUtility.getInstance();
+
+	/** Singleton */
+	private static StAXTuneParser instance = new StAXTuneParser();
+
+	/** Determine if files are validated against the Tune schema before parsing */
+	private volatile boolean validating = true;
+
+	/**
+	 * Constructor for Singleton.
+	 */
+	private StAXTuneParser() { }
+
+	/**
+	 * Accessor for Singleton of StAXTuneParser.
+	 * @return Singleton of StAXTuneParser.
+	 */
+	static StAXTuneParser getInstance() {
+		return instance;
+	}
+
+	/**
+	 * Set whether files are validated against the Tune schema
+	 * before they are parsed. Default value is true.
+	 * @param validating True if files should be validated, otherwise false.
+	 */
+	void setValidating(boolean validating) {
+		this.validating = validating;
+	}
+
+	@Override
+	public Tune parse(File file) throws IOException {
+		if(file == null)
+			throw new IOException("File cannot be null");
+
+		if(validating)
+			util.validate(file, util.tuneSchema);
+
+		InputStream in = new BufferedInputStream(new FileInputStream(file));
+		try {
+			XMLStreamReader reader = util.createStreamReader(in);
+			try {
+				return parseTune(reader);
+			} finally {
+				reader.close();
+			}
+		}
+		catch(XMLStreamException xse) {
+			throw new XMLException(xse);
+		}
+		finally {
+			in.close();
+		}
+	}
+
+	/* ---------- Helper methods ---------- */
+
+	/**
+	 * Build a Tune from the events of a streaming reader.
+	 * Elements may come in any order, so the values are
+	 * collected first and the Tune is built at the end.
+	 * @param reader The reader positioned at the start of the document.
+	 * @return The parsed Tune.
+	 * @throws XMLStreamException The document is not well-formed.
+	 * @throws BadInputException The document does not describe a Tune.
+	 */
+	private Tune parseTune(XMLStreamReader reader) throws XMLStreamException, BadInputException {
+		util.nextRoot(reader, "tune");
+
+		String name = null;
+		String author = "";
+		String year = "";
+		String key = null;
+		String start = null;
+		String melody = null;
+		Meter meter = null;
+		TimeSignature time = null;
+		Music music = null;
+		Refrain chorus = null;
+		ArrayList<Integer> alleluiaLines = new ArrayList<Integer>();
+		ArrayList<Refrain> alleluias = new ArrayList<Refrain>();
+
+		while(reader.nextTag() == XMLStreamReader.START_ELEMENT) {
+			String tag = reader.getLocalName();
+			if(tag.equals("title"))
+				name = textOrDefault(reader, defaultTitle);
+			else if(tag.equals("author"))
+				author = reader.getElementText();
+			else if(tag.equals("year"))
+				year = reader.getElementText();
+			else if(tag.equals("meter"))
+				meter = util.parseMeter(reader);
+			else if(tag.equals("key"))
+				key = util.getString(reader);
+			else if(tag.equals("time"))
+				time = parseTime(reader);
+			else if(tag.equals("start"))
+				start = textOrDefault(reader, defaultStart);
+			else if(tag.equals("melody"))
+				melody = textOrDefault(reader, defaultMelody);
+			else if(tag.equals("parts"))
+				music = parseMusic(reader);
+			else if(tag.equals("chorus"))
+				chorus = parseRefrain(reader);
+			else if(tag.equals("alleluias"))
+				parseAlleluias(reader, alleluiaLines, alleluias);
+			else
+				util.skipElement(reader);
+		}
+
+		// The minimum required to make a new Tune
+		if(name == null)
+			throw new BadInputException("The element tune does not have a \"title\" tag.");
+		if(meter == null)
+			throw new BadInputException("The element tune does not have a \"meter\" tag.");
+		if(time == null)
+			throw new BadInputException("The element tune does not have a \"time\" tag.");
+		if(key == null)
+			throw new BadInputException("The element tune does not have a \"key\" tag.");
+		Tune tune = new Tune(name, meter, KeySignature.getKeySignatureFor(key), time);
+
+		// These fields are metadata and are not required.
+		tune.setAuthor(author);
+		try {
+			tune.setYear(util.makeStringInteger(year));
+		} catch(BadInputException bie) {
+			tune.setYear(0);
+		}
+
+		// These fields have default values
+		try {
+			if(start == null)
+				throw new BadInputException("The element tune does not have a \"start\" tag.");
+			tune.setStartingBeat(start);
+		} catch(BadInputException bie) {
+			System.err.println("StAXTuneParser.parse - " + bie.getMessage());
+		}
+		try {
+			if(melody == null)
+				throw new BadInputException("The element tune does not have a \"melody\" tag.");
+			tune.setMelody(Part.get(melody));
+		} catch(BadInputException bie) {
+			System.err.println("StAXTuneParser.parse - " + bie.getMessage());
+		}
+
+		// Set the music for the Tune
+		if(music == null) {
+			System.err.println("StAXTuneParser.parseMusic() - The element tune does not have a \"parts\" tag.");
+			music = new Music();
+		}
+		tune.setMusic(music);
+
+		// Add the chorus, if any
+		if(chorus != null)
+			tune.setChorus(chorus);
+
+		// Add the alleluias, if any
+		for(int i=0; i<alleluias.size(); i++)
+			tune.addAlleluia(alleluiaLines.get(i), alleluias.get(i));
+
+		return tune;
+	}
+
+	/**
+	 * Get the text of an element, or the given default value
+	 * if the element is empty. This mirrors the element defaults
+	 * which the schema fills in when building a Document.
+	 * @param reader The reader positioned on the start tag of a text-only element.
+	 * @param defaultValue The value to use if the element is empty.
+	 * @return The text of the element, or the default value.
+	 * @throws XMLStreamException The element contains other elements.
+	 */
+	private String textOrDefault(XMLStreamReader reader, String defaultValue) throws XMLStreamException {
+		String s = reader.getElementText();
+		return (s.length() > 0) ? s : defaultValue;
+	}
+
+	/**
+	 * Get the TimeSignature for a Tune.
+	 * @param reader The reader positioned on the start tag of the time element.
+	 * @return The Tune's TimeSignature as found in the XML file.
+	 * @throws XMLStreamException The document is not well-formed.
+	 * @throws BadInputException Couldn't parse the TimeSignature.
+	 */
+	private TimeSignature parseTime(XMLStreamReader reader) throws XMLStreamException, BadInputException {
+		String beats = null;
+		String length = null;
+		while(reader.nextTag() == XMLStreamReader.START_ELEMENT) {
+			String tag = reader.getLocalName();
+			if(tag.equals("beats"))
+				beats = util.getString(reader);
+			else if(tag.equals("length"))
+				length = util.getString(reader);
+			else
+				util.skipElement(reader);
+		}
+		return new TimeSignature(util.makeStringInteger(beats), util.makeStringInteger(length));
+	}
+
+	/**
+	 * Parse the Music for this Tune.
+	 * The Music may not have any voices or
+	 * syllables, but we don't care because
+	 * the Tune can be "invalid" but still
+	 * a proper object.
+	 * @param reader The reader positioned on the start tag of the parts element.
+	 * @return The parsed Music for this Tune.
+	 * @throws XMLStreamException The document is not well-formed.
+	 */
+	private Music parseMusic(XMLStreamReader reader) throws XMLStreamException {
+		Voice[] voices = new Voice[Part.values().length];
+
+		while(reader.nextTag() == XMLStreamReader.START_ELEMENT) {
+			String tag = reader.getLocalName();
+			Part p = null;
+			for(Part part : Part.values())
+				if(part.toString().toLowerCase().equals(tag))
+					p = part;
+
+			if(p == null)
+				util.skipElement(reader);
+			else
+				voices[p.ordinal()] = parseVoice(reader, p);
+		}
+
+		Music music = new Music();
+		for(Part p : Part.values()) {
+			if(voices[p.ordinal()] == null) {
+				System.err.println("StAXTuneParser.parseMusic() - Could not parse the " + p.toString().toLowerCase() + " voice.");
+				continue;
+			}
+			if(p == Part.SOPRANO) music.setSoprano(voices[p.ordinal()]);
+			else if(p == Part.ALTO) music.setAlto(voices[p.ordinal()]);
+			else if(p == Part.TENOR) music.setTenor(voices[p.ordinal()]);
+			else music.setBass(voices[p.ordinal()]);
+		}
+		return music;
+	}
+
+	/**
+	 * Parse a Voice for this Tune.
+	 * The Voice may not have lines or
+	 * syllables, but we don't care because
+	 * the Tune can be "invalid" but still
+	 * a proper object. If any Note in the
+	 * Voice is bad, the rest of the Voice is
+	 * skipped and null is returned.
+	 * @param reader The reader positioned on the start tag of the voice element.
+	 * @param p The Part of the Voice to parse.
+	 * @return The parsed Voice for this Tune, or null if it could not be parsed.
+	 * @throws XMLStreamException The document is not well-formed.
+	 */
+	private Voice parseVoice(XMLStreamReader reader, Part p) throws XMLStreamException {
+		String name = reader.getLocalName();
+		try {
+			Voice part = new Voice(p);
+
+			while(reader.nextTag() == XMLStreamReader.START_ELEMENT) {
+				if(!reader.getLocalName().equals("line")) {
+					util.skipElement(reader);
+					continue;
+				}
+
+				Line<Unit> l = new Line<Unit>();
+				while(reader.nextTag() == XMLStreamReader.START_ELEMENT) {
+					if(!reader.getLocalName().equals("syllable")) {
+						util.skipElement(reader);
+						continue;
+					}
+
+					String repeat = reader.getAttributeValue(null, "repeat");
+					Unit unit = parseUnit(reader); // This will only throw an exception if something is incorrect with the Note
+					unit.setWordRepeat(util.makeStringBoolean(repeat));
+					l.addSyllable(unit); // Add the Unit to the Line
+				}
+				part.addLine(l);
+			}
+
+			return part;
+		}
+		catch(BadInputException bie) {
+			System.err.println("StAXTuneParser.parseVoice - " + bie.getMessage());
+
+			// Skip what is left of the Voice
+			while(!(reader.getEventType() == XMLStreamReader.END_ELEMENT && reader.getLocalName().equals(name)))
+				reader.next();
+			return null;
+		}
+	}
+
+	/**
+	 * Parse the alleluias for this Tune, adding the line each one
+	 * follows and its Refrain to the given lists in document order.
+	 * @param reader The reader positioned on the start tag of the alleluias element.
+	 * @param lines The list to which to add the line of each alleluia.
+	 * @param refrains The list to which to add the Refrain of each alleluia.
+	 * @throws XMLStreamException The document is not well-formed.
+	 * @throws BadInputException Couldn't parse an alleluia.
+	 */
+	private void parseAlleluias(XMLStreamReader reader, ArrayList<Integer> lines, ArrayList<Refrain> refrains) throws XMLStreamException, BadInputException {
+		while(reader.nextTag() == XMLStreamReader.START_ELEMENT) {
+			if(!reader.getLocalName().equals("alleluia")) {
+				util.skipElement(reader);
+				continue;
+			}
+
+			String line = reader.getAttributeValue(null, "line");
+			if(line == null)
+				throw new BadInputException("alleluia does not have an attribute \"line\".");
+
+			Refrain refrain = null;
+			while(reader.nextTag() == XMLStreamReader.START_ELEMENT) {
+				if(refrain == null && reader.getLocalName().equals("refrain"))
+					refrain = parseRefrain(reader);
+				else
+					util.skipElement(reader);
+			}
+			if(refrain == null)
+				throw new BadInputException("The element alleluia does not have a \"refrain\" tag.");
+
+			lines.add(util.makeStringInteger(line));
+			refrains.add(refrain);
+		}
+	}
+
+	/**
+	 * Get a Refrain, used for both the chorus and the alleluias.
+	 * @param reader The reader positioned on the start tag of the Refrain.
+	 * @return The Refrain as found in the XML file.
+	 * @throws XMLStreamException The document is not well-formed.
+	 * @throws BadInputException Couldn't parse the Refrain.
+	 */
+	private Refrain parseRefrain(XMLStreamReader reader) throws XMLStreamException, BadInputException {
+		String syllables = reader.getAttributeValue(null, "syllables");
+		if(syllables == null)
+			throw new BadInputException(reader.getLocalName() + " does not have an attribute \"syllables\".");
+		int expectedSyllables = util.makeStringInteger(syllables);
+
+		Voice[] voices = new Voice[Part.values().length];
+		String words = null;
+
+		while(reader.nextTag() == XMLStreamReader.START_ELEMENT) {
+			String tag = reader.getLocalName();
+			if(tag.equals("lyrics")) {
+				words = util.getString(reader);
+				continue;
+			}
+
+			Part p = null;
+			for(Part part : Part.values())
+				if(part.toString().toLowerCase().equals(tag))
+					p = part;
+
+			if(p == null)
+				util.skipElement(reader);
+			else
+				voices[p.ordinal()] = parseRefrainVoice(reader, p, expectedSyllables);
+		}
+
+		Music music = new Music();
+		for(Part p : Part.values()) {
+			if(voices[p.ordinal()] == null)
+				throw new BadInputException("The refrain does not have a \"" + p.toString().toLowerCase() + "\" tag.");
+		}
+		music.setSoprano(voices[Part.SOPRANO.ordinal()]);
+		music.setAlto(voices[Part.ALTO.ordinal()]);
+		music.setTenor(voices[Part.TENOR.ordinal()]);
+		music.setBass(voices[Part.BASS.ordinal()]);
+
+		if(words == null)
+			throw new BadInputException("The refrain does not have a \"lyrics\" tag.");
+		Lyric lyric = parseRefrainLyric(words, expectedSyllables);
+
+		return new Refrain(music, lyric);
+	}
+
+	/**
+	 * Get a Refrain Voice.
+	 * @param reader The reader positioned on the start tag of the Refrain Voice.
+	 * @param p The Part of the Voice.
+	 * @param expectedSyllables The number of syllables the Refrain should have.
+	 * @return The Refrain Voice as found in the XML file.
+	 * @throws XMLStreamException The document is not well-formed.
+	 * @throws BadInputException Couldn't parse the Refrain Voice.
+	 */
+	private Voice parseRefrainVoice(XMLStreamReader reader, Part p, int expectedSyllables) throws XMLStreamException, BadInputException {
+		Voice part = new Voice(p);
+
+		Line<Unit> line = new Line<Unit>();
+		int found = 0;
+		while(reader.nextTag() == XMLStreamReader.START_ELEMENT) {
+			if(!reader.getLocalName().equals("syllable")) {
+				util.skipElement(reader);
+				continue;
+			}
+			Unit unit = parseUnit(reader);
+			if(found < expectedSyllables) // Refrains don't have repeats, so we can use this guard
+				line.addSyllable(unit);
+			found++;
+		}
+
+		// Number of syllables didn't match the expected number
+		if(found != expectedSyllables)
+			throw new BadInputException("Incorrect number of syllables in refrain: " +
+                                        "expected " + expectedSyllables + ", found " + found);
+
+		part.addLine(line); // Only one line in a refrain
+
+		return part;
+	}
+
+	/**
+	 * Get the Refrain Lyric from the text of a lyrics element.
+	 * @param words The space-delimited syllables of the Refrain.
+	 * @param expectedSyllables The number of syllables the Refrain should have.
+	 * @return The Refrain Lyric.
+	 * @throws BadInputException The number of syllables did not match.
+	 */
+	private Lyric parseRefrainLyric(String words, int expectedSyllables) throws BadInputException {
+		Lyric lyric = new Lyric();
+
+		Line<Word> line = new Line<Word>();
+		StringTokenizer token = new StringTokenizer(words.trim());
+		while(token.hasMoreTokens()) line.addSyllable(Word.valueOf(token.nextToken()));
+		lyric.addLine(line); // Only one line in a refrain
+
+		if(expectedSyllables != lyric.numberOfSyllables())
+			throw new BadInputException("Incorrect number of syllables in refrain lyrics: " +
+                    "expected " + expectedSyllables + ", found " + lyric.numberOfSyllables());
+
+		return lyric;
+	}
+
+	/**
+	 * Create a Unit from a syllable element.
+	 * @param reader The reader positioned on the start tag of a syllable element,
+	 * which contains a list of note elements.
+	 * @return The Unit created from the syllable element.
+	 * @throws XMLStreamException The document is not well-formed.
+	 * @throws BadInputException The Unit could not be parsed from the syllable element.
+	 */
+	private Unit parseUnit(XMLStreamReader reader) throws XMLStreamException, BadInputException {
+		Unit unit = new Unit();
+		while(reader.nextTag() == XMLStreamReader.START_ELEMENT) {
+			if(reader.getLocalName().equals("note"))
+				unit.addNote(parseNote(reader));
+			else
+				util.skipElement(reader);
+		}
+		return unit;
+	}
+
+	/**
+	 * Create a Note from a note element.
+	 * The whole element is read before the Note is made.
+	 * @param reader The reader positioned on the start tag of a note element.
+	 * @return The Note created from the note element.
+	 * @throws XMLStreamException The document is not well-formed.
+	 * @throws BadInputException Transformed UnsupportedNoteException (i.e. something
+	 * was wrong with the Note input).
+	 */
+	private Note parseNote(XMLStreamReader reader) throws XMLStreamException, BadInputException {
+		String d = reader.getAttributeValue(null, "dotted");
+		String s = reader.getAttributeValue(null, "slur");
+		String t = reader.getAttributeValue(null, "tie");
+		String r = reader.getAttributeValue(null, "rest");
+
+		String pitch = null;
+		String duration = null;
+		while(reader.nextTag() == XMLStreamReader.START_ELEMENT) {
+			String tag = reader.getLocalName();
+			if(tag.equals("pitch"))
+				pitch = util.getString(reader);
+			else if(tag.equals("duration"))
+				duration = util.getString(reader);
+			else
+				util.skipElement(reader);
+		}
+
+		boolean dotted = util.makeStringBoolean(d);
+		Slur slur = Slur.get((s != null) ? s : "NONE");
+		boolean tie = util.makeStringBoolean(t);
+		if(pitch == null)
+			throw new BadInputException("The element note does not have a \"pitch\" tag.");
+		int denom = util.makeStringInteger(duration);
+		boolean rest = util.makeStringBoolean(r);
+
+		try{
+			return Note.valueOf(pitch, denom, dotted, tie, slur, rest);
+		}
+		catch(UnsupportedNoteException usne){
+			throw new BadInputException(usne.getMessage());
+		}
+	}
+
+}
@@ -29,6 +29,7 @@ package io;
 import java.io.IOException;
 
 import javax.xml.parsers.ParserConfigurationException;
+import javax.xml.stream.XMLStreamException;
 import javax.xml.transform.TransformerConfigurationException;
 import javax.xml.transform.TransformerException;
 
@@ -56,6 +57,14 @@ public class XMLException extends IOException {
 		super("ParserConfigurationException: " + pce.getMessage());
 	}
 
+	/**
+	 * Constructor.
+	 * @param xse XMLStreamException to be wrapped as an XMLException.
+	 */
+	XMLException(XMLStreamException xse) {
+		super("XMLStreamException: " + xse.getMessage());
+	}
+	
 	/**
 	 * Constructor.
 	 * @param tce TransformerConfigurationException to be wrapped as an XMLException.
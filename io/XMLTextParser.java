@@ -41,9 +41,6 @@ import org.w3c.dom.NodeList;
 
 final class XMLTextParser implements TextParser {
 
-	/** The root element */
-	private Element root;
-
 	/** Instance of XMLUtility, used to perform basic XML functions */
 	private static XMLUtility util = XMLUtility.getInstance();
 	
@@ -71,7 +68,7 @@ final class XMLTextParser implements TextParser {
 			throw new IOException("File cannot be null");
 		
 		Document dom = util.getDocument(file, util.textSchema);
-		this.root = dom.getDocumentElement();
+		Element root = dom.getDocumentElement();
 		
 		// The minimum required to make a Text
 		Meter meter = util.parseMeter(root);
@@ -86,7 +83,7 @@ final class XMLTextParser implements TextParser {
 		text.setYear(year);
 		
 		// Add the verses
-		ArrayList<Lyric> list = parseVerses();
+		ArrayList<Lyric> list = parseVerses(root);
 		text.setVerses(list);
 		
 		return text;
@@ -98,10 +95,11 @@ final class XMLTextParser implements TextParser {
 	 * Parse all the verses for this Text.
 	 * The ArrayList may be empty, but it will not
 	 * be null.
+	 * @param root The root element of the Text.
 	 * @return An ArrayList of parsed verses.
 	 * @author Jason Petersen
 	 */
-	private ArrayList<Lyric> parseVerses() {
+	private ArrayList<Lyric> parseVerses(Element root) {
 		ArrayList<Lyric> list = new ArrayList<Lyric>();
 		
 		try {
@@ -138,7 +136,7 @@ final class XMLTextParser implements TextParser {
 			// Add the syllables
 			Line<Word> line = new Line<Word>();
 			while(token.hasMoreTokens())
-				line.addSyllable(new Word(token.nextToken()));
+				line.addSyllable(Word.valueOf(token.nextToken()));
 			lyric.addLine(line);
 		}
 		
@@ -50,9 +50,6 @@ import org.w3c.dom.NodeList;
 
 final class XMLTuneParser implements TuneParser {
 
-	/** The root element */
-	private Element root;
-
 	/** Instance of XMLUtility, used to perform basic XML functions */
 	private static XMLUtility util = XMLUtility.getInstance();
 	
@@ -80,13 +77,13 @@ final class XMLTuneParser implements TuneParser {
 			throw new IOException("File cannot be null");
 		
 		Document dom = util.getDocument(file, util.tuneSchema);
-		this.root = dom.getDocumentElement();
+		Element root = dom.getDocumentElement();
 		
 		// The minimum required to make a new Tune
 		String name = util.getString(root, "title");
 		Meter meter = util.parseMeter(root);
-		TimeSignature time = parseTime();
-		Tune tune = new Tune(name, meter, parseKey(), time);
+		TimeSignature time = parseTime(root);
+		Tune tune = new Tune(name, meter, parseKey(root), time);
 		
 		// These fields are metadata and are not required.
 		tune.setAuthor(util.getMetadataString(root, "author"));
@@ -105,7 +102,7 @@ final class XMLTuneParser implements TuneParser {
 		}
 		
 		// Set the music for the Tune
-		tune.setMusic(parseMusic());
+		tune.setMusic(parseMusic(root));
 
 		// Add the chorus, if any
 		Element chorus = util.getOptionalElement(root, "chorus");
@@ -139,28 +136,29 @@ final class XMLTuneParser implements TuneParser {
 	 * syllables, but we don't care because
 	 * the Tune can be "invalid" but still
 	 * a proper object.
+	 * @param root The root element of the Tune.
 	 * @return The parsed Music for this Tune.
 	 * @author Jason Petersen
 	 */
-	private Music parseMusic() {
+	private Music parseMusic(Element root) {
 		Music music = new Music();
 		try {
-			music.setSoprano(parseVoice(Part.SOPRANO));
+			music.setSoprano(parseVoice(root, Part.SOPRANO));
 		} catch(BadInputException bie) {
 			System.err.println("XMLTuneParser.parseMusic() - " + bie.getMessage());
 		}
 		try {
-			music.setAlto(parseVoice(Part.ALTO));
+			music.setAlto(parseVoice(root, Part.ALTO));
 		} catch(BadInputException bie) {
 			System.err.println("XMLTuneParser.parseMusic() - " + bie.getMessage());
 		}
 		try {
-			music.setTenor(parseVoice(Part.TENOR));
+			music.setTenor(parseVoice(root, Part.TENOR));
 		} catch(BadInputException bie) {
 			System.err.println("XMLTuneParser.parseMusic() - " + bie.getMessage());
 		}
 		try {
-			music.setBass(parseVoice(Part.BASS));
+			music.setBass(parseVoice(root, Part.BASS));
 		} catch(BadInputException bie) {
 			System.err.println("XMLTuneParser.parseMusic() - " + bie.getMessage());
 		}
@@ -169,22 +167,24 @@ final class XMLTuneParser implements TuneParser {
 	
 	/**
 	 * Get the KeySignature for a Tune from an XML file.
+	 * @param root The root element of the Tune.
 	 * @return The Tune's KeySignature as found in the XML file.
 	 * @throws BadInputException
 	 * @author Jason Petersen
 	 */
-	private KeySignature parseKey() throws BadInputException {
+	private KeySignature parseKey(Element root) throws BadInputException {
 		String k = util.getString(root, "key");
 		return KeySignature.getKeySignatureFor(k);
 	}
 	
 	/**
 	 * Get the TimeSignature for a Tune from an XML file.
+	 * @param root The root element of the Tune.
 	 * @return The Tune's TimeSignature as found in the XML file.
 	 * @throws BadInputException Couldn't parse the TimeSignature.
 	 * @author Jason Petersen
 	 */
-	private TimeSignature parseTime() throws BadInputException {
+	private TimeSignature parseTime(Element root) throws BadInputException {
 		Element time = util.getFirstElement(root, "time");
 		int beats = util.getInteger(time, "beats");
 		int length = util.getInteger(time, "length");
@@ -197,10 +197,12 @@ final class XMLTuneParser implements TuneParser {
 	 * syllables, but we don't care because
 	 * the Tune can be "invalid" but still
 	 * a proper object.
+	 * @param root The root element of the Tune.
+	 * @param p The Part of the Voice to parse.
 	 * @return The parsed Voice for this Tune.
 	 * @author Jason Petersen
 	 */
-	private Voice parseVoice(Part p) throws BadInputException {
+	private Voice parseVoice(Element root, Part p) throws BadInputException {
 		Voice part = new Voice(p);
 		String name = p.toString().toLowerCase();
 		
@@ -304,7 +306,7 @@ final class XMLTuneParser implements TuneParser {
 		
 		Line<Word> line = new Line<Word>();
 		StringTokenizer token = new StringTokenizer(words.trim());
-		while(token.hasMoreTokens()) line.addSyllable(new Word(token.nextToken()));
+		while(token.hasMoreTokens()) line.addSyllable(Word.valueOf(token.nextToken()));
 		lyric.addLine(line); // Only one line in a refrain
 		
 		if(expectedSyllables != lyric.numberOfSyllables())
@@ -355,7 +357,7 @@ final class XMLTuneParser implements TuneParser {
 		boolean rest = util.makeStringBoolean(r);
 
 		try{
-			return new Note(pitch, duration, dotted, tie, slur, rest);
+			return Note.valueOf(pitch, duration, dotted, tie, slur, rest);
 		}
 		catch(UnsupportedNoteException usne){
 			throw new BadInputException(usne.getMessage());
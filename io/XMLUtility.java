@@ -29,16 +29,24 @@
 
 package io;
 
+import java.io.BufferedInputStream;
 import java.io.File;
+import java.io.FileInputStream;
 import java.io.IOException;
+import java.io.InputStream;
 import java.util.ArrayList;
 import java.util.Iterator;
 
 import javax.xml.parsers.DocumentBuilder;
 import javax.xml.parsers.DocumentBuilderFactory;
 import javax.xml.parsers.ParserConfigurationException;
+import javax.xml.stream.XMLInputFactory;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamReader;
+import javax.xml.transform.stream.StreamSource;
 import javax.xml.validation.Schema;
 import javax.xml.validation.SchemaFactory;
+import javax.xml.validation.Validator;
 
 import model.KeySignature;
 import model.Line;
@@ -77,6 +85,24 @@ final class XMLUtility extends Utility {
 	/** Schema for Tune files */
 	Schema tuneSchema;
 	
+	/** Reusable DocumentBuilders validating against the Text schema, one per thread */
+	private final ThreadLocal<DocumentBuilder> textBuilders;
+	
+	/** Reusable DocumentBuilders validating against the Tune schema, one per thread */
+	private final ThreadLocal<DocumentBuilder> tuneBuilders;
+	
+	/** Reusable DocumentBuilders which do not validate, one per thread */
+	private final ThreadLocal<DocumentBuilder> plainBuilders;
+	
+	/** Reusable Validators for the Text schema, one per thread */
+	private final ThreadLocal<Validator> textValidators;
+	
+	/** Reusable Validators for the Tune schema, one per thread */
+	private final ThreadLocal<Validator> tuneValidators;
+	
+	/** Factory for the streaming readers used to parse files without building a Document */
+	private final XMLInputFactory inputFactory;
+	
 	/**
 	 * Dummy class which throws the SAXParseExceptions
 	 * instead of just printing the error. Used to
@@ -102,6 +128,10 @@ final class XMLUtility extends Utility {
 	 * @author Jason Petersen
 	 */
 	private XMLUtility() {
+		inputFactory = XMLInputFactory.newInstance();
+		inputFactory.setProperty(XMLInputFactory.SUPPORT_DTD, false);
+		inputFactory.setProperty(XMLInputFactory.IS_COALESCING, true);
+		
 		// Create the text schema
 		try {
 			textSchema = createSchema(textSchemaLocation);
@@ -118,6 +148,13 @@ final class XMLUtility extends Utility {
 			System.err.println("XMLUtility - Failed to create Tune schema: " + ife.getMessage());
 			tuneSchema = null;			
 		}
+		
+		textBuilders = createBuilderPool(textSchema);
+		tuneBuilders = createBuilderPool(tuneSchema);
+		plainBuilders = createBuilderPool(null);
+		
+		textValidators = createValidatorPool(textSchema);
+		tuneValidators = createValidatorPool(tuneSchema);
 	}
 	
 	/**
@@ -143,7 +180,9 @@ final class XMLUtility extends Utility {
 	}
 
 	/**
-	 * Get a Document from a file name, using the given Schema for validation.  
+	 * Get a Document from a file name, using the given Schema for validation.
+	 * The DocumentBuilders for the Text and Tune schemas are created once
+	 * per thread and reused, so this is safe to call from multiple threads.
 	 * @param filename The name of the file from which to get the Document.
 	 * @param schema The schema used to validate the XML file.
 	 * @return The Document retrieved from the file.
@@ -152,23 +191,240 @@ final class XMLUtility extends Utility {
 	 * @author Jason Petersen
 	 */
 	Document getDocument(File file, Schema schema) throws IOException {
+		DocumentBuilder db;
+		if(schema == null)
+			db = plainBuilders.get();
+		else if(schema == textSchema)
+			db = textBuilders.get();
+		else if(schema == tuneSchema)
+			db = tuneBuilders.get();
+		else
+			db = createBuilder(schema);
+		
+		try{
+			return db.parse(file);
+		}
+		catch(SAXException sax){
+			throw new XMLException(sax);			
+		}
+	}
+	
+	/**
+	 * Create a DocumentBuilder which validates against the given Schema.
+	 * @param schema The schema used to validate XML files, may be null.
+	 * @return The new DocumentBuilder.
+	 * @throws XMLException Failed to configure the DocumentBuilder.
+	 */
+	private DocumentBuilder createBuilder(Schema schema) throws XMLException {
 		try{
 			DocumentBuilderFactory dbf = DocumentBuilderFactory.newInstance();
 			if(schema != null)
 				dbf.setSchema(schema);
 			DocumentBuilder db = dbf.newDocumentBuilder();
 			db.setErrorHandler(new EH()); //Explicitly set the error handler to throw the error, not just print it
-
-			return db.parse(file);
-		}
-		catch(SAXException sax){
-			throw new XMLException(sax);			
+			return db;
 		}
 		catch(ParserConfigurationException pce){
 			throw new XMLException(pce);			
 		}
 	}
 	
+	/**
+	 * Create a pool of DocumentBuilders for the given Schema,
+	 * holding one DocumentBuilder for each thread which asks for one.
+	 * @param schema The schema used to validate XML files, may be null.
+	 * @return The pool of DocumentBuilders.
+	 */
+	private ThreadLocal<DocumentBuilder> createBuilderPool(final Schema schema) {
+		final DocumentBuilderFactory dbf = DocumentBuilderFactory.newInstance();
+		if(schema != null)
+			dbf.setSchema(schema);
+		
+		return new ThreadLocal<DocumentBuilder>() {
+			@Override
+			protected DocumentBuilder initialValue() {
+				try {
+					DocumentBuilder db;
+					synchronized(dbf) { // The factory itself is not thread-safe
+						db = dbf.newDocumentBuilder();
+					}
+					db.setErrorHandler(new EH()); //Explicitly set the error handler to throw the error, not just print it
+					return db;
+				}
+				catch(ParserConfigurationException pce) {
+					throw new IllegalStateException("Failed to create a DocumentBuilder: " + pce.getMessage());
+				}
+			}
+		};
+	}
+	
+	/**
+	 * Get the name of the root element of an XML file without
+	 * building a Document. Only the start of the file is read.
+	 * @param file The file for which to get the name of the root element.
+	 * @return The name of the root element, e.g. "text" or "tune", or
+	 * null if the file is not well-formed XML.
+	 * @throws IOException Failed to read the file.
+	 */
+	String getRootName(File file) throws IOException {
+		InputStream in = new BufferedInputStream(new FileInputStream(file));
+		try {
+			XMLStreamReader reader = inputFactory.createXMLStreamReader(in);
+			try {
+				while(reader.hasNext())
+					if(reader.next() == XMLStreamReader.START_ELEMENT)
+						return reader.getLocalName();
+				return null;
+			} finally {
+				reader.close();
+			}
+		}
+		catch(XMLStreamException xse) {
+			return null;
+		}
+		finally {
+			in.close();
+		}
+	}
+	
+	/**
+	 * Create a pool of Validators for the given Schema,
+	 * holding one Validator for each thread which asks for one.
+	 * @param schema The schema to validate against, may be null.
+	 * @return The pool of Validators, or null if there is no Schema.
+	 */
+	private ThreadLocal<Validator> createValidatorPool(final Schema schema) {
+		if(schema == null) return null;
+		
+		return new ThreadLocal<Validator>() {
+			@Override
+			protected Validator initialValue() {
+				Validator validator = schema.newValidator();
+				validator.setErrorHandler(new EH()); //Explicitly set the error handler to throw the error, not just print it
+				return validator;
+			}
+		};
+	}
+	
+	/* ---------- Methods for streaming ---------- */
+	
+	/**
+	 * Validate an XML file against the given Schema without building a Document.
+	 * The Validators for the Text and Tune schemas are reused, one per thread.
+	 * @param file The file to validate.
+	 * @param schema The schema used to validate the XML file.
+	 * @throws IOException The file could not be read or does not match the Schema.
+	 */
+	void validate(File file, Schema schema) throws IOException {
+		if(schema == null) return;
+		
+		Validator validator;
+		if(schema == textSchema)
+			validator = textValidators.get();
+		else if(schema == tuneSchema)
+			validator = tuneValidators.get();
+		else {
+			validator = schema.newValidator();
+			validator.setErrorHandler(new EH());
+		}
+		
+		try {
+			validator.validate(new StreamSource(file));
+		}
+		catch(SAXException sax) {
+			throw new XMLException(sax);
+		}
+	}
+	
+	/**
+	 * Create a streaming reader for the given XML input.
+	 * Adjacent text is coalesced, so the text of an element is
+	 * always reported as a single event.
+	 * @param in The XML input to read.
+	 * @return The reader for the given input.
+	 * @throws XMLException The reader could not be created.
+	 */
+	XMLStreamReader createStreamReader(InputStream in) throws XMLException {
+		try {
+			return inputFactory.createXMLStreamReader(in);
+		}
+		catch(XMLStreamException xse) {
+			throw new XMLException(xse);
+		}
+	}
+	
+	/**
+	 * Advance a streaming reader to the root element, which must have the given tag.
+	 * @param reader The reader positioned at the start of the document.
+	 * @param tag The name of the expected root element.
+	 * @throws XMLStreamException The document is not well-formed.
+	 * @throws BadInputException The root element does not have the given tag.
+	 */
+	void nextRoot(XMLStreamReader reader, String tag) throws XMLStreamException, BadInputException {
+		while(reader.hasNext()) {
+			if(reader.next() == XMLStreamReader.START_ELEMENT) {
+				if(reader.getLocalName().equals(tag))
+					return;
+				throw new BadInputException("The root element " + reader.getLocalName() + " is not \"" + tag + "\".");
+			}
+		}
+		throw new BadInputException("The document does not have a \"" + tag + "\" tag.");
+	}
+	
+	/**
+	 * Skip the rest of the element the reader is in, leaving the
+	 * reader on that element's end tag.
+	 * @param reader The reader positioned on the start tag of, or inside, the element to skip.
+	 * @throws XMLStreamException The document is not well-formed.
+	 */
+	void skipElement(XMLStreamReader reader) throws XMLStreamException {
+		int depth = 1;
+		while(depth > 0) {
+			int event = reader.next();
+			if(event == XMLStreamReader.START_ELEMENT) depth++;
+			else if(event == XMLStreamReader.END_ELEMENT) depth--;
+		}
+	}
+	
+	/**
+	 * Get the text of the element the reader is on. An empty element
+	 * is reported the same way as a missing one, matching getString.
+	 * @param reader The reader positioned on the start tag of a text-only element.
+	 * @return The text of the element.
+	 * @throws XMLStreamException The element contains other elements.
+	 * @throws BadInputException The element is empty.
+	 */
+	String getString(XMLStreamReader reader) throws XMLStreamException, BadInputException {
+		String tag = reader.getLocalName();
+		String s = reader.getElementText();
+		if(s.length() == 0)
+			throw new BadInputException("The element " + tag + " does not have a FirstChild");
+		return s;
+	}
+	
+	/**
+	 * Get the Meter for a Text or Tune from a streaming reader.
+	 * @param reader The reader positioned on the start tag of the meter element.
+	 * @return The Meter as found in the XML file.
+	 * @throws XMLStreamException The document is not well-formed.
+	 * @throws BadInputException The Meter could not be parsed.
+	 */
+	Meter parseMeter(XMLStreamReader reader) throws XMLStreamException, BadInputException {
+		String name = reader.getAttributeValue(null, "name");
+		ArrayList<Integer> lengths = new ArrayList<Integer>();
+		while(reader.nextTag() == XMLStreamReader.START_ELEMENT) {
+			if(reader.getLocalName().equals("count")) {
+				String s = reader.getElementText();
+				if(s.length() > 0)
+					lengths.add(makeStringInteger(s));
+				else
+					System.err.println("XMLUtility.parseMeter - The element count does not have a FirstChild");
+			}
+			else skipElement(reader);
+		}
+		return new Meter(name, lengths).intern();
+	}
+	
 	/* ---------- Methods for String creation ---------- */
 	
 	/**
@@ -320,7 +576,7 @@ final class XMLUtility extends Utility {
 		Element meter = getFirstElement(root, "meter");
 		ArrayList<Integer> lengths = getIntegerArray(meter, "count");
 		String name = (meter.hasAttribute("name")) ? meter.getAttribute("name") : null;
-		return new Meter(name, lengths);
+		return new Meter(name, lengths).intern();
 	}
 	
 	/**
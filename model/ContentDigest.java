@@ -0,0 +1,154 @@
+// Copyright 2012 Jason Petersen and Timothy Macdonald
+// 
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+// 
+//     http://www.apache.org/licenses/LICENSE-2.0
+// 
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+/**
+ * ContentDigest.java
+ *
+ * Builds the 128-bit digest of the content of a
+ * Text, Tune or Hymn, from its fields in order.
+ * Every value is written with its length or a
+ * fixed size, so different content never writes
+ * the same bytes. Two digests are the same only
+ * if the content is equal, short of a collision
+ * of MD5, which is used here as a checksum and
+ * not for security.
+ */
+
+package model;
+
+import java.nio.charset.Charset;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+
+final class ContentDigest {
+
+	/** The charset Strings are digested in */
+	private static final Charset utf8 = Charset.forName("UTF-8");
+
+	/** The digest being built */
+	private final MessageDigest md5;
+
+	/** The bytes not yet given to the digest, which are given to it in blocks */
+	private final byte[] buffer = new byte[1024];
+
+	/** The number of bytes in the buffer */
+	private int buffered = 0;
+
+	/**
+	 * Constructor.
+	 */
+	ContentDigest() {
+		try {
+			md5 = MessageDigest.getInstance("MD5");
+		} catch(NoSuchAlgorithmException nsae) { // Every Java platform is required to support MD5
+			throw new IllegalStateException(nsae);
+		}
+	}
+
+	/**
+	 * Add an int to the digest.
+	 * @param value The int to add.
+	 * @return This ContentDigest.
+	 */
+	ContentDigest add(int value) {
+		if(buffered + 4 > buffer.length)
+			flush();
+		for(int i=0; i<4; i++)
+			buffer[buffered++] = (byte)(value >>> (24 - 8*i));
+		return this;
+	}
+
+	/**
+	 * Add a double to the digest.
+	 * @param value The double to add.
+	 * @return This ContentDigest.
+	 */
+	ContentDigest add(double value) {
+		long bits = Double.doubleToLongBits(value);
+		add((int)(bits >>> 32));
+		return add((int) bits);
+	}
+
+	/**
+	 * Add a boolean to the digest.
+	 * @param value The boolean to add.
+	 * @return This ContentDigest.
+	 */
+	ContentDigest add(boolean value) {
+		if(buffered == buffer.length)
+			flush();
+		buffer[buffered++] = (byte)(value ? 1 : 0);
+		return this;
+	}
+
+	/**
+	 * Add a String to the digest, or a marker if it is null.
+	 * @param value The String to add, may be null.
+	 * @return This ContentDigest.
+	 */
+	ContentDigest add(String value) {
+		if(value == null)
+			return add(-1);
+		byte[] bytes = value.getBytes(utf8);
+		add(bytes.length);
+		if(buffered + bytes.length > buffer.length) {
+			flush();
+			md5.update(bytes);
+		}
+		else {
+			System.arraycopy(bytes, 0, buffer, buffered, bytes.length);
+			buffered += bytes.length;
+		}
+		return this;
+	}
+
+	/**
+	 * Add an array of ints to the digest.
+	 * @param values The ints to add.
+	 * @return This ContentDigest.
+	 */
+	ContentDigest add(int[] values) {
+		add(values.length);
+		for(int value : values)
+			add(value);
+		return this;
+	}
+
+	/**
+	 * Finish the digest. The ContentDigest
+	 * cannot be used again afterwards.
+	 * @return The digest as 32 hex digits.
+	 */
+	String finish() {
+		flush();
+		byte[] hash = md5.digest();
+		StringBuilder sb = new StringBuilder(hash.length*2);
+		for(byte b : hash) {
+			sb.append(Character.forDigit((b >> 4) & 0xF, 16));
+			sb.append(Character.forDigit(b & 0xF, 16));
+		}
+		return sb.toString();
+	}
+
+	/* ---------- Helper methods ---------- */
+
+	/**
+	 * Helper method to give the buffered bytes to the digest.
+	 */
+	private void flush() {
+		md5.update(buffer, 0, buffered);
+		buffered = 0;
+	}
+
+}
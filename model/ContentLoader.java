@@ -0,0 +1,46 @@
+// Copyright 2012 Jason Petersen and Timothy Macdonald
+// 
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+// 
+//     http://www.apache.org/licenses/LICENSE-2.0
+// 
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+/**
+ * ContentLoader.java
+ *
+ * Loads the Music or Lyrics of a Text or Tune
+ * which was created from its metadata only,
+ * e.g. its name, Meter and author, the first
+ * time they are asked for.
+ */
+
+package model;
+
+public interface ContentLoader<T extends HymnComponent> {
+
+	/**
+	 * Load the full content of a HymnComponent.
+	 * This method may be called from multiple threads.
+	 * @param component The HymnComponent created from its metadata.
+	 * @return A fully loaded copy of the HymnComponent, or null
+	 * if its content could not be loaded.
+	 */
+	public T load(T component);
+
+	/**
+	 * Called once the content of a HymnComponent could not
+	 * be loaded and it has been marked invalid, so whatever
+	 * holds it can stop treating it as valid. Called at most
+	 * once for each HymnComponent, without holding its lock.
+	 * @param component The HymnComponent which failed to load.
+	 */
+	public void failed(T component);
+
+}
@@ -31,14 +31,11 @@ import io.RenderEngine;
 import java.io.File;
 import java.io.IOException;
 import java.util.ArrayList;
-import java.util.HashMap;
-import java.util.Iterator;
+import java.util.Arrays;
+import java.util.concurrent.CompletableFuture;
 
 public final class Hymn {
 	
-	/** Contains already-rendered hymns, which can be reused to aid performance. */
-	private static HashMap<Hymn, ArrayList<File>> cache = new HashMap<Hymn, ArrayList<File>>();
-
 	/** The Text for this Hymn */
 	private Text text;
 	
@@ -117,22 +114,14 @@ public final class Hymn {
 		if(text == null || tune == null) return false;
 		if(!text.isValid() || !tune.isValid()) return false;
 		
-		Iterator<Integer> textMeter = text.getMeter().iterator();
-		Iterator<Integer> tuneMeter = tune.getMeter().iterator();
-			
-		boolean equal = true;
-		
-		// Check if meters are equal
-		while(textMeter.hasNext() && tuneMeter.hasNext())
-			if(textMeter.next() != tuneMeter.next()) equal = false;
-		if(tuneMeter.hasNext() || textMeter.hasNext()) equal = false;
-		
-		return equal || textIsDouble(text, tune);
+		return text.getMeter().sameCounts(tune.getMeter()) || textIsDouble(text, tune);
 	}
 	
 	/**
 	 * Render the Hymn. The returned file will
-	 * be the Hymn as an image.
+	 * be the Hymn as an image. Images are cached
+	 * by RenderEngine, so a Hymn which renders the
+	 * same as one already rendered reuses its images.
 	 * @return The rendered Hymn image.
 	 * @throws IOException An error occurred when
 	 * creating the file.
@@ -140,32 +129,31 @@ public final class Hymn {
 	 * @author Tim Macdonald
 	 */
 	public ArrayList<File> render() throws IOException {
-		// Fetch itself from the cache
-		if(Hymn.cache.containsKey(this)) {
-			ArrayList<File> files = Hymn.cache.get(this);
-			boolean validFiles = true;
-			for(File f : files) {
-				if(!f.isFile()) {
-					Hymn.cache.remove(this);
-					validFiles = false;
-					break;
-				}
-			}
-			if(validFiles)
-				return files;
-		}
-
-		// Search on the disk for existing images
-		ArrayList<File> images = RenderEngine.fetch(this.getFilename());
-		if(!images.isEmpty()) {
-			Hymn.cache.put(this, images);
-			return images;
-		}
-		
-		// If all else fails, call lilypond to render the image
-		images = RenderEngine.render(this);
-		Hymn.cache.put(this, images);
-		return images;
+		return RenderEngine.render(this);
+	}
+	
+	/**
+	 * Render the Hymn, getting the bytes of
+	 * each page of the image.
+	 * @return The bytes of each page of the rendered
+	 * Hymn, as PNGs.
+	 * @throws IOException An error occurred when
+	 * creating or reading the image.
+	 */
+	public ArrayList<byte[]> renderImages() throws IOException {
+		return RenderEngine.renderImages(this);
+	}
+	
+	/**
+	 * Render the Hymn in the background. The Hymn
+	 * is rendered as it is now, so later changes to
+	 * its verses need another render.
+	 * @return A future for the bytes of each page
+	 * of the rendered Hymn, as PNGs. Cancel it to
+	 * give up on the render.
+	 */
+	public CompletableFuture<ArrayList<byte[]>> renderAsync() {
+		return RenderEngine.renderAsync(this);
 	}
 	
 	@Override
@@ -192,33 +180,28 @@ public final class Hymn {
 		return false;
 	}
 
-	/**
-	 * To all future debuggers, code reviewers and curious investigators:
-	 * We are sorry.
-	 * This is a complete and total hack. We're hitting the final hours
-	 * and while we really should change the cache to store the Hymn's
-	 * filenames instead of the Hymn object itself as the key, we
-	 * think leaving this here for you to find and scratch your heads
-	 * over is much funnier in the long run.
-	 * Much love.
-	 * @return The completely crazed calculated hashcode integer.
-	 * @author Jason Petersen
-	 * @author Tim Macdonald
-	 */
 	@Override
 	public int hashCode() {
-		int hc = super.hashCode();
-		int i = 1;
-		for(boolean b : this.display) {
-			if(b) {
-				hc += Math.pow(5, i);
-			}
-			else {
-				hc += Math.pow(17, i);
-			}
-			i++;
-		}
-		return hc;
+		int hc = text.hashCode();
+		hc = 31*hc + tune.hashCode();
+		return 31*hc + Arrays.hashCode(display);
+	}
+	
+	/**
+	 * Get the digest of everything this Hymn is rendered
+	 * from, i.e. the digests of its Text and Tune and which
+	 * verses and chorus are shown. Hymns with the same digest
+	 * render the same, so it may stand in for the Hymn, e.g.
+	 * as a cache key, without generating its LilyPond source.
+	 * @return The digest of this Hymn, as 32 hex digits.
+	 */
+	public String digest() {
+		ContentDigest cd = new ContentDigest();
+		cd.add(text.digest()).add(tune.digest());
+		cd.add(doubleText).add(displayChorus()).add(display.length);
+		for(boolean b : display)
+			cd.add(b);
+		return cd.finish();
 	}
 	
 	/**
@@ -401,30 +384,7 @@ public final class Hymn {
 	private static boolean textIsDouble(Text text, Tune tune) {
 		if(!text.isValid() || !tune.isValid()) return false;
 		
-		Iterator<Integer> textMeter = text.getMeter().iterator();
-		Iterator<Integer> tuneMeter = tune.getMeter().iterator();
-		
-		// Advance the iterator
-		while(textMeter.hasNext() && tuneMeter.hasNext()) { 
-			textMeter.next();
-			tuneMeter.next();
-		}
-		
-		boolean dbleText = false;
-		
-		// Check if lyrics can be doubled
-		if(tuneMeter.hasNext()){
-			Iterator<Integer> dblText = text.getMeter().iterator();
-			boolean dble = true;
-			while(tuneMeter.hasNext() && dblText.hasNext())
-				if(tuneMeter.next() != dblText.next()) dble = false;
-			if(tuneMeter.hasNext() || dblText.hasNext()) dble = false;
-			dbleText = dble;
-		}
-		
-		if(text.numberOfVerses() < 2) dbleText = false;
-		
-		return dbleText;
+		return text.numberOfVerses() >= 2 && tune.getMeter().hasSecondHalf(text.getMeter());
 	}
 
 }
@@ -39,6 +39,14 @@ public class Line<T extends Syllable> implements Iterable<T> {
 		this.syllables = new ArrayList<T>();
 	}
 	
+	/**
+	 * Constructor for a Line whose number of Syllables is known.
+	 * @param syllables The number of Syllables the Line will hold.
+	 */
+	Line(int syllables) {
+		this.syllables = new ArrayList<T>(syllables);
+	}
+	
 	@Override
 	public boolean equals(Object other) {
 		if(other == null) return false;
@@ -54,6 +62,11 @@ public class Line<T extends Syllable> implements Iterable<T> {
 		return false;
 	}
 	
+	@Override
+	public int hashCode() {
+		return syllables.hashCode();
+	}
+	
 	@Override
 	public Iterator<T> iterator() {
 		return syllables.iterator();
@@ -72,6 +72,11 @@ public final class Lyric implements Section, Iterable<Line<Word>> {
 		return false;
 	}
 	
+	@Override
+	public int hashCode() {
+		return lines.hashCode();
+	}
+	
 	@Override
 	public int numberOfLines() {
 		return lines.size();
@@ -93,5 +98,18 @@ public final class Lyric implements Section, Iterable<Line<Word>> {
 	public void addLine(Line<Word> line) {
 		if(line != null) lines.add(line);
 	}
+	
+	/**
+	 * Add the Words of this Lyric, line by line, to a digest.
+	 * @param digest The digest to add this Lyric to.
+	 */
+	void digest(ContentDigest digest) {
+		digest.add(lines.size());
+		for(Line<Word> line : lines) {
+			digest.add(line.numberOfSyllables());
+			for(Word word : line)
+				digest.add(word.toString());
+		}
+	}
 
 }
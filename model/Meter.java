@@ -24,15 +24,31 @@
 
 package model;
 
+import java.lang.ref.WeakReference;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Iterator;
+import java.util.NoSuchElementException;
+import java.util.WeakHashMap;
 
 public final class Meter implements Iterable<Integer> {
+	/** The shared Meters, see intern. Both are weak, so a Meter nothing uses any more is forgotten */
+	private static final WeakHashMap<Meter, WeakReference<Meter>> canonical = new WeakHashMap<Meter, WeakReference<Meter>>();
+	
 	/** The name for this Meter */
-	private String name = null;
+	private final String name;
 	
 	/** The integer counts for this Meter */
-	private ArrayList<Integer> counts = new ArrayList<Integer>();
+	private final int[] counts;
+	
+	/** The total of the counts */
+	private final int syllables;
+	
+	/** A 64-bit hash of the counts, see signature */
+	private final long signature;
+	
+	/** The hash code of the name and counts */
+	private final int hash;
 	
 	/**
 	 * Constructor.
@@ -41,8 +57,7 @@ public final class Meter implements Iterable<Integer> {
 	 * @author Neile Havens
 	 */
 	public Meter(String name, ArrayList<Integer> counts) {
-		if(name != null && name.length() > 0 && !name.equals("null")) this.name = name;
-		if(counts != null) this.counts = counts;
+		this(name, toArray(counts));
 	}
 
 	/**
@@ -51,18 +66,35 @@ public final class Meter implements Iterable<Integer> {
 	 * @author Neile Havens
 	 */
 	public Meter(ArrayList<Integer> counts) {
-		if(counts != null) this.counts = counts;
+		this(null, counts);
+	}
+	
+	/**
+	 * Constructor.
+	 * @param name The name of the Meter.
+	 * @param counts The counts for the Meter, which are copied.
+	 */
+	public Meter(String name, int[] counts) {
+		this.name = (name != null && name.length() > 0 && !name.equals("null")) ? name : null;
+		this.counts = (counts != null) ? counts.clone() : new int[0];
+		
+		int syllables = 0;
+		for(int count : this.counts)
+			syllables += count;
+		this.syllables = syllables;
+		this.signature = signature(this.counts, 0);
+		this.hash = 31*(int)(signature ^ (signature >>> 32)) + ((this.name != null) ? this.name.hashCode() : 0);
 	}
 	
 	@Override
 	public String toString() {
 		String s = (hasName()) ? name : "";
-		if(counts.size() != 0) {
+		if(counts.length != 0) {
 			boolean addParen = s.length() > 0;
 			s += (addParen) ? " (" : "";
-			for(int i=0; i<counts.size(); i++) {
-				s += counts.get(i);
-				if(i != counts.size()-1) s += ".";
+			for(int i=0; i<counts.length; i++) {
+				s += counts[i];
+				if(i != counts.length-1) s += ".";
 			}
 			s += (addParen) ? ")" : "";
 		}
@@ -71,24 +103,111 @@ public final class Meter implements Iterable<Integer> {
 
 	@Override
 	public boolean equals(Object other) {
+		if(other == this) return true;
 		if(other == null) return false;
 		if(other instanceof Meter) {
 			Meter meter = (Meter) other;
-			boolean toReturn = (meter.name == null ? this.name == null : meter.name.equals(this.name)) &&
-			                   (meter.counts.size() == this.counts.size());
-			if(toReturn) {
-				for(int i=0; i<this.counts.size(); i++)
-					toReturn = toReturn && (meter.counts.get(i).equals(this.counts.get(i)));
-				return toReturn;
-			}
+			return meter.hash == this.hash &&
+			       (meter.name == null ? this.name == null : meter.name.equals(this.name)) &&
+			       sameCounts(meter);
 		}
 		return false;
 	}
 	
+	@Override
+	public int hashCode() {
+		return hash;
+	}
+	
 	@Override
 	public Iterator<Integer> iterator() {
-		return counts.iterator();
-	}	
+		return new Iterator<Integer>() {
+			private int next = 0;
+			
+			@Override
+			public boolean hasNext() {
+				return next < counts.length;
+			}
+			
+			@Override
+			public Integer next() {
+				if(next >= counts.length)
+					throw new NoSuchElementException();
+				return counts[next++];
+			}
+			
+			@Override
+			public void remove() {
+				throw new UnsupportedOperationException("A Meter cannot be changed");
+			}
+		};
+	}
+	
+	/**
+	 * Get the shared Meter equal to this one. Meters are
+	 * immutable, so one may be used in any number of places,
+	 * and shared Meters are compared by reference. A Meter
+	 * is only shared while something still uses it.
+	 * This method is safe to call from multiple threads.
+	 * @return The shared Meter.
+	 */
+	public Meter intern() {
+		synchronized(canonical) {
+			WeakReference<Meter> ref = canonical.get(this);
+			Meter meter = (ref != null) ? ref.get() : null;
+			if(meter == null) {
+				canonical.put(this, new WeakReference<Meter>(this));
+				meter = this;
+			}
+			return meter;
+		}
+	}
+	
+	/**
+	 * Get the shared Meter with the same counts as this one
+	 * and no name, so Meters may be grouped by their counts.
+	 * @return The shared Meter without a name.
+	 */
+	public Meter unnamed() {
+		return ((name == null) ? this : new Meter(null, counts)).intern();
+	}
+	
+	/**
+	 * Test if another Meter has the same counts as this one,
+	 * whatever their names. Meters whose signatures differ
+	 * are told apart without looking at their counts.
+	 * @param other The Meter to compare with.
+	 * @return True if the counts are the same, otherwise false.
+	 */
+	public boolean sameCounts(Meter other) {
+		if(other == this) return true;
+		return other != null && other.signature == this.signature && Arrays.equals(other.counts, this.counts);
+	}
+	
+	/**
+	 * Test if the second half of this Meter has the same counts as
+	 * the given Meter, i.e. a Text in the given Meter fits this one
+	 * when two of its verses are sung to each verse of the Tune.
+	 * @param half The Meter to compare with the second half.
+	 * @return True if this Meter has twice as many lines as the given
+	 * one and its second half has the same counts, otherwise false.
+	 */
+	public boolean hasSecondHalf(Meter half) {
+		int lines = half.counts.length;
+		if(lines == 0 || counts.length != 2*lines) return false;
+		for(int i=0; i<lines; i++)
+			if(counts[lines + i] != half.counts[i]) return false;
+		return true;
+	}
+	
+	/**
+	 * Add the name and counts of this Meter to a digest.
+	 * @param digest The digest to add this Meter to.
+	 */
+	void digest(ContentDigest digest) {
+		digest.add(name);
+		digest.add(counts);
+	}
 	
 	/* ---------- Getter methods ---------- */
 	
@@ -117,7 +236,7 @@ public final class Meter implements Iterable<Integer> {
 	 * @author Jason Petersen
 	 */
 	public int numberOfLines(){
-		return counts.size();
+		return counts.length;
 	}
 	
 	/**
@@ -128,9 +247,55 @@ public final class Meter implements Iterable<Integer> {
 	 * @author Jason Petersen
 	 */
 	public int numberOfSyllables() {
-		int total = 0;
-		for(int i : counts) total += i;
-		return total;
+		return syllables;
+	}
+	
+	/**
+	 * Get a 64-bit hash of the counts of this Meter. Meters with
+	 * the same counts have the same signature, whatever their names,
+	 * and Meters with different counts almost never do.
+	 * @return The signature of this Meter.
+	 */
+	public long signature() {
+		return signature;
+	}
+	
+	/**
+	 * Get the signature the second half of this Meter would
+	 * have on its own, i.e. the signature of the Meter of a
+	 * Text which fits this one when it is doubled.
+	 * @return The signature of the second half of this Meter.
+	 */
+	public long secondHalfSignature() {
+		return signature(counts, counts.length/2);
+	}
+	
+	/* ---------- Helper methods ---------- */
+	
+	/**
+	 * Helper method to hash the counts from a given line on.
+	 * @param counts The counts to hash.
+	 * @param from The first line to hash.
+	 * @return The 64-bit FNV-1a hash of the counts.
+	 */
+	private static long signature(int[] counts, int from) {
+		long signature = 0xcbf29ce484222325L;
+		for(int i=from; i<counts.length; i++)
+			signature = (signature ^ counts[i]) * 0x100000001b3L;
+		return signature;
+	}
+	
+	/**
+	 * Helper method to copy a list of counts into an array.
+	 * @param counts The list of counts, may be null.
+	 * @return The counts, or null if there were none.
+	 */
+	private static int[] toArray(ArrayList<Integer> counts) {
+		if(counts == null) return null;
+		int[] array = new int[counts.size()];
+		for(int i=0; i<array.length; i++)
+			array[i] = counts.get(i);
+		return array;
 	}
 	
 }
@@ -76,6 +76,14 @@ public final class Music implements Iterable<Voice> {
 		return false;
 	}
 	
+	@Override
+	public int hashCode() {
+		int hc = 0;
+		for(Voice v : new Voice[] { soprano, alto, tenor, bass })
+			hc = 31*hc + ((v != null) ? v.hashCode() : 0);
+		return hc;
+	}
+	
 	/**
 	 * Get the Voice corresponding to the given enum Part.
 	 * If the input is null, default return is soprano.
@@ -224,6 +232,18 @@ public final class Music implements Iterable<Voice> {
 		return this.bass;
 	}
 	
+	/**
+	 * Add the Voices of this Music to a digest.
+	 * @param digest The digest to add this Music to.
+	 */
+	void digest(ContentDigest digest) {
+		for(Voice v : new Voice[] { soprano, alto, tenor, bass }) {
+			digest.add(v != null);
+			if(v != null)
+				v.digest(digest);
+		}
+	}
+	
 	/* ---------- Private methods ---------- */
 	
 	/**
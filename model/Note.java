@@ -25,41 +25,87 @@ package model;
 
 import io.BadInputException;
 
+import java.util.concurrent.atomic.AtomicReferenceArray;
 import java.util.regex.Pattern;
-import java.util.regex.PatternSyntaxException;
 
 public final class Note {
-	/** The pitch of this Note in  */
-	private String pitch;
+	/* NOTE: Under the project specifications, the shortest duration for a note allowed is a 16th note. */
+	/* Further, this value must always be a power of 2 */
+	/** The smallest supported note duration */
+	public static final int SMALLESTNOTE = 16;
 	
-	/** The Accidental for this Note */
-	private Accidental accidental = Accidental.NATURAL;
+	/*
+	 * A Note is packed into the bits of one int, so a Voice can keep its
+	 * Notes in an int[]. From the lowest bit up:
+	 *   3 bits  the letter of the pitch, A to G
+	 *   1 bit   the letter is lower case
+	 *   2 bits  the accidental written in the pitch: none, flat, natural or sharp
+	 *   1 bit   the accidental is lower case
+	 *   3 bits  the octave
+	 *   3 bits  log2 of the duration denominator
+	 *   1 bit each  dotted, starts a tie
+	 *   2 bits  the Slur
+	 *   1 bit   rest
+	 * The case is kept so the pitch name reads back as it was given.
+	 */
 	
-	/** A note's duration represented as the number of 
-	 	SMALLESTNOTE increments it contains */
-	private int durationDenom;
+	/** The bit marking the letter of the pitch as lower case */
+	private static final int LOWER_LETTER = 1 << 3;
 	
-	/** Whether the Note is dotted */
-	private boolean dotted = false;
+	/** The position of the accidental written in the pitch */
+	private static final int ACCIDENTAL_SHIFT = 4;
 	
-	/** Whether the Note starts a tie */
-	private boolean startsTie = false;
+	/** The bit marking the accidental of the pitch as lower case */
+	private static final int LOWER_ACCIDENTAL = 1 << 6;
 	
-	/** This Note's involvement in a slur */
-	private Slur slurStatus = Slur.NONE;
+	/** The position of the octave */
+	private static final int OCTAVE_SHIFT = 7;
 	
-	/* NOTE: Under the project specifications, the shortest duration for a note allowed is a 16th note. */
-	/* Further, this value must always be a power of 2 */
-	/** The smallest supported note duration */
-	public static final int SMALLESTNOTE = 16;
-
-	/** Determine if this Note is a rest */
-	private boolean rest;
+	/** The bits holding the whole pitch name */
+	private static final int PITCH_BITS = (1 << 10) - 1;
+	
+	/** The position of log2 of the duration denominator */
+	private static final int DURATION_SHIFT = 10;
+	
+	/** The bit marking a dotted Note */
+	private static final int DOTTED = 1 << 13;
+	
+	/** The bit marking a Note which starts a tie */
+	private static final int TIE = 1 << 14;
+	
+	/** The position of the Slur */
+	private static final int SLUR_SHIFT = 15;
+	
+	/** The bit marking a rest */
+	private static final int REST = 1 << 17;
+	
+	/** The accidentals which may be written in a pitch, after none */
+	private static final String ACCIDENTALS = "fns";
+	
+	/** The pitch names already built, by their bits */
+	private static final String[] pitchNames = new String[PITCH_BITS + 1];
+	
+	/** The number of durations, dots, ties, slurs and rests a pitch may be packed with */
+	private static final int VARIANTS = 1 << 8;
+	
+	/** The canonical Notes, by the bits of their pitch and then the rest of their bits */
+	private static final AtomicReferenceArray<AtomicReferenceArray<Note>> canonical =
+		new AtomicReferenceArray<AtomicReferenceArray<Note>>(PITCH_BITS + 1);
+	
+	/** Matches a pitch formatted in scientific pitch notation */
+	private static final Pattern PITCH = Pattern.compile("^[A-G][snf]?[2-5]$", Pattern.CASE_INSENSITIVE);
+	
+	/** The pitch, duration, dot, tie, slur and rest of this Note */
+	private final int bits;
+	
+	/** The absolute pitch of this Note, see getPitch */
+	private final int pitch;
 
 	/**
 	 * Constructor.
 	 * Convenience method which sets default values for dotted,
 	 * startsTie, slurStatus and rest to false and NONE.
+	 * Use valueOf instead to share the Note.
 	 * @param pitch String representing a pitch formatted in scientific pitch notation
 	 * @param durationDenom Integer representing this Note's duration, e.g. 4 for quarter,
 	 * 8 for eighth
@@ -73,6 +119,7 @@ public final class Note {
 	
 	/**
 	 * Constructor.
+	 * Use valueOf instead to share the Note.
 	 * @param pitch String representing a pitch formatted in scientific pitch notation
 	 * @param durationDenom Integer representing this Note's duration, e.g. 4 for quarter,
 	 * 8 for eighth
@@ -86,49 +133,82 @@ public final class Note {
 	 * @author Dr. Thomas VanDrunen
 	 */
 	public Note(String pitch, int durationDenom, boolean dotted, boolean startsTie, Slur slurStatus, boolean rest) throws BadInputException, UnsupportedNoteException {
-		if(rest) {
-			this.startsTie = false;
-			this.slurStatus = Slur.NONE;
-			this.dotted = false;
-			this.pitch = "C4"; // Possibly fix this in the future
-			if (durationDenomIsValid(durationDenom)) this.durationDenom = durationDenom;
-			else throw new UnsupportedNoteException("DurationDenom \"" + durationDenom + "\" is not supported");
-			this.rest = true;
-			return;
+		this(pack(pitch, durationDenom, dotted, startsTie, slurStatus, rest));
+	}
+	
+	/**
+	 * Constructor for a packed Note.
+	 * @param bits The packed Note, as returned by packed.
+	 */
+	private Note(int bits) {
+		this.bits = bits;
+		String name = getPitchName();
+		this.pitch = (((name.charAt(0) + 5) - 'A') % 7) + 
+		    (7 * (name.charAt(name.length() - 1) - '0'));
+	}
+	
+	/**
+	 * Get the shared Note with the given pitch and duration, which
+	 * is not dotted, does not start a tie, is not slurred and is not
+	 * a rest. Notes are immutable, so one may be used in any number
+	 * of places.
+	 * @param pitch String representing a pitch formatted in scientific pitch notation
+	 * @param durationDenom Integer representing this Note's duration, e.g. 4 for quarter,
+	 * 8 for eighth
+	 * @return The Note.
+	 * @throws BadInputException The pitch, durationDenom or dotting was invalid.
+	 * @throws UnsupportedNoteException Nothing was invalid, it's just not supported. Yet.
+	 */
+	public static Note valueOf(String pitch, int durationDenom) throws BadInputException, UnsupportedNoteException {
+		return valueOf(pitch, durationDenom, false, false, Slur.NONE, false);
+	}
+	
+	/**
+	 * Get the shared Note with the given pitch, duration, dot, tie,
+	 * slur and rest. Notes are immutable, so one may be used in any
+	 * number of places. This method is safe to call from multiple threads.
+	 * @param pitch String representing a pitch formatted in scientific pitch notation
+	 * @param durationDenom Integer representing this Note's duration, e.g. 4 for quarter,
+	 * 8 for eighth
+	 * @param dotted Boolean representing whether or not this Note is dotted
+	 * @param startsTie Boolean representing whether or not this Note starts a tie
+	 * @param slurStatus Slur enum representing the involvement of this Note in a slur
+	 * @param rest Boolean representing whether or not this Note is a rest
+	 * @return The Note.
+	 * @throws BadInputException The pitch, durationDenom or dotting was invalid.
+	 * @throws UnsupportedNoteException Nothing was invalid, it's just not supported. Yet.
+	 */
+	public static Note valueOf(String pitch, int durationDenom, boolean dotted, boolean startsTie, Slur slurStatus, boolean rest) throws BadInputException, UnsupportedNoteException {
+		return valueOf(pack(pitch, durationDenom, dotted, startsTie, slurStatus, rest));
+	}
+	
+	/**
+	 * Get the shared Note for a packed Note.
+	 * This method is safe to call from multiple threads.
+	 * @param bits The packed Note, as returned by packed.
+	 * @return The Note.
+	 */
+	static Note valueOf(int bits) {
+		AtomicReferenceArray<Note> notes = canonical.get(bits & PITCH_BITS);
+		if(notes == null) {
+			canonical.compareAndSet(bits & PITCH_BITS, null, new AtomicReferenceArray<Note>(VARIANTS));
+			notes = canonical.get(bits & PITCH_BITS);
 		}
-
-		this.rest = false;
-		this.startsTie = startsTie;
-		if(slurStatus != null) this.slurStatus = slurStatus;
 		
-		if (pitchIsValid(pitch)){
-			this.pitch = pitch;
-			
-			/* This assumes only one accidental per note */
-			if (pitch.length() == 2) accidental = Accidental.NATURAL;
-			else
-				try {
-					accidental = Accidental.getAccidentalFor(pitch.charAt(1));
-				} catch (BadInputException bie) {
-					/* This should never be hit, as pitchIsValid will check the validity of the accidental as well */
-					System.err.println("Note - " + bie.getMessage());
-				}
+		Note note = notes.get(bits >>> DURATION_SHIFT);
+		if(note == null) {
+			notes.compareAndSet(bits >>> DURATION_SHIFT, null, new Note(bits));
+			note = notes.get(bits >>> DURATION_SHIFT);
 		}
-		else throw new UnsupportedNoteException("Pitch \"" + pitch + "\" is not supported");
-		
-		if (durationDenomIsValid(durationDenom)) this.durationDenom = durationDenom;
-		else throw new UnsupportedNoteException("DurationDenom \"" + durationDenom + "\" is not supported");
-		
-		if (dotIsValid() || !dotted) this.dotted = dotted;
-		else throw new UnsupportedNoteException("Dot not supported on note " + pitch + "with durationDenom \"" + durationDenom + "\"");
+		return note;
 	}
 	
 	@Override
 	public String toString() {
-		String s = (rest) ? "(Rest) " : "";
-		s += pitch + durationDenom;
-		if(dotted) s += ".";
-		s += " slur: " + slurStatus + " tie: " + startsTie;
+		String s = (isRest()) ? "(Rest) " : "";
+		s += getPitchName() + getDurationDenom();
+		if(isDotted()) s += ".";
+		s += " slur: " + slurStatus() + " tie: " + startsTie();
 		return s;
 	}
 	
@@ -137,16 +217,15 @@ public final class Note {
 		if(other == null) return false;
 		if(other instanceof Note) {
 			Note note = (Note) other;
-			return	note.dotted == this.dotted &&
-					note.rest == this.rest &&
-					note.startsTie == this.startsTie &&
-					note.durationDenom == this.durationDenom &&
-					note.pitch.equals(this.pitch) &&
-					note.accidental == this.accidental &&
-					note.slurStatus == this.slurStatus;
+			return note.bits == this.bits;
 		}
 		return false;
 	}
+	
+	@Override
+	public int hashCode() {
+		return bits;
+	}
 
 	/* ---------- Getter methods ---------- */
 	
@@ -159,8 +238,7 @@ public final class Note {
 	 * @author Spring 2010
 	 */
 	public int getPitch() {
-		return (((pitch.charAt(0) + 5) - 'A') % 7) + 
-		    (7 * Integer.parseInt(pitch.substring(pitch.length() - 1)));
+		return this.pitch;
 	}
 
 	/**
@@ -170,7 +248,12 @@ public final class Note {
 	 * @author Spring 2010
 	 */
 	public String getPitchName() {
-		return pitch;
+		String name = pitchNames[bits & PITCH_BITS];
+		if(name == null) {
+			name = unpackPitch(bits & PITCH_BITS);
+			pitchNames[bits & PITCH_BITS] = name; // Racing threads build the same name, so no lock is needed
+		}
+		return name;
 	}
 	
     /**
@@ -181,7 +264,8 @@ public final class Note {
 	 * @author Jason Petersen
      */
 	public Accidental getAccidental() {
-		return accidental;
+		int accidental = (bits >> ACCIDENTAL_SHIFT) & 3;
+		return (accidental == 0) ? Accidental.NATURAL : Accidental.values()[accidental - 1];
 	}
 
 	/**
@@ -190,7 +274,7 @@ public final class Note {
 	 * @author Spring 2010
 	 */
 	public int getDurationDenom() {
-		return durationDenom;
+		return 1 << ((bits >> DURATION_SHIFT) & 7);
 	}
 
 	/**
@@ -202,9 +286,7 @@ public final class Note {
 	 * @author Jason Petersen
 	 */
 	public int getDuration() {
-		int duration = SMALLESTNOTE/durationDenom;
-		if(dotted) duration += (SMALLESTNOTE/2)/durationDenom;
-		return duration; 
+		return duration(bits);
 	}
 	
 	/**
@@ -213,7 +295,7 @@ public final class Note {
 	 * @author Spring 2010
 	 */
 	public boolean isDotted() {
-		return this.dotted;
+		return (this.bits & DOTTED) != 0;
 	}
 	
 	/**
@@ -221,7 +303,7 @@ public final class Note {
 	 * @author Tim Macdonald
 	 */
 	public boolean isRest() {
-		return this.rest;
+		return (this.bits & REST) != 0;
 	}
 	
 	/**
@@ -230,16 +312,14 @@ public final class Note {
 	 * @author Jason Petersen
 	 */
 	public boolean startsTie() {
-		return this.startsTie;
+		return (this.bits & TIE) != 0;
 	}
 
 	/**
-	 * Sets whether the note starts a tie or not.
-	 *
-	 * @author Tim Macdonald <tim.macdonald@my.wheaton.edu>
+	 * Returns the shared Note which is this one, but starts a tie or not.
 	 */
-	public void startsTie(boolean t) {
-		this.startsTie = t;
+	public Note withTie(boolean t) {
+		return valueOf(t ? (this.bits | TIE) : (this.bits & ~TIE));
 	}
 
 	/**
@@ -248,7 +328,29 @@ public final class Note {
 	 * @author Spring 2010
 	 */
 	public Slur slurStatus() {
-		return this.slurStatus;
+		return Slur.values()[(this.bits >> SLUR_SHIFT) & 3];
+	}
+	
+	/**
+	 * Get this Note packed into an int, to be kept by a Voice or Unit.
+	 * @return The pitch, duration, dot, tie, slur and rest of this Note.
+	 */
+	int packed() {
+		return this.bits;
+	}
+	
+	/**
+	 * Get the duration of a packed Note relative to SMALLESTNOTE,
+	 * without unpacking it.
+	 * @see model.Note.getDuration()
+	 * @param bits The packed Note.
+	 * @return The duration of the Note.
+	 */
+	static int duration(int bits) {
+		int durationDenom = 1 << ((bits >> DURATION_SHIFT) & 7);
+		int duration = SMALLESTNOTE/durationDenom;
+		if((bits & DOTTED) != 0) duration += (SMALLESTNOTE/2)/durationDenom;
+		return duration;
 	}
 	
 	/* ---------- Helper methods ---------- */
@@ -262,13 +364,7 @@ public final class Note {
 	public static boolean pitchIsValid(String pitch) {
 		if(pitch == null) return false;
 		
-		try {
-			Pattern regex = Pattern.compile("^[A-G][snf]?[2-5]$", Pattern.CASE_INSENSITIVE); 
-			return regex.matcher(pitch).matches();
-		} catch (PatternSyntaxException pse) {
-			System.err.println("Note.pitchIsValid - bad regex pattern");
-			return true;
-		}
+		return PITCH.matcher(pitch).matches();
 	}
 	
 	/**
@@ -285,13 +381,94 @@ public final class Note {
 	
 	/**
 	 * Helper method to test if the Note can actually be dotted.
+	 * @param denom The duration denominator of the Note.
 	 * @return True if the durationDenom does not equal SMALLESTNOTE.
 	 * If it did, there would be no way to represent the duration of
 	 * this Note, since dotting increases duration by 50%.
 	 * @author Spring 2010
 	 */
-	private boolean dotIsValid() {
-		return durationDenom != SMALLESTNOTE;
+	private static boolean dotIsValid(int denom) {
+		return denom != SMALLESTNOTE;
+	}
+	
+	/**
+	 * Helper method to check and pack the parts of a Note.
+	 * @param pitch String representing a pitch formatted in scientific pitch notation
+	 * @param durationDenom Integer representing the Note's duration
+	 * @param dotted Boolean representing whether or not the Note is dotted
+	 * @param startsTie Boolean representing whether or not the Note starts a tie
+	 * @param slurStatus Slur enum representing the involvement of the Note in a slur
+	 * @param rest Boolean representing whether or not the Note is a rest
+	 * @return The packed Note.
+	 * @throws UnsupportedNoteException The pitch, durationDenom or dotting is not supported.
+	 * @author Spring 2010
+	 * @author Jason Petersen
+	 * @author Dr. Thomas VanDrunen
+	 */
+	private static int pack(String pitch, int durationDenom, boolean dotted, boolean startsTie, Slur slurStatus, boolean rest) throws UnsupportedNoteException {
+		if(rest) {
+			int bits = packPitch("C4") | (Slur.NONE.ordinal() << SLUR_SHIFT) | REST; // Possibly fix the pitch in the future
+			if (durationDenomIsValid(durationDenom)) return bits | packDuration(durationDenom);
+			else throw new UnsupportedNoteException("DurationDenom \"" + durationDenom + "\" is not supported");
+		}
+
+		int bits = (startsTie ? TIE : 0) | (((slurStatus != null) ? slurStatus : Slur.NONE).ordinal() << SLUR_SHIFT);
+		
+		if (pitchIsValid(pitch)) bits |= packPitch(pitch);
+		else throw new UnsupportedNoteException("Pitch \"" + pitch + "\" is not supported");
+		
+		if (durationDenomIsValid(durationDenom)) bits |= packDuration(durationDenom);
+		else throw new UnsupportedNoteException("DurationDenom \"" + durationDenom + "\" is not supported");
+		
+		if (dotIsValid(durationDenom) || !dotted) bits |= (dotted ? DOTTED : 0);
+		else throw new UnsupportedNoteException("Dot not supported on note " + pitch + "with durationDenom \"" + durationDenom + "\"");
+		
+		return bits;
+	}
+	
+	/**
+	 * Helper method to pack a valid pitch name.
+	 * @param pitch The pitch, which pitchIsValid accepts.
+	 * @return The bits of the pitch.
+	 */
+	private static int packPitch(String pitch) {
+		char letter = pitch.charAt(0);
+		int bits = (Character.toUpperCase(letter) - 'A') | (Character.isLowerCase(letter) ? LOWER_LETTER : 0);
+		
+		/* This assumes only one accidental per note */
+		if(pitch.length() == 3) {
+			char accidental = pitch.charAt(1);
+			bits |= (ACCIDENTALS.indexOf(Character.toLowerCase(accidental)) + 1) << ACCIDENTAL_SHIFT;
+			if(Character.isLowerCase(accidental)) bits |= LOWER_ACCIDENTAL;
+		}
+		return bits | ((pitch.charAt(pitch.length() - 1) - '0') << OCTAVE_SHIFT);
+	}
+	
+	/**
+	 * Helper method to build the pitch name packed by packPitch.
+	 * @param bits The bits of the pitch.
+	 * @return The pitch name, as it was packed.
+	 */
+	private static String unpackPitch(int bits) {
+		StringBuilder name = new StringBuilder(3);
+		char letter = (char) ('A' + (bits & 7));
+		name.append(((bits & LOWER_LETTER) != 0) ? Character.toLowerCase(letter) : letter);
+		
+		int accidental = (bits >> ACCIDENTAL_SHIFT) & 3;
+		if(accidental != 0) {
+			char c = ACCIDENTALS.charAt(accidental - 1);
+			name.append(((bits & LOWER_ACCIDENTAL) != 0) ? c : Character.toUpperCase(c));
+		}
+		return name.append((bits >> OCTAVE_SHIFT) & 7).toString();
+	}
+	
+	/**
+	 * Helper method to pack a valid duration denominator as its log2.
+	 * @param denom The duration denominator, a power of 2.
+	 * @return The bits of the duration.
+	 */
+	private static int packDuration(int denom) {
+		return Integer.numberOfTrailingZeros(denom) << DURATION_SHIFT;
 	}
 	
 }
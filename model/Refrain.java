@@ -64,6 +64,11 @@ public final class Refrain {
 		return false;
 	}
 	
+	@Override
+	public int hashCode() {
+		return 31*music.hashCode() + lyric.hashCode();
+	}
+	
 	/**
 	 * Get the Lyric for this Refrain.
 	 * @return The Lyric for this Refrain.
@@ -82,4 +87,13 @@ public final class Refrain {
 		return music;
 	}
 	
+	/**
+	 * Add the Music and Lyric of this Refrain to a digest.
+	 * @param digest The digest to add this Refrain to.
+	 */
+	void digest(ContentDigest digest) {
+		music.digest(digest);
+		lyric.digest(digest);
+	}
+	
 }
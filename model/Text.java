@@ -43,10 +43,19 @@ public final class Text implements HymnComponent, Iterable<Lyric> {
 	private int year = 0;
 	
 	/** Determine if this Text is valid */
-	private boolean valid;
+	private volatile boolean valid;
 
 	/** The verses for this Text */
 	private ArrayList<Lyric> verses = new ArrayList<Lyric>();
+	
+	/** The number of verses of a Text created from its metadata only */
+	private int verseCount;
+	
+	/** Loads the verses of a Text created from its metadata only, null once the Text holds its own */
+	private volatile ContentLoader<Text> loader;
+	
+	/** The digest of this Text, null until it is asked for or after the Text changes */
+	private volatile String digest;
 
 	/**
 	 * Constructor.
@@ -64,6 +73,28 @@ public final class Text implements HymnComponent, Iterable<Lyric> {
 		this.meter = meter;
 		this.valid = false;
 	}
+	
+	/**
+	 * Constructor for a Text created from its metadata only.
+	 * Its verses are loaded by the given loader the first
+	 * time they are asked for.
+	 * @param name The name for this Text.
+	 * @param meter The meter for this Text.
+	 * @param verses The number of verses in this Text.
+	 * @param valid Whether the Text's verses make it valid.
+	 * @param loader Loads the verses of this Text.
+	 * @throws BadInputException The input for the Text
+	 * was null or the name length was 0.
+	 */
+	public Text(String name, Meter meter, int verses, boolean valid, ContentLoader<Text> loader) throws BadInputException {
+		this(name, meter);
+		if(loader == null)
+			throw new BadInputException("Loader for Text cannot be null");
+		
+		this.verseCount = verses;
+		this.valid = valid;
+		this.loader = loader;
+	}
 
 	@Override
 	public String toString() {
@@ -72,7 +103,7 @@ public final class Text implements HymnComponent, Iterable<Lyric> {
 
 	@Override
 	public Iterator<Lyric> iterator() {
-		return verses.iterator();
+		return content().verses.iterator();
 	}
 
 	@Override
@@ -107,23 +138,59 @@ public final class Text implements HymnComponent, Iterable<Lyric> {
 								(text.author.equals(this.author)) &&
 								(text.year == this.year) &&
 								(text.meter.equals(this.meter)) &&
-								(text.verses.size() == this.verses.size());
+								(text.numberOfVerses() == this.numberOfVerses());
 			if(toReturn) {
-				for(int i=0; i<this.verses.size(); i++)
-					toReturn = toReturn && (text.verses.get(i).equals(this.verses.get(i)));
+				ArrayList<Lyric> theirs = text.content().verses;
+				ArrayList<Lyric> ours = this.content().verses;
+				for(int i=0; i<ours.size(); i++)
+					toReturn = toReturn && (theirs.get(i).equals(ours.get(i)));
 			}
 			return toReturn;
 		}
 		return false;
 	}
 	
+	@Override
+	public int hashCode() {
+		// Only the metadata, so a Text created from it is not loaded
+		int hc = name.hashCode();
+		hc = 31*hc + author.hashCode();
+		hc = 31*hc + year;
+		hc = 31*hc + meter.hashCode();
+		return 31*hc + numberOfVerses();
+	}
+	
+	/**
+	 * Get the digest of everything equals compares, i.e. the
+	 * metadata and verses of this Text. Equal Texts have the
+	 * same digest and different ones almost never do, so it
+	 * may stand in for the Text, e.g. to tell if it changed.
+	 * It is computed once and kept until the Text is changed.
+	 * @return The digest of this Text, as 32 hex digits.
+	 */
+	public String digest() {
+		String d = this.digest;
+		if(d == null) {
+			ContentDigest cd = new ContentDigest();
+			cd.add(name).add(author).add(year);
+			meter.digest(cd);
+			ArrayList<Lyric> verses = content().verses;
+			cd.add(verses.size());
+			for(Lyric verse : verses)
+				verse.digest(cd);
+			d = cd.finish();
+			this.digest = d;
+		}
+		return d;
+	}
+	
 	/**
 	 * Get the number of verses in this Text.
 	 * @return The number of verses in this Text.
 	 * @author Spring 2010
 	 */
 	public int numberOfVerses() {
-		return verses.size();
+		return (loader != null) ? verseCount : verses.size();
 	}
 
 	/* ---------- Setter methods ---------- */
@@ -137,8 +204,10 @@ public final class Text implements HymnComponent, Iterable<Lyric> {
 	 */
 	public void setVerses(ArrayList<Lyric> verses) {
 		if(verses != null){
+			this.loader = null;
 			this.verses = verses;
 			this.valid = validate();
+			this.digest = null;
 		}
 	}
 	
@@ -149,8 +218,10 @@ public final class Text implements HymnComponent, Iterable<Lyric> {
 	 * @author Jason Petersen
 	 */
 	public void setAuthor(String author) {
-		if(author != null && author.length() > 0)
+		if(author != null && author.length() > 0) {
 			this.author = author;
+			this.digest = null;
+		}
 	}
 
 	/**
@@ -160,6 +231,7 @@ public final class Text implements HymnComponent, Iterable<Lyric> {
 	 */
 	public void setYear(int year) {
 		this.year = year;
+		this.digest = null;
 	}
 
 	/* ---------- Getter methods ---------- */
@@ -193,8 +265,58 @@ public final class Text implements HymnComponent, Iterable<Lyric> {
 		return this.year;
 	}
 	
+	/**
+	 * Test if this Text was created from its metadata only
+	 * and has not been given verses of its own since.
+	 * @return True if the verses of this Text are loaded
+	 * when they are asked for, otherwise false.
+	 */
+	public boolean isLazy() {
+		return this.loader != null;
+	}
+	
 	/* ---------- Helper methods ---------- */
 	
+	/**
+	 * Helper method to get the Text holding this Text's verses.
+	 * For a Text created from its metadata only this is
+	 * the copy its loader loads, otherwise this Text. If
+	 * the verses cannot be loaded, this Text is left with
+	 * none and marked invalid.
+	 * @return The Text holding the verses.
+	 */
+	private Text content() {
+		ContentLoader<Text> l = this.loader;
+		if(l == null)
+			return this;
+		Text loaded = l.load(this);
+		if(loaded != null)
+			return loaded;
+		if(failedToLoad(l))
+			l.failed(this); // Outside the lock, as whatever holds this Text may take its own
+		return this;
+	}
+	
+	/**
+	 * Helper method to give up on loading the verses of a
+	 * Text created from its metadata only, e.g. because its
+	 * file was deleted or no longer parses. The Text is left
+	 * with no verses and marked invalid, so it can no longer
+	 * be made into a Hymn.
+	 * @param l The loader which failed.
+	 * @return True if this Text was marked invalid, false if it
+	 * had already been given up on or given verses of its own.
+	 */
+	private synchronized boolean failedToLoad(ContentLoader<Text> l) {
+		if(this.loader != l) // Given verses of its own since
+			return false;
+		this.verses = new ArrayList<Lyric>();
+		this.valid = false;
+		this.digest = null;
+		this.loader = null;
+		return true;
+	}
+	
 	/**
 	 * Text if this Text is valid.
 	 * A Text is valid if all the lyrics have
@@ -66,6 +66,11 @@ public final class TimeSignature {
 		return false;
 	}
 	
+	@Override
+	public int hashCode() {
+		return 31*numBeats + beatLength;
+	}
+	
 	/**
 	 * Calculate the number of Note.SMALLESTNOTE in
 	 * each measure of this TimeSignature, e.g. if 3/4,
@@ -63,7 +63,13 @@ public final class Tune implements HymnComponent {
 	private HashMap<Integer, Refrain> alleluias = new HashMap<Integer, Refrain>();
 	
 	/** Determine if the Tune is valid */
-	private boolean valid;
+	private volatile boolean valid;
+	
+	/** Loads the Music of a Tune created from its metadata only, null once the Tune holds its own */
+	private volatile ContentLoader<Tune> loader;
+	
+	/** The digest of this Tune, null until it is asked for or after the Tune changes */
+	private volatile String digest;
 
 	/**
 	 * Constructor.
@@ -85,6 +91,27 @@ public final class Tune implements HymnComponent {
 		this.valid = false;
 	}
 	
+	/**
+	 * Constructor for a Tune created from its metadata only.
+	 * Its Music, chorus and alleluias are loaded by the given
+	 * loader the first time they are asked for.
+	 * @param name The name of this Tune.
+	 * @param meter The meter for this Tune.
+	 * @param key The key signature for this Tune.
+	 * @param time The time signature for this Tune.
+	 * @param valid Whether the Tune's Music makes it valid.
+	 * @param loader Loads the Music, chorus and alleluias of this Tune.
+	 * @throws BadInputException The imput was null or the name length was 0.
+	 */
+	public Tune(String name, Meter meter, KeySignature key, TimeSignature time, boolean valid, ContentLoader<Tune> loader) throws BadInputException {
+		this(name, meter, key, time);
+		if(loader == null)
+			throw new BadInputException("Loader for Tune cannot be null");
+		
+		this.valid = valid;
+		this.loader = loader;
+	}
+	
 	@Override
 	public String toString() {
 		return this.name;
@@ -126,13 +153,61 @@ public final class Tune implements HymnComponent {
 			       (tune.key == null ? this.key == null : tune.key.equals(this.key)) &&
 			       (tune.time == null ? this.time == null : tune.time.equals(this.time)) &&
 			       (tune.melody == null ? this.melody == null : tune.melody.equals(this.melody)) &&
-			       (tune.chorus == null ? this.chorus == null : tune.chorus.equals(this.chorus)) &&
-			       (tune.music == null ? this.music == null : tune.music.equals(this.music)) &&
+			       (tune.getChorus() == null ? this.getChorus() == null : tune.getChorus().equals(this.getChorus())) &&
+			       (tune.getMusic() == null ? this.getMusic() == null : tune.getMusic().equals(this.getMusic())) &&
 			       (equalAlleluias(tune));
 		}
 		return false;
 	}
 	
+	@Override
+	public int hashCode() {
+		// Only the metadata, so a Tune created from it is not loaded
+		int hc = name.hashCode();
+		hc = 31*hc + author.hashCode();
+		hc = 31*hc + year;
+		hc = 31*hc + (int)(startingBeat*Note.SMALLESTNOTE);
+		hc = 31*hc + meter.hashCode();
+		hc = 31*hc + key.hashCode();
+		hc = 31*hc + time.hashCode();
+		return 31*hc + melody.hashCode();
+	}
+	
+	/**
+	 * Get the digest of everything equals compares, i.e. the
+	 * metadata, Music, chorus and alleluias of this Tune. Equal
+	 * Tunes have the same digest and different ones almost never
+	 * do, so it may stand in for the Tune, e.g. to tell if it
+	 * changed. It is computed once and kept until the Tune is changed.
+	 * @return The digest of this Tune, as 32 hex digits.
+	 */
+	public String digest() {
+		String d = this.digest;
+		if(d == null) {
+			ContentDigest cd = new ContentDigest();
+			cd.add(name).add(author).add(year).add(startingBeat);
+			meter.digest(cd);
+			cd.add(key.name()).add(time.getNumBeats()).add(time.getBeatLength()).add(melody.name());
+			
+			Tune content = content();
+			cd.add(content.music != null);
+			if(content.music != null)
+				content.music.digest(cd);
+			cd.add(content.chorus != null);
+			if(content.chorus != null)
+				content.chorus.digest(cd);
+			for(int line=1; line<=meter.numberOfLines(); line++) {
+				Refrain alleluia = content.alleluias.get(line);
+				cd.add(alleluia != null);
+				if(alleluia != null)
+					alleluia.digest(cd);
+			}
+			d = cd.finish();
+			this.digest = d;
+		}
+		return d;
+	}
+	
 	/* ---------- Setter methods ---------- */
 	
 	/**
@@ -143,8 +218,10 @@ public final class Tune implements HymnComponent {
 	 */
 	public void setMusic(Music music) {
 		if(music != null) {
+			materialize();
 			this.music = music;
 			this.valid = meter.numberOfSyllables() == music.numberOfSyllables() && music.isValid();
+			this.digest = null;
 		}
 	}
 	
@@ -154,8 +231,10 @@ public final class Tune implements HymnComponent {
 	 * @author Jason Petersen
 	 */
 	public void setMelody(Part part) {
-		if(part != null)
+		if(part != null) {
 			this.melody = part;
+			this.digest = null;
+		}
 	}
 
 	/**
@@ -165,8 +244,11 @@ public final class Tune implements HymnComponent {
 	 * @author Jason Petersen
 	 */
 	public void setChorus(Refrain chorus) {
-		if(chorus != null)
+		if(chorus != null) {
+			materialize();
 			this.chorus = chorus;
+			this.digest = null;
+		}
 	}
 
 	/**
@@ -176,8 +258,10 @@ public final class Tune implements HymnComponent {
 	 * @author Jason Petersen
 	 */
 	public void setAuthor(String author) {
-		if(author != null && author.length() > 0)
+		if(author != null && author.length() > 0) {
 			this.author = author;
+			this.digest = null;
+		}
 	}
 
 	/**
@@ -187,6 +271,7 @@ public final class Tune implements HymnComponent {
 	 */
 	public void setYear(int year) {
 		this.year = year;
+		this.digest = null;
 	}
 	
 	/**
@@ -200,6 +285,7 @@ public final class Tune implements HymnComponent {
 	public void setStartingBeat(String input) throws BadInputException {
 		if(input != null && input.length() > 0) {
 			startingBeat = parseStartingBeat(input);
+			digest = null;
 		}
 	}
 
@@ -220,8 +306,11 @@ public final class Tune implements HymnComponent {
 		if(line < 1 || line > meter.numberOfLines())
 			throw new BadInputException("Alleluia cannot be added to line " + line);
 		
-		if(!alleluias.containsKey(line))
+		materialize();
+		if(!alleluias.containsKey(line)) {
 			alleluias.put(line, alleluia);
+			digest = null;
+		}
 		else throw new BadInputException("An alleluia already exists for line " + line);
 	}
 	
@@ -243,7 +332,7 @@ public final class Tune implements HymnComponent {
 	 * @author Spring 2010
 	 */
 	public Music getMusic() {
-		return this.music;
+		return content().music;
 	}
 	
 	/**
@@ -310,7 +399,7 @@ public final class Tune implements HymnComponent {
 	 * @author Jason Petersen
 	 */
 	public boolean hasChorus() {
-		return this.chorus != null;
+		return content().chorus != null;
 	}
 
 	/**
@@ -320,7 +409,7 @@ public final class Tune implements HymnComponent {
 	 * @author Jason Petersen
 	 */
 	public Refrain getChorus() {
-		return this.chorus;
+		return content().chorus;
 	}
 
 	/**
@@ -332,14 +421,84 @@ public final class Tune implements HymnComponent {
 	 * @author Jason Petersen
 	 */
 	public Refrain getAlleluiaForLine(int line) {
-		if(alleluias.containsKey(line)) {
-			return alleluias.get(line);
+		Tune content = content();
+		if(content.alleluias.containsKey(line)) {
+			return content.alleluias.get(line);
 		}
 		return null;
 	}
 	
+	/**
+	 * Test if this Tune was created from its metadata only
+	 * and has not been given Music of its own since.
+	 * @return True if the Music of this Tune is loaded
+	 * when it is asked for, otherwise false.
+	 */
+	public boolean isLazy() {
+		return this.loader != null;
+	}
+	
 	/* ---------- Helper methods --------- */
 	
+	/**
+	 * Helper method to get the Tune holding this Tune's Music.
+	 * For a Tune created from its metadata only this is
+	 * the copy its loader loads, otherwise this Tune. If
+	 * the Music cannot be loaded, this Tune is left with
+	 * none and marked invalid.
+	 * @return The Tune holding the Music, chorus and alleluias.
+	 */
+	private Tune content() {
+		ContentLoader<Tune> l = this.loader;
+		if(l == null)
+			return this;
+		Tune loaded = l.load(this);
+		if(loaded != null)
+			return loaded;
+		if(failedToLoad(l))
+			l.failed(this); // Outside the lock, as whatever holds this Tune may take its own
+		return this;
+	}
+	
+	/**
+	 * Helper method to give up on loading the Music of a
+	 * Tune created from its metadata only, e.g. because its
+	 * file was deleted or no longer parses. The Tune is left
+	 * with no Music, chorus or alleluias and marked invalid,
+	 * so it can no longer be made into a Hymn.
+	 * @param l The loader which failed.
+	 * @return True if this Tune was marked invalid, false if it
+	 * had already been given up on or given Music of its own.
+	 */
+	private synchronized boolean failedToLoad(ContentLoader<Tune> l) {
+		if(this.loader != l) // Given Music of its own since
+			return false;
+		this.music = null;
+		this.chorus = null;
+		this.alleluias = new HashMap<Integer, Refrain>();
+		this.valid = false;
+		this.digest = null;
+		this.loader = null;
+		return true;
+	}
+	
+	/**
+	 * Helper method to load the Music of a Tune created from
+	 * its metadata only into the Tune itself, so it can be
+	 * changed. The loader is not used again afterwards.
+	 */
+	private synchronized void materialize() {
+		if(this.loader == null)
+			return;
+		Tune loaded = content();
+		if(loaded != this) {
+			this.music = loaded.music;
+			this.chorus = loaded.chorus;
+			this.alleluias = new HashMap<Integer, Refrain>(loaded.alleluias);
+		}
+		this.loader = null;
+	}
+	
 	/**
 	 * Helper method to test if alleluias for another
 	 * Tune matches this Tune's alleluias.
@@ -18,18 +18,34 @@
  * Class to model a Syllable of Notes.
  * Used to create Voices.
  * 
+ * The Notes are kept packed into ints, see Note,
+ * and given out as the shared Note for each.
+ * A Unit taken from a Voice shares the Voice's
+ * Notes, so adding to the Unit does not change
+ * the Voice.
+ * 
  * @author Jason Petersen
  */
 
 package model;
 
-import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Iterator;
+import java.util.NoSuchElementException;
 
 public class Unit implements Syllable, Iterable<Note> {
 
-	/** The Notes in this Unit Syllable */
-	private ArrayList<Note> notes;
+	/** The packed Notes of this Unit Syllable, which may be shared with a Voice */
+	int[] notes;
+	
+	/** The index in notes of the first Note of this Unit */
+	int from;
+	
+	/** One past the index in notes of the last Note of this Unit */
+	int to;
+	
+	/** Whether notes is shared with a Voice, so must be copied before it is changed */
+	private boolean shared;
 	
 	/** Indicates the associated Word should be repeated */
 	private boolean repeat = false;
@@ -39,22 +55,53 @@ public class Unit implements Syllable, Iterable<Note> {
 	 * @author Jason Petersen
 	 */
 	public Unit() {
-		this.notes = new ArrayList<Note>();
+		this.notes = new int[2];
+	}
+	
+	/**
+	 * Constructor for a Unit whose Notes are kept by a Voice.
+	 * @param notes The packed Notes of the Voice.
+	 * @param from The index of the Unit's first Note.
+	 * @param to One past the index of the Unit's last Note.
+	 * @param repeat True if the associated Word should be repeated.
+	 */
+	Unit(int[] notes, int from, int to, boolean repeat) {
+		this.notes = notes;
+		this.from = from;
+		this.to = to;
+		this.shared = true;
+		this.repeat = repeat;
 	}
 	
 	@Override
 	public String toString() {
-		if (notes == null) return "{ NULL }";
-		else {
-			String s = "{ ";
-			for (Note n: notes) s += n + ", ";
-			return s + " }";
-		}
+		String s = "{ ";
+		for (Note n: this) s += n + ", ";
+		return s + " }";
 	}
 
 	@Override
 	public Iterator<Note> iterator() {
-		return notes.iterator();
+		return new Iterator<Note>() {
+			private int next = from;
+			
+			@Override
+			public boolean hasNext() {
+				return next < to;
+			}
+			
+			@Override
+			public Note next() {
+				if(next >= to)
+					throw new NoSuchElementException();
+				return Note.valueOf(notes[next++]);
+			}
+			
+			@Override
+			public void remove() {
+				throw new UnsupportedOperationException("Notes cannot be removed from a Unit");
+			}
+		};
 	}
 	
 	@Override
@@ -62,23 +109,31 @@ public class Unit implements Syllable, Iterable<Note> {
 		if(other == null) return false;
 		if(other instanceof Unit) {
 			Unit unit = (Unit) other;
-			boolean toReturn = (unit.notes.size() == this.notes.size()) && (unit.repeat == this.repeat);
+			boolean toReturn = (unit.numberOfNotes() == this.numberOfNotes()) && (unit.repeat == this.repeat);
 			if(toReturn) {
-				for(int i=0; i<this.notes.size(); i++)
-					toReturn = toReturn && (unit.notes.get(i).equals(this.notes.get(i)));
+				for(int i=0; i<this.numberOfNotes(); i++)
+					toReturn = toReturn && (unit.notes[unit.from + i] == this.notes[this.from + i]);
 			}
 			return toReturn;
 		}
 		return false;
 	}
 	
+	@Override
+	public int hashCode() {
+		int hc = (repeat) ? 1 : 0;
+		for(int n=from; n<to; n++)
+			hc = 31*hc + notes[n];
+		return hc;
+	}
+	
 	/**
 	 * Get the number of Notes in this Unit.
 	 * @return The number of Notes in this Unit.
 	 * @author Jason Petersen
 	 */
 	public int numberOfNotes() {
-		return notes.size();
+		return to - from;
 	}
 	
 	/**
@@ -91,7 +146,7 @@ public class Unit implements Syllable, Iterable<Note> {
 	 */
 	public int duration() {
 		int i = 0;
-		for(Note n : notes) i += n.getDuration();
+		for(int n=from; n<to; n++) i += Note.duration(notes[n]);
 		return i;
 	}
 
@@ -103,7 +158,15 @@ public class Unit implements Syllable, Iterable<Note> {
 	 * @author Jason Petersen
 	 */
 	public void addNote(Note note) {
-		if(note != null) notes.add(note);
+		if(note == null) return;
+		
+		if(shared || to == notes.length) {
+			notes = Arrays.copyOfRange(notes, from, from + Math.max(2*numberOfNotes(), 2));
+			to -= from;
+			from = 0;
+			shared = false;
+		}
+		notes[to++] = note.packed();
 	}
 	
 	/* ---------- Setter methods ---------- */
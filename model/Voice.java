@@ -18,6 +18,12 @@
  * Class to represent a syllabified voice,
  * e.g. alto
  * 
+ * The Notes of the Voice are packed into one
+ * int[], see Note, with the start of each Unit
+ * and each Line kept in two more. The Lines,
+ * Units and Notes it gives out are views of
+ * these arrays, made as they are asked for.
+ * 
  * @author Jason Petersen
  */
 
@@ -26,17 +32,28 @@ package model;
 
 import io.BadInputException;
 
-import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Iterator;
+import java.util.NoSuchElementException;
 
 public final class Voice implements Section, Iterable<Line<Unit>> {
 	
-	/** The lines in this Voice */
-	private ArrayList<Line<Unit>> lines;
+	/** The packed Notes of this Voice, see Note */
+	private int[] notes;
+	
+	/** For each Unit, the index of its first Note times two, plus one if its Word is repeated.
+	    Followed by the number of Notes times two. */
+	private int[] units;
+	
+	/** For each Line, the index of its first Unit, followed by the number of Units */
+	private int[] lines;
 	
 	/** The Part of this Voice, e.g. ALTO */
 	private Part part;
 	
+	/** The hash code of this Voice, 0 until it is asked for */
+	private int hash;
+	
 	/**
 	 * Constructor.
 	 * @param part The enum Part for this Voice.
@@ -47,13 +64,15 @@ public final class Voice implements Section, Iterable<Line<Unit>> {
 			throw new BadInputException("Part for Voice cannot be null");
 		
 		this.part = part;
-		this.lines = new ArrayList<Line<Unit>>();
+		this.notes = new int[0];
+		this.units = new int[] { 0 };
+		this.lines = new int[] { 0 };
 	}
 	
 	@Override
 	public String toString() {
 		String s = "\t" + part.toString().toUpperCase() + ": \n";
-		for(Line<Unit> l : lines) {
+		for(Line<Unit> l : this) {
 			s += "\t\t";
 			for(Unit u : l)
 				s += u;
@@ -64,7 +83,30 @@ public final class Voice implements Section, Iterable<Line<Unit>> {
 	
 	@Override
 	public Iterator<Line<Unit>> iterator() { 
-		return lines.iterator(); 
+		return new Iterator<Line<Unit>>() {
+			private int next = 0;
+			
+			@Override
+			public boolean hasNext() {
+				return next < numberOfLines();
+			}
+			
+			@Override
+			public Line<Unit> next() {
+				if(next >= numberOfLines())
+					throw new NoSuchElementException();
+				Line<Unit> line = new Line<Unit>(lines[next + 1] - lines[next]);
+				for(int u=lines[next]; u<lines[next + 1]; u++)
+					line.addSyllable(new Unit(notes, units[u] >> 1, units[u + 1] >> 1, (units[u] & 1) != 0));
+				next++;
+				return line;
+			}
+			
+			@Override
+			public void remove() {
+				throw new UnsupportedOperationException("Lines cannot be removed from a Voice");
+			}
+		};
 	}
 	
 	@Override
@@ -72,40 +114,69 @@ public final class Voice implements Section, Iterable<Line<Unit>> {
 		if(other == null) return false;
 		if(other instanceof Voice){
 			Voice voice = (Voice) other;
-			boolean toReturn = (voice.part == this.part) && (voice.lines.size() == this.lines.size());
-			if(toReturn){
-				for(int i=0; i<this.lines.size(); i++)
-					toReturn = toReturn && voice.lines.get(i).equals(this.lines.get(i));
-			}
-			return toReturn;
+			return (voice.part == this.part) &&
+			       Arrays.equals(voice.lines, this.lines) &&
+			       Arrays.equals(voice.units, this.units) &&
+			       Arrays.equals(voice.notes, this.notes);
 		}
 		return false;
 	}
 	
+	@Override
+	public int hashCode() {
+		int hc = hash;
+		if(hc == 0) {
+			hc = part.hashCode();
+			hc = 31*hc + Arrays.hashCode(lines);
+			hc = 31*hc + Arrays.hashCode(units);
+			hc = 31*hc + Arrays.hashCode(notes);
+			hash = hc;
+		}
+		return hc;
+	}
+	
 	@Override
 	public int numberOfLines() {
-		return lines.size();
+		return lines.length - 1;
 	}
 	
 	@Override
 	public int numberOfSyllables() {
 		int i = 0;
-		for(Line<Unit> l : lines) {
-			for(Iterator<Unit> units = l.iterator(); units.hasNext(); ) {
-				if(!units.next().getWordRepeat())
-					i ++;
-			}
+		for(int u=0; u<units.length - 1; u++) {
+			if((units[u] & 1) == 0)
+				i ++;
 		}
 		return i;
 	}
 	
 	/**
-	 * Add a Line to this Voice.
+	 * Add a Line to this Voice. Its Units are
+	 * copied, so changing them afterwards does
+	 * not change the Voice.
 	 * @param line The Line to add to this Voice.
 	 * @author Jason Petersen
 	 */
 	public void addLine(Line<Unit> line) {
-		if(line != null) lines.add(line);
+		if(line == null) return;
+		
+		int added = 0;
+		for(Unit u : line)
+			added += u.numberOfNotes();
+		
+		int note = notes.length;
+		int unit = units.length - 1;
+		notes = Arrays.copyOf(notes, note + added);
+		units = Arrays.copyOf(units, unit + line.numberOfSyllables() + 1);
+		lines = Arrays.copyOf(lines, lines.length + 1);
+		for(Unit u : line) {
+			units[unit++] = (note << 1) | (u.getWordRepeat() ? 1 : 0);
+			System.arraycopy(u.notes, u.from, notes, note, u.numberOfNotes());
+			note += u.numberOfNotes();
+		}
+		units[unit] = note << 1;
+		lines[lines.length - 1] = unit;
+		hash = 0;
 	}
 	
 	/**
@@ -117,16 +188,26 @@ public final class Voice implements Section, Iterable<Line<Unit>> {
 	 */
 	public int duration(){
 		int i = 0;
-		for(Line<Unit> l : lines) {
-			for(Iterator<Unit> units = l.iterator(); units.hasNext(); ) {
-				Unit u = units.next();
-				if(!u.getWordRepeat())
-					i += u.duration();
+		for(int u=0; u<units.length - 1; u++) {
+			if((units[u] & 1) == 0) {
+				for(int n=units[u] >> 1; n<units[u + 1] >> 1; n++)
+					i += Note.duration(notes[n]);
 			}
 		}
 		return i;
 	}
 	
+	/**
+	 * Add the Part and packed Notes of this Voice to a digest.
+	 * @param digest The digest to add this Voice to.
+	 */
+	void digest(ContentDigest digest) {
+		digest.add(part.name());
+		digest.add(lines);
+		digest.add(units);
+		digest.add(notes);
+	}
+	
 	/* ---------- Getter methods ---------- */
 	
 	/**
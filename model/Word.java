@@ -18,14 +18,21 @@
  * Class to model a Syllable of String.
  * Used to create Lyrics. 
  * 
+ * Words are immutable, and the same syllables
+ * come up again and again across Texts, so
+ * valueOf shares one Word for each.
+ * 
  * @author Jason Petersen
  */
 
 package model;
 
+import java.lang.ref.WeakReference;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Iterator;
 import java.util.StringTokenizer;
+import java.util.WeakHashMap;
 
 public final class Word implements Syllable, Iterable<String> {
 
@@ -35,8 +42,18 @@ public final class Word implements Syllable, Iterable<String> {
 	/** The delimiter String */
 	public static final String delimiter = "+";
 	
+	/**
+	 * The shared Words, by their text. Both are weak, so a Word
+	 * no Text uses any more is forgotten; the text is kept by
+	 * the Word itself, so the entry lasts as long as the Word.
+	 */
+	private static final WeakHashMap<String, WeakReference<Word>> canonical = new WeakHashMap<String, WeakReference<Word>>();
+	
 	/** The Strings in this Word, to be treated as one syllable */
-	private ArrayList<String> strings;
+	private final String[] strings;
+	
+	/** The Strings joined by the delimiter */
+	private final String text;
 	
 	/**
 	 * Constructor.
@@ -55,29 +72,70 @@ public final class Word implements Syllable, Iterable<String> {
 	 * @author Jason Petersen
 	 */
 	public Word(String input) { 
-		strings = new ArrayList<String>();
+		ArrayList<String> strings = new ArrayList<String>();
 		
 		if(input != null) {
 			StringTokenizer token = new StringTokenizer(input, delimiter);
 			while(token.hasMoreTokens())
 				strings.add(token.nextToken());
 		}
-	}
-	
-	@Override
-	public String toString() {
+		this.strings = strings.toArray(new String[strings.size()]);
+		
 		String toReturn = "";
 		if(strings.size() != 0) {
 			for(String s : strings)
 				toReturn += s + delimiter;
 			toReturn = toReturn.substring(0, toReturn.length()-delimiter.length());
 		}
-		return toReturn;
+		this.text = toReturn;
+	}
+	
+	/**
+	 * Get the shared Word for the given String, which is
+	 * split as the constructor splits it. Words are immutable,
+	 * so one may be used in any number of places. A Word is
+	 * only shared while something still uses it.
+	 * This method is safe to call from multiple threads.
+	 * @param input The String to make into a Word.
+	 * @return The Word.
+	 */
+	public static Word valueOf(String input) {
+		if(input == null)
+			return new Word(null);
+		
+		synchronized(canonical) {
+			Word word = shared(input); // Found straight away unless the input has extra delimiters
+			if(word == null) {
+				Word made = new Word(input);
+				word = shared(made.text);
+				if(word == null) {
+					canonical.put(made.text, new WeakReference<Word>(made));
+					word = made;
+				}
+			}
+			return word;
+		}
+	}
+	
+	/**
+	 * Helper method to get the shared Word with the given
+	 * text, if there still is one. Must hold the lock on canonical.
+	 * @param text The text of the Word.
+	 * @return The shared Word, or null if there is none.
+	 */
+	private static Word shared(String text) {
+		WeakReference<Word> ref = canonical.get(text);
+		return (ref != null) ? ref.get() : null;
+	}
+	
+	@Override
+	public String toString() {
+		return text;
 	}
 	
 	@Override
 	public Iterator<String> iterator() { 
-		return strings.iterator(); 
+		return Arrays.asList(strings).iterator(); 
 	}
 	
 	@Override 
@@ -85,23 +143,23 @@ public final class Word implements Syllable, Iterable<String> {
 		if(other == null) return false;
 		if(other instanceof Word) {
 			Word word = (Word) other;
-			boolean toReturn = word.strings.size() == this.strings.size();
-			if(toReturn) {
-				for(int i=0; i<this.strings.size(); i++)
-					toReturn = toReturn && (word.strings.get(i).equals(this.strings.get(i)));
-			}
-			return toReturn;
+			return Arrays.equals(word.strings, this.strings);
 		}
 		return false;
 	}
 	
+	@Override
+	public int hashCode() {
+		return text.hashCode(); // The Strings cannot hold the delimiter, so equal Words have the same text
+	}
+	
 	/**
 	 * Get the number of Strings in this Word.
 	 * @return The number of Strings in this Word.
 	 * @author Jason Petersen
 	 */
 	public int numberOfStrings() { 
-		return strings.size(); 
+		return strings.length; 
 	}
 	
 }